@@ -0,0 +1,177 @@
+package com.kieronquinn.app.smartspacer.components.smartspace
+
+import android.content.ComponentName
+import android.net.Uri
+import android.os.BadParcelableException
+import android.os.Bundle
+import android.os.Parcel
+import android.util.Log
+import androidx.core.os.bundleOf
+import com.kieronquinn.app.smartspacer.sdk.model.CompactSmartspaceTargets
+import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceAction
+import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceTarget
+import com.kieronquinn.app.smartspacer.sdk.model.UiSurface
+import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.BaseTemplateData.SubItemInfo
+import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.BasicTemplateData
+import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.SubListTemplateData
+import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.TapAction
+import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.Text
+import com.kieronquinn.app.smartspacer.utils.randomString
+import junit.framework.TestCase.assertEquals
+import junit.framework.TestCase.assertTrue
+import junit.framework.TestCase.fail
+import org.junit.Test
+
+class CompactSmartspaceTargetsTests {
+
+    companion object {
+        private const val TAG = "CompactTargets"
+        private const val TARGET_COUNT = 10
+        private const val ITERATIONS = 1000
+    }
+
+    @Test
+    fun testRoundTrip() {
+        val targets = createTargets()
+        val result = readCompact(writeCompact(targets))
+        assertEquals(targets, result)
+        //Plugin extras are passed through as-is
+        assertEquals(
+            targets.first().baseAction?.extras?.getString("plugin_key"),
+            result.first().baseAction?.extras?.getString("plugin_key")
+        )
+    }
+
+    @Test
+    fun testNewerVersionRejected() {
+        val parcel = Parcel.obtain()
+        parcel.writeInt(CompactSmartspaceTargets.VERSION + 1)
+        parcel.writeInt(0)
+        parcel.setDataPosition(0)
+        try {
+            CompactSmartspaceTargets.createFromParcel(parcel)
+            fail("Newer version should not be readable")
+        }catch (e: BadParcelableException) {
+            //Expected
+        }finally {
+            parcel.recycle()
+        }
+    }
+
+    /**
+     *  Compares the parcelled size and the time to write and read back a realistic list of
+     *  Targets using the Bundle format, as sent by `onResult`, against the compact format.
+     */
+    @Test
+    fun benchmarkCompactAgainstBundles() {
+        val targets = createTargets()
+        val bundleSize = writeBundles(targets).getSizeAndRecycle()
+        val compactSize = writeCompact(targets).getSizeAndRecycle()
+        val bundleStart = System.nanoTime()
+        repeat(ITERATIONS) {
+            readBundles(writeBundles(targets))
+        }
+        val bundleTime = System.nanoTime() - bundleStart
+        val compactStart = System.nanoTime()
+        repeat(ITERATIONS) {
+            readCompact(writeCompact(targets))
+        }
+        val compactTime = System.nanoTime() - compactStart
+        Log.i(
+            TAG,
+            "$TARGET_COUNT Targets: " +
+                    "bundles ${bundleSize}B, ${bundleTime / ITERATIONS / 1000}us per round trip, " +
+                    "compact ${compactSize}B, ${compactTime / ITERATIONS / 1000}us per round trip"
+        )
+        assertEquals(targets, readBundles(writeBundles(targets)))
+        assertTrue(compactSize < bundleSize)
+    }
+
+    private fun Parcel.getSizeAndRecycle(): Int {
+        return dataSize().also { recycle() }
+    }
+
+    private fun writeBundles(targets: List<SmartspaceTarget>): Parcel {
+        return Parcel.obtain().apply {
+            writeInt(targets.size)
+            targets.forEach { writeBundle(it.toBundle()) }
+            setDataPosition(0)
+        }
+    }
+
+    private fun readBundles(parcel: Parcel): List<SmartspaceTarget> {
+        val classLoader = SmartspaceTarget::class.java.classLoader
+        return try {
+            List(parcel.readInt()) { SmartspaceTarget(parcel.readBundle(classLoader)!!) }
+        }finally {
+            parcel.recycle()
+        }
+    }
+
+    private fun writeCompact(targets: List<SmartspaceTarget>): Parcel {
+        return Parcel.obtain().apply {
+            CompactSmartspaceTargets(targets).writeToParcel(this, 0)
+            setDataPosition(0)
+        }
+    }
+
+    private fun readCompact(parcel: Parcel): List<SmartspaceTarget> {
+        return try {
+            CompactSmartspaceTargets.createFromParcel(parcel).targets
+        }finally {
+            parcel.recycle()
+        }
+    }
+
+    private fun createTargets(): List<SmartspaceTarget> {
+        return List(TARGET_COUNT) {
+            val id = randomString()
+            SmartspaceTarget(
+                smartspaceTargetId = id,
+                headerAction = createAction("${id}_header", "Title $it"),
+                baseAction = createAction("${id}_base", "Subtitle $it"),
+                actionChips = List(2) { chip -> createAction("${id}_chip_$chip", "Chip $chip") },
+                featureType = SmartspaceTarget.FEATURE_UNDEFINED,
+                componentName = ComponentName("com.example.plugin", "com.example.plugin.Target"),
+                sliceUri = Uri.parse("content://com.example.plugin/$id"),
+                templateData = if(it % 2 == 0) createBasicTemplate(it) else createListTemplate(it),
+                limitToSurfaces = setOf(UiSurface.HOMESCREEN, UiSurface.LOCKSCREEN)
+            )
+        }
+    }
+
+    private fun createAction(id: String, title: String): SmartspaceAction {
+        return SmartspaceAction(
+            id = id,
+            title = title,
+            subtitle = "Subtitle for $title",
+            extras = bundleOf("plugin_key" to randomString())
+        )
+    }
+
+    private fun createBasicTemplate(index: Int): BasicTemplateData {
+        return BasicTemplateData(
+            primaryItem = createSubItemInfo("Title $index"),
+            subtitleItem = createSubItemInfo("Subtitle $index"),
+            supplementalLineItem = createSubItemInfo("Line $index")
+        )
+    }
+
+    private fun createListTemplate(index: Int): SubListTemplateData {
+        return SubListTemplateData(
+            primaryItem = createSubItemInfo("Title $index"),
+            subtitleItem = createSubItemInfo("Subtitle $index"),
+            subListTexts = List(3) { Text("Item $it") },
+            subListIcon = null,
+            subListAction = TapAction(id = "list_$index")
+        )
+    }
+
+    private fun createSubItemInfo(text: String): SubItemInfo {
+        return SubItemInfo(
+            text = Text(text),
+            tapAction = TapAction(id = "tap_$text", extras = Bundle())
+        )
+    }
+
+}
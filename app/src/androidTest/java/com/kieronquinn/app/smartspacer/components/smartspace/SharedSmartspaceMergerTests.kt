@@ -0,0 +1,113 @@
+package com.kieronquinn.app.smartspacer.components.smartspace
+
+import android.content.ComponentName
+import com.kieronquinn.app.smartspacer.components.smartspace.SharedSmartspaceMerger.MergeKey
+import com.kieronquinn.app.smartspacer.model.smartspace.Target
+import com.kieronquinn.app.smartspacer.model.smartspace.TargetHolder
+import com.kieronquinn.app.smartspacer.repositories.SmartspaceRepository.SmartspacePageHolder
+import com.kieronquinn.app.smartspacer.repositories.SmartspacerSettingsRepository.ComplicationOnPrimary
+import com.kieronquinn.app.smartspacer.repositories.SmartspacerSettingsRepository.ExpandedOpenMode
+import com.kieronquinn.app.smartspacer.repositories.SmartspacerSettingsRepository.HideSensitive
+import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceAction
+import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceTarget
+import com.kieronquinn.app.smartspacer.sdk.model.UiSurface
+import com.kieronquinn.app.smartspacer.test.BaseTest
+import com.kieronquinn.app.smartspacer.utils.randomString
+import io.mockk.every
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class SharedSmartspaceMergerTests: BaseTest<SharedSmartspaceMerger>() {
+
+    companion object {
+        private const val EMISSIONS = 5
+    }
+
+    override val sut by lazy {
+        SharedSmartspaceMerger()
+    }
+
+    private val key = MergeKey(
+        surface = UiSurface.HOMESCREEN,
+        openMode = ExpandedOpenMode.NEVER,
+        aodAudio = false,
+        hideSensitive = HideSensitive.DISABLED,
+        useSplitSmartspace = false,
+        isNative = true,
+        isExpanded = false,
+        actionsFirst = false,
+        supportsRemoteViews = false,
+        complicationOnPrimary = ComplicationOnPrimary.NEVER
+    )
+
+    private val parent = mock<Target> {
+        every { config } returns Target.Config()
+    }
+
+    private val targets = List(2) { createTarget() }
+
+    @Test
+    fun testUnchangedSourcesShared() = runTest {
+        val first = sut.merge(key, createHolders(targets), emptyList()) { createPages() }
+        //A new list of the same Targets, as the repository emits when an unrelated item changes
+        val second = sut.merge(key, createHolders(targets), emptyList()) { createPages() }
+        assertTrue(first === second)
+        val stats = sut.getStats()
+        assertEquals(1L, stats.computed)
+        assertEquals(1L, stats.shared)
+    }
+
+    @Test
+    fun testChangedSourcesMergedAgain() = runTest {
+        val first = sut.merge(key, createHolders(targets), emptyList()) { createPages() }
+        val changed = targets.map { it.copy(headerAction = createAction("Changed")) }
+        val second = sut.merge(key, createHolders(changed), emptyList()) { createPages() }
+        assertTrue(first !== second)
+        assertEquals(2L, sut.getStats().computed)
+    }
+
+    @Test
+    fun testDifferentFiltersShareKey() = runTest {
+        val unfiltered = createPages()
+        val filtered = createPages()
+        //Each emission creates new filtered lists, as sessions filtering Targets do
+        repeat(EMISSIONS) {
+            val unfilteredResult = sut.merge(key, createHolders(targets), emptyList()) {
+                unfiltered
+            }
+            val filteredResult = sut.merge(key, createHolders(targets.take(1)), emptyList()) {
+                filtered
+            }
+            assertTrue(unfilteredResult === unfiltered)
+            assertTrue(filteredResult === filtered)
+        }
+        val stats = sut.getStats()
+        assertEquals(2L, stats.computed)
+        assertEquals((EMISSIONS * 2 - 2).toLong(), stats.shared)
+        assertEquals(2, stats.keys)
+    }
+
+    private fun createHolders(targets: List<SmartspaceTarget>): List<TargetHolder> {
+        return listOf(TargetHolder(parent, targets.toList()))
+    }
+
+    private fun createPages(): List<SmartspacePageHolder> {
+        return listOf(SmartspacePageHolder(createTarget(), parent, emptyList()))
+    }
+
+    private fun createTarget(): SmartspaceTarget {
+        return SmartspaceTarget(
+            smartspaceTargetId = randomString(),
+            headerAction = createAction("Title"),
+            featureType = SmartspaceTarget.FEATURE_UNDEFINED,
+            componentName = ComponentName("package", "class")
+        )
+    }
+
+    private fun createAction(title: String): SmartspaceAction {
+        return SmartspaceAction(id = "header", title = title)
+    }
+
+}
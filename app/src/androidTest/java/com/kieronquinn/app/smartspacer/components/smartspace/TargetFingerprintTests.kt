@@ -0,0 +1,179 @@
+package com.kieronquinn.app.smartspacer.components.smartspace
+
+import android.content.ComponentName
+import android.content.Intent
+import android.graphics.drawable.Icon as AndroidIcon
+import android.widget.RemoteViews
+import androidx.core.os.bundleOf
+import com.kieronquinn.app.smartspacer.components.smartspace.compat.TargetMergerRegular
+import com.kieronquinn.app.smartspacer.model.smartspace.Action
+import com.kieronquinn.app.smartspacer.model.smartspace.ActionHolder
+import com.kieronquinn.app.smartspacer.model.smartspace.Target
+import com.kieronquinn.app.smartspacer.model.smartspace.TargetHolder
+import com.kieronquinn.app.smartspacer.repositories.SmartspacerSettingsRepository.ComplicationOnPrimary
+import com.kieronquinn.app.smartspacer.repositories.SmartspacerSettingsRepository.ExpandedOpenMode
+import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceAction
+import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceTarget
+import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceTargetPatch
+import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceTargetPatch.Companion.contentHash
+import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.BaseTemplateData.SubItemInfo
+import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.BasicTemplateData
+import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.TapAction
+import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.Text
+import com.kieronquinn.app.smartspacer.utils.randomString
+import io.mockk.every
+import io.mockk.mockk
+import junit.framework.TestCase.assertEquals
+import junit.framework.TestCase.assertFalse
+import junit.framework.TestCase.assertTrue
+import org.junit.Test
+
+class TargetFingerprintTests {
+
+    companion object {
+        private const val TARGET_COUNT = 10
+    }
+
+    @Test
+    fun testEqualTargetsHaveEqualFingerprints() {
+        val ids = List(TARGET_COUNT) { randomString() }
+        val first = createTargets(ids, "Title")
+        val second = createTargets(ids, "Title")
+        first.zip(second).forEach { (a, b) ->
+            assertTrue(a !== b)
+            assertEquals(a, b)
+            assertEquals(a.fingerprint(), b.fingerprint())
+        }
+    }
+
+    @Test
+    fun testChangedTargetsHaveDifferentFingerprints() {
+        val ids = List(TARGET_COUNT) { randomString() }
+        val first = createTargets(ids, "Title")
+        val second = createTargets(ids, "Changed")
+        first.zip(second).forEach { (a, b) ->
+            assertFalse(a.fingerprint() == b.fingerprint())
+        }
+        //Nested template changes must also change the fingerprint
+        val template = createTarget(ids.first(), "Title").apply {
+            templateData = createTemplate("Other")
+        }
+        assertFalse(template.fingerprint() == first.first().fingerprint())
+    }
+
+    @Test
+    fun testFingerprintReflectsMutation() {
+        val target = createTarget(randomString(), "Title")
+        val before = target.fingerprint()
+        //Targets and their Actions are mutable, so the fingerprint must not be stale
+        target.headerAction?.subtitle = "Changed"
+        assertFalse(target.fingerprint() == before)
+        val changed = target.fingerprint()
+        target.templateData = createTemplate("Other")
+        assertFalse(target.fingerprint() == changed)
+    }
+
+    @Test
+    fun testContentHashCoversRenderedFields() {
+        val target = createTarget(randomString(), "Title")
+        //Copies share the same fields, so are not sent again
+        assertEquals(contentHash(target), contentHash(target.copy()))
+        val intent = target.copy(
+            baseAction = target.baseAction?.copy(intent = Intent(Intent.ACTION_VIEW))
+        )
+        val remoteViews = target.copy(remoteViews = RemoteViews("package", 0))
+        //These are not checked by equals, but are shown by the client
+        assertEquals(target.fingerprint(), intent.fingerprint())
+        assertFalse(contentHash(target) == contentHash(intent))
+        assertEquals(target.fingerprint(), remoteViews.fingerprint())
+        assertFalse(contentHash(target) == contentHash(remoteViews))
+    }
+
+    @Test
+    fun testIdenticalMergesCreateEmptyPatch() {
+        val ids = List(TARGET_COUNT) { randomString() }
+        val targets = listOf(
+            TargetHolder(createTargetParent(), createTargets(ids, "Title"))
+        )
+        val actions = listOf(
+            ActionHolder(createActionParent(), List(5) { createComplication("complication_$it") })
+        )
+        //Each merge clones the Targets, Actions and templates, as sessions do on every emission
+        val merge = {
+            TargetMergerRegular.mergeTargetsAndActions(
+                targets,
+                actions,
+                ExpandedOpenMode.ALWAYS,
+                actionsFirst = false,
+                supportsRemoteViews = true,
+                complicationOnPrimary = ComplicationOnPrimary.NEVER
+            ).map { it.page }
+        }
+        val first = merge()
+        val second = merge()
+        assertTrue(first.zip(second).all { (a, b) -> a !== b })
+        val previous = first.map { it.smartspaceTargetId to contentHash(it) }
+        val patch = SmartspaceTargetPatch.create(previous, second)
+        assertTrue(patch?.isEmpty() == true)
+    }
+
+    private fun createTargets(ids: List<String>, title: String): List<SmartspaceTarget> {
+        return ids.map { createTarget(it, title) }
+    }
+
+    private fun createTarget(id: String, title: String): SmartspaceTarget {
+        return SmartspaceTarget(
+            smartspaceTargetId = id,
+            headerAction = createAction("${id}_header", title),
+            baseAction = createAction("${id}_base", "Subtitle"),
+            actionChips = List(3) { createAction("${id}_chip_$it", "Chip $it") },
+            featureType = SmartspaceTarget.FEATURE_UNDEFINED,
+            componentName = ComponentName("package", "class"),
+            creationTimeMillis = 0L,
+            templateData = createTemplate(title)
+        )
+    }
+
+    private fun createTargetParent() = mockk<Target>(relaxed = true) {
+        every { authority } returns "authority"
+        every { sourcePackage } returns "package"
+    }
+
+    private fun createActionParent() = mockk<Action>(relaxed = true) {
+        every { authority } returns "authority"
+        every { sourcePackage } returns "package"
+    }
+
+    private fun createComplication(id: String): SmartspaceAction {
+        return SmartspaceAction(
+            id = id,
+            title = "",
+            subtitle = id,
+            icon = AndroidIcon.createWithResource("package", 1),
+            intent = Intent(Intent.ACTION_VIEW),
+            extras = bundleOf("key" to id),
+            subItemInfo = createSubItemInfo(id)
+        )
+    }
+
+    private fun createAction(id: String, title: String): SmartspaceAction {
+        return SmartspaceAction(id = id, title = title, subtitle = "Subtitle for $title")
+    }
+
+    private fun createTemplate(title: String): BasicTemplateData {
+        return BasicTemplateData(
+            primaryItem = createSubItemInfo(title),
+            subtitleItem = createSubItemInfo("Subtitle"),
+            subtitleSupplementalItem = createSubItemInfo("Supplemental"),
+            supplementalLineItem = createSubItemInfo("Line")
+        )
+    }
+
+    private fun createSubItemInfo(text: String): SubItemInfo {
+        return SubItemInfo(
+            text = Text(text),
+            tapAction = TapAction(id = "tap_$text")
+        )
+    }
+
+}
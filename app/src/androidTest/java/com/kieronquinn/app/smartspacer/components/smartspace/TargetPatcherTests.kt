@@ -0,0 +1,111 @@
+package com.kieronquinn.app.smartspacer.components.smartspace
+
+import android.content.ComponentName
+import com.kieronquinn.app.smartspacer.components.smartspace.compat.TargetPatcher
+import com.kieronquinn.app.smartspacer.model.smartspace.Target
+import com.kieronquinn.app.smartspacer.model.smartspace.TargetHolder
+import com.kieronquinn.app.smartspacer.repositories.SmartspacePatchRepository.PatchKey
+import com.kieronquinn.app.smartspacer.repositories.SmartspacePatchRepository.TextPatch
+import com.kieronquinn.app.smartspacer.repositories.SmartspacePatchRepository.TextPatches
+import com.kieronquinn.app.smartspacer.repositories.SmartspaceRepository.SmartspacePageHolder
+import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceAction
+import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceTarget
+import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.BaseTemplateData.SubItemInfo
+import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.BasicTemplateData
+import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.Text
+import com.kieronquinn.app.smartspacer.utils.extensions.cloneWithUniqneness
+import com.kieronquinn.app.smartspacer.utils.randomString
+import io.mockk.every
+import io.mockk.mockk
+import junit.framework.TestCase.assertTrue
+import org.junit.Test
+
+class TargetPatcherTests {
+
+    private val authority = randomString()
+    private val smartspacerId = randomString()
+
+    private val parent = mockk<Target> {
+        every { authority } returns this@TargetPatcherTests.authority
+        every { id } returns smartspacerId
+        every { sourcePackage } returns "package"
+    }
+
+    @Test
+    fun testPatchReplacesTitle() {
+        val target = createTarget("12:00")
+        val holder = TargetHolder(parent, listOf(target), loadedAt = 0L)
+        val pages = listOf(createPage(target))
+        val patches = createPatches(TextPatch(title = "12:01", createdAt = 1L))
+        val patched = TargetPatcher.applyPatches(pages, listOf(holder), emptyList(), patches)
+        val page = patched.first().page
+        assertTrue(page.headerAction?.title == "12:01")
+        assertTrue(page.templateData?.primaryItem?.text?.text == "12:01")
+        //Other text is left untouched
+        assertTrue(page.templateData?.subtitleItem?.text?.text == "Subtitle")
+    }
+
+    @Test
+    fun testOlderPatchIgnored() {
+        val target = createTarget("12:00")
+        val holder = TargetHolder(parent, listOf(target), loadedAt = 2L)
+        val pages = listOf(createPage(target))
+        val patches = createPatches(TextPatch(title = "11:59", createdAt = 1L))
+        val patched = TargetPatcher.applyPatches(pages, listOf(holder), emptyList(), patches)
+        assertTrue(patched === pages)
+    }
+
+    @Test
+    fun testOtherTargetWithSameTextNotPatched() {
+        val target = createTarget("12:00")
+        val other = createTarget("12:00")
+        val holder = TargetHolder(parent, listOf(target), loadedAt = 0L)
+        val pages = listOf(createPage(target), createPage(other))
+        val patches = createPatches(TextPatch(title = "12:01", createdAt = 1L))
+        val patched = TargetPatcher.applyPatches(pages, listOf(holder), emptyList(), patches)
+        assertTrue(patched[0].page.templateData?.primaryItem?.text?.text == "12:01")
+        val page = patched[1].page
+        assertTrue(page.headerAction?.title == "12:00")
+        assertTrue(page.templateData?.primaryItem?.text?.text == "12:00")
+    }
+
+    @Test
+    fun testUnownedFieldWithSameTextNotPatched() {
+        val target = createTarget("12:00")
+        val merged = createPage(target).run {
+            //Simulate a Complication from another provider showing the same text in the header
+            val complication = SmartspaceAction(id = randomString(), title = "12:00")
+            copy(page = page.copy(headerAction = complication))
+        }
+        val holder = TargetHolder(parent, listOf(target), loadedAt = 0L)
+        val patches = createPatches(TextPatch(title = "12:01", createdAt = 1L))
+        val patched = TargetPatcher.applyPatches(
+            listOf(merged), listOf(holder), emptyList(), patches
+        )
+        val page = patched.first().page
+        assertTrue(page.templateData?.primaryItem?.text?.text == "12:01")
+        assertTrue(page.headerAction?.title == "12:00")
+    }
+
+    private fun createPage(target: SmartspaceTarget): SmartspacePageHolder {
+        return SmartspacePageHolder(target.cloneWithUniqneness(parent), parent, emptyList())
+    }
+
+    private fun createPatches(patch: TextPatch): TextPatches {
+        return TextPatches(mapOf(PatchKey(authority, null) to patch))
+    }
+
+    private fun createTarget(title: String): SmartspaceTarget {
+        return SmartspaceTarget(
+            smartspaceTargetId = randomString(),
+            headerAction = SmartspaceAction(id = randomString(), title = title),
+            featureType = SmartspaceTarget.FEATURE_UNDEFINED,
+            componentName = ComponentName("package", "class"),
+            templateData = BasicTemplateData(
+                primaryItem = SubItemInfo(text = Text(title)),
+                subtitleItem = SubItemInfo(text = Text("Subtitle"))
+            )
+        )
+    }
+
+}
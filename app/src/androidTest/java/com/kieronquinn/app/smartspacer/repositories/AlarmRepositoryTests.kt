@@ -3,13 +3,16 @@ package com.kieronquinn.app.smartspacer.repositories
 import android.app.AlarmManager
 import android.content.Context
 import android.content.Intent
+import android.content.SharedPreferences
 import android.os.PowerManager
 import app.cash.turbine.test
 import com.kieronquinn.app.smartspacer.components.notifications.NotificationChannel
 import com.kieronquinn.app.smartspacer.components.notifications.NotificationId
 import com.kieronquinn.app.smartspacer.components.smartspace.requirements.TimeDateRequirement.TimeDateRequirementData
 import com.kieronquinn.app.smartspacer.model.database.RequirementDataType
+import com.kieronquinn.app.smartspacer.repositories.AlarmRepository.DeadlineOwner
 import com.kieronquinn.app.smartspacer.test.BaseTest
+import com.kieronquinn.app.smartspacer.utils.randomString
 import io.mockk.every
 import io.mockk.verify
 import junit.framework.TestCase.assertFalse
@@ -53,10 +56,16 @@ class AlarmRepositoryTests: BaseTest<AlarmRepository>() {
     private val dataRepositoryMock = mock<DataRepository>()
 
     private val notificationRepositoryMock = mock<NotificationRepository>()
+    private val persistedDeadlines = HashMap<String, Any>()
+
+    private val deadlinePrefsMock = mock<SharedPreferences> {
+        every { all } answers { persistedDeadlines }
+    }
 
     override fun Context.context() {
         every { getSystemService(Context.ALARM_SERVICE) } returns alarmManagerMock
         every { getSystemService(Context.POWER_SERVICE) } returns powerManagerMock
+        every { getSharedPreferences(any(), any()) } returns deadlinePrefsMock
     }
 
     override val sut by lazy {
@@ -129,9 +138,7 @@ class AlarmRepositoryTests: BaseTest<AlarmRepository>() {
         }
         val time = LocalDate.now().atStartOfDay().plusDays(1).atZone(ZoneId.systemDefault())
             .toInstant().toEpochMilli()
-        verify {
-            alarmManagerMock.setExactAndAllowWhileIdle(AlarmManager.RTC, time, any())
-        }
+        assertTrue(hasDeadline(DeadlineOwner.DAILY_UPDATE, time))
     }
 
     @Test
@@ -149,9 +156,7 @@ class AlarmRepositoryTests: BaseTest<AlarmRepository>() {
         }
         val time = LocalDate.now().atStartOfDay().plusDays(1).atZone(ZoneId.systemDefault())
             .toInstant().toEpochMilli()
-        verify {
-            alarmManagerMock.setExactAndAllowWhileIdle(AlarmManager.RTC, time, any())
-        }
+        assertTrue(hasDeadline(DeadlineOwner.DAILY_UPDATE, time))
     }
 
     @Test
@@ -185,11 +190,12 @@ class AlarmRepositoryTests: BaseTest<AlarmRepository>() {
         //Verify busses have been updated to have a time newer than when the SUT was created
         assertTrue(sut.scheduleTimeDateRequirementAlarmBus.value > now)
         assertTrue(sut.scheduleCalendarTargetAlarmBus.value > now)
-        //Verify an alarm call was made
+        //Verify the daily update was scheduled and an alarm call was made
         val time = LocalDate.now().atStartOfDay().plusDays(1).atZone(ZoneId.systemDefault())
             .toInstant().toEpochMilli()
+        assertTrue(hasDeadline(DeadlineOwner.DAILY_UPDATE, time))
         verify {
-            alarmManagerMock.setExactAndAllowWhileIdle(AlarmManager.RTC, time, any())
+            alarmManagerMock.setExactAndAllowWhileIdle(AlarmManager.RTC, any(), any())
         }
     }
 
@@ -206,9 +212,49 @@ class AlarmRepositoryTests: BaseTest<AlarmRepository>() {
         val time = with(sut) {
             mockData[2].getNextStartTriggerTime()
         }
+        assertTrue(hasDeadline(DeadlineOwner.TIME_DATE_REQUIREMENT, time))
+    }
+
+    @Test
+    fun verifyDeadlinesCoalescedIntoSingleAlarm() = runTest {
+        every { powerManagerMock.isIgnoringBatteryOptimizations(any()) } returns true
+        val first = System.currentTimeMillis() + 60_000L
+        val second = first + AlarmRepositoryImpl.DEFAULT_COALESCE_WINDOW / 2
+        sut.scheduleDeadline(DeadlineOwner.CALENDAR_TARGET, first, Intent())
+        sut.scheduleDeadline(DeadlineOwner.GREETING_TARGET, second, Intent())
+        //The second deadline is within the window of the first, so the alarm covers both
+        verify {
+            alarmManagerMock.setExactAndAllowWhileIdle(AlarmManager.RTC, second, any())
+        }
+    }
+
+    @Test
+    fun verifyDueDeadlinesDispatched() = runTest {
+        every { powerManagerMock.isIgnoringBatteryOptimizations(any()) } returns true
+        val payload = Intent(randomString())
+        val future = System.currentTimeMillis() + 60_000L
+        sut.scheduleDeadline(DeadlineOwner.CALENDAR_TARGET, future, Intent())
+        sut.scheduleDeadline(DeadlineOwner.GREETING_TARGET, System.currentTimeMillis(), payload)
+        sut.onDeadlineAlarm()
+        verify {
+            contextMock.sendBroadcast(payload)
+        }
+        assertTrue(sut.getTimeline().none { it.owner == DeadlineOwner.GREETING_TARGET })
+        assertTrue(sut.getTimeline().any { it.owner == DeadlineOwner.CALENDAR_TARGET })
+    }
+
+    @Test
+    fun verifyMissedDeadlinesDispatchedOnStart() = runTest {
+        every { powerManagerMock.isIgnoringBatteryOptimizations(any()) } returns true
+        val future = System.currentTimeMillis() + 60_000L
+        persistedDeadlines[DeadlineOwner.GREETING_TARGET.name] = System.currentTimeMillis() - 1
+        persistedDeadlines[DeadlineOwner.CALENDAR_TARGET_TOTM.name] = future
+        //The greeting deadline came due while the process was dead, so is sent straight away
+        assertTrue(sut.getTimeline().none { it.owner == DeadlineOwner.GREETING_TARGET })
         verify {
-            alarmManagerMock.setExactAndAllowWhileIdle(AlarmManager.RTC, time, any())
+            contextMock.sendBroadcast(any())
         }
+        assertTrue(hasDeadline(DeadlineOwner.CALENDAR_TARGET_TOTM, future))
     }
 
     @Test
@@ -287,4 +333,8 @@ class AlarmRepositoryTests: BaseTest<AlarmRepository>() {
         }
     }
 
+    private fun hasDeadline(owner: DeadlineOwner, time: Long): Boolean {
+        return sut.getTimeline().any { it.owner == owner && it.time == time }
+    }
+
 }
\ No newline at end of file
@@ -266,15 +266,21 @@ class AppWidgetRepositoryTests: BaseTest<AppWidgetRepository>() {
         widgets.emit(mockAppWidgets)
         delay(500L)
         assertTrue(sut.widgetSessions.size == mockAppWidgets.size)
-        //Test a change to wallpaper text colour refreshes widgets
-        var firstSessionHash = sut.widgetSessions.first().hashCode()
+        //Test a change to wallpaper text colour keeps the existing sessions
+        val firstSessionHash = sut.widgetSessions.first().hashCode()
         wallpaperDarkTextColour.emit(true)
-        assertFalse(sut.widgetSessions.first().hashCode() == firstSessionHash)
-        //Test updating widgets recreates sessions
-        firstSessionHash = sut.widgetSessions.first().hashCode()
+        delay(250L)
+        assertTrue(sut.widgetSessions.first().hashCode() == firstSessionHash)
+        //Test removing widgets keeps the remaining unchanged session
         val variantMockWidgets = mockAppWidgets.take(1)
         widgets.emit(variantMockWidgets)
-        delay(250L)
+        delay(500L)
+        assertTrue(sut.widgetSessions.size == 1)
+        assertTrue(sut.widgetSessions.first().hashCode() == firstSessionHash)
+        //Test changing a session's config recreates it
+        val changedMockWidgets = variantMockWidgets.map { it.copy(multiPage = !it.multiPage) }
+        widgets.emit(changedMockWidgets)
+        delay(500L)
         assertTrue(sut.widgetSessions.size == 1)
         assertFalse(sut.widgetSessions.first().hashCode() == firstSessionHash)
     }
@@ -27,6 +27,7 @@ import com.kieronquinn.app.smartspacer.repositories.BackupRepository.Smartspacer
 import com.kieronquinn.app.smartspacer.repositories.BackupRepository.SmartspacerBackupProgress.ErrorReason
 import com.kieronquinn.app.smartspacer.repositories.BackupRepository.SmartspacerBackupProgress.Finished
 import com.kieronquinn.app.smartspacer.repositories.BackupRepository.SmartspacerBackupProgress.WritingFile
+import com.kieronquinn.app.smartspacer.repositories.BackupRepositoryImpl.Companion.MAX_CONCURRENT_BACKUPS
 import com.kieronquinn.app.smartspacer.repositories.ExpandedRepository.ExpandedCustomWidgetBackup
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerComplicationProvider
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerRequirementProvider
@@ -42,12 +43,14 @@ import io.mockk.just
 import io.mockk.mockkStatic
 import junit.framework.TestCase.assertTrue
 import kotlinx.coroutines.flow.flowOf
+import kotlinx.coroutines.flow.last
 import kotlinx.coroutines.test.runTest
 import org.junit.Test
 import org.koin.core.component.KoinComponent
 import org.koin.core.component.get
 import org.koin.core.component.inject
 import java.io.File
+import java.util.concurrent.atomic.AtomicInteger
 import com.kieronquinn.app.smartspacer.model.database.Action as DatabaseComplication
 import com.kieronquinn.app.smartspacer.model.database.Target as DatabaseTarget
 import com.kieronquinn.app.smartspacer.model.smartspace.Action as Complication
@@ -58,6 +61,9 @@ class BackupRepositoryTests: BaseTest<BackupRepository>() {
     companion object: KoinComponent {
         private val gson by inject<Gson>()
 
+        private const val SLOW_BACKUP_DELAY = 500L
+        private const val TARGET_COUNT = 8
+
         private val DUMMY_ICON = Icon.createWithBitmap(
             Bitmap.createBitmap(1, 1, Bitmap.Config.ALPHA_8)
         )
@@ -69,16 +75,21 @@ class BackupRepositoryTests: BaseTest<BackupRepository>() {
          *
          *  `restore` calls then verify this bundle is valid.
          *
-         *  Config lookup calls are replaced with a mock with dummy data to show as compatible
+         *  Config lookup calls are replaced with a mock with dummy data to show as compatible.
+         *  [onBackup] is called with the [uri] before each `backup` call returns.
          */
-        private fun createMockContentProviderClient(uri: String) = mock<ContentProviderClient> {
+        private fun createMockContentProviderClient(
+            uri: String,
+            onBackup: (String) -> Unit = {}
+        ) = mock<ContentProviderClient> {
             val backupBundle = bundleOf(
                 "name" to uri,
                 "data" to gson.toJson(MockBackup(uri))
             )
-            every { call("backup", any(), any()) } returns bundleOf(
-                "backup" to backupBundle
-            )
+            every { call("backup", any(), any()) } answers {
+                onBackup(uri)
+                bundleOf("backup" to backupBundle)
+            }
             every { call("restore", any(), any()) } answers {
                 val extras = thirdArg<Bundle>()
                 val result = if(extras.getString("name") == uri){
@@ -117,6 +128,7 @@ class BackupRepositoryTests: BaseTest<BackupRepository>() {
     private val databaseRepositoryMock = mock<DatabaseRepository>()
     private val settingsRepositoryMock = mock<SmartspacerSettingsRepository>()
     private val expandedRepositoryMock = mock<ExpandedRepository>()
+    private var onBackup: (String) -> Unit = {}
 
     private val testFile by lazy {
         File(actualContext.cacheDir, "backup.tmp")
@@ -142,17 +154,17 @@ class BackupRepositoryTests: BaseTest<BackupRepository>() {
         every {
             contentResolver.acquireUnstableContentProviderClient(any<Uri>())
         } answers {
-            createMockContentProviderClient(firstArg<Uri>().toString())
+            createMockContentProviderClient(firstArg<Uri>().toString()) { onBackup(it) }
         }
         every {
             contentResolver.acquireContentProviderClient(any<Uri>())
         } answers {
-            createMockContentProviderClient(firstArg())
+            createMockContentProviderClient(firstArg()) { onBackup(it) }
         }
         every {
             contentResolver.acquireUnstableContentProviderClient(any<String>())
         } answers {
-            createMockContentProviderClient(firstArg<String>().toString())
+            createMockContentProviderClient(firstArg<String>().toString()) { onBackup(it) }
         }
         every {
             contentResolver.registerContentObserver(any(), any(), any())
@@ -272,6 +284,104 @@ class BackupRepositoryTests: BaseTest<BackupRepository>() {
         }
     }
 
+    @Test
+    @UiThreadTest
+    fun testCreateBackupFailedToWriteSettings() = runTest {
+        every { targetsRepositoryMock.getAvailableTargets() } returns flowOf(emptyList())
+        every { targetsRepositoryMock.getAvailableComplications() } returns flowOf(emptyList())
+        every { requirementsRepositoryMock.getAllInUseRequirements() } returns flowOf(emptyList())
+        every { databaseRepositoryMock.getTargets() } returns flowOf(emptyList())
+        every { databaseRepositoryMock.getActions() } returns flowOf(emptyList())
+        coEvery { expandedRepositoryMock.getExpandedCustomWidgetBackups() } returns emptyList()
+        coEvery { settingsRepositoryMock.getBackup() } throws IllegalStateException()
+        sut.createBackup(testFileUri).test {
+            assertTrue(awaitItem() == CreatingBackup)
+            assertTrue(awaitItem() is CreatingCustomWidgetsBackup)
+            assertTrue(awaitItem() is CreatingSettingsBackup)
+            assertTrue(
+                awaitItem() == SmartspacerBackupProgress.Error(ErrorReason.FAILED_TO_WRITE_FILE)
+            )
+            awaitComplete()
+        }
+    }
+
+    @Test
+    @UiThreadTest
+    fun testCreateBackupLookAheadBounded() = runTest {
+        val mockTargets = List(TARGET_COUNT) { createMockTarget() }
+        mockTargetsOnly(mockTargets)
+        val started = AtomicInteger()
+        val startedWhileSlow = AtomicInteger()
+        onBackup = {
+            started.incrementAndGet()
+            if(it.contains(mockTargets.first().authority)) {
+                //Gives the Targets after the first time to start, if they are not held back
+                Thread.sleep(SLOW_BACKUP_DELAY)
+                startedWhileSlow.set(started.get())
+            }
+        }
+        assertTrue(sut.createBackup(testFileUri).last() is Finished)
+        assertTrue(startedWhileSlow.get() in 1..MAX_CONCURRENT_BACKUPS)
+    }
+
+    @Test
+    @UiThreadTest
+    fun testCreateBackupParallelOrder() = runTest {
+        val mockTargets = List(TARGET_COUNT) { createMockTarget() }
+        mockTargetsOnly(mockTargets)
+        //Earlier Targets take longer, so finish after the ones which are written after them
+        onBackup = { uri ->
+            val index = mockTargets.indexOfFirst { uri.contains(it.authority) }
+            Thread.sleep((TARGET_COUNT - index) * SLOW_BACKUP_DELAY / TARGET_COUNT)
+        }
+        assertTrue(sut.createBackup(testFileUri).last() is Finished)
+        onBackup = {}
+        val backup = sut.loadBackup(testFileUri)
+        assertTrue(backup is LoadBackupResult.Success)
+        backup as LoadBackupResult.Success
+        assertTrue(backup.backup.targetBackups == mockTargets.map { it.createBackup() })
+    }
+
+    @Test
+    @UiThreadTest
+    fun testCreateBackupPluginFailureSkipped() = runTest {
+        val mockTargets = List(TARGET_COUNT) { createMockTarget() }
+        val failingTarget = mockTargets[1]
+        mockTargetsOnly(mockTargets)
+        onBackup = {
+            if(it.contains(failingTarget.authority)) throw IllegalStateException()
+        }
+        assertTrue(sut.createBackup(testFileUri).last() is Finished)
+        onBackup = {}
+        val backup = sut.loadBackup(testFileUri)
+        assertTrue(backup is LoadBackupResult.Success)
+        backup as LoadBackupResult.Success
+        val expected = mockTargets.filterNot { it === failingTarget }.map { it.createBackup() }
+        assertTrue(backup.backup.targetBackups == expected)
+    }
+
+    @Test
+    fun testLoadBackupInvalidFile() = runTest {
+        testFile.writeText(randomString())
+        val backup = sut.loadBackup(testFileUri)
+        assertTrue(
+            backup == LoadBackupResult.Error(LoadBackupResult.ErrorReason.FAILED_TO_LOAD_BACKUP)
+        )
+    }
+
+    /**
+     *  Sets up the repository mocks to return only [mockTargets], with everything else empty
+     */
+    private fun mockTargetsOnly(mockTargets: List<Target>) {
+        every { targetsRepositoryMock.getAvailableTargets() } returns flowOf(mockTargets)
+        every { targetsRepositoryMock.getAvailableComplications() } returns flowOf(emptyList())
+        every { requirementsRepositoryMock.getAllInUseRequirements() } returns flowOf(emptyList())
+        every { databaseRepositoryMock.getTargets() } returns flowOf(emptyList())
+        every { databaseRepositoryMock.getActions() } returns flowOf(emptyList())
+        coEvery { expandedRepositoryMock.getExpandedCustomWidgetBackups() } returns emptyList()
+        coEvery { settingsRepositoryMock.getBackup() } returns emptyMap()
+    }
+
     private fun getMockTargets(): List<Target> {
         return listOf(
             createMockTarget(),
@@ -1,9 +1,15 @@
 package com.kieronquinn.app.smartspacer.repositories
 
+import android.content.BroadcastReceiver
+import android.content.BroadcastReceiver.PendingResult
 import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
 import android.net.Uri
+import com.kieronquinn.app.smartspacer.model.smartspace.BroadcastListener
 import com.kieronquinn.app.smartspacer.test.BaseTest
 import com.kieronquinn.app.smartspacer.utils.randomString
+import io.mockk.coVerify
 import io.mockk.every
 import junit.framework.TestCase.assertTrue
 import kotlinx.coroutines.flow.MutableStateFlow
@@ -14,14 +20,30 @@ import com.kieronquinn.app.smartspacer.model.database.BroadcastListener as Datab
 class BroadcastRepositoryTests: BaseTest<BroadcastRepository>() {
 
     companion object {
+        private const val ACTION_FIRST = "first"
+        private const val ACTION_SECOND = "second"
+        private const val CATEGORY = "category"
+
         private fun getMockBroadcastListeners() = listOf(
             DatabaseBroadcastListener(randomString(), randomString(), randomString()),
             DatabaseBroadcastListener(randomString(), randomString(), randomString()),
             DatabaseBroadcastListener(randomString(), randomString(), randomString())
         )
+
+        private fun createMockListener(authority: String = randomString()) =
+            mock<BroadcastListener> {
+                every { this@mock.authority } returns authority
+            }
+
+        private fun createFilter(action: String, category: String? = null) = IntentFilter().apply {
+            addAction(action)
+            category?.let { addCategory(it) }
+        }
     }
 
-    private val databaseRepositoryMock = mock<DatabaseRepository>()
+    private val databaseRepositoryMock = mock<DatabaseRepository> {
+        every { getBroadcastListeners() } returns MutableStateFlow(emptyList())
+    }
 
     override val sut by lazy {
         BroadcastRepositoryImpl(contextMock, databaseRepositoryMock, scope)
@@ -45,4 +67,131 @@ class BroadcastRepositoryTests: BaseTest<BroadcastRepository>() {
         }
     }
 
-}
\ No newline at end of file
+    @Test
+    fun testFiltersMergedByKey() = runTest {
+        sut.setFilters(createMockListener(), listOf(createFilter(ACTION_FIRST)))
+        sut.setFilters(createMockListener(), listOf(createFilter(ACTION_SECOND)))
+        //Filters which only differ by their actions share a receiver
+        assertTrue(sut.getStats().receivers == 1)
+        sut.setFilters(createMockListener(), listOf(createFilter(ACTION_FIRST, CATEGORY)))
+        val stats = sut.getStats()
+        assertTrue(stats.receivers == 2)
+        assertTrue(stats.subscriptions == 3)
+    }
+
+    @Test
+    fun testBroadcastSentByAction() = runTest {
+        val first = createMockListener()
+        val second = createMockListener()
+        sut.setFilters(first, listOf(createFilter(ACTION_FIRST)))
+        sut.setFilters(second, listOf(createFilter(ACTION_SECOND)))
+        val intent = Intent(ACTION_FIRST)
+        contextMock.sendBroadcast(intent)
+        coVerify(exactly = 1) { first.onReceive(intent) }
+        coVerify(inverse = true) { second.onReceive(any()) }
+    }
+
+    @Test
+    fun testBroadcastSentOncePerAuthority() = runTest {
+        val authority = randomString()
+        val first = createMockListener(authority)
+        val second = createMockListener(authority)
+        sut.setFilters(first, listOf(createFilter(ACTION_FIRST)))
+        sut.setFilters(second, listOf(createFilter(ACTION_FIRST)))
+        contextMock.sendBroadcast(Intent(ACTION_FIRST))
+        assertTrue(sut.getStats().received == 1L)
+        assertTrue(sut.getStats().calls == 1L)
+    }
+
+    @Test
+    fun testReceiverRegisteredBeforeReplacedUnregistered() = runTest {
+        val calls = mockReceiverRegistration()
+        sut.setFilters(createMockListener(), listOf(createFilter(ACTION_FIRST)))
+        sut.setFilters(createMockListener(), listOf(createFilter(ACTION_SECOND)))
+        val registered = calls.filter { it.second != null }.map { it.first }
+        val unregistered = calls.filter { it.second == null }.map { it.first }
+        assertTrue(registered.size == 2)
+        assertTrue(unregistered.single() === registered[0])
+        //The replacement was registered while the receiver it replaced still was
+        val replacementIndex = calls.indexOfFirst { it.first === registered[1] }
+        assertTrue(replacementIndex < calls.indexOfFirst { it.second == null })
+    }
+
+    @Test
+    fun testInitialStickyNotSentToRegisteredListeners() = runTest {
+        val calls = mockReceiverRegistration()
+        val first = createMockListener()
+        val second = createMockListener()
+        sut.setFilters(first, listOf(createFilter(ACTION_FIRST)))
+        sut.setFilters(second, listOf(createFilter(ACTION_SECOND)))
+        val receiver = calls.last { it.second != null }.first
+        val firstSticky = Intent(ACTION_FIRST)
+        val secondSticky = Intent(ACTION_SECOND)
+        receiver.receiveInitialSticky(firstSticky)
+        receiver.receiveInitialSticky(secondSticky)
+        coVerify(inverse = true) { first.onReceive(any()) }
+        coVerify(exactly = 1) { second.onReceive(secondSticky) }
+    }
+
+    @Test
+    fun testStickySentOnceToListenerJoiningReceiver() = runTest {
+        val sticky = Intent(ACTION_FIRST)
+        every { contextMock.registerReceiver(null, any()) } returns sticky
+        every { contextMock.registerReceiver(null, any(), any()) } returns sticky
+        val first = createMockListener()
+        val second = createMockListener()
+        sut.setFilters(first, listOf(createFilter(ACTION_FIRST)))
+        //Joins the existing receiver, so is sent the sticky broadcast directly
+        sut.setFilters(second, listOf(createFilter(ACTION_FIRST)))
+        //Setting the same filters again does not send it again
+        sut.setFilters(second, listOf(createFilter(ACTION_FIRST)))
+        coVerify(exactly = 1) { second.onReceive(sticky) }
+        coVerify(inverse = true) { first.onReceive(any()) }
+    }
+
+    /**
+     *  Replaces receiver registration with a mock, returning the receivers in the order they were
+     *  registered and unregistered, with the filter they were registered with or `null` for an
+     *  unregistration.
+     */
+    private fun mockReceiverRegistration(): List<Pair<BroadcastReceiver, IntentFilter?>> {
+        val calls = ArrayList<Pair<BroadcastReceiver, IntentFilter?>>()
+        every { contextMock.registerReceiver(any(), any()) } answers {
+            calls.add(Pair(firstArg(), secondArg()))
+            null
+        }
+        every { contextMock.registerReceiver(any(), any(), any()) } answers {
+            calls.add(Pair(firstArg(), secondArg()))
+            null
+        }
+        every { contextMock.unregisterReceiver(any()) } answers {
+            calls.add(Pair(firstArg(), null))
+        }
+        return calls
+    }
+
+    /**
+     *  Sends [intent] to this receiver as the system does for a sticky broadcast on registration
+     */
+    private fun BroadcastReceiver.receiveInitialSticky(intent: Intent) {
+        val constructor = PendingResult::class.java.declaredConstructors.maxBy {
+            it.parameterCount
+        }
+        val args = constructor.parameterTypes.map {
+            when(it) {
+                Int::class.javaPrimitiveType -> 0
+                Boolean::class.javaPrimitiveType -> false
+                else -> null
+            }
+        }
+        val result = constructor.newInstance(*args.toTypedArray()) as PendingResult
+        PendingResult::class.java.getDeclaredField("mInitialStickyHint").apply {
+            isAccessible = true
+        }.setBoolean(result, true)
+        BroadcastReceiver::class.java.getDeclaredMethod(
+            "setPendingResult", PendingResult::class.java
+        ).invoke(this, result)
+        onReceive(contextMock, intent)
+    }
+
+}
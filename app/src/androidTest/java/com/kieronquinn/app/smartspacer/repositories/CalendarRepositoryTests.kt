@@ -231,6 +231,39 @@ class CalendarRepositoryTests: BaseTest<CalendarRepository>() {
         }
     }
 
+    @Test
+    fun testUpdateActiveCalendarEventsPostEventTime() = runTest {
+        every { packageManagerMock.getProviderInfo(any(), any<ComponentInfoFlags>()) } answers {
+            ProviderInfo().apply {
+                authority = AUTHORITY_CALENDAR
+            }
+        }
+        sut.allCalendarEvents.clear()
+        val now = Instant.now()
+        val event = CalendarEvent(
+            Calendar(randomString(), randomString(), randomString()),
+            randomString(),
+            randomString(),
+            now.minus(3, ChronoUnit.MINUTES),
+            now.plus(20, ChronoUnit.MINUTES),
+            randomString(),
+            false,
+            CalendarContract.Events.STATUS_CONFIRMED
+        )
+        val oneMinute = getMockTargetData().copy(
+            postEventTime = TargetData.PostEventTime.ONE_MINUTE
+        )
+        val fiveMinutes = getMockTargetData().copy(
+            postEventTime = TargetData.PostEventTime.FIVE_MINUTES
+        )
+        sut.allCalendarEvents[oneMinute.id] = CalendarData(oneMinute, listOf(event))
+        sut.allCalendarEvents[fiveMinutes.id] = CalendarData(fiveMinutes, listOf(event))
+        sut.updateActiveCalendarEvents()
+        //Started longer ago than the post event time, so should no longer be shown
+        assertTrue(sut.getCalendarEvents(oneMinute.id).isEmpty())
+        assertTrue(sut.getCalendarEvents(fiveMinutes.id) == listOf(event))
+    }
+
     @Test
     fun testGetCalendarsNoPermission() = runTest {
         sut.getCalendars().test {
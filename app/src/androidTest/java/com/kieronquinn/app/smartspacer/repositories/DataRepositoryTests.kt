@@ -0,0 +1,101 @@
+package com.kieronquinn.app.smartspacer.repositories
+
+import app.cash.turbine.test
+import com.google.gson.Gson
+import com.kieronquinn.app.smartspacer.model.database.ActionData
+import com.kieronquinn.app.smartspacer.model.database.RequirementData
+import com.kieronquinn.app.smartspacer.model.database.TargetData
+import com.kieronquinn.app.smartspacer.model.database.TargetDataType
+import com.kieronquinn.app.smartspacer.test.BaseTest
+import com.kieronquinn.app.smartspacer.utils.randomString
+import io.mockk.coEvery
+import io.mockk.every
+import junit.framework.TestCase.assertTrue
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.test.runTest
+import org.junit.Test
+
+class DataRepositoryTests: BaseTest<DataRepository>() {
+
+    private val gson = Gson()
+    private val targetData = MutableStateFlow(emptyList<TargetData>())
+
+    private val databaseRepositoryMock = mock<DatabaseRepository> {
+        every { getTargetData() } returns targetData
+        every { getActionData() } returns MutableStateFlow(emptyList<ActionData>())
+        every { getRequirementData() } returns MutableStateFlow(emptyList<RequirementData>())
+    }
+
+    override val sut by lazy {
+        DataRepositoryImpl(contextMock, gson, databaseRepositoryMock)
+    }
+
+    @Test
+    fun testGetTargetDataDecodesOnce() = runTest {
+        val id = randomString()
+        val data = MockData(randomString(), 1)
+        targetData.emit(listOf(createTargetData(id, data)))
+        assertTrue(sut.getTargetData(id, MockData::class.java) == data)
+        assertTrue(sut.getTargetData(id, MockData::class.java) == data)
+        val stats = sut.getCacheStats()["target"]!!
+        assertTrue(stats.misses == 1L)
+        assertTrue(stats.hits == 1L)
+    }
+
+    @Test
+    fun testGetTargetDataInvalidatedOnChange() = runTest {
+        val id = randomString()
+        val data = MockData(randomString(), 1)
+        targetData.emit(listOf(createTargetData(id, data)))
+        assertTrue(sut.getTargetData(id, MockData::class.java) == data)
+        val changed = data.copy(count = 2)
+        targetData.emit(listOf(createTargetData(id, changed)))
+        assertTrue(sut.getTargetData(id, MockData::class.java) == changed)
+        targetData.emit(emptyList())
+        assertTrue(sut.getTargetData(id, MockData::class.java) == null)
+    }
+
+    @Test
+    fun testUpdateTargetDataIsAtomic() = runTest {
+        val id = randomString()
+        val name = randomString()
+        //Room has not emitted any of the writes, so each update must see the previous one
+        repeat(5) {
+            sut.updateTargetData(id, MockData::class.java, TargetDataType.DEFAULT) {
+                MockData(name, (it?.count ?: 0) + 1)
+            }
+        }
+        assertTrue(sut.getTargetData(id, MockData::class.java) == MockData(name, 5))
+    }
+
+    @Test
+    fun testFailedWriteIsDropped() = runTest {
+        val id = randomString()
+        val data = MockData(randomString(), 1)
+        targetData.emit(listOf(createTargetData(id, data)))
+        coEvery { databaseRepositoryMock.addTargetData(any()) } throws IllegalStateException()
+        val changed = createTargetData(id, data.copy(count = 2))
+        runCatching { sut.addTargetData(changed) }
+        assertTrue(sut.getTargetData(id, MockData::class.java) == data)
+    }
+
+    @Test
+    fun testPendingWriteVisibleInTypeFlow() = runTest {
+        val id = randomString()
+        val data = MockData(randomString(), 1)
+        sut.getTargetData(TargetDataType.DEFAULT, MockData::class.java).test {
+            assertTrue(awaitItem().isEmpty())
+            //Room has not emitted the write, but it should still be included
+            sut.addTargetData(createTargetData(id, data))
+            assertTrue(awaitItem() == listOf(data))
+            cancelAndIgnoreRemainingEvents()
+        }
+    }
+
+    private fun createTargetData(id: String, data: MockData): TargetData {
+        return TargetData(id, TargetDataType.DEFAULT.name, gson.toJson(data))
+    }
+
+    data class MockData(val name: String, val count: Int)
+
+}
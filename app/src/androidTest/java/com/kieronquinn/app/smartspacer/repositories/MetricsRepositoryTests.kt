@@ -0,0 +1,96 @@
+package com.kieronquinn.app.smartspacer.repositories
+
+import android.os.Bundle
+import androidx.core.os.bundleOf
+import com.kieronquinn.app.smartspacer.test.BaseTest
+import com.kieronquinn.app.smartspacer.utils.randomString
+import junit.framework.TestCase.assertTrue
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.test.StandardTestDispatcher
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class MetricsRepositoryTests: BaseTest<MetricsRepository>() {
+
+    override val sut by lazy {
+        MetricsRepositoryImpl(scope, mainDispatcherRule.testDispatcher)
+    }
+
+    @Test
+    fun testMergesRecordedInHistogram() {
+        val session = randomString()
+        sut.recordMerge(session, "targets", TimeUnit.MILLISECONDS.toNanos(3))
+        sut.recordMerge(session, "targets", TimeUnit.MILLISECONDS.toNanos(3))
+        val stats = sut.getSessionStats()[session]!!
+        assertTrue(stats.merges == 2L)
+        //3ms falls into the <4ms bucket
+        assertTrue(stats.latency.buckets[2] == 2L)
+        //Fast merges are not slow updates
+        assertTrue(sut.getSlowUpdates().isEmpty())
+        sut.removeSession(session)
+        assertTrue(sut.getSessionStats().isEmpty())
+    }
+
+    @Test
+    fun testSlowUpdateRecordedWithTrigger() {
+        val session = randomString()
+        sut.recordMerge(session, "settings", TimeUnit.MILLISECONDS.toNanos(600))
+        val slow = sut.getSlowUpdates().single()
+        assertTrue(slow.session == session)
+        assertTrue(slow.trigger == "settings")
+        assertTrue(slow.durationMillis == 600L)
+        //Values over the last bound go in the final bucket
+        assertTrue(sut.getSessionStats()[session]!!.latency.buckets.last() == 1L)
+    }
+
+    @Test
+    fun testPluginCallsRecordedByMethod() {
+        val authority = randomString()
+        sut.recordPluginCall(authority, "get_targets", 1_000L, false)
+        sut.recordPluginCall(authority, "get_targets", 1_000L, true)
+        sut.recordPluginCall(authority, "get_config", 1_000L, false)
+        val methods = sut.getPluginCallStats()[authority]!!
+        assertTrue(methods["get_targets"]?.calls == 2L)
+        assertTrue(methods["get_targets"]?.failures == 1L)
+        assertTrue(methods["get_config"]?.calls == 1L)
+    }
+
+    @Test
+    fun testPayloadSizeSampled() {
+        val destination = randomString()
+        val items = listOf<Bundle>(bundleOf("key" to randomString()))
+        repeat(2) {
+            sut.recordPayload(destination, items)
+        }
+        val stats = sut.getPayloadStats()[destination]!!
+        assertTrue(stats.sent == 2L)
+        //Only the first payload is parcelled
+        assertTrue(stats.sampled == 1L)
+        assertTrue(stats.lastSizeBytes > 0)
+        assertTrue(stats.lastItems == 1)
+    }
+
+    @Test
+    fun testPayloadMeasuredOffSendPath() {
+        val dispatcher = StandardTestDispatcher(mainDispatcherRule.testDispatcher.scheduler)
+        val sut = MetricsRepositoryImpl(scope, dispatcher)
+        val destination = randomString()
+        sut.recordPayload(destination, listOf(bundleOf("key" to randomString())))
+        //Counted immediately, but not parcelled until the dispatcher runs
+        assertTrue(sut.getPayloadStats()[destination]?.sent == 1L)
+        assertTrue(sut.getPayloadStats()[destination]?.sampled == 0L)
+        dispatcher.scheduler.runCurrent()
+        assertTrue(sut.getPayloadStats()[destination]?.sampled == 1L)
+    }
+
+    @Test
+    fun testPayloadItemCountOverridden() {
+        val destination = randomString()
+        //A single compact payload or patch can contain more Targets than it has items
+        sut.recordPayload(destination, listOf(bundleOf("key" to randomString())), 5)
+        val stats = sut.getPayloadStats()[destination]!!
+        assertTrue(stats.lastItems == 5)
+    }
+
+}
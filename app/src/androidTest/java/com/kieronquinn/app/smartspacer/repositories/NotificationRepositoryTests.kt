@@ -66,6 +66,17 @@ class NotificationRepositoryTests: BaseTest<NotificationRepository>() {
             return listOf(mock(), mock(), mock())
         }
 
+        private fun getMockPackageNotifications(
+            packageName: String
+        ): List<StatusBarNotification> {
+            return List(3) {
+                mock {
+                    every { this@mock.packageName } returns packageName
+                    every { key } returns randomString()
+                }
+            }
+        }
+
         private fun getMockNotificationListeners(): List<NotificationListener> {
             return listOf(
                 NotificationListener(randomString(), "com.example.one", randomString()),
@@ -232,12 +243,32 @@ class NotificationRepositoryTests: BaseTest<NotificationRepository>() {
 
     @Test
     fun testUpdateNotifications() = runTest {
-        val notifications = getMockNotifications()
-        sut.activeNotifications.test {
+        val notifications = getMockPackageNotifications("com.example.one")
+        val other = getMockPackageNotifications("com.example.two")
+        sut.getNotifications(setOf("com.example.one")).test {
             assertTrue(awaitItem().isEmpty())
-            sut.updateNotifications(notifications)
+            sut.updateNotifications(notifications + other)
             assertTrue(awaitItem() == notifications)
+            sut.updateNotifications(emptyList())
+            assertTrue(awaitItem().isEmpty())
+        }
+    }
+
+    @Test
+    fun testNotificationPostedAndRemoved() = runTest {
+        val notification = getMockPackageNotifications("com.example.one").first()
+        val other = getMockPackageNotifications("com.example.two").first()
+        sut.getNotifications(setOf("com.example.one")).test {
+            assertTrue(awaitItem().isEmpty())
+            //Notifications from other packages should not cause an emission
+            sut.onNotificationPosted(other)
+            sut.onNotificationPosted(notification)
+            assertTrue(awaitItem() == listOf(notification))
+            sut.onNotificationRemoved(other)
+            sut.onNotificationRemoved(notification)
+            assertTrue(awaitItem().isEmpty())
         }
+        assertTrue(sut.getNotifications("com.example.two").isEmpty())
     }
 
     @Test
@@ -0,0 +1,141 @@
+package com.kieronquinn.app.smartspacer.repositories
+
+import android.content.ContentProviderClient
+import android.content.Context
+import android.os.Bundle
+import androidx.core.os.bundleOf
+import com.kieronquinn.app.smartspacer.repositories.PluginBatchRepository.BatchType
+import com.kieronquinn.app.smartspacer.repositories.PluginBatchRepositoryImpl.Companion.BATCH_WINDOW
+import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerTargetProvider
+import com.kieronquinn.app.smartspacer.test.BaseTest
+import com.kieronquinn.app.smartspacer.utils.randomString
+import io.mockk.every
+import io.mockk.verify
+import junit.framework.TestCase.assertFalse
+import junit.framework.TestCase.assertNull
+import junit.framework.TestCase.assertTrue
+import kotlinx.coroutines.async
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.test.runTest
+import org.junit.Test
+import com.kieronquinn.app.smartspacer.model.database.Target as DatabaseTarget
+
+class PluginBatchRepositoryTests: BaseTest<PluginBatchRepository>() {
+
+    companion object {
+        private const val AUTHORITY_BATCH = "batch"
+        private const val AUTHORITY_LEGACY = "legacy"
+    }
+
+    private val packageRepositoryMock = mock<PackageRepository> {
+        every { onPackageChanged } returns MutableSharedFlow()
+    }
+
+    private val batchClient = mock<ContentProviderClient> {
+        every {
+            call(SmartspacerTargetProvider.METHOD_GET_BATCH, any(), any())
+        } answers {
+            val extras = thirdArg<Bundle>()
+            val ids = extras.getStringArray(SmartspacerTargetProvider.EXTRA_SMARTSPACER_IDS)!!
+            val batch = Bundle()
+            ids.forEach {
+                batch.putBundle(it, bundleOf(
+                    SmartspacerTargetProvider.RESULT_KEY_SMARTSPACE_TARGETS to ArrayList<Bundle>()
+                ))
+            }
+            bundleOf(SmartspacerTargetProvider.RESULT_KEY_BATCH to batch)
+        }
+    }
+
+    private val legacyClient = mock<ContentProviderClient> {
+        every { call(any(), any(), any()) } returns null
+    }
+
+    private val databaseTargets = MutableStateFlow(emptyList<DatabaseTarget>())
+
+    private val databaseRepositoryMock = mock<DatabaseRepository> {
+        every { getTargets() } returns databaseTargets
+    }
+
+    override val sut by lazy {
+        val dispatcher = mainDispatcherRule.testDispatcher
+        PluginBatchRepositoryImpl(
+            contextMock,
+            packageRepositoryMock,
+            PluginCallRepositoryImpl(scope, dispatcher),
+            databaseRepositoryMock,
+            scope,
+            dispatcher
+        )
+    }
+
+    override fun Context.context() {
+        every {
+            contentResolver.acquireUnstableContentProviderClient(AUTHORITY_BATCH)
+        } returns batchClient
+        every {
+            contentResolver.acquireUnstableContentProviderClient(AUTHORITY_LEGACY)
+        } returns legacyClient
+    }
+
+    @Test
+    fun testGetTargetBatchesCalls() = runTest {
+        val ids = listOf(randomString(), randomString(), randomString())
+        val results = ids.map {
+            async { sut.getTarget(AUTHORITY_BATCH, randomString(), it, BatchType.ITEMS) }
+        }.map { it.await() }
+        results.forEach {
+            assertTrue(it?.containsKey(SmartspacerTargetProvider.RESULT_KEY_SMARTSPACE_TARGETS) == true)
+        }
+        verify(exactly = 1) {
+            batchClient.call(SmartspacerTargetProvider.METHOD_GET_BATCH, any(), any())
+        }
+    }
+
+    @Test
+    fun testGetTargetSingleInstanceSentImmediately() = runTest {
+        databaseTargets.emit(listOf(createDatabaseTarget(AUTHORITY_BATCH)))
+        val result = async {
+            sut.getTarget(AUTHORITY_BATCH, randomString(), randomString(), BatchType.ITEMS)
+        }
+        //No time has passed, so the call was not held for the batch window
+        mainDispatcherRule.testDispatcher.scheduler.runCurrent()
+        assertTrue(result.isCompleted)
+        assertTrue(result.await() != null)
+    }
+
+    @Test
+    fun testGetTargetMultipleInstancesWaitForWindow() = runTest {
+        databaseTargets.emit(listOf(
+            createDatabaseTarget(AUTHORITY_BATCH), createDatabaseTarget(AUTHORITY_BATCH)
+        ))
+        val result = async {
+            sut.getTarget(AUTHORITY_BATCH, randomString(), randomString(), BatchType.ITEMS)
+        }
+        val scheduler = mainDispatcherRule.testDispatcher.scheduler
+        scheduler.runCurrent()
+        assertFalse(result.isCompleted)
+        scheduler.advanceTimeBy(BATCH_WINDOW)
+        scheduler.runCurrent()
+        assertTrue(result.isCompleted)
+        assertTrue(result.await() != null)
+    }
+
+    @Test
+    fun testGetTargetUnsupported() = runTest {
+        val packageName = randomString()
+        assertNull(sut.getTarget(AUTHORITY_LEGACY, packageName, randomString(), BatchType.ITEMS))
+        assertTrue(sut.unsupported[AUTHORITY_LEGACY] == packageName)
+        //Second call should not go to the provider
+        assertNull(sut.getTarget(AUTHORITY_LEGACY, packageName, randomString(), BatchType.CONFIG))
+        verify(exactly = 1) {
+            legacyClient.call(SmartspacerTargetProvider.METHOD_GET_BATCH, any(), any())
+        }
+    }
+
+    private fun createDatabaseTarget(authority: String): DatabaseTarget {
+        return DatabaseTarget(randomString(), authority, 0, randomString())
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.kieronquinn.app.smartspacer.repositories
+
+import android.content.ContentProviderClient
+import android.content.Context
+import android.os.Bundle
+import android.os.DeadObjectException
+import androidx.core.os.bundleOf
+import com.kieronquinn.app.smartspacer.repositories.PluginCallRepositoryImpl.Companion.COOL_DOWN
+import com.kieronquinn.app.smartspacer.repositories.PluginCallRepositoryImpl.Companion.FAILURE_THRESHOLD
+import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerTargetProvider
+import com.kieronquinn.app.smartspacer.test.BaseTest
+import com.kieronquinn.app.smartspacer.utils.randomString
+import io.mockk.every
+import io.mockk.verify
+import junit.framework.TestCase.assertFalse
+import junit.framework.TestCase.assertNull
+import junit.framework.TestCase.assertTrue
+import kotlinx.coroutines.test.runTest
+import org.junit.Test
+
+class PluginCallRepositoryTests: BaseTest<PluginCallRepository>() {
+
+    companion object {
+        private const val AUTHORITY = "plugin"
+    }
+
+    private var now = 0L
+    private var fail = false
+    private var dead = false
+
+    private val client = mock<ContentProviderClient> {
+        every { call(any(), any(), any()) } answers {
+            if(fail) throw IllegalStateException("Plugin failed")
+            if(dead) throw DeadObjectException()
+            bundleOf("result" to randomString())
+        }
+    }
+
+    override val sut by lazy {
+        PluginCallRepositoryImpl(scope, mainDispatcherRule.testDispatcher) { now }
+    }
+
+    override fun Context.context() {
+        every {
+            contentResolver.acquireUnstableContentProviderClient(AUTHORITY)
+        } returns client
+    }
+
+    @Test
+    fun testCallReturnsResult() = runTest {
+        val result = sut.callForResult(
+            contextMock.contentResolver, AUTHORITY, SmartspacerTargetProvider.METHOD_GET, null
+        )
+        assertTrue(result.answered)
+        assertTrue(result.result?.containsKey("result") == true)
+    }
+
+    @Test
+    fun testFailedReadReturnsStaleResult() = runTest {
+        val id = randomString()
+        val first = call(id)
+        fail = true
+        val result = sut.callForResult(
+            contextMock.contentResolver, AUTHORITY, SmartspacerTargetProvider.METHOD_GET, null, id
+        )
+        assertFalse(result.answered)
+        assertTrue(result.result?.getString("result") == first?.getString("result"))
+        //Other IDs have no stale result
+        assertNull(call(randomString()))
+    }
+
+    @Test
+    fun testStaleResultIsCopied() = runTest {
+        val id = randomString()
+        call(id)
+        fail = true
+        val first = call(id)
+        val second = call(id)
+        //Each caller gets its own copy, so modifying one does not affect the others
+        assertTrue(first != null && first !== second)
+        assertTrue(first?.getString("result") == second?.getString("result"))
+    }
+
+    @Test
+    fun testDeadProviderCountsAsFailure() = runTest {
+        dead = true
+        assertNull(call(randomString()))
+        assertTrue(sut.getStats()[AUTHORITY]!!.failures == 1L)
+    }
+
+    @Test
+    fun testCircuitOpensAfterFailures() = runTest {
+        fail = true
+        repeat(FAILURE_THRESHOLD + 2) {
+            call(randomString())
+        }
+        //Calls after the threshold do not reach the plugin
+        verify(exactly = FAILURE_THRESHOLD) { client.call(any(), any(), any()) }
+        val stats = sut.getStats()[AUTHORITY]!!
+        assertTrue(stats.isOpen)
+        assertTrue(stats.failures == FAILURE_THRESHOLD.toLong())
+        assertTrue(stats.rejected == 2L)
+    }
+
+    @Test
+    fun testCircuitClosesAfterCoolDown() = runTest {
+        fail = true
+        repeat(FAILURE_THRESHOLD) {
+            call(randomString())
+        }
+        assertTrue(sut.getStats()[AUTHORITY]!!.isOpen)
+        fail = false
+        now += COOL_DOWN
+        //The first call after the cool-down is let through, and closes the circuit on success
+        assertTrue(call(randomString()) != null)
+        assertFalse(sut.getStats()[AUTHORITY]!!.isOpen)
+        assertTrue(call(randomString()) != null)
+    }
+
+    private suspend fun call(id: String): Bundle? {
+        return sut.call(
+            contextMock.contentResolver, AUTHORITY, SmartspacerTargetProvider.METHOD_GET, null, id
+        )
+    }
+
+}
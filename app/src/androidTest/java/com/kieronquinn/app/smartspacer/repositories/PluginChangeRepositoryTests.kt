@@ -0,0 +1,71 @@
+package com.kieronquinn.app.smartspacer.repositories
+
+import android.net.Uri
+import app.cash.turbine.test
+import com.kieronquinn.app.smartspacer.test.BaseTest
+import com.kieronquinn.app.smartspacer.utils.randomString
+import junit.framework.TestCase.assertTrue
+import kotlinx.coroutines.flow.launchIn
+import kotlinx.coroutines.test.runTest
+import org.junit.Test
+
+class PluginChangeRepositoryTests: BaseTest<PluginChangeRepository>() {
+
+    companion object {
+        private const val AUTHORITY = "plugin"
+    }
+
+    override val sut by lazy {
+        PluginChangeRepositoryImpl(contextMock)
+    }
+
+    @Test
+    fun testChangeRoutedById() = runTest {
+        val id = randomString()
+        val otherId = randomString()
+        sut.observe(AUTHORITY, id).test {
+            awaitItem()
+            //A change for a different ID should not be delivered
+            contentResolver.notifyChange(createUri(otherId))
+            expectNoEvents()
+            contentResolver.notifyChange(createUri(id))
+            awaitItem()
+            cancelAndIgnoreRemainingEvents()
+        }
+    }
+
+    @Test
+    fun testAuthorityChangeRoutedToAll() = runTest {
+        val id = randomString()
+        sut.observe(AUTHORITY, id).test {
+            awaitItem()
+            contentResolver.notifyChange(createUri(null))
+            awaitItem()
+            cancelAndIgnoreRemainingEvents()
+        }
+    }
+
+    @Test
+    fun testSingleObserverPerAuthority() = runTest {
+        val jobs = List(3) { sut.observe(AUTHORITY, randomString()).launchIn(scope) }
+        val stats = sut.getStats()[AUTHORITY]
+        assertTrue(stats?.subscribers == jobs.size)
+        contentResolver.notifyChange(createUri(null))
+        val notified = sut.getStats()[AUTHORITY]
+        assertTrue(notified?.notifications == 1L)
+        assertTrue(notified?.deliveries == jobs.size.toLong())
+        jobs.forEach { it.cancel() }
+        assertTrue(sut.getStats().isEmpty())
+    }
+
+    private fun createUri(id: String?): Uri {
+        return Uri.Builder().apply {
+            scheme("content")
+            authority(AUTHORITY)
+            if(id != null) {
+                appendPath(id)
+            }
+        }.build()
+    }
+
+}
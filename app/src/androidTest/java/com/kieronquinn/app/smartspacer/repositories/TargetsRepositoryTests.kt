@@ -193,6 +193,33 @@ class TargetsRepositoryTests: BaseTest<TargetsRepository>() {
         }
     }
 
+    @Test
+    fun testReconcileTargets() = runTest {
+        val targets = MutableStateFlow<List<Target>>(emptyList())
+        every { databaseRepositoryMock.getTargets() } returns targets
+        sut.getAvailableTargets().test {
+            assertTrue(awaitItem().isEmpty())
+            val mock = getMockTargets()
+            targets.emit(mock)
+            val initial = awaitItem()
+            assertTrue(sut.getTargetReconcileStats().created == mock.size)
+            //Change the config of the first, remove the last and add a new one
+            val changed = mock[0].copy(showOnHomeScreen = !mock[0].showOnHomeScreen)
+            val added = createMockTarget()
+            targets.emit(listOf(changed, mock[1], added))
+            val actual = awaitItem()
+            val stats = sut.getTargetReconcileStats()
+            assertTrue(stats.reused == 1)
+            assertTrue(stats.updated == 1)
+            assertTrue(stats.created == 1)
+            assertTrue(stats.closed == 1)
+            assertTrue(actual[0] === initial[0])
+            assertTrue(actual[0].config.showOnHomeScreen == changed.showOnHomeScreen)
+            assertTrue(actual[1] === initial[1])
+            assertTrue(actual[2].id == added.id)
+        }
+    }
+
     @Test
     fun testSetSmartspaceVisibility() = runTest {
         sut.smartspaceVisible.test {
@@ -15,10 +15,20 @@ class TestContentResolver {
         listeners.remove(observer)
     }
 
+    /**
+     *  Notifies observers registered for [uri] or any of its ancestors, matching observers which
+     *  are registered with `notifyForDescendants`
+     */
     fun notifyChange(uri: Uri) {
-        listeners.filter { it.value == uri }.forEach {
-            it.key.onChange(false)
+        listeners.filter { it.value == uri || it.value.isAncestorOf(uri) }.forEach {
+            it.key.onChange(false, uri)
         }
     }
 
+    private fun Uri.isAncestorOf(uri: Uri): Boolean {
+        if(scheme != uri.scheme || authority != uri.authority) return false
+        if(pathSegments.size >= uri.pathSegments.size) return false
+        return uri.pathSegments.take(pathSegments.size) == pathSegments
+    }
+
 }
\ No newline at end of file
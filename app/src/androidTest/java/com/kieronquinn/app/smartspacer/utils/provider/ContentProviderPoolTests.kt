@@ -0,0 +1,143 @@
+package com.kieronquinn.app.smartspacer.utils.provider
+
+import android.app.ContentProviderHolder
+import android.app.IActivityManager
+import android.content.IContentProvider
+import android.content.pm.ProviderInfo
+import android.os.IBinder
+import android.os.IBinder.DeathRecipient
+import com.kieronquinn.app.smartspacer.test.BaseTest
+import com.kieronquinn.app.smartspacer.utils.provider.ContentProviderPool.Companion.IDLE_TIMEOUT
+import com.kieronquinn.app.smartspacer.utils.randomString
+import io.mockk.Runs
+import io.mockk.every
+import io.mockk.just
+import io.mockk.slot
+import io.mockk.verify
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class ContentProviderPoolTests: BaseTest<ContentProviderPool>() {
+
+    private val authority = randomString()
+    private val deathRecipient = slot<DeathRecipient>()
+    private var now = 0L
+
+    private val binderMock = mock<IBinder> {
+        every { linkToDeath(capture(deathRecipient), any()) } just Runs
+    }
+
+    private val providerMock = mock<IContentProvider> {
+        every { asBinder() } returns binderMock
+    }
+
+    private val activityManagerMock = mock<IActivityManager> {
+        every { getContentProviderExternal(authority, any(), any(), any()) } answers {
+            ContentProviderHolder(ProviderInfo()).apply {
+                provider = providerMock
+            }
+        }
+    }
+
+    override val sut by lazy {
+        ContentProviderPool(activityManagerMock, 0, scope) { now }
+    }
+
+    @Test
+    fun testProviderReused() {
+        sut.runWithProvider(authority) { }
+        sut.runWithProvider(authority) { }
+        verify(exactly = 1) {
+            activityManagerMock.getContentProviderExternal(authority, any(), any(), any())
+        }
+        val stats = sut.getStats()
+        assertEquals(1, stats.size)
+        assertEquals(1L, stats.acquired)
+        assertEquals(1L, stats.reused)
+    }
+
+    @Test
+    fun testIdleProviderReleased() {
+        sut.runWithProvider(authority) { }
+        now += IDLE_TIMEOUT
+        runExpiry()
+        verify(exactly = 1) {
+            activityManagerMock.removeContentProviderExternalAsUser(authority, any(), any())
+        }
+        assertEquals(0, sut.getStats().size)
+    }
+
+    @Test
+    fun testRecentlyReleasedProviderKept() {
+        sut.runWithProvider(authority) { }
+        //Expiry ran, but the clock says the provider was released too recently
+        runExpiry()
+        verify(inverse = true) {
+            activityManagerMock.removeContentProviderExternalAsUser(any(), any(), any())
+        }
+        assertEquals(1, sut.getStats().size)
+    }
+
+    @Test
+    fun testProviderInUseNotExpired() {
+        sut.runWithProvider(authority) {
+            now += IDLE_TIMEOUT
+            runExpiry()
+        }
+        verify(inverse = true) {
+            activityManagerMock.removeContentProviderExternalAsUser(any(), any(), any())
+        }
+        assertEquals(1, sut.getStats().size)
+    }
+
+    @Test
+    fun testDeadProviderAcquiredAgain() {
+        sut.runWithProvider(authority) { }
+        deathRecipient.captured.binderDied()
+        verify(exactly = 1) {
+            activityManagerMock.removeContentProviderExternalAsUser(authority, any(), any())
+        }
+        sut.runWithProvider(authority) { }
+        verify(exactly = 2) {
+            activityManagerMock.getContentProviderExternal(authority, any(), any(), any())
+        }
+        assertEquals(2L, sut.getStats().acquired)
+    }
+
+    @Test
+    fun testProviderDyingInUseReleasedAfterCall() {
+        sut.runWithProvider(authority) {
+            deathRecipient.captured.binderDied()
+            verify(inverse = true) {
+                activityManagerMock.removeContentProviderExternalAsUser(any(), any(), any())
+            }
+        }
+        verify(exactly = 1) {
+            activityManagerMock.removeContentProviderExternalAsUser(authority, any(), any())
+        }
+        assertEquals(0, sut.getStats().size)
+    }
+
+    @Test
+    fun testMissingProviderNotPooled() {
+        val missing = randomString()
+        every {
+            activityManagerMock.getContentProviderExternal(missing, any(), any(), any())
+        } returns null
+        assertNull(sut.runWithProvider(missing) { Unit })
+        verify(exactly = 1) {
+            activityManagerMock.removeContentProviderExternalAsUser(missing, any(), any())
+        }
+        assertEquals(0, sut.getStats().size)
+    }
+
+    private fun runExpiry() {
+        val scheduler = mainDispatcherRule.testDispatcher.scheduler
+        scheduler.advanceTimeBy(IDLE_TIMEOUT)
+        scheduler.runCurrent()
+    }
+
+}
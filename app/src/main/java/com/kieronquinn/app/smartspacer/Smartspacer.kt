@@ -23,6 +23,7 @@ import com.kieronquinn.app.smartspacer.components.navigation.SetupNavigation
 import com.kieronquinn.app.smartspacer.components.navigation.SetupNavigationImpl
 import com.kieronquinn.app.smartspacer.components.navigation.WidgetOptionsNavigation
 import com.kieronquinn.app.smartspacer.components.navigation.WidgetOptionsNavigationImpl
+import com.kieronquinn.app.smartspacer.components.smartspace.SharedSmartspaceMerger
 import com.kieronquinn.app.smartspacer.components.smartspace.SmartspaceManager
 import com.kieronquinn.app.smartspacer.model.database.SmartspacerDatabase
 import com.kieronquinn.app.smartspacer.repositories.AccessibilityRepository
@@ -73,12 +74,22 @@ import com.kieronquinn.app.smartspacer.repositories.GrantRepository
 import com.kieronquinn.app.smartspacer.repositories.GrantRepositoryImpl
 import com.kieronquinn.app.smartspacer.repositories.MediaRepository
 import com.kieronquinn.app.smartspacer.repositories.MediaRepositoryImpl
+import com.kieronquinn.app.smartspacer.repositories.MetricsRepository
+import com.kieronquinn.app.smartspacer.repositories.MetricsRepositoryImpl
 import com.kieronquinn.app.smartspacer.repositories.NotificationRepository
 import com.kieronquinn.app.smartspacer.repositories.NotificationRepositoryImpl
 import com.kieronquinn.app.smartspacer.repositories.OemSmartspacerRepository
 import com.kieronquinn.app.smartspacer.repositories.OemSmartspacerRepositoryImpl
 import com.kieronquinn.app.smartspacer.repositories.PackageRepository
 import com.kieronquinn.app.smartspacer.repositories.PackageRepositoryImpl
+import com.kieronquinn.app.smartspacer.repositories.PendingIntentRepository
+import com.kieronquinn.app.smartspacer.repositories.PendingIntentRepositoryImpl
+import com.kieronquinn.app.smartspacer.repositories.PluginBatchRepository
+import com.kieronquinn.app.smartspacer.repositories.PluginBatchRepositoryImpl
+import com.kieronquinn.app.smartspacer.repositories.PluginCallRepository
+import com.kieronquinn.app.smartspacer.repositories.PluginCallRepositoryImpl
+import com.kieronquinn.app.smartspacer.repositories.PluginChangeRepository
+import com.kieronquinn.app.smartspacer.repositories.PluginChangeRepositoryImpl
 import com.kieronquinn.app.smartspacer.repositories.PluginRepository
 import com.kieronquinn.app.smartspacer.repositories.PluginRepositoryImpl
 import com.kieronquinn.app.smartspacer.repositories.RecentTasksRepository
@@ -89,6 +100,8 @@ import com.kieronquinn.app.smartspacer.repositories.SearchRepository
 import com.kieronquinn.app.smartspacer.repositories.SearchRepositoryImpl
 import com.kieronquinn.app.smartspacer.repositories.ShizukuServiceRepository
 import com.kieronquinn.app.smartspacer.repositories.ShizukuServiceRepositoryImpl
+import com.kieronquinn.app.smartspacer.repositories.SmartspacePatchRepository
+import com.kieronquinn.app.smartspacer.repositories.SmartspacePatchRepositoryImpl
 import com.kieronquinn.app.smartspacer.repositories.SmartspaceRepository
 import com.kieronquinn.app.smartspacer.repositories.SmartspaceRepositoryImpl
 import com.kieronquinn.app.smartspacer.repositories.SmartspacerSettingsRepository
@@ -348,6 +361,7 @@ class Smartspacer: Application(), Configuration.Provider {
         single { createOkHttpClient() }
         single { createMarkwon() }
         single { SmartspaceManager(get()) }
+        single { SharedSmartspaceMerger() }
         single<AppWidgetRepository>(createdAtStart = true) { AppWidgetRepositoryImpl(get(), get(), get(), get(), get()) }
         single<ExpandedRepository> { ExpandedRepositoryImpl(get(), get(), get(), get(), get()) }
         single<SmartspacerSettingsRepository> { SmartspacerSettingsRepositoryImpl(get()) }
@@ -355,6 +369,9 @@ class Smartspacer: Application(), Configuration.Provider {
         single<SystemSmartspaceRepository>(createdAtStart = true) { SystemSmartspaceRepositoryImpl(get(), get(), get(), get(), get()) }
         single<AnalyticsRepository>(createdAtStart = true) { AnalyticsRepositoryImpl(get(), get()) }
         single<SmartspaceRepository> { SmartspaceRepositoryImpl(get(), get(), get(), get()) }
+        single<SmartspacePatchRepository> { SmartspacePatchRepositoryImpl() }
+        single<PendingIntentRepository> { PendingIntentRepositoryImpl(get()) }
+        single<MetricsRepository> { MetricsRepositoryImpl() }
         single<TargetsRepository> { TargetsRepositoryImpl(get(), get()) }
         single<AppPredictionRepository>(createdAtStart = true) { AppPredictionRepositoryImpl(
             get(),
@@ -391,6 +408,9 @@ class Smartspacer: Application(), Configuration.Provider {
         single<BroadcastRepository>(createdAtStart = true) { BroadcastRepositoryImpl(get(), get()) }
         single<SearchRepository> { SearchRepositoryImpl(get(), get(), get(), get(), get()) }
         single<BatteryOptimisationRepository> { BatteryOptimisationRepositoryImpl(get()) }
+        single<PluginCallRepository> { PluginCallRepositoryImpl() }
+        single<PluginBatchRepository> { PluginBatchRepositoryImpl(get(), get(), get(), get()) }
+        single<PluginChangeRepository> { PluginChangeRepositoryImpl(get()) }
         single<PluginRepository> { PluginRepositoryImpl(get(), get(), get(), get()) }
         single<DownloadRepository> { DownloadRepositoryImpl(get()) }
         single<UpdateRepository> { UpdateRepositoryImpl(get()) }
@@ -141,5 +141,6 @@ enum class NotificationId {
     CLOCK_COMPLICATION,
     BLUETOOTH_REQUIRED,
     FLASHLIGHT,
-    CLOCK_TARGET
+    CLOCK_TARGET,
+    DEADLINE_ALARM
 }
\ No newline at end of file
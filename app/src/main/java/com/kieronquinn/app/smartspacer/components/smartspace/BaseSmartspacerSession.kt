@@ -2,6 +2,7 @@ package com.kieronquinn.app.smartspacer.components.smartspace
 
 import android.app.PendingIntent
 import android.content.Context
+import android.content.Intent
 import android.view.View
 import android.widget.RemoteViews
 import androidx.annotation.CallSuper
@@ -10,13 +11,19 @@ import androidx.lifecycle.LifecycleOwner
 import androidx.lifecycle.LifecycleRegistry
 import androidx.lifecycle.lifecycleScope
 import com.kieronquinn.app.smartspacer.R
+import com.kieronquinn.app.smartspacer.components.smartspace.SharedSmartspaceMerger.MergeKey
+import com.kieronquinn.app.smartspacer.components.smartspace.compat.TargetPatcher
 import com.kieronquinn.app.smartspacer.components.smartspace.targets.AsNowPlayingTarget
 import com.kieronquinn.app.smartspacer.model.smartspace.ActionHolder
 import com.kieronquinn.app.smartspacer.model.smartspace.Target
 import com.kieronquinn.app.smartspacer.model.smartspace.TargetHolder
 import com.kieronquinn.app.smartspacer.repositories.CompatibilityRepository
 import com.kieronquinn.app.smartspacer.repositories.MediaRepository
+import com.kieronquinn.app.smartspacer.repositories.MetricsRepository
+import com.kieronquinn.app.smartspacer.repositories.PendingIntentRepository
+import com.kieronquinn.app.smartspacer.repositories.PendingIntentRepository.PendingIntentKey
 import com.kieronquinn.app.smartspacer.repositories.ShizukuServiceRepository
+import com.kieronquinn.app.smartspacer.repositories.SmartspacePatchRepository
 import com.kieronquinn.app.smartspacer.repositories.SmartspaceRepository
 import com.kieronquinn.app.smartspacer.repositories.SmartspaceRepository.SmartspacePageHolder
 import com.kieronquinn.app.smartspacer.repositories.SmartspacerSettingsRepository
@@ -32,8 +39,7 @@ import com.kieronquinn.app.smartspacer.sdk.model.UiSurface
 import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.BaseTemplateData
 import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.Text
 import com.kieronquinn.app.smartspacer.utils.extensions.audioPlaying
-import com.kieronquinn.app.smartspacer.utils.extensions.deepEquals
-import com.kieronquinn.app.smartspacer.utils.extensions.firstNotNull
+import com.kieronquinn.app.smartspacer.utils.extensions.getProxyRewrite
 import com.kieronquinn.app.smartspacer.utils.extensions.handleLifecycleEventSafely
 import com.kieronquinn.app.smartspacer.utils.extensions.notificationServiceEnabled
 import com.kieronquinn.app.smartspacer.utils.extensions.replaceActionsWithExpanded
@@ -41,6 +47,7 @@ import com.kieronquinn.app.smartspacer.utils.extensions.screenOff
 import com.kieronquinn.app.smartspacer.utils.extensions.shouldShowOnSurface
 import com.kieronquinn.app.smartspacer.utils.extensions.whenCreated
 import com.kieronquinn.app.smartspacer.utils.extensions.whenResumed
+import com.kieronquinn.app.smartspacer.utils.remoteviews.RemoteViewsRewriter
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.Flow
@@ -50,12 +57,15 @@ import kotlinx.coroutines.flow.collectLatest
 import kotlinx.coroutines.flow.combine
 import kotlinx.coroutines.flow.debounce
 import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.distinctUntilChangedBy
 import kotlinx.coroutines.flow.drop
 import kotlinx.coroutines.flow.filter
 import kotlinx.coroutines.flow.filterNotNull
 import kotlinx.coroutines.flow.flatMapLatest
 import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.flow.flowOf
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.onEach
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.launch
 import org.koin.core.component.KoinComponent
@@ -76,6 +86,11 @@ abstract class BaseSmartspacerSession<T, I>(
     private val mediaRepository by inject<MediaRepository>()
     private val smartspaceRepository by inject<SmartspaceRepository>()
     private val compatibilityRepository by inject<CompatibilityRepository>()
+    private val sharedMerger by inject<SharedSmartspaceMerger>()
+    private val patchRepository by inject<SmartspacePatchRepository>()
+    private val pendingIntentRepository by inject<PendingIntentRepository>()
+    private val metricsRepository by inject<MetricsRepository>()
+    private val remoteViewsCache = RemoteViewsRewriter.Cache()
 
     private val isVisible = MutableStateFlow(false)
     private val forceReloadBus = MutableStateFlow(System.currentTimeMillis())
@@ -96,6 +111,13 @@ abstract class BaseSmartspacerSession<T, I>(
         toSmartspacerSessionId(sessionId)
     }
 
+    /**
+     *  Identifies this session in the [PendingIntentRepository] and [MetricsRepository]
+     */
+    private val sessionName by lazy {
+        "${javaClass.simpleName}:${smartspaceSessionId.id}"
+    }
+
     private val mediaPlaying = context.notificationServiceEnabled().flatMapLatest { enabled ->
         if(enabled){
             combine(mediaRepository.mediaPlaying, context.audioPlaying()) { media, audio ->
@@ -160,14 +182,17 @@ abstract class BaseSmartspacerSession<T, I>(
             settingsSettings,
             supportsSplitSmartspace,
             forceReloadBus,
-            actionsFirst
-        ) { (sensitive, split, complicationOnPrimary), splitSupported, forceReloadTime, actionsFirst ->
+            actionsFirst,
+            expandedOpenMode.filterNotNull()
+        ) { (sensitive, split, complicationOnPrimary), splitSupported, forceReload, actionsFirst,
+            openMode ->
             SessionSettings(
                 sensitive,
                 splitSupported && split,
                 complicationOnPrimary,
                 actionsFirst,
-                forceReloadTime
+                forceReload,
+                openMode
             )
         }
     }
@@ -177,7 +202,7 @@ abstract class BaseSmartspacerSession<T, I>(
     }
 
     private val smartspaceTargets by lazy {
-        convert(smartspaceHolders, uiSurface)
+        convert(smartspaceHolders.onEach { releaseRemovedTargets(it) }, uiSurface)
     }
 
     private val targets by lazy {
@@ -223,10 +248,43 @@ abstract class BaseSmartspacerSession<T, I>(
             dispatcher.handleLifecycleEventSafely(Lifecycle.Event.ON_DESTROY)
         }
         smartspaceRepository.onSessionDestroyed(smartspaceSessionId)
+        pendingIntentRepository.release(sessionName)
+        metricsRepository.removeSession(sessionName)
+    }
+
+    /**
+     *  Returns the kebab menu broadcast for [targetId], which is reused while the Target is shown
+     */
+    protected fun getKebabMenuPendingIntent(
+        targetId: String,
+        createIntent: () -> Intent
+    ): PendingIntent {
+        val key = PendingIntentKey(sessionName, targetId, "kebab")
+        return pendingIntentRepository.getBroadcast(
+            key, null, PendingIntent.FLAG_IMMUTABLE, createIntent
+        )
+    }
+
+    /**
+     *  Releases PendingIntents and cached RemoteViews for Targets which are no longer shown. This
+     *  runs before the pages are converted, so anything created for the new pages is kept.
+     */
+    private fun releaseRemovedTargets(pages: List<SmartspacePageHolder>) {
+        val targetIds = pages.mapTo(HashSet()) { it.page.smartspaceTargetId }
+        pendingIntentRepository.retain(sessionName, targetIds)
+        remoteViewsCache.retain(targetIds)
     }
 
     open fun Flow<List<T>>.filterDistinct(): Flow<List<T>> {
-        return distinctUntilChanged { old, new -> old.deepEquals(new) }
+        //Targets are compared by their fingerprints rather than a full equals. These are taken
+        //once per emission, so the previous emission's are not recalculated on each comparison.
+        return map { items ->
+            Pair(items, items.map { if(it is SmartspaceTarget) it.fingerprint() else it })
+        }.distinctUntilChangedBy {
+            it.second
+        }.map {
+            it.first
+        }
     }
 
     open fun doesHaveSplitSmartspace() = false
@@ -291,30 +349,67 @@ abstract class BaseSmartspacerSession<T, I>(
         }
     }
 
+    /**
+     *  Merges the current Targets and Complications into pages. Text patches are then applied on
+     *  top of the merged pages, so a patch does not require merging again.
+     */
     private fun loadSmartspaceHolders(): Flow<List<SmartspacePageHolder>> {
+        return combine(mergeSmartspaceHolders(), patchRepository.patches) { merged, patches ->
+            TargetPatcher.applyPatches(merged.pages, merged.targets, merged.actions, patches)
+        }
+    }
+
+    private fun mergeSmartspaceHolders(): Flow<MergedPages> {
+        var lastForceReloadAt = -1L
+        var lastInputs: MergeInputs? = null
         return combine(
-            applyActionOverrides(filterTargets(smartspaceRepository.targets)),
+            filterTargets(smartspaceRepository.targets),
             smartspaceRepository.actions,
             aodAudio,
             sessionSettings,
             uiSurface
         ) { t, a, aod, settings, surface ->
             val aodAudio = if(surface == UiSurface.LOCKSCREEN) aod else false
-            val openMode = expandedOpenMode.firstNotNull()
-            smartspaceRepository.mergeTargetsAndActions(
-                t.filterTargets(surface, aodAudio)
-                    .applySensitivity(settings.hideSensitive, surface)
-                    .filterLimitedTargetSurfaces(surface),
-                a.filterActions(surface, aodAudio)
-                    .filterLimitedActionSurfaces(surface),
-                openMode,
+            val openMode = settings.expandedOpenMode
+            val isExpanded = this is ExpandedSmartspacerSession
+            val key = MergeKey(
                 surface,
+                openMode,
+                aodAudio,
+                settings.hideSensitive,
                 doesHaveSplitSmartspace() && settings.useSplitSmartspace,
                 this is SystemSmartspacerSession,
+                isExpanded,
                 settings.actionsFirst,
                 supportsRemoteViews(),
                 settings.complicationOnPrimary
             )
+            //A forced reload skips the shared result so this session always gets a fresh merge
+            val force = lastForceReloadAt != -1L && lastForceReloadAt != settings.forceReloadAt
+            lastForceReloadAt = settings.forceReloadAt
+            val inputs = MergeInputs(t, a, aodAudio, settings, surface)
+            val trigger = if(force) "reload" else inputs.getTrigger(lastInputs)
+            lastInputs = inputs
+            val start = System.nanoTime()
+            val pages = sharedMerger.merge(key, t, a, force) {
+                smartspaceRepository.mergeTargetsAndActions(
+                    t.applyActionOverrides(openMode, surface)
+                        .filterTargets(surface, aodAudio)
+                        .applySensitivity(settings.hideSensitive, surface)
+                        .filterLimitedTargetSurfaces(surface),
+                    a.filterActions(surface, aodAudio)
+                        .filterLimitedActionSurfaces(surface),
+                    key.openMode,
+                    key.surface,
+                    key.useSplitSmartspace,
+                    key.isNative,
+                    key.actionsFirst,
+                    key.supportsRemoteViews,
+                    key.complicationOnPrimary
+                )
+            }
+            metricsRepository.recordMerge(sessionName, trigger, System.nanoTime() - start)
+            MergedPages(pages, t, a)
         }
     }
 
@@ -331,16 +426,17 @@ abstract class BaseSmartspacerSession<T, I>(
     open suspend fun supportsComplicationOnPrimary() = false
     protected open fun getKebabMenuBehaviour(target: SmartspaceTarget): KebabMenuBehaviour = KebabMenuBehaviour.Hidden
 
-    open fun applyActionOverrides(targets: Flow<List<TargetHolder>>): Flow<List<TargetHolder>> {
-        return combine(
-            expandedOpenMode.filterNotNull(),
-            targets,
-            uiSurface
-        ) { openMode, t, surface ->
-            if(openMode != ExpandedOpenMode.NEVER){
-                t.applyOpenMode(openMode, surface)
-            }else t
-        }
+    /**
+     *  Applies overrides to the Targets' actions before merging. This runs as part of the shared
+     *  merge, so must only depend on the [openMode] and [surface].
+     */
+    open fun List<TargetHolder>.applyActionOverrides(
+        openMode: ExpandedOpenMode,
+        surface: UiSurface
+    ): List<TargetHolder> {
+        return if(openMode != ExpandedOpenMode.NEVER){
+            applyOpenMode(openMode, surface)
+        }else this
     }
 
     private fun List<TargetHolder>.applyOpenMode(
@@ -562,6 +658,23 @@ abstract class BaseSmartspacerSession<T, I>(
         }
     }
 
+    /**
+     *  Returns a copy of this Target's RemoteViews with click actions proxied for AAG Targets and
+     *  the kebab menu fixed, in a single rewrite. The result is cached by the source RemoteViews,
+     *  so is only created again when the Target is reloaded, and must not be modified.
+     */
+    protected fun SmartspaceTarget.rewriteRemoteViews(
+        context: Context,
+        asRoot: Boolean = false
+    ): RemoteViews? {
+        val source = remoteViews ?: return null
+        return remoteViewsCache.getOrPut(source, smartspaceTargetId, asRoot) {
+            val proxyKey = PendingIntentKey(sessionName, smartspaceTargetId, "proxy")
+            RemoteViewsRewriter.rewrite(context, source, source.getProxyRewrite(proxyKey), asRoot)
+                .fixKebabMenuIfNeeded(context, this)
+        }
+    }
+
     /**
      *  Fixes the overflow ("kebab") menu from AAG Targets, with behaviour defined in
      *  [KebabMenuBehaviour]
@@ -607,12 +720,47 @@ abstract class BaseSmartspacerSession<T, I>(
         setupPeriodicUpdates()
     }
 
+    /**
+     *  Merged [pages], with the [targets] and [actions] they were merged from
+     */
+    private data class MergedPages(
+        val pages: List<SmartspacePageHolder>,
+        val targets: List<TargetHolder>,
+        val actions: List<ActionHolder>
+    )
+
+    /**
+     *  The inputs of a merge, used to find which of them caused it for the [MetricsRepository]
+     */
+    private class MergeInputs(
+        val targets: List<TargetHolder>,
+        val actions: List<ActionHolder>,
+        val aodAudio: Boolean,
+        val settings: SessionSettings,
+        val surface: UiSurface
+    ) {
+
+        fun getTrigger(previous: MergeInputs?): String {
+            return when {
+                previous == null -> "init"
+                targets !== previous.targets -> "targets"
+                actions !== previous.actions -> "complications"
+                aodAudio != previous.aodAudio -> "aod_audio"
+                surface != previous.surface -> "surface"
+                settings != previous.settings -> "settings"
+                else -> "unknown"
+            }
+        }
+
+    }
+
     data class SessionSettings(
         val hideSensitive: HideSensitive,
         val useSplitSmartspace: Boolean,
         val complicationOnPrimary: ComplicationOnPrimary,
         val actionsFirst: Boolean,
-        val forceReloadAt: Long
+        val forceReloadAt: Long,
+        val expandedOpenMode: ExpandedOpenMode
     )
 
     protected sealed class KebabMenuBehaviour {
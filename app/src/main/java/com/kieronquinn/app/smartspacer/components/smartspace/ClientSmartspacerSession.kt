@@ -1,6 +1,5 @@
 package com.kieronquinn.app.smartspacer.components.smartspace
 
-import android.app.PendingIntent
 import android.appwidget.AppWidgetHostView
 import android.appwidget.AppWidgetProviderInfo
 import android.content.ComponentName
@@ -23,9 +22,7 @@ import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.TapAction
 import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.Text
 import com.kieronquinn.app.smartspacer.sdk.utils.TargetTemplate
 import com.kieronquinn.app.smartspacer.ui.activities.permission.client.SmartspacerClientPermissionActivity
-import com.kieronquinn.app.smartspacer.utils.extensions.copyAsRoot
 import com.kieronquinn.app.smartspacer.utils.extensions.createFakeWidgetProviderInfo
-import com.kieronquinn.app.smartspacer.utils.extensions.replaceClickWithProxyIntent
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.SharingStarted
@@ -37,7 +34,6 @@ import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.launch
 import org.koin.core.component.inject
-import java.util.UUID
 import android.graphics.drawable.Icon as AndroidIcon
 
 class ClientSmartspacerSession(
@@ -50,6 +46,8 @@ class ClientSmartspacerSession(
     companion object {
         private const val MIN_SDK_REMOTE_VIEWS = 2
         private const val MIN_SDK_WEATHER_ON_PRIMARY = 3
+        private const val MIN_SDK_PATCHES = 4
+        private const val MIN_SDK_COMPACT = 5
     }
 
     private val databaseRepository by inject<DatabaseRepository>()
@@ -58,6 +56,25 @@ class ClientSmartspacerSession(
     val owner = config.packageName
     private val sdkVersion = config.sdkVersion
 
+    /**
+     *  Shared by every Target sent, so adding it does not change a Target between emissions
+     */
+    private val fakeWidgetProviderInfo by lazy {
+        context.createFakeWidgetProviderInfo()
+    }
+
+    /**
+     *  Whether the client supports receiving changes via `ISmartspaceCallback.onPatch`, rather
+     *  than the full list of Targets every time
+     */
+    val supportsPatches = sdkVersion >= MIN_SDK_PATCHES
+
+    /**
+     *  Whether the client supports receiving the full list of Targets via
+     *  `ISmartspaceCallback.onCompactResult`, rather than as Bundles
+     */
+    val supportsCompact = sdkVersion >= MIN_SDK_COMPACT
+
     private val permissions = databaseRepository.getGrants().map {
         it.firstOrNull { grant -> grant.packageName == config.packageName }
             ?: Grant(config.packageName)
@@ -102,29 +119,23 @@ class ClientSmartspacerSession(
      *  encounters problems.
      */
     private suspend fun SmartspaceTarget.prepareRemoteViews(): SmartspaceTarget {
-        val remoteViews = remoteViews?.takeIf { supportsRemoteViews() }
-            ?.copyAsRoot()
-            ?.replaceClickWithProxyIntent(context)
-            ?.fixKebabMenuIfNeeded(context, this)
+        val remoteViews = if(supportsRemoteViews()) {
+            rewriteRemoteViews(context, asRoot = true)
+        }else null
         return copy(
             remoteViews = remoteViews,
             widget = widget ?: if(remoteViews != null) {
-                context.createFakeWidgetProviderInfo()
+                fakeWidgetProviderInfo
             }else null
         )
     }
 
     override fun getKebabMenuBehaviour(target: SmartspaceTarget): KebabMenuBehaviour {
-        val intent = Intent(ACTION_TARGET_KEBAB_CLICKED).apply {
-            putExtra(EXTRA_SMARTSPACER_ID, target.smartspaceTargetId)
-            setPackage(owner)
-        }.let {
-            PendingIntent.getBroadcast(
-                context,
-                UUID.randomUUID().hashCode(),
-                it,
-                PendingIntent.FLAG_IMMUTABLE or PendingIntent.FLAG_UPDATE_CURRENT
-            )
+        val intent = getKebabMenuPendingIntent(target.smartspaceTargetId) {
+            Intent(ACTION_TARGET_KEBAB_CLICKED).apply {
+                putExtra(EXTRA_SMARTSPACER_ID, target.smartspaceTargetId)
+                setPackage(owner)
+            }
         }
         return KebabMenuBehaviour.Replace(intent)
     }
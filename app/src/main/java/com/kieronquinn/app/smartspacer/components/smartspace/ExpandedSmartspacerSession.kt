@@ -1,6 +1,5 @@
 package com.kieronquinn.app.smartspacer.components.smartspace
 
-import android.app.PendingIntent
 import android.appwidget.AppWidgetHostView
 import android.appwidget.AppWidgetProviderInfo
 import android.content.ComponentName
@@ -30,6 +29,7 @@ import com.kieronquinn.app.smartspacer.repositories.ShizukuServiceRepository
 import com.kieronquinn.app.smartspacer.repositories.SmartspaceRepository.SmartspacePageHolder
 import com.kieronquinn.app.smartspacer.repositories.SmartspacerSettingsRepository
 import com.kieronquinn.app.smartspacer.repositories.SmartspacerSettingsRepository.ExpandedBackground
+import com.kieronquinn.app.smartspacer.repositories.SmartspacerSettingsRepository.ExpandedOpenMode
 import com.kieronquinn.app.smartspacer.repositories.SmartspacerSettingsRepository.TintColour
 import com.kieronquinn.app.smartspacer.repositories.WallpaperRepository
 import com.kieronquinn.app.smartspacer.repositories.WidgetRepository
@@ -39,7 +39,6 @@ import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceTarget
 import com.kieronquinn.app.smartspacer.sdk.model.UiSurface
 import com.kieronquinn.app.smartspacer.sdk.model.expanded.ExpandedState
 import com.kieronquinn.app.smartspacer.sdk.model.expanded.ExpandedState.BaseShortcut
-import com.kieronquinn.app.smartspacer.sdk.utils.copy
 import com.kieronquinn.app.smartspacer.ui.screens.expanded.ExpandedFragment
 import com.kieronquinn.app.smartspacer.ui.screens.expanded.ExpandedSession.Complications.Complication
 import com.kieronquinn.app.smartspacer.utils.extensions.createFakeWidgetProviderInfo
@@ -47,7 +46,6 @@ import com.kieronquinn.app.smartspacer.utils.extensions.getBackgroundColour
 import com.kieronquinn.app.smartspacer.utils.extensions.isColorDark
 import com.kieronquinn.app.smartspacer.utils.extensions.isDarkMode
 import com.kieronquinn.app.smartspacer.utils.extensions.lockscreenShowing
-import com.kieronquinn.app.smartspacer.utils.extensions.replaceClickWithProxyIntent
 import com.kieronquinn.app.smartspacer.utils.extensions.split
 import com.kieronquinn.app.smartspacer.utils.extensions.whenCreated
 import kotlinx.coroutines.Dispatchers
@@ -64,7 +62,6 @@ import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.withContext
 import org.koin.core.component.inject
 import java.util.LinkedList
-import java.util.UUID
 import com.kieronquinn.app.smartspacer.ui.screens.expanded.ExpandedSession.Complications as ExpandedComplications
 
 @Suppress("CloseTarget")
@@ -272,9 +269,7 @@ class ExpandedSmartspacerSession(
      *  dropdown action can be intercepted and ignored.
      */
     private fun SmartspaceTarget.prepareRemoteViews(): SmartspaceTarget {
-        val remoteViews = remoteViews?.copy()
-            ?.replaceClickWithProxyIntent(context)
-            ?.fixKebabMenuIfNeeded(context, this)
+        val remoteViews = rewriteRemoteViews(context)
         return copy(
             remoteViews = remoteViews,
             widget = widget ?: if(remoteViews != null) {
@@ -283,18 +278,16 @@ class ExpandedSmartspacerSession(
         )
     }
 
-    override fun applyActionOverrides(targets: Flow<List<TargetHolder>>): Flow<List<TargetHolder>> {
-        return targets //Don't override actions in expanded mode
+    override fun List<TargetHolder>.applyActionOverrides(
+        openMode: ExpandedOpenMode,
+        surface: UiSurface
+    ): List<TargetHolder> {
+        return this //Don't override actions in expanded mode
     }
 
     override fun getKebabMenuBehaviour(target: SmartspaceTarget): KebabMenuBehaviour {
-        val intent = ExpandedFragment.getKebabMenuIntent(context, target.smartspaceTargetId).let {
-            PendingIntent.getBroadcast(
-                context,
-                UUID.randomUUID().hashCode(),
-                it,
-                PendingIntent.FLAG_IMMUTABLE or PendingIntent.FLAG_UPDATE_CURRENT
-            )
+        val intent = getKebabMenuPendingIntent(target.smartspaceTargetId) {
+            ExpandedFragment.getKebabMenuIntent(context, target.smartspaceTargetId)
         }
         return KebabMenuBehaviour.Replace(intent)
     }
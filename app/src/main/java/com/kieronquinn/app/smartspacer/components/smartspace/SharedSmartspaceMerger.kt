@@ -0,0 +1,149 @@
+package com.kieronquinn.app.smartspacer.components.smartspace
+
+import com.kieronquinn.app.smartspacer.model.smartspace.ActionHolder
+import com.kieronquinn.app.smartspacer.model.smartspace.TargetHolder
+import com.kieronquinn.app.smartspacer.repositories.SmartspaceRepository.SmartspacePageHolder
+import com.kieronquinn.app.smartspacer.repositories.SmartspacerSettingsRepository.ComplicationOnPrimary
+import com.kieronquinn.app.smartspacer.repositories.SmartspacerSettingsRepository.ExpandedOpenMode
+import com.kieronquinn.app.smartspacer.repositories.SmartspacerSettingsRepository.HideSensitive
+import com.kieronquinn.app.smartspacer.sdk.model.UiSurface
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ *  Shares merged pages between sessions. Every session with the same [MergeKey] which is merging
+ *  the same Targets and Complications will receive the same result, with only the first session to
+ *  ask for it doing the work. Sources are compared by their parents, configs and the fingerprints
+ *  of their items rather than by list identity, since sessions which filter Targets create new
+ *  lists on every emission. Sessions with the same key but different filtering have their own
+ *  entries, so do not replace each other's results.
+ */
+class SharedSmartspaceMerger {
+
+    companion object {
+        private const val MAX_ENTRIES = 32
+    }
+
+    private val entries = object: LinkedHashMap<MergeSources, MergeEntry>(
+        MAX_ENTRIES, 0.75f, true
+    ) {
+        override fun removeEldestEntry(
+            eldest: MutableMap.MutableEntry<MergeSources, MergeEntry>?
+        ): Boolean {
+            return size > MAX_ENTRIES
+        }
+    }
+
+    private val computedCount = AtomicLong()
+    private val sharedCount = AtomicLong()
+
+    /**
+     *  Returns the merged pages for a given [key], [targets] and [actions], calling [merge] only
+     *  if no other session has already merged the same inputs. [force] always calls [merge], and
+     *  replaces the shared result for other sessions.
+     */
+    suspend fun merge(
+        key: MergeKey,
+        targets: List<TargetHolder>,
+        actions: List<ActionHolder>,
+        force: Boolean = false,
+        merge: suspend () -> List<SmartspacePageHolder>
+    ): List<SmartspacePageHolder> {
+        val sources = MergeSources(
+            key,
+            targets.map { holder ->
+                MergeSource(holder.parent, holder.parent.config, holder.targets?.map {
+                    it.fingerprint()
+                })
+            },
+            actions.map { holder ->
+                MergeSource(holder.parent, holder.parent.config, holder.actions?.map {
+                    it.fingerprint()
+                })
+            }
+        )
+        val entry = synchronized(entries) {
+            entries.getOrPut(sources) { MergeEntry() }
+        }
+        return entry.lock.withLock {
+            val cached = entry.result
+            if(!force && cached != null) {
+                sharedCount.incrementAndGet()
+                return@withLock cached
+            }
+            merge().also {
+                entry.result = it
+                computedCount.incrementAndGet()
+            }
+        }
+    }
+
+    fun getStats(): MergeStats {
+        val keys = synchronized(entries) {
+            entries.size
+        }
+        return MergeStats(computedCount.get(), sharedCount.get(), keys)
+    }
+
+    /**
+     *  Every setting which changes the result of a merge. Two sessions with equal keys will always
+     *  produce the same pages from the same source lists.
+     */
+    data class MergeKey(
+        val surface: UiSurface,
+        val openMode: ExpandedOpenMode,
+        val aodAudio: Boolean,
+        val hideSensitive: HideSensitive,
+        val useSplitSmartspace: Boolean,
+        val isNative: Boolean,
+        val isExpanded: Boolean,
+        val actionsFirst: Boolean,
+        val supportsRemoteViews: Boolean,
+        val complicationOnPrimary: ComplicationOnPrimary
+    )
+
+    data class MergeStats(
+        val computed: Long,
+        val shared: Long,
+        val keys: Int
+    )
+
+    private data class MergeSources(
+        val key: MergeKey,
+        val targets: List<MergeSource>,
+        val actions: List<MergeSource>
+    )
+
+    /**
+     *  A Target or Complication and the fingerprints of the items it has loaded. Targets and
+     *  Complications are never equal to each other, so the parent is compared by identity. Its
+     *  config is included since it is updated in place.
+     */
+    private class MergeSource(
+        val parent: Any,
+        val config: Any,
+        val fingerprints: List<Long>?
+    ) {
+
+        override fun equals(other: Any?): Boolean {
+            if(other !is MergeSource) return false
+            return other.parent === parent && other.config == config &&
+                    other.fingerprints == fingerprints
+        }
+
+        override fun hashCode(): Int {
+            var result = System.identityHashCode(parent)
+            result = 31 * result + config.hashCode()
+            result = 31 * result + (fingerprints?.hashCode() ?: 0)
+            return result
+        }
+
+    }
+
+    private class MergeEntry {
+        val lock = Mutex()
+        var result: List<SmartspacePageHolder>? = null
+    }
+
+}
@@ -6,14 +6,18 @@ import android.os.Binder
 import android.os.Bundle
 import android.os.IBinder
 import android.os.RemoteException
+import android.os.TransactionTooLargeException
 import com.kieronquinn.app.smartspacer.model.database.Grant
 import com.kieronquinn.app.smartspacer.repositories.DatabaseRepository
+import com.kieronquinn.app.smartspacer.repositories.MetricsRepository
 import com.kieronquinn.app.smartspacer.sdk.client.ISmartspaceCallback
 import com.kieronquinn.app.smartspacer.sdk.client.ISmartspaceManager
+import com.kieronquinn.app.smartspacer.sdk.model.CompactSmartspaceTargets
 import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceConfig
 import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceSessionId
 import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceTarget
 import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceTargetEvent
+import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceTargetPatch
 import com.kieronquinn.app.smartspacer.sdk.utils.ParceledListSlice
 import com.kieronquinn.app.smartspacer.ui.activities.permission.client.SmartspacerClientPermissionActivity
 import kotlinx.coroutines.MainScope
@@ -30,8 +34,9 @@ class SmartspaceManager(private val context: Context): ISmartspaceManager.Stub()
     private val sessionsLock = Mutex()
     private val sessions = HashMap<SmartspaceSessionId, ClientSmartspacerSession>()
     private val callbacksLock = Mutex()
-    private val callbacks = ArrayList<Pair<SmartspaceSessionId, ISmartspaceCallback>>()
+    private val callbacks = ArrayList<RegisteredCallback>()
     private val databaseRepository by inject<DatabaseRepository>()
+    private val metricsRepository by inject<MetricsRepository>()
     private val scope = MainScope()
 
     override fun ping() = true
@@ -81,7 +86,13 @@ class SmartspaceManager(private val context: Context): ISmartspaceManager.Stub()
         val session = getSession(smartspaceSessionId) ?: return false
         unregisterSmartspaceUpdates(sessionId, callback)
         synchronized(callbacksLock) {
-            callbacks.add(Pair(smartspaceSessionId, callback))
+            callbacks.add(RegisteredCallback(
+                smartspaceSessionId,
+                callback,
+                "client:${session.owner}",
+                session.supportsPatches,
+                session.supportsCompact
+            ))
         }
         session.lastTargets?.let {
             onSmartspaceUpdate(smartspaceSessionId, it)
@@ -96,7 +107,9 @@ class SmartspaceManager(private val context: Context): ISmartspaceManager.Stub()
         val smartspaceSessionId = SmartspaceSessionId(sessionId)
         getSession(smartspaceSessionId) ?: return false
         synchronized(callbacksLock) {
-            callbacks.removeIf { it.first == smartspaceSessionId && it.second == callback }
+            callbacks.removeIf {
+                it.sessionId == smartspaceSessionId && it.callback.asBinder() == callback.asBinder()
+            }
         }
         return true
     }
@@ -109,7 +122,7 @@ class SmartspaceManager(private val context: Context): ISmartspaceManager.Stub()
             session.onDestroy()
             sessions.remove(smartspaceSessionId)
             synchronized(callbacksLock) {
-                callbacks.removeIf { it.first == smartspaceSessionId }
+                callbacks.removeIf { it.sessionId == smartspaceSessionId }
             }
         }
     }
@@ -155,12 +168,28 @@ class SmartspaceManager(private val context: Context): ISmartspaceManager.Stub()
 
     private fun onSmartspaceUpdate(sessionId: SmartspaceSessionId, targets: List<SmartspaceTarget>) {
         synchronized(callbacksLock) {
-            callbacks.filter { it.first == sessionId }.listIterator().forEach {
+            val sent = targets.map {
+                it.smartspaceTargetId to SmartspaceTargetPatch.contentHash(it)
+            }
+            //Only convert the full list once, and only if a callback needs it
+            val result by lazy {
+                targets.map { target -> target.toBundle() }
+            }
+            callbacks.filter { it.sessionId == sessionId }.forEach {
                 try {
-                    it.second.onResult(
-                        ParceledListSlice(
-                            targets.map { target -> target.toBundle() })
-                    )
+                    val previous = it.sent
+                    val patch = if(it.supportsPatches && previous != null) {
+                        SmartspaceTargetPatch.create(previous, targets)
+                    } else null
+                    when {
+                        patch == null -> it.sendResult(targets) { result }
+                        !patch.isEmpty() -> {
+                            val bundles = patch.toBundles()
+                            it.callback.onPatch(ParceledListSlice(bundles))
+                            metricsRepository.recordPayload(it.destination, bundles, targets.size)
+                        }
+                    }
+                    it.sent = sent
                 } catch (e: RemoteException) {
                     //Callback died, remove so we don't call it again
                     callbacks.remove(it)
@@ -169,8 +198,48 @@ class SmartspaceManager(private val context: Context): ISmartspaceManager.Stub()
         }
     }
 
+    /**
+     *  Sends the full list of Targets, in the compact format if the client supports it. That is
+     *  sent in a single transaction, so falls back to the Bundles if it is too large, as a
+     *  [ParceledListSlice] can be split across transactions.
+     */
+    private fun RegisteredCallback.sendResult(
+        targets: List<SmartspaceTarget>,
+        result: () -> List<Bundle>
+    ) {
+        if(supportsCompact) {
+            try {
+                val compact = CompactSmartspaceTargets(targets)
+                callback.onCompactResult(compact)
+                metricsRepository.recordPayload(destination, listOf(compact), targets.size)
+                return
+            }catch (e: TransactionTooLargeException) {
+                //Fall through to sending the Bundles
+            }
+        }
+        val bundles = result()
+        callback.onResult(ParceledListSlice(bundles))
+        metricsRepository.recordPayload(destination, bundles)
+    }
+
     private fun getSession(sessionId: SmartspaceSessionId) = synchronized(sessionsLock) {
         sessions[sessionId]
     }
 
+    private class RegisteredCallback(
+        val sessionId: SmartspaceSessionId,
+        val callback: ISmartspaceCallback,
+        /**
+         *  Name this callback's payloads are recorded under in the [MetricsRepository]
+         */
+        val destination: String,
+        val supportsPatches: Boolean,
+        val supportsCompact: Boolean,
+        /**
+         *  The Target IDs and content hashes last sent to this callback, which the next patch is
+         *  based on. `null` until the full list has been sent.
+         */
+        var sent: List<Pair<String, Long>>? = null
+    )
+
 }
\ No newline at end of file
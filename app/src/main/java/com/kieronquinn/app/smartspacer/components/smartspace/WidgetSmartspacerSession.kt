@@ -15,13 +15,11 @@ import com.kieronquinn.app.smartspacer.sdk.utils.TargetTemplate.Companion.FEATUR
 import com.kieronquinn.app.smartspacer.sdk.utils.TargetTemplate.Doorbell.Companion.KEY_FRAME_DURATION_MS
 import com.kieronquinn.app.smartspacer.sdk.utils.TargetTemplate.DoorbellState
 import com.kieronquinn.app.smartspacer.sdk.utils.TargetTemplate.Images.Companion.GIF_FRAME_DURATION_MS
-import com.kieronquinn.app.smartspacer.sdk.utils.copy
 import com.kieronquinn.app.smartspacer.ui.activities.WidgetOptionsMenuActivity
 import com.kieronquinn.app.smartspacer.ui.views.smartspace.SmartspaceView
 import com.kieronquinn.app.smartspacer.ui.views.smartspace.features.DoorbellFeatureSmartspaceView
 import com.kieronquinn.app.smartspacer.ui.views.smartspace.templates.ImagesTemplateSmartspaceView
 import com.kieronquinn.app.smartspacer.utils.extensions.PendingIntent_MUTABLE_FLAGS
-import com.kieronquinn.app.smartspacer.utils.extensions.replaceClickWithProxyIntent
 import kotlinx.coroutines.currentCoroutineContext
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.Flow
@@ -144,9 +142,7 @@ abstract class WidgetSmartspacerSession(
      *  dropdown action can be intercepted and ignored.
      */
     private fun SmartspaceTarget.prepareRemoteViews(): SmartspaceTarget {
-        val remoteViews = remoteViews?.copy()
-            ?.replaceClickWithProxyIntent(context)
-            ?.fixKebabMenuIfNeeded(context, this)
+        val remoteViews = rewriteRemoteViews(context)
         return copy(remoteViews = remoteViews)
     }
 
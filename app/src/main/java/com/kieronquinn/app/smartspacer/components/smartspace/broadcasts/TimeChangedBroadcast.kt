@@ -1,13 +1,19 @@
 package com.kieronquinn.app.smartspacer.components.smartspace.broadcasts
 
+import android.content.Context
 import android.content.Intent
 import android.content.IntentFilter
+import android.text.format.DateFormat
 import com.kieronquinn.app.smartspacer.BuildConfig
 import com.kieronquinn.app.smartspacer.components.smartspace.complications.TimeComplication
 import com.kieronquinn.app.smartspacer.components.smartspace.targets.TimeTarget
+import com.kieronquinn.app.smartspacer.repositories.SmartspacePatchRepository
+import com.kieronquinn.app.smartspacer.repositories.SmartspacePatchRepository.TextPatch
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerBroadcastProvider
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerComplicationProvider
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerTargetProvider
+import org.koin.android.ext.android.inject
+import java.util.Calendar
 
 class TimeChangedBroadcast: SmartspacerBroadcastProvider() {
 
@@ -20,9 +26,26 @@ class TimeChangedBroadcast: SmartspacerBroadcastProvider() {
             Intent.ACTION_TIME_CHANGED,
             Intent.ACTION_TIMEZONE_CHANGED
         )
+
+        /**
+         *  Returns the current time, as shown by [TimeTarget] and [TimeComplication]
+         */
+        fun getTime(context: Context): String {
+            val format = DateFormat.getTimeFormat(context)
+            return format.format(Calendar.getInstance().time)
+        }
     }
 
+    private val patchRepository by inject<SmartspacePatchRepository>()
+
     override fun onReceive(intent: Intent) {
+        if(intent.action == Intent.ACTION_TIME_TICK) {
+            //Only the time text has changed, so patch it rather than reloading the providers
+            val patch = TextPatch(title = getTime(provideContext()))
+            patchRepository.patch(TimeTarget.AUTHORITY, null, patch)
+            patchRepository.patch(TimeComplication.AUTHORITY, null, patch)
+            return
+        }
         SmartspacerComplicationProvider.notifyChange(provideContext(), TimeComplication::class.java)
         SmartspacerTargetProvider.notifyChange(provideContext(), TimeTarget::class.java)
     }
@@ -33,4 +56,4 @@ class TimeChangedBroadcast: SmartspacerBroadcastProvider() {
         )
     }
 
-}
\ No newline at end of file
+}
@@ -378,8 +378,12 @@ abstract class TargetMerger {
                 it.copy(title = it.subtitle?.toString() ?: "")
             } else it
         }
+        //Derived from the Complications shown, so an unchanged page keeps its ID between merges
+        val actionIds = listOfNotNull(primary?.id, header?.id, base?.id).filter { it.isNotEmpty() }
+        val id = actionIds.takeIf { it.isNotEmpty() }?.joinToString("_")
+            ?: UUID.randomUUID().toString()
         return SmartspaceTarget(
-            smartspaceTargetId = "${BLANK_TARGET_PREFIX}_${UUID.randomUUID()}",
+            smartspaceTargetId = "${BLANK_TARGET_PREFIX}_$id",
             headerAction = headerWithTitle?.reformatBullet(base == null),
             baseAction = base ?: createBlankHeader(useExpandedIntent),
             featureType = SmartspaceTarget.FEATURE_UNDEFINED,
@@ -440,9 +444,11 @@ abstract class TargetMerger {
 
     private fun getCalendarIntent(): Intent {
         return Intent(Intent.ACTION_VIEW).apply {
+            //Rounded to the minute, so the page is not changed by every merge
+            val now = System.currentTimeMillis()
             data = ContentUris.appendId(
                 CalendarContract.CONTENT_URI.buildUpon().appendPath("time"),
-                System.currentTimeMillis()
+                now - now % 60_000L
             ).build()
             addFlags(Intent.FLAG_ACTIVITY_NEW_TASK)
             addFlags(Intent.FLAG_ACTIVITY_CLEAR_TASK)
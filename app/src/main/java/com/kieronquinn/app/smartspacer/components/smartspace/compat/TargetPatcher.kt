@@ -0,0 +1,153 @@
+package com.kieronquinn.app.smartspacer.components.smartspace.compat
+
+import com.kieronquinn.app.smartspacer.model.smartspace.Action
+import com.kieronquinn.app.smartspacer.model.smartspace.ActionHolder
+import com.kieronquinn.app.smartspacer.model.smartspace.TargetHolder
+import com.kieronquinn.app.smartspacer.repositories.SmartspacePatchRepository.TextPatch
+import com.kieronquinn.app.smartspacer.repositories.SmartspacePatchRepository.TextPatches
+import com.kieronquinn.app.smartspacer.repositories.SmartspaceRepository.SmartspacePageHolder
+import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceAction
+import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceTarget
+import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.BaseTemplateData.SubItemInfo
+import com.kieronquinn.app.smartspacer.utils.extensions.getUniqueId
+
+/**
+ *  Applies [TextPatches] to pages which have already been merged by a [TargetMerger], without
+ *  merging them again. The text each item was loaded with is found in the [TargetHolder]s and
+ *  [ActionHolder]s the pages were merged from, and replaced with the patched text only in the
+ *  fields of the page which came from that item. Items are matched to pages by the unique IDs the
+ *  merger gave them, so other Targets and Complications showing the same text are not changed.
+ */
+object TargetPatcher {
+
+    fun applyPatches(
+        pages: List<SmartspacePageHolder>,
+        targets: List<TargetHolder>,
+        actions: List<ActionHolder>,
+        patches: TextPatches
+    ): List<SmartspacePageHolder> {
+        if(patches.isEmpty()) return pages
+        val targetPatches = HashMap<String, TargetReplacements>()
+        targets.forEach { holder ->
+            val patch = patches.getPatch(holder.parent.authority, holder.parent.id)
+                ?.takeIf { it.createdAt >= holder.loadedAt } ?: return@forEach
+            holder.targets?.forEach { target ->
+                val replacements = target.getReplacements(patch)
+                if(replacements.isNotEmpty()) {
+                    targetPatches[target.getUniqueId(holder.parent)] =
+                        TargetReplacements(target, replacements)
+                }
+            }
+        }
+        val actionPatches = HashMap<String, ActionReplacements>()
+        actions.forEach { holder ->
+            val patch = patches.getPatch(holder.parent.authority, holder.parent.id)
+                ?.takeIf { it.createdAt >= holder.loadedAt } ?: return@forEach
+            holder.actions?.forEach { action ->
+                val replacements = action.getReplacements(patch)
+                if(replacements.isNotEmpty()) {
+                    actionPatches[action.getUniqueId(holder.parent)] =
+                        ActionReplacements(holder.parent, replacements)
+                }
+            }
+        }
+        if(targetPatches.isEmpty() && actionPatches.isEmpty()) return pages
+        return pages.map { page ->
+            val target = if(page.target != null) {
+                targetPatches[page.page.smartspaceTargetId]
+            } else null
+            val pageActions = actionPatches.filterValues { page.actions.contains(it.parent) }
+            if(target == null && pageActions.isEmpty()) return@map page
+            page.copy(page = page.page.applyPatches(page.target != null, target, pageActions))
+        }
+    }
+
+    /**
+     *  Replaces text in the fields of this page which belong to [target] or one of [actions].
+     *  Complications placed in the header or base keep their unique ID. A Complication placed on
+     *  the primary item does not, so is matched by its text among this page's Complications, and
+     *  the Target's own primary item is moved to the supplemental alarm item.
+     */
+    private fun SmartspaceTarget.applyPatches(
+        hasTarget: Boolean,
+        target: TargetReplacements?,
+        actions: Map<String, ActionReplacements>
+    ): SmartspaceTarget {
+        val header = headerAction?.id?.let { actions[it] }
+            ?: target?.takeIf { headerAction?.id == it.source.headerAction?.id }
+        val base = baseAction?.id?.let { actions[it] }
+            ?: target?.takeIf { baseAction?.id == it.source.baseAction?.id }
+        val template = templateData
+        val complicationOnPrimary = !hasTarget || (template?.supplementalAlarmItem != null &&
+                template.primaryItem?.loggingInfo?.featureType == SmartspaceTarget.FEATURE_WEATHER)
+        val primary = if(complicationOnPrimary) {
+            val text = template?.primaryItem?.text?.text
+            actions.values.firstOrNull { it.replace(text) != null }
+        } else target
+        return copy(
+            headerAction = headerAction?.replaceText(header),
+            baseAction = baseAction?.replaceText(base),
+            templateData = template?.copy(
+                primaryItem = template.primaryItem?.replaceText(primary),
+                subtitleItem = template.subtitleItem?.replaceText(header),
+                subtitleSupplementalItem = template.subtitleSupplementalItem?.replaceText(base),
+                supplementalAlarmItem = template.supplementalAlarmItem?.replaceText(target),
+                supplementalLineItem = template.supplementalLineItem?.replaceText(target)
+            )
+        )
+    }
+
+    private fun SmartspaceTarget.getReplacements(patch: TextPatch): Map<String, String> {
+        val title = templateData?.primaryItem?.text?.text ?: headerAction?.title
+        val subtitle = templateData?.subtitleItem?.text?.text ?: headerAction?.subtitle
+        return HashMap<String, String>().apply {
+            addReplacement(title, patch.title)
+            addReplacement(subtitle, patch.subtitle)
+        }
+    }
+
+    private fun SmartspaceAction.getReplacements(patch: TextPatch): Map<String, String> {
+        return HashMap<String, String>().apply {
+            addReplacement(subItemInfo?.text?.text ?: title, patch.title)
+            addReplacement(subtitle, patch.subtitle)
+        }
+    }
+
+    private fun MutableMap<String, String>.addReplacement(from: CharSequence?, to: String?) {
+        val original = from?.toString()
+        if(original.isNullOrEmpty() || to == null || original == to) return
+        put(original, to)
+    }
+
+    private fun SmartspaceAction.replaceText(replacements: Replacements?): SmartspaceAction {
+        if(replacements == null) return this
+        return copy(
+            title = replacements.replace(title) ?: title,
+            subtitle = subtitle?.let { replacements.replace(it) ?: it },
+            subItemInfo = subItemInfo?.replaceText(replacements)
+        )
+    }
+
+    private fun SubItemInfo.replaceText(replacements: Replacements?): SubItemInfo {
+        val text = text ?: return this
+        val replacement = replacements?.replace(text.text) ?: return this
+        return copy(text = text.copy(text = replacement))
+    }
+
+    private open class Replacements(private val replacements: Map<String, String>) {
+        fun replace(text: CharSequence?): String? {
+            return replacements[text?.toString() ?: return null]
+        }
+    }
+
+    private class TargetReplacements(
+        val source: SmartspaceTarget,
+        replacements: Map<String, String>
+    ): Replacements(replacements)
+
+    private class ActionReplacements(
+        val parent: Action,
+        replacements: Map<String, String>
+    ): Replacements(replacements)
+
+}
@@ -3,7 +3,7 @@ package com.kieronquinn.app.smartspacer.components.smartspace.complications
 import android.app.PendingIntent
 import android.content.Intent
 import android.provider.AlarmClock
-import android.text.format.DateFormat
+import com.kieronquinn.app.smartspacer.BuildConfig
 import com.kieronquinn.app.smartspacer.R
 import com.kieronquinn.app.smartspacer.components.notifications.NotificationId
 import com.kieronquinn.app.smartspacer.components.smartspace.broadcasts.TimeChangedBroadcast
@@ -13,17 +13,20 @@ import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.TapAction
 import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.Text
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerComplicationProvider
 import com.kieronquinn.app.smartspacer.sdk.utils.ComplicationTemplate
-import java.util.Calendar
 import android.graphics.drawable.Icon as AndroidIcon
 
 class TimeComplication: SmartspacerComplicationProvider() {
 
+    companion object {
+        const val AUTHORITY = "${BuildConfig.APPLICATION_ID}.complication.time"
+    }
+
     override fun getSmartspaceActions(smartspacerId: String): List<SmartspaceAction> {
         return listOf(
             ComplicationTemplate.Basic(
                 "time_at_${System.currentTimeMillis()}",
                 Icon(AndroidIcon.createWithResource(provideContext(), R.drawable.ic_requirement_time_date)),
-                Text(getTime()),
+                Text(TimeChangedBroadcast.getTime(provideContext())),
                 getClickAction()
             ).create()
         )
@@ -42,11 +45,6 @@ class TimeComplication: SmartspacerComplicationProvider() {
         return TapAction(pendingIntent = pendingIntent)
     }
 
-    private fun getTime(): String {
-        val format = DateFormat.getTimeFormat(provideContext())
-        return format.format(Calendar.getInstance().time)
-    }
-
     override fun getConfig(smartspacerId: String?): Config {
         val description = if(smartspacerId != null) {
             resources.getText(R.string.complication_clock_description_short)
@@ -279,11 +279,10 @@ class MusicTarget: SmartspacerTargetProvider() {
      *  icon.
      */
     private fun MediaContainer.getIcon(): AndroidIcon {
-        val notificationIcon = notificationRepository.activeNotifications.value.firstOrNull {
-            it.packageName == packageName && it.notification.extras.containsKey(EXTRA_MEDIA_SESSION)
-        }?.notification?.smallIcon ?: notificationRepository.activeNotifications.value.firstOrNull {
-            it.packageName == packageName
-        }?.notification?.smallIcon
+        val notifications = notificationRepository.getNotifications(packageName)
+        val notificationIcon = notifications.firstOrNull {
+            it.notification.extras.containsKey(EXTRA_MEDIA_SESSION)
+        }?.notification?.smallIcon ?: notifications.firstOrNull()?.notification?.smallIcon
         return notificationIcon ?: AndroidIcon.createWithResource(
             provideContext(), R.drawable.ic_target_music
         )
@@ -4,7 +4,7 @@ import android.app.PendingIntent
 import android.content.ComponentName
 import android.content.Intent
 import android.provider.AlarmClock
-import android.text.format.DateFormat
+import com.kieronquinn.app.smartspacer.BuildConfig
 import com.kieronquinn.app.smartspacer.R
 import com.kieronquinn.app.smartspacer.components.notifications.NotificationId
 import com.kieronquinn.app.smartspacer.components.smartspace.broadcasts.TimeChangedBroadcast
@@ -14,11 +14,14 @@ import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.TapAction
 import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.Text
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerTargetProvider
 import com.kieronquinn.app.smartspacer.sdk.utils.TargetTemplate
-import java.util.Calendar
 import android.graphics.drawable.Icon as AndroidIcon
 
 class TimeTarget: SmartspacerTargetProvider() {
 
+    companion object {
+        const val AUTHORITY = "${BuildConfig.APPLICATION_ID}.target.clock"
+    }
+
     override fun getSmartspaceTargets(smartspacerId: String): List<SmartspaceTarget> {
         return listOf(
             TargetTemplate.Basic(
@@ -30,7 +33,7 @@ class TimeTarget: SmartspacerTargetProvider() {
                         R.drawable.ic_requirement_time_date
                     )
                 ),
-                title = Text(getTime()),
+                title = Text(TimeChangedBroadcast.getTime(provideContext())),
                 subtitle = null,
                 onClick = getClickAction()
             ).create().apply {
@@ -53,11 +56,6 @@ class TimeTarget: SmartspacerTargetProvider() {
         return TapAction(pendingIntent = pendingIntent)
     }
 
-    private fun getTime(): String {
-        val format = DateFormat.getTimeFormat(provideContext())
-        return format.format(Calendar.getInstance().time)
-    }
-
     override fun getConfig(smartspacerId: String?): Config {
         val description = if(smartspacerId != null) {
             resources.getText(R.string.target_clock_description_short)
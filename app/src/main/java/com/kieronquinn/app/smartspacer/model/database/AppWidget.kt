@@ -142,4 +142,25 @@ data class AppWidget(
         return true
     }
 
+    /**
+     *  Returns whether a session created for this widget can be kept for [other]. Only fields
+     *  used to build the session's pages are checked, styling such as colour, shadow and padding
+     *  is read when the widget is rendered, so only needs a re-render.
+     */
+    fun equalsForSession(other: AppWidget): Boolean {
+        if(other.appWidgetId != appWidgetId) return false
+        if(other.ownerPackage != ownerPackage) return false
+        if(other.surface != surface) return false
+        if(other.multiPage != multiPage) return false
+        if(other.showControls != showControls) return false
+        if(other.listMode != listMode) return false
+        if(other.hideControls != hideControls) return false
+        if(other.animate != animate) return false
+        if(other.pinMode != pinMode) return false
+        if(other.pinnedPageIndex != pinnedPageIndex) return false
+        if(other.pinnedTargetId != pinnedTargetId) return false
+        if(other.pinnedFallbackBehavior != pinnedFallbackBehavior) return false
+        return true
+    }
+
 }
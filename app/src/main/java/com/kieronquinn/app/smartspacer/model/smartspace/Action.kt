@@ -2,7 +2,6 @@ package com.kieronquinn.app.smartspacer.model.smartspace
 
 import android.content.Context
 import android.graphics.drawable.Icon
-import android.net.Uri
 import android.os.Bundle
 import android.os.Parcelable
 import androidx.core.os.bundleOf
@@ -10,14 +9,16 @@ import com.google.gson.annotations.SerializedName
 import com.kieronquinn.app.smartspacer.BuildConfig
 import com.kieronquinn.app.smartspacer.R
 import com.kieronquinn.app.smartspacer.repositories.PackageRepository
+import com.kieronquinn.app.smartspacer.repositories.PluginBatchRepository
+import com.kieronquinn.app.smartspacer.repositories.PluginBatchRepository.BatchType
+import com.kieronquinn.app.smartspacer.repositories.PluginCallRepository
+import com.kieronquinn.app.smartspacer.repositories.PluginChangeRepository
 import com.kieronquinn.app.smartspacer.repositories.RequirementsRepository
 import com.kieronquinn.app.smartspacer.sdk.model.Backup
 import com.kieronquinn.app.smartspacer.sdk.model.CompatibilityState
 import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceAction
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerComplicationProvider
-import com.kieronquinn.app.smartspacer.utils.extensions.callSafely
 import com.kieronquinn.app.smartspacer.utils.extensions.getParcelableArrayListCompat
-import com.kieronquinn.app.smartspacer.utils.extensions.observerAsFlow
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.MainScope
 import kotlinx.coroutines.cancel
@@ -37,7 +38,7 @@ class Action(
     val authority: String,
     val id: String?,
     val sourcePackage: String = BuildConfig.APPLICATION_ID,
-    val config: Config = Config()
+    config: Config = Config()
 ): KoinComponent, Flow<ActionHolder> {
 
     companion object {
@@ -47,20 +48,20 @@ class Action(
         private const val REQUIREMENTS_DEBOUNCE = 1000L
     }
 
-    private val idBasedUri = Uri.Builder()
-        .scheme("content")
-        .authority(authority)
-        .appendPath(id)
-        .build()
-
-    private val authorityBasedUri = Uri.Builder()
-        .scheme("content")
-        .authority(authority)
-        .build()
+    /**
+     *  The user's config, which is updated in place when only this has changed in the database
+     *  rather than recreating the Complication and reloading it from the plugin.
+     */
+    @Volatile
+    var config = config
+        private set
 
     private val scope = MainScope()
     private val packageRepository by inject<PackageRepository>()
+    private val pluginChangeRepository by inject<PluginChangeRepository>()
+    private val pluginCallRepository by inject<PluginCallRepository>()
     private val requirementsRepository by inject<RequirementsRepository>()
+    private val pluginBatchRepository by inject<PluginBatchRepository>()
     private val contentResolver = context.contentResolver
 
     private val anyRawRequirements = requirementsRepository.getAnyRequirementsForComplication(id)
@@ -79,7 +80,7 @@ class Action(
 
     override suspend fun collect(collector: FlowCollector<ActionHolder>) {
         remoteActions.map {
-            ActionHolder(this, it)
+            ActionHolder(this, it, loadedAt)
         }.collect(collector)
     }
 
@@ -94,14 +95,20 @@ class Action(
         )
     )
 
-    private val authorityBasedRemoteChange = contentResolver.observerAsFlow(authorityBasedUri)
-    private val idBasedRemoteChange = contentResolver.observerAsFlow(idBasedUri)
+    private val remoteChange = pluginChangeRepository.observe(authority, id)
 
-    private val change = combine(appChange, authorityBasedRemoteChange, idBasedRemoteChange) { _, _, _ ->
+    private val change = combine(appChange, remoteChange) { _, _ ->
         System.currentTimeMillis()
     }.stateIn(scope, SharingStarted.Eagerly, System.currentTimeMillis())
 
+    /**
+     *  When the current items started loading, text patches made after this are applied on top
+     */
+    @Volatile
+    private var loadedAt = System.currentTimeMillis()
+
     private val remoteActions = combine(change, anyRequirements, allRequirements){ _, any, all ->
+        loadedAt = System.currentTimeMillis()
         if(any && all){
             getRemoteActions()
         }else{
@@ -115,6 +122,10 @@ class Action(
 
     fun getPluginConfig() = remoteConfig
 
+    fun updateConfig(config: Config) {
+        this.config = config
+    }
+
     suspend fun onDeleted() {
         callRemote(
             SmartspacerComplicationProvider.METHOD_ON_REMOVED,
@@ -125,7 +136,7 @@ class Action(
     }
 
     private suspend fun getRemoteActions(): List<SmartspaceAction> {
-        val actions = callRemote(
+        val actions = getBatched(BatchType.ITEMS) ?: callRemote(
             SmartspacerComplicationProvider.METHOD_GET,
             bundleOf(SmartspacerComplicationProvider.EXTRA_SMARTSPACER_ID to id)
         ) ?: return emptyList()
@@ -136,7 +147,8 @@ class Action(
     }
 
     private suspend fun getRemoteConfig() = withContext(Dispatchers.IO) {
-        val config = callRemote(
+        val config = getBatched(BatchType.CONFIG)
+            ?.getBundle(SmartspacerComplicationProvider.RESULT_KEY_CONFIG) ?: callRemote(
             SmartspacerComplicationProvider.METHOD_GET_CONFIG,
             bundleOf(SmartspacerComplicationProvider.EXTRA_SMARTSPACER_ID to id)
         ) ?: return@withContext defaultConfig
@@ -146,13 +158,19 @@ class Action(
 
     private suspend fun callRemote(
         method: String, extras: Bundle? = null
-    ): Bundle? = withContext(Dispatchers.IO) {
-        try {
-            contentResolver?.callSafely(authority, method, null, extras)
-        }catch (e: Throwable){
-            //Provider has gone
-            null
-        }
+    ): Bundle? {
+        val contentResolver = contentResolver ?: return null
+        return pluginCallRepository.call(contentResolver, authority, method, extras, id)
+    }
+
+    /**
+     *  Requests this Complication's [type] through [PluginBatchRepository], so it can be loaded in
+     *  the same call as other instances from this provider. Returns `null` if the provider does
+     *  not support batching, in which case a regular call should be made.
+     */
+    private suspend fun getBatched(type: BatchType): Bundle? {
+        val id = id ?: return null
+        return pluginBatchRepository.getComplication(authority, sourcePackage, id, type)
     }
 
     fun close() {
@@ -247,7 +265,15 @@ class Action(
 
 }
 
-data class ActionHolder(val parent: Action, val actions: List<SmartspaceAction>?) {
+/**
+ *  [loadedAt] is when the items were loaded from the provider, later text patches are applied on
+ *  top of them. See [com.kieronquinn.app.smartspacer.repositories.SmartspacePatchRepository]
+ */
+data class ActionHolder(
+    val parent: Action,
+    val actions: List<SmartspaceAction>?,
+    val loadedAt: Long = System.currentTimeMillis()
+) {
     override fun equals(other: Any?): Boolean {
         return false
     }
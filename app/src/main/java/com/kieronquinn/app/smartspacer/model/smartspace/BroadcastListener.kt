@@ -3,29 +3,24 @@ package com.kieronquinn.app.smartspacer.model.smartspace
 import android.content.Context
 import android.content.Intent
 import android.content.IntentFilter
-import android.net.Uri
 import android.os.Bundle
 import androidx.core.os.bundleOf
 import com.kieronquinn.app.smartspacer.repositories.PackageRepository
+import com.kieronquinn.app.smartspacer.repositories.PluginCallRepository
+import com.kieronquinn.app.smartspacer.repositories.PluginChangeRepository
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerBroadcastProvider.Companion.EXTRA_INTENT
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerBroadcastProvider.Companion.EXTRA_SMARTSPACER_ID
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerBroadcastProvider.Companion.METHOD_GET_CONFIG
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerBroadcastProvider.Companion.METHOD_ON_RECEIVE
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerBroadcastProvider.Config
-import com.kieronquinn.app.smartspacer.utils.extensions.broadcastReceiverAsFlow
-import com.kieronquinn.app.smartspacer.utils.extensions.callSafely
-import com.kieronquinn.app.smartspacer.utils.extensions.observerAsFlow
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.MainScope
 import kotlinx.coroutines.cancel
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.combine
 import kotlinx.coroutines.flow.filterNotNull
-import kotlinx.coroutines.flow.flatMapLatest
 import kotlinx.coroutines.flow.map
-import kotlinx.coroutines.flow.merge
 import kotlinx.coroutines.flow.stateIn
-import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import org.koin.core.component.KoinComponent
 import org.koin.core.component.inject
@@ -40,25 +35,15 @@ class BroadcastListener(
 
     private val scope = MainScope()
 
-    private val idBasedUri = Uri.Builder()
-        .scheme("content")
-        .authority(authority)
-        .appendPath(id)
-        .build()
-
-    private val authorityBasedUri = Uri.Builder()
-        .scheme("content")
-        .authority(authority)
-        .build()
-
     private val packageRepository by inject<PackageRepository>()
+    private val pluginChangeRepository by inject<PluginChangeRepository>()
+    private val pluginCallRepository by inject<PluginCallRepository>()
     private val contentResolver = context.contentResolver
-    private val authorityBasedRemoteChange = contentResolver.observerAsFlow(authorityBasedUri)
-    private val idBasedRemoteChange = contentResolver.observerAsFlow(idBasedUri)
+    private val remoteChange = pluginChangeRepository.observe(authority, id)
 
     private val appChange = packageRepository.onPackageChanged(scope, packageName)
 
-    private val change = combine(appChange, authorityBasedRemoteChange, idBasedRemoteChange) { _, _, _ ->
+    private val change = combine(appChange, remoteChange) { _, _ ->
         System.currentTimeMillis()
     }.stateIn(scope, SharingStarted.Eagerly, System.currentTimeMillis())
 
@@ -68,6 +53,13 @@ class BroadcastListener(
 
     private val defaultConfig = Config(emptyList())
 
+    /**
+     *  The filters this listener wants to receive broadcasts for. Receivers are registered by
+     *  [com.kieronquinn.app.smartspacer.repositories.BroadcastRepository], which merges the
+     *  filters of all listeners.
+     */
+    val intentFilters = remoteConfig.filterNotNull().map { it.intentFilters }
+
     private suspend fun getRemoteConfig() = withContext(Dispatchers.IO) {
         val config = callRemote(METHOD_GET_CONFIG, bundleOf(EXTRA_SMARTSPACER_ID to id))
             ?: return@withContext defaultConfig
@@ -75,7 +67,7 @@ class BroadcastListener(
         Config(config)
     }
 
-    private suspend fun onReceive(intent: Intent) {
+    suspend fun onReceive(intent: Intent) {
         val extras = bundleOf(
             EXTRA_SMARTSPACER_ID to id,
             EXTRA_INTENT to intent
@@ -85,25 +77,9 @@ class BroadcastListener(
 
     private suspend fun callRemote(
         method: String, extras: Bundle? = null
-    ): Bundle? = withContext(Dispatchers.IO) {
-        try {
-            contentResolver?.callSafely(authority, method, null, extras)
-        }catch (e: Throwable){
-            //Provider has gone
-            null
-        }
-    }
-
-    private fun setupReceivers() = scope.launch {
-        val intents = remoteConfig.filterNotNull().flatMapLatest {
-            val intentFilters = it.intentFilters.map { filter ->
-                context.broadcastReceiverAsFlow(filter)
-            }.toTypedArray()
-            merge(*intentFilters)
-        }
-        intents.collect {
-            onReceive(it)
-        }
+    ): Bundle? {
+        val contentResolver = contentResolver ?: return null
+        return pluginCallRepository.call(contentResolver, authority, method, extras, id)
     }
 
     private fun IntentFilter.toFormattedString() = StringBuilder().apply {
@@ -129,10 +105,6 @@ class BroadcastListener(
         append(" }")
     }
 
-    init {
-        setupReceivers()
-    }
-
     override fun close() {
         scope.cancel()
     }
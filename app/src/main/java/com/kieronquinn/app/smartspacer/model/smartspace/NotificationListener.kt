@@ -1,12 +1,13 @@
 package com.kieronquinn.app.smartspacer.model.smartspace
 
 import android.content.Context
-import android.net.Uri
 import android.os.Bundle
 import android.service.notification.StatusBarNotification
 import androidx.core.os.bundleOf
 import com.kieronquinn.app.smartspacer.repositories.NotificationRepository
 import com.kieronquinn.app.smartspacer.repositories.PackageRepository
+import com.kieronquinn.app.smartspacer.repositories.PluginCallRepository
+import com.kieronquinn.app.smartspacer.repositories.PluginChangeRepository
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerNotificationProvider.Companion.EXTRA_IS_LISTENER_ENABLED
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerNotificationProvider.Companion.EXTRA_NOTIFICATIONS
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerNotificationProvider.Companion.EXTRA_SMARTSPACER_ID
@@ -14,9 +15,7 @@ import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerNotificationProvi
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerNotificationProvider.Companion.METHOD_ON_NOTIFICATIONS_CHANGED
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerNotificationProvider.Config
 import com.kieronquinn.app.smartspacer.sdk.utils.ParceledListSlice
-import com.kieronquinn.app.smartspacer.utils.extensions.callSafely
 import com.kieronquinn.app.smartspacer.utils.extensions.notificationServiceEnabled
-import com.kieronquinn.app.smartspacer.utils.extensions.observerAsFlow
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.MainScope
 import kotlinx.coroutines.cancel
@@ -25,6 +24,7 @@ import kotlinx.coroutines.flow.combine
 import kotlinx.coroutines.flow.debounce
 import kotlinx.coroutines.flow.distinctUntilChanged
 import kotlinx.coroutines.flow.filterNotNull
+import kotlinx.coroutines.flow.flatMapLatest
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.launch
@@ -43,29 +43,17 @@ class NotificationListener(
     private val scope = MainScope()
 
     private val packageRepository by inject<PackageRepository>()
+    private val pluginChangeRepository by inject<PluginChangeRepository>()
+    private val pluginCallRepository by inject<PluginCallRepository>()
     private val notificationRepository by inject<NotificationRepository>()
     private val contentResolver = context.contentResolver
     private val serviceEnabled = context.notificationServiceEnabled()
 
-    private val notifications = notificationRepository.activeNotifications
-
-    private val idBasedUri = Uri.Builder()
-        .scheme("content")
-        .authority(authority)
-        .appendPath(id)
-        .build()
-
-    private val authorityBasedUri = Uri.Builder()
-        .scheme("content")
-        .authority(authority)
-        .build()
-
-    private val authorityBasedRemoteChange = contentResolver.observerAsFlow(authorityBasedUri)
-    private val idBasedRemoteChange = contentResolver.observerAsFlow(idBasedUri)
+    private val remoteChange = pluginChangeRepository.observe(authority, id)
 
     private val appChange = packageRepository.onPackageChanged(scope, packageName)
 
-    private val change = combine(appChange, authorityBasedRemoteChange, idBasedRemoteChange) { _, _, _ ->
+    private val change = combine(appChange, remoteChange) { _, _ ->
         System.currentTimeMillis()
     }.stateIn(scope, SharingStarted.Eagerly, System.currentTimeMillis())
 
@@ -75,13 +63,17 @@ class NotificationListener(
 
     private val defaultConfig = Config(emptySet())
 
+    private val notifications = remoteConfig.filterNotNull().map {
+        it.packages
+    }.distinctUntilChanged().flatMapLatest {
+        notificationRepository.getNotifications(it)
+    }
+
     private val requiredNotifications = combine(
-        remoteConfig.filterNotNull(),
         notifications,
         serviceEnabled,
-    ) { config, notifications, enabled ->
-        val requiredApps = config.packages
-        Pair(enabled, notifications.filter { requiredApps.contains(it.packageName) })
+    ) { notifications, enabled ->
+        Pair(enabled, notifications)
     }.distinctUntilChanged { old, new ->
         old.first == new.first && old.second.matches(new.second)
     }
@@ -99,13 +91,9 @@ class NotificationListener(
 
     private suspend fun callRemote(
         method: String, extras: Bundle? = null
-    ): Bundle? = withContext(Dispatchers.IO) {
-        try {
-            contentResolver?.callSafely(authority, method, null, extras)
-        }catch (e: Throwable){
-            //Provider has gone
-            null
-        }
+    ): Bundle? {
+        val contentResolver = contentResolver ?: return null
+        return pluginCallRepository.call(contentResolver, authority, method, extras, id)
     }
 
     private suspend fun sendNotifications(
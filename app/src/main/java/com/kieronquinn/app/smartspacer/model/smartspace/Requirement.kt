@@ -2,7 +2,6 @@ package com.kieronquinn.app.smartspacer.model.smartspace
 
 import android.content.Context
 import android.graphics.drawable.Icon
-import android.net.Uri
 import android.os.Bundle
 import android.os.Parcelable
 import androidx.core.os.bundleOf
@@ -11,12 +10,12 @@ import com.kieronquinn.app.smartspacer.BuildConfig
 import com.kieronquinn.app.smartspacer.R
 import com.kieronquinn.app.smartspacer.model.smartspace.Requirement.RequirementBackup.RequirementType
 import com.kieronquinn.app.smartspacer.repositories.PackageRepository
+import com.kieronquinn.app.smartspacer.repositories.PluginCallRepository
+import com.kieronquinn.app.smartspacer.repositories.PluginChangeRepository
 import com.kieronquinn.app.smartspacer.sdk.model.Backup
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerRequirementProvider
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerTargetProvider
-import com.kieronquinn.app.smartspacer.utils.extensions.callSafely
 import com.kieronquinn.app.smartspacer.utils.extensions.invertIf
-import com.kieronquinn.app.smartspacer.utils.extensions.observerAsFlow
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.MainScope
 import kotlinx.coroutines.cancel
@@ -38,27 +37,17 @@ class Requirement(
     val sourcePackage: String = BuildConfig.APPLICATION_ID,
 ): KoinComponent, Closeable, Flow<Boolean> {
 
-    private val idBasedUri = Uri.Builder()
-        .scheme("content")
-        .authority(authority)
-        .appendPath(id)
-        .build()
-
-    private val authorityBasedUri = Uri.Builder()
-        .scheme("content")
-        .authority(authority)
-        .build()
-
     private val packageRepository by inject<PackageRepository>()
+    private val pluginChangeRepository by inject<PluginChangeRepository>()
+    private val pluginCallRepository by inject<PluginCallRepository>()
     private val contentResolver = context.contentResolver
     private val scope = MainScope()
     
     private val appChange = packageRepository.onPackageChanged(scope, sourcePackage)
 
-    private val authorityBasedRemoteChange = contentResolver.observerAsFlow(authorityBasedUri)
-    private val idBasedRemoteChange = contentResolver.observerAsFlow(idBasedUri)
+    private val remoteChange = pluginChangeRepository.observe(authority, id)
 
-    private val change = combine(appChange, authorityBasedRemoteChange, idBasedRemoteChange) { _, _, _ ->
+    private val change = combine(appChange, remoteChange) { _, _ ->
         System.currentTimeMillis()
     }.stateIn(scope, SharingStarted.Eagerly, System.currentTimeMillis())
 
@@ -114,13 +103,9 @@ class Requirement(
 
     private suspend fun callRemote(
         method: String, extras: Bundle? = null
-    ): Bundle? = withContext(Dispatchers.IO) {
-        try {
-            contentResolver?.callSafely(authority, method, null, extras)
-        }catch (e: Throwable){
-            //Provider has gone
-            null
-        }
+    ): Bundle? {
+        val contentResolver = contentResolver ?: return null
+        return pluginCallRepository.call(contentResolver, authority, method, extras, id)
     }
 
     override fun close() {
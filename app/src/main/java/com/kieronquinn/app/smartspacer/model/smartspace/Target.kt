@@ -2,7 +2,6 @@ package com.kieronquinn.app.smartspacer.model.smartspace
 
 import android.content.Context
 import android.graphics.drawable.Icon
-import android.net.Uri
 import android.os.Bundle
 import android.os.Parcelable
 import android.util.Log
@@ -12,15 +11,19 @@ import com.google.gson.annotations.SerializedName
 import com.kieronquinn.app.smartspacer.BuildConfig
 import com.kieronquinn.app.smartspacer.R
 import com.kieronquinn.app.smartspacer.repositories.PackageRepository
+import com.kieronquinn.app.smartspacer.repositories.PluginBatchRepository
+import com.kieronquinn.app.smartspacer.repositories.PluginBatchRepository.BatchType
+import com.kieronquinn.app.smartspacer.repositories.PluginCallRepository
+import com.kieronquinn.app.smartspacer.repositories.PluginChangeRepository
 import com.kieronquinn.app.smartspacer.repositories.RequirementsRepository
 import com.kieronquinn.app.smartspacer.sdk.model.Backup
+import com.kieronquinn.app.smartspacer.sdk.model.CompactSmartspaceTargets
 import com.kieronquinn.app.smartspacer.sdk.model.CompatibilityState
 import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceTarget
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerTargetProvider
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerTargetProvider.Companion.EXTRA_DID_DISMISS
-import com.kieronquinn.app.smartspacer.utils.extensions.callSafely
+import com.kieronquinn.app.smartspacer.sdk.utils.getParcelableCompat
 import com.kieronquinn.app.smartspacer.utils.extensions.getParcelableArrayListCompat
-import com.kieronquinn.app.smartspacer.utils.extensions.observerAsFlow
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.MainScope
 import kotlinx.coroutines.cancel
@@ -48,7 +51,7 @@ class Target(
     val authority: String,
     val id: String?,
     val sourcePackage: String = BuildConfig.APPLICATION_ID,
-    val config: Config = Config()
+    config: Config = Config()
 ): KoinComponent, Closeable, Flow<TargetHolder> {
 
     companion object {
@@ -56,24 +59,31 @@ class Target(
          *  Debounce time for requirements to prevent glitching from too many updates
          */
         private const val REQUIREMENTS_DEBOUNCE = 1000L
+        private const val TAG = "Target"
     }
 
-    private val idBasedUri = Uri.Builder()
-        .scheme("content")
-        .authority(authority)
-        .appendPath(id)
-        .build()
-
-    private val authorityBasedUri = Uri.Builder()
-        .scheme("content")
-        .authority(authority)
-        .build()
+    /**
+     *  The user's config, which is updated in place when only this has changed in the database
+     *  rather than recreating the Target and reloading it from the plugin.
+     */
+    @Volatile
+    var config = config
+        private set
 
     private val packageRepository by inject<PackageRepository>()
+    private val pluginChangeRepository by inject<PluginChangeRepository>()
+    private val pluginCallRepository by inject<PluginCallRepository>()
     private val requirementsRepository by inject<RequirementsRepository>()
+    private val pluginBatchRepository by inject<PluginBatchRepository>()
     private val contentResolver = context.contentResolver
     private val scope = MainScope()
 
+    /**
+     *  Set if the plugin's compact Targets could not be read, after which Bundles are requested
+     */
+    @Volatile
+    private var compactUnsupported = false
+
     private val anyRawRequirements = requirementsRepository.getAnyRequirementsForTarget(id)
         .stateIn(scope, SharingStarted.Eagerly, emptyList())
 
@@ -92,7 +102,7 @@ class Target(
 
     override suspend fun collect(collector: FlowCollector<TargetHolder>) {
         remoteTargets.map {
-            TargetHolder(this, it)
+            TargetHolder(this, it, loadedAt)
         }.collect(collector)
     }
 
@@ -105,14 +115,20 @@ class Target(
         )
     )
 
-    private val authorityBasedRemoteChange = contentResolver.observerAsFlow(authorityBasedUri)
-    private val idBasedRemoteChange = contentResolver.observerAsFlow(idBasedUri)
+    private val remoteChange = pluginChangeRepository.observe(authority, id)
 
-    private val change = combine(appChange, authorityBasedRemoteChange, idBasedRemoteChange) { _, _, _ ->
+    private val change = combine(appChange, remoteChange) { _, _ ->
         System.currentTimeMillis()
     }.stateIn(scope, SharingStarted.Eagerly, System.currentTimeMillis())
 
+    /**
+     *  When the current items started loading, text patches made after this are applied on top
+     */
+    @Volatile
+    private var loadedAt = System.currentTimeMillis()
+
     private val remoteTargets = combine(change, anyRequirements, allRequirements){ _, any, all ->
+        loadedAt = System.currentTimeMillis()
         if(any && all){
             getRemoteTargets()
         }else{
@@ -126,6 +142,10 @@ class Target(
 
     fun getPluginConfig() = remoteConfig
 
+    fun updateConfig(config: Config) {
+        this.config = config
+    }
+
     suspend fun onDismiss(targetId: String){
         val didDismiss = callRemote(
             SmartspacerTargetProvider.METHOD_DISMISS,
@@ -150,19 +170,50 @@ class Target(
         )
     }
 
-    private suspend fun getRemoteTargets() = withContext(Dispatchers.IO) {
-        val targets = callRemote(
-            SmartspacerTargetProvider.METHOD_GET,
-            bundleOf(SmartspacerTargetProvider.EXTRA_SMARTSPACER_ID to id)
-        ) ?: return@withContext emptyList()
-        if(targets.isEmpty) return@withContext emptyList()
-        targets.getParcelableArrayListCompat(
+    private suspend fun getRemoteTargets(): List<SmartspaceTarget> = withContext(Dispatchers.IO) {
+        //Batches always ask for the compact format, so are skipped if it can't be read
+        val batched = if(!compactUnsupported) getBatched(BatchType.ITEMS) else null
+        val targets = batched ?: callGetTargets(!compactUnsupported)
+            ?: return@withContext emptyList()
+        try {
+            readTargets(targets)
+        }catch (e: RuntimeException) {
+            //The compact format could not be unparcelled, most likely as the plugin has been
+            //minified and the SDK class renamed. Ask for Bundles from now on.
+            Log.w(TAG, "Failed to read Targets from $authority, falling back to Bundles", e)
+            compactUnsupported = true
+            callGetTargets(false)?.let { readTargets(it) } ?: emptyList()
+        }
+    }
+
+    private suspend fun callGetTargets(compact: Boolean): Bundle? {
+        val extras = bundleOf(SmartspacerTargetProvider.EXTRA_SMARTSPACER_ID to id)
+        if(compact) {
+            extras.putInt(
+                SmartspacerTargetProvider.EXTRA_COMPACT_VERSION, CompactSmartspaceTargets.VERSION
+            )
+        }
+        return callRemote(SmartspacerTargetProvider.METHOD_GET, extras)
+    }
+
+    private fun readTargets(targets: Bundle): List<SmartspaceTarget> {
+        //The compact format is an SDK class, so can't be unparcelled with the default ClassLoader
+        targets.classLoader = CompactSmartspaceTargets::class.java.classLoader
+        if(targets.isEmpty) return emptyList()
+        targets.getParcelableCompat(
+            SmartspacerTargetProvider.RESULT_KEY_SMARTSPACE_TARGETS_COMPACT,
+            CompactSmartspaceTargets::class.java
+        )?.let {
+            return it.targets
+        }
+        return targets.getParcelableArrayListCompat(
             SmartspacerTargetProvider.RESULT_KEY_SMARTSPACE_TARGETS, Bundle::class.java
         )?.map { SmartspaceTarget(it) } ?: emptyList()
     }
 
     private suspend fun getRemoteConfig() = withContext(Dispatchers.IO) {
-        val config = callRemote(
+        val config = getBatched(BatchType.CONFIG)
+            ?.getBundle(SmartspacerTargetProvider.RESULT_KEY_CONFIG) ?: callRemote(
             SmartspacerTargetProvider.METHOD_GET_CONFIG,
             bundleOf(SmartspacerTargetProvider.EXTRA_SMARTSPACER_ID to id)
         ) ?: return@withContext defaultConfig
@@ -172,14 +223,19 @@ class Target(
 
     private suspend fun callRemote(
         method: String, extras: Bundle? = null
-    ): Bundle? = withContext(Dispatchers.IO) {
-        try {
-            contentResolver?.callSafely(authority, method, null, extras)
-        }catch (e: Throwable){
-            //Provider has gone
-            Log.w("Target", Log.getStackTraceString(e))
-            null
-        }
+    ): Bundle? {
+        val contentResolver = contentResolver ?: return null
+        return pluginCallRepository.call(contentResolver, authority, method, extras, id)
+    }
+
+    /**
+     *  Requests this Target's [type] through [PluginBatchRepository], so it can be loaded in the
+     *  same call as other instances from this provider. Returns `null` if the provider does not
+     *  support batching, in which case a regular call should be made.
+     */
+    private suspend fun getBatched(type: BatchType): Bundle? {
+        val id = id ?: return null
+        return pluginBatchRepository.getTarget(authority, sourcePackage, id, type)
     }
 
     override fun close() {
@@ -284,7 +340,15 @@ class Target(
 
 }
 
-data class TargetHolder(val parent: Target, val targets: List<SmartspaceTarget>?) {
+/**
+ *  [loadedAt] is when the items were loaded from the provider, later text patches are applied on
+ *  top of them. See [com.kieronquinn.app.smartspacer.repositories.SmartspacePatchRepository]
+ */
+data class TargetHolder(
+    val parent: Target,
+    val targets: List<SmartspaceTarget>?,
+    val loadedAt: Long = System.currentTimeMillis()
+) {
     override fun equals(other: Any?): Boolean {
         return false
     }
@@ -112,7 +112,7 @@ class SmartspacerWidgetProvider: BaseProvider() {
                     ?: return null
                 val id = viewId ?: identifier?.let { widgetContext.getResourceForIdentifier(it) }
                     ?: return null
-                remoteViews.removeActionsForId(id)
+                remoteViews.removeActionsForId(provideContext(), id)
                 bundleOf(EXTRA_REMOTE_VIEWS to remoteViews.copy())
             }
             SmartspacerWidgetProvider.METHOD_GET_ADAPTER -> {
@@ -0,0 +1,33 @@
+package com.kieronquinn.app.smartspacer.receivers
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import com.kieronquinn.app.smartspacer.repositories.AlarmRepository
+import com.kieronquinn.app.smartspacer.sdk.utils.applySecurity
+import com.kieronquinn.app.smartspacer.utils.extensions.verifySecurity
+import org.koin.core.component.KoinComponent
+import org.koin.core.component.inject
+
+/**
+ *  Receives the single exact alarm set by [AlarmRepository], which then dispatches all deadlines
+ *  which are due.
+ */
+class DeadlineAlarmReceiver: BroadcastReceiver(), KoinComponent {
+
+    companion object {
+        fun createIntent(context: Context): Intent {
+            return Intent(context, DeadlineAlarmReceiver::class.java).apply {
+                applySecurity(context)
+            }
+        }
+    }
+
+    private val alarmRepository by inject<AlarmRepository>()
+
+    override fun onReceive(context: Context, intent: Intent) {
+        intent.verifySecurity()
+        alarmRepository.onDeadlineAlarm()
+    }
+
+}
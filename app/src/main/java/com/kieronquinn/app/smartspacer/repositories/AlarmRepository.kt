@@ -4,6 +4,7 @@ import android.annotation.SuppressLint
 import android.app.AlarmManager
 import android.app.PendingIntent
 import android.content.Context
+import android.content.Intent
 import android.content.IntentFilter
 import android.os.PowerManager
 import com.kieronquinn.app.smartspacer.BuildConfig
@@ -18,8 +19,11 @@ import com.kieronquinn.app.smartspacer.receivers.AlarmComplicationAlarmReceiver
 import com.kieronquinn.app.smartspacer.receivers.CalendarTargetAlarmReceiver
 import com.kieronquinn.app.smartspacer.receivers.CalendarTargetTOTMAlarmReceiver
 import com.kieronquinn.app.smartspacer.receivers.DailyUpdateAlarmReceiver
+import com.kieronquinn.app.smartspacer.receivers.DeadlineAlarmReceiver
 import com.kieronquinn.app.smartspacer.receivers.GreetingTargetAlarmReceiver
 import com.kieronquinn.app.smartspacer.receivers.TimeDateRequirementAlarmReceiver
+import com.kieronquinn.app.smartspacer.repositories.AlarmRepository.Deadline
+import com.kieronquinn.app.smartspacer.repositories.AlarmRepository.DeadlineOwner
 import com.kieronquinn.app.smartspacer.utils.extensions.atStartOfMinute
 import com.kieronquinn.app.smartspacer.utils.extensions.broadcastReceiverAsFlow
 import com.kieronquinn.app.smartspacer.utils.extensions.getIgnoreBatteryOptimisationsIntent
@@ -31,6 +35,7 @@ import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.filterNotNull
+import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.flow.flatMapLatest
 import kotlinx.coroutines.flow.flowOn
 import kotlinx.coroutines.flow.map
@@ -44,6 +49,7 @@ import java.time.LocalDateTime
 import java.time.LocalTime
 import java.time.ZoneId
 import java.time.ZonedDateTime
+import java.util.PriorityQueue
 
 interface AlarmRepository {
 
@@ -99,6 +105,41 @@ interface AlarmRepository {
      */
     fun onRequirementChanged()
 
+    /**
+     *  Called when the scheduler's exact alarm triggers. Dispatches all deadlines which are due,
+     *  and schedules the alarm for the next one.
+     */
+    fun onDeadlineAlarm()
+
+    /**
+     *  Returns the pending deadlines, in the order they will be dispatched
+     */
+    fun getTimeline(): List<Deadline>
+
+    data class Deadline(
+        /**
+         *  Time this deadline is due, in epoch millis
+         */
+        val time: Long,
+        /**
+         *  The feature which scheduled this deadline. Each owner has at most one pending deadline.
+         */
+        val owner: DeadlineOwner,
+        /**
+         *  Broadcast sent when this deadline is dispatched
+         */
+        val payload: Intent
+    )
+
+    enum class DeadlineOwner {
+        TIME_DATE_REQUIREMENT,
+        CALENDAR_TARGET,
+        CALENDAR_TARGET_TOTM,
+        GREETING_TARGET,
+        ALARM_COMPLICATION,
+        DAILY_UPDATE
+    }
+
 }
 
 @SuppressLint("MissingPermission", "ScheduleExactAlarm", "BatteryLife")
@@ -108,11 +149,35 @@ class AlarmRepositoryImpl(
     private val calendarRepository: CalendarRepository,
     private val batteryOptimisationRepository: BatteryOptimisationRepository,
     dataRepository: DataRepository,
-    private val scope: CoroutineScope = MainScope()
+    private val scope: CoroutineScope = MainScope(),
+    private val coalesceWindow: Long = DEFAULT_COALESCE_WINDOW
 ): AlarmRepository {
 
+    companion object {
+        /**
+         *  Deadlines due within this window of the earliest are dispatched together, up to this
+         *  late, rather than each waking the device.
+         */
+        const val DEFAULT_COALESCE_WINDOW = 1000L
+
+        private const val DEADLINES_PREFS = "deadlines"
+        private const val KEY_LEGACY_ALARMS_CANCELLED = "legacy_alarms_cancelled"
+    }
+
     private val alarmManager = context.getSystemService(Context.ALARM_SERVICE) as AlarmManager
     private val powerManager = context.getSystemService(Context.POWER_SERVICE) as PowerManager
+    private val deadlines = PriorityQueue<Deadline>(compareBy { it.time })
+    private val deadlineLock = Object()
+    private var scheduledAlarmTime: Long? = null
+
+    /**
+     *  Due times of the pending deadlines, keyed by owner, so deadlines which came due while the
+     *  process was dead can still be dispatched when it next starts. Payloads are rebuilt from the
+     *  owner rather than stored, since Intents can't be reliably persisted.
+     */
+    private val deadlineStore by lazy {
+        context.getSharedPreferences(DEADLINES_PREFS, Context.MODE_PRIVATE)
+    }
 
     @VisibleForTesting
     val scheduleTimeDateRequirementAlarmBus = MutableStateFlow(System.currentTimeMillis())
@@ -156,23 +221,14 @@ class AlarmRepositoryImpl(
             getNextTimeDateRequirements()
         }.collect { nextTimeDateRequirements ->
             val ids = nextTimeDateRequirements?.second?.map { it.id }?.toTypedArray()
-                ?: return@collect
-            if(!canScheduleExactAlarm()) {
-                showBatteryOptimisationNotification()
+            if(nextTimeDateRequirements == null || ids == null) {
+                removeDeadline(DeadlineOwner.TIME_DATE_REQUIREMENT)
                 return@collect
-            }else{
-                notificationRepository.cancelNotification(NotificationId.BATTERY_OPTIMISATION)
             }
-            val intent = TimeDateRequirementAlarmReceiver.createIntent(context, ids)
-            alarmManager.setExactAndAllowWhileIdle(
-                AlarmManager.RTC,
+            scheduleDeadline(
+                DeadlineOwner.TIME_DATE_REQUIREMENT,
                 nextTimeDateRequirements.first,
-                PendingIntent.getBroadcast(
-                    context,
-                    NotificationId.TIME_DATE_ALARM.ordinal,
-                    intent,
-                    PendingIntent.FLAG_IMMUTABLE or PendingIntent.FLAG_UPDATE_CURRENT
-                )
+                TimeDateRequirementAlarmReceiver.createIntent(context, ids)
             )
         }
     }
@@ -181,22 +237,10 @@ class AlarmRepositoryImpl(
         scheduleCalendarTargetAlarmBus.mapNotNull {
             calendarRepository.getNextCalendarTrigger()
         }.collect {
-            if(!canScheduleExactAlarm()) {
-                showBatteryOptimisationNotification()
-                return@collect
-            }else{
-                notificationRepository.cancelNotification(NotificationId.BATTERY_OPTIMISATION)
-            }
-            val intent = CalendarTargetAlarmReceiver.createIntent(context)
-            alarmManager.setExactAndAllowWhileIdle(
-                AlarmManager.RTC,
+            scheduleDeadline(
+                DeadlineOwner.CALENDAR_TARGET,
                 it.time.toEpochMilli(),
-                PendingIntent.getBroadcast(
-                    context,
-                    NotificationId.CALENDAR_ALARM.ordinal,
-                    intent,
-                    PendingIntent.FLAG_IMMUTABLE or PendingIntent.FLAG_UPDATE_CURRENT
-                )
+                CalendarTargetAlarmReceiver.createIntent(context)
             )
         }
     }
@@ -205,22 +249,10 @@ class AlarmRepositoryImpl(
         scheduleCalendarTargetTOTMAlarmBus.mapNotNull {
             ZonedDateTime.now().plusMinutes(1).atStartOfMinute()
         }.collect {
-            if(!canScheduleExactAlarm()) {
-                showBatteryOptimisationNotification()
-                return@collect
-            }else{
-                notificationRepository.cancelNotification(NotificationId.BATTERY_OPTIMISATION)
-            }
-            val intent = CalendarTargetTOTMAlarmReceiver.createIntent(context)
-            alarmManager.setExactAndAllowWhileIdle(
-                AlarmManager.RTC,
+            scheduleDeadline(
+                DeadlineOwner.CALENDAR_TARGET_TOTM,
                 it.toInstant().toEpochMilli(),
-                PendingIntent.getBroadcast(
-                    context,
-                    NotificationId.CALENDAR_TOTM_ALARM.ordinal,
-                    intent,
-                    PendingIntent.FLAG_IMMUTABLE or PendingIntent.FLAG_UPDATE_CURRENT
-                )
+                CalendarTargetTOTMAlarmReceiver.createIntent(context)
             )
         }
     }
@@ -229,22 +261,10 @@ class AlarmRepositoryImpl(
         scheduleGreetingTargetAlarmBus.mapNotNull {
             GreetingTarget.getNextGreetingChangeTime()
         }.collect {
-            if(!canScheduleExactAlarm()) {
-                showBatteryOptimisationNotification()
-                return@collect
-            }else{
-                notificationRepository.cancelNotification(NotificationId.BATTERY_OPTIMISATION)
-            }
-            val intent = GreetingTargetAlarmReceiver.createIntent(context)
-            alarmManager.setExactAndAllowWhileIdle(
-                AlarmManager.RTC,
+            scheduleDeadline(
+                DeadlineOwner.GREETING_TARGET,
                 it.toEpochMilli(),
-                PendingIntent.getBroadcast(
-                    context,
-                    NotificationId.GREETING_ALARM.ordinal,
-                    intent,
-                    PendingIntent.FLAG_IMMUTABLE or PendingIntent.FLAG_UPDATE_CURRENT
-                )
+                GreetingTargetAlarmReceiver.createIntent(context)
             )
         }
     }
@@ -253,22 +273,10 @@ class AlarmRepositoryImpl(
         scheduleAlarmComplicationAlarmBus.mapNotNull {
             alarmManager.getNextAlarmChangedTime()
         }.collect {
-            if(!canScheduleExactAlarm()) {
-                showBatteryOptimisationNotification()
-                return@collect
-            }else{
-                notificationRepository.cancelNotification(NotificationId.BATTERY_OPTIMISATION)
-            }
-            val intent = AlarmComplicationAlarmReceiver.createIntent(context)
-            alarmManager.setExactAndAllowWhileIdle(
-                AlarmManager.RTC,
+            scheduleDeadline(
+                DeadlineOwner.ALARM_COMPLICATION,
                 it.toEpochMilli(),
-                PendingIntent.getBroadcast(
-                    context,
-                    NotificationId.ALARM_COMPLICATION_ALARM.ordinal,
-                    intent,
-                    PendingIntent.FLAG_IMMUTABLE or PendingIntent.FLAG_UPDATE_CURRENT
-                )
+                AlarmComplicationAlarmReceiver.createIntent(context)
             )
         }
     }
@@ -305,23 +313,11 @@ class AlarmRepositoryImpl(
 
     override fun enqueueDailyUpdateReceiver() {
         scope.launch {
-            if(!canScheduleExactAlarm()) {
-                showBatteryOptimisationNotification()
-                return@launch
-            }else{
-                notificationRepository.cancelNotification(NotificationId.BATTERY_OPTIMISATION)
-            }
-            val intent = DailyUpdateAlarmReceiver.createIntent(context)
             val time = LocalDate.now().atStartOfDay().plusDays(1).atZone(ZoneId.systemDefault())
-            alarmManager.setExactAndAllowWhileIdle(
-                AlarmManager.RTC,
+            scheduleDeadline(
+                DeadlineOwner.DAILY_UPDATE,
                 time.toInstant().toEpochMilli(),
-                PendingIntent.getBroadcast(
-                    context,
-                    NotificationId.DAILY_UPDATE_ALARM.ordinal,
-                    intent,
-                    PendingIntent.FLAG_IMMUTABLE or PendingIntent.FLAG_UPDATE_CURRENT
-                )
+                DailyUpdateAlarmReceiver.createIntent(context)
             )
         }
     }
@@ -333,6 +329,172 @@ class AlarmRepositoryImpl(
         enqueueDailyUpdateReceiver()
     }
 
+    override fun onDeadlineAlarm() {
+        synchronized(deadlineLock) {
+            scheduledAlarmTime = null
+        }
+        updateDeadlineAlarm()
+    }
+
+    override fun getTimeline(): List<Deadline> {
+        return synchronized(deadlineLock) {
+            deadlines.sortedBy { it.time }
+        }
+    }
+
+    /**
+     *  Replaces the pending deadline for [owner], and reschedules the alarm if needed
+     */
+    @VisibleForTesting
+    fun scheduleDeadline(owner: DeadlineOwner, time: Long, payload: Intent) {
+        synchronized(deadlineLock) {
+            deadlines.removeAll { it.owner == owner }
+            deadlines.add(Deadline(time, owner, payload))
+        }
+        updateDeadlineAlarm()
+    }
+
+    private fun removeDeadline(owner: DeadlineOwner) {
+        synchronized(deadlineLock) {
+            deadlines.removeAll { it.owner == owner }
+        }
+        updateDeadlineAlarm()
+    }
+
+    /**
+     *  Dispatches any deadlines which are already due, and then sets a single exact alarm for the
+     *  next. Deadlines within [coalesceWindow] of the next are dispatched in the same wakeup, so
+     *  the alarm is set for the latest of them.
+     */
+    private fun updateDeadlineAlarm() {
+        val now = System.currentTimeMillis()
+        val due = ArrayList<Deadline>()
+        val alarmTime = synchronized(deadlineLock) {
+            while(deadlines.peek()?.let { it.time <= now } == true) {
+                due.add(deadlines.poll()!!)
+            }
+            persistDeadlines()
+            val earliest = deadlines.peek()?.time
+            earliest?.let {
+                deadlines.filter { deadline -> deadline.time <= it + coalesceWindow }
+                    .maxOf { deadline -> deadline.time }
+            }
+        }
+        due.forEach {
+            context.sendBroadcast(it.payload)
+        }
+        if(alarmTime == null) return
+        if(!canScheduleExactAlarm()) {
+            showBatteryOptimisationNotification()
+            return
+        }else{
+            notificationRepository.cancelNotification(NotificationId.BATTERY_OPTIMISATION)
+        }
+        synchronized(deadlineLock) {
+            if(scheduledAlarmTime == alarmTime) return
+            scheduledAlarmTime = alarmTime
+        }
+        alarmManager.setExactAndAllowWhileIdle(
+            AlarmManager.RTC,
+            alarmTime,
+            PendingIntent.getBroadcast(
+                context,
+                NotificationId.DEADLINE_ALARM.ordinal,
+                DeadlineAlarmReceiver.createIntent(context),
+                PendingIntent.FLAG_IMMUTABLE or PendingIntent.FLAG_UPDATE_CURRENT
+            )
+        )
+    }
+
+    /**
+     *  Writes the pending deadlines to [deadlineStore]. Must be called holding [deadlineLock].
+     */
+    private fun persistDeadlines() {
+        deadlineStore.edit().apply {
+            DeadlineOwner.values().forEach { remove(it.name) }
+            deadlines.forEach { putLong(it.owner.name, it.time) }
+        }.apply()
+    }
+
+    /**
+     *  Restores the deadlines which were pending when the process last died. Those which came due
+     *  in the meantime are dispatched immediately, the rest are rescheduled until their owner
+     *  replaces them.
+     */
+    private fun restoreDeadlines() {
+        val now = System.currentTimeMillis()
+        val persisted = deadlineStore.all.mapNotNull { (key, value) ->
+            val owner = DeadlineOwner.values().firstOrNull { it.name == key }
+                ?: return@mapNotNull null
+            Pair(owner, value as? Long ?: return@mapNotNull null)
+        }
+        persisted.forEach { (owner, time) ->
+            if(owner == DeadlineOwner.TIME_DATE_REQUIREMENT) {
+                //The pending requirement IDs aren't stored, so notify all of them if it was missed
+                if(time <= now) dispatchMissedTimeDateRequirements()
+                return@forEach
+            }
+            val payload = owner.createPayload() ?: return@forEach
+            synchronized(deadlineLock) {
+                if(deadlines.none { it.owner == owner }) {
+                    deadlines.add(Deadline(time, owner, payload))
+                }
+            }
+        }
+        updateDeadlineAlarm()
+    }
+
+    private fun dispatchMissedTimeDateRequirements() = scope.launch {
+        val ids = timeDateRequirements.filterNotNull().first().map { it.id }.toTypedArray()
+        if(ids.isEmpty()) return@launch
+        context.sendBroadcast(TimeDateRequirementAlarmReceiver.createIntent(context, ids))
+    }
+
+    private fun DeadlineOwner.createPayload(): Intent? {
+        return when(this) {
+            DeadlineOwner.TIME_DATE_REQUIREMENT -> null
+            DeadlineOwner.CALENDAR_TARGET -> CalendarTargetAlarmReceiver.createIntent(context)
+            DeadlineOwner.CALENDAR_TARGET_TOTM -> {
+                CalendarTargetTOTMAlarmReceiver.createIntent(context)
+            }
+            DeadlineOwner.GREETING_TARGET -> GreetingTargetAlarmReceiver.createIntent(context)
+            DeadlineOwner.ALARM_COMPLICATION -> AlarmComplicationAlarmReceiver.createIntent(context)
+            DeadlineOwner.DAILY_UPDATE -> DailyUpdateAlarmReceiver.createIntent(context)
+        }
+    }
+
+    /**
+     *  Cancels the per-feature alarms set by versions before the deadline scheduler, which would
+     *  otherwise still fire alongside it after an update. Only needs to happen once.
+     */
+    private fun cancelLegacyAlarms() {
+        if(deadlineStore.getBoolean(KEY_LEGACY_ALARMS_CANCELLED, false)) return
+        val legacyAlarms = listOf(
+            NotificationId.TIME_DATE_ALARM to
+                    TimeDateRequirementAlarmReceiver.createIntent(context, emptyArray()),
+            NotificationId.CALENDAR_ALARM to CalendarTargetAlarmReceiver.createIntent(context),
+            NotificationId.CALENDAR_TOTM_ALARM to
+                    CalendarTargetTOTMAlarmReceiver.createIntent(context),
+            NotificationId.GREETING_ALARM to GreetingTargetAlarmReceiver.createIntent(context),
+            NotificationId.ALARM_COMPLICATION_ALARM to
+                    AlarmComplicationAlarmReceiver.createIntent(context),
+            NotificationId.DAILY_UPDATE_ALARM to DailyUpdateAlarmReceiver.createIntent(context)
+        )
+        legacyAlarms.forEach { (id, intent) ->
+            //Extras are not part of PendingIntent matching, so the IDs don't need to match
+            PendingIntent.getBroadcast(
+                context,
+                id.ordinal,
+                intent,
+                PendingIntent.FLAG_IMMUTABLE or PendingIntent.FLAG_NO_CREATE
+            )?.let {
+                alarmManager.cancel(it)
+                it.cancel()
+            }
+        }
+        deadlineStore.edit().putBoolean(KEY_LEGACY_ALARMS_CANCELLED, true).apply()
+    }
+
     /**
      *  Returns the next triggering [TimeDateRequirementData]s (may be more than one), which should
      *  have its alarm scheduled. This does not automatically update with timezone or time changes,
@@ -408,6 +570,8 @@ class AlarmRepositoryImpl(
     }
 
     init {
+        cancelLegacyAlarms()
+        restoreDeadlines()
         setupTimeDateRequirementAlarms()
         setupBatteryOptimisationChange()
         setupCalendarTargetAlarms()
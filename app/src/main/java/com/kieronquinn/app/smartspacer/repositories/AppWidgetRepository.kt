@@ -13,7 +13,6 @@ import android.os.DeadSystemException
 import android.util.TypedValue
 import android.view.LayoutInflater
 import android.view.View
-import android.view.ViewGroup
 import android.widget.RemoteViews
 import android.widget.RemoteViews.MARGIN_END
 import android.widget.TextView
@@ -54,8 +53,8 @@ import com.kieronquinn.app.smartspacer.utils.extensions.lockscreenShowing
 import com.kieronquinn.app.smartspacer.utils.extensions.screenOff
 import com.kieronquinn.app.smartspacer.utils.extensions.setImageViewImageTintListCompat
 import com.kieronquinn.app.smartspacer.utils.extensions.supportsNativeGoogleSansFlex
-import com.kieronquinn.app.smartspacer.utils.extensions.takeEllipsised
 import com.kieronquinn.app.smartspacer.utils.remoteviews.FlagDisabledRemoteViews
+import com.kieronquinn.app.smartspacer.utils.widget.WidgetTextFitter
 import com.kieronquinn.app.smartspacer.widgets.SmartspacerAppWidgetProvider
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.MainScope
@@ -169,15 +168,22 @@ class AppWidgetRepositoryImpl(
     @VisibleForTesting
     val widgetSessions = ArrayList<WidgetSmartspacerSession>()
 
+    /**
+     *  The latest config for each session in [widgetSessions], which may differ from the config the
+     *  session was created with by fields which do not require it to be recreated
+     */
+    private val widgetConfigs = HashMap<Int, AppWidget>()
+
     @VisibleForTesting
     val isLockscreenShowing = context.lockscreenShowing()
 
     @VisibleForTesting
     val screenOff = context.screenOff()
 
-    private val maxLengthTextView by lazy {
-        LayoutInflater.from(context)
+    private val textFitter by lazy {
+        val textView = LayoutInflater.from(context)
             .inflate(R.layout.smartspacer_view_template_subtitle_measure, null) as TextView
+        WidgetTextFitter(textView)
     }
 
     override val newAppWidgetIdBus = MutableSharedFlow<Int>()
@@ -308,31 +314,62 @@ class AppWidgetRepositoryImpl(
     }
 
     private fun setupWidgets() {
+        var previousDarkTextColour: Boolean? = null
         combine(
             appWidgets.debounce(250L).filterNotNull(),
             wallpaperRepository.homescreenWallpaperDarkTextColour
-        ){ widgets, _ ->
-            clearWidgetSessions()
+        ){ widgets, darkTextColour ->
             if(widgets.isNotEmpty() && !SmartspacerAccessibiltyService.isRunning(context)){
                 showAccessibilityNotification()
             }else{
                 notificationRepository.cancelNotification(NotificationId.ENABLE_ACCESSIBILITY)
             }
-            widgetSessions.addAll(widgets.map { widget ->
-                if(widget.listMode) {
-                    ListWidgetSmartspacerSession(context, widget, collectInto = ::onWidgetChanged)
-                }else{
-                    PagedWidgetSmartspacerSession(context, widget, collectInto = ::onWidgetChanged)
-                }
-            })
+            val darkTextColourChanged = previousDarkTextColour != null
+                    && previousDarkTextColour != darkTextColour
+            previousDarkTextColour = darkTextColour
+            reconcileWidgetSessions(widgets, darkTextColourChanged)
         }.launchIn(scope)
     }
 
-    private fun clearWidgetSessions() {
-        widgetSessions.forEach {
+    /**
+     *  Updates [widgetSessions] to match [widgets], keyed by app widget ID. Sessions are only
+     *  recreated when a field they use changes, styling changes (or a wallpaper text colour change)
+     *  re-render the existing pages instead, since recreating a session reloads all its Targets.
+     */
+    private fun reconcileWidgetSessions(
+        widgets: List<AppWidget>,
+        darkTextColourChanged: Boolean
+    ) {
+        val existing = widgetSessions.associateBy { it.appWidgetId }
+        val previousConfigs = HashMap(widgetConfigs)
+        val ids = widgets.mapTo(HashSet()) { it.appWidgetId }
+        existing.values.filterNot { ids.contains(it.appWidgetId) }.forEach {
             it.onDestroy()
         }
         widgetSessions.clear()
+        widgetConfigs.clear()
+        widgets.forEach { widget ->
+            widgetConfigs[widget.appWidgetId] = widget
+            val session = existing[widget.appWidgetId]
+            val previous = previousConfigs[widget.appWidgetId]
+            if(session != null && previous != null && previous.equalsForSession(widget)) {
+                widgetSessions.add(session)
+                if(darkTextColourChanged || !previous.equalsForUi(widget)) {
+                    //Force the full layout to be sent again for list widgets
+                    setUpListWidgets.remove(widget.appWidgetId)
+                    context.setupWidget(widget.appWidgetId)
+                }
+                return@forEach
+            }
+            session?.onDestroy()
+            widgetSessions.add(
+                if(widget.listMode) {
+                    ListWidgetSmartspacerSession(context, widget, collectInto = ::onWidgetChanged)
+                }else{
+                    PagedWidgetSmartspacerSession(context, widget, collectInto = ::onWidgetChanged)
+                }
+            )
+        }
     }
 
     private fun onWidgetChanged(widget: AppWidget) {
@@ -356,7 +393,6 @@ class AppWidgetRepositoryImpl(
         return Pair(portraitRect, landscapeRect)
     }
 
-    @Synchronized
     override fun getBestMaxLength(
         width: Int,
         size: Float,
@@ -364,32 +400,7 @@ class AppWidgetRepositoryImpl(
         title: CharSequence,
         subtitle: CharSequence?
     ): Pair<Int, Int?> {
-        //If there's no subtitle, always include as much of the title as possible
-        if(subtitle.isNullOrBlank()){
-            return Pair(title.length, null)
-        }
-
-        val titleWidth = title.estimateWidth(size, shadowEnabled)
-        val subtitleWidth = subtitle.estimateWidth(size, shadowEnabled)
-        //If both will fit naturally, we can just show their full content
-        if(titleWidth + subtitleWidth <= width){
-            return Pair(title.length, subtitle.length)
-        }
-        //If clipping the title width by the subtitle width will fit, use that to fill the space
-        val clippedTitleLength = title.getLengthForWidth(
-            width - subtitleWidth, size, shadowEnabled
-        )
-        val clippedTitleWidth = title.subSequence(0, clippedTitleLength)
-            .estimateWidth(size, shadowEnabled)
-        if(clippedTitleWidth + subtitleWidth <= width){
-            return Pair(clippedTitleLength, subtitle.length)
-        }
-        //Otherwise compromise and clip half way between
-        val halfWidth = (width / 2f).toInt()
-        return Pair(
-            title.getLengthForWidth(halfWidth, size, shadowEnabled),
-            subtitle.getLengthForWidth(halfWidth, size, shadowEnabled)
-        )
+        return textFitter.getBestMaxLength(width, size, shadowEnabled, title, subtitle)
     }
 
     private fun setupPackageStates() = scope.launch {
@@ -444,32 +455,6 @@ class AppWidgetRepositoryImpl(
         setupPackageStates()
     }
 
-    private fun CharSequence.estimateWidth(textSize: Float, shadowEnabled: Boolean): Int {
-        maxLengthTextView.setTextSize(TypedValue.COMPLEX_UNIT_PX, textSize)
-        maxLengthTextView.layoutParams = ViewGroup.LayoutParams(
-            ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT
-        )
-        if(shadowEnabled) {
-            maxLengthTextView.setShadowLayer(1f, 1f, 1f, Color.BLACK)
-        }else{
-            maxLengthTextView.setShadowLayer(0f, 0f, 0f, Color.BLACK)
-        }
-        maxLengthTextView.text = this
-        maxLengthTextView.measure(0, 0)
-        return maxLengthTextView.measuredWidth
-    }
-
-    private fun CharSequence.getLengthForWidth(
-        width: Int,
-        textSize: Float,
-        shadowEnabled: Boolean
-    ): Int {
-        for(i in length downTo 0) {
-            if(takeEllipsised(i).estimateWidth(textSize, shadowEnabled) <= width) return i
-        }
-        return 0
-    }
-
     private fun Context.setupWidget(appWidgetId: Int) {
         val config = getAppWidget(appWidgetId)
         val remoteViews = when {
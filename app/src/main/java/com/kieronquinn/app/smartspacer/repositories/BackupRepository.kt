@@ -8,8 +8,10 @@ import androidx.annotation.StringRes
 import androidx.documentfile.provider.DocumentFile
 import com.google.gson.Gson
 import com.google.gson.annotations.SerializedName
+import com.google.gson.stream.JsonWriter
 import com.kieronquinn.app.smartspacer.R
 import com.kieronquinn.app.smartspacer.model.smartspace.Action.ComplicationBackup
+import com.kieronquinn.app.smartspacer.model.smartspace.Requirement
 import com.kieronquinn.app.smartspacer.model.smartspace.Requirement.RequirementBackup
 import com.kieronquinn.app.smartspacer.model.smartspace.Requirement.RequirementBackup.RequirementType
 import com.kieronquinn.app.smartspacer.model.smartspace.Target.TargetBackup
@@ -18,14 +20,21 @@ import com.kieronquinn.app.smartspacer.repositories.BackupRepository.Smartspacer
 import com.kieronquinn.app.smartspacer.repositories.ExpandedRepository.ExpandedCustomWidgetBackup
 import com.kieronquinn.app.smartspacer.sdk.model.CompatibilityState
 import com.kieronquinn.app.smartspacer.utils.extensions.firstNotNull
-import com.kieronquinn.app.smartspacer.utils.extensions.firstOfInstance
-import com.kieronquinn.app.smartspacer.utils.extensions.gzip
-import com.kieronquinn.app.smartspacer.utils.extensions.ungzip
+import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.flow.*
 import kotlinx.coroutines.withContext
 import kotlinx.parcelize.Parcelize
+import java.io.File
+import java.io.IOException
+import java.io.OutputStream
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
 import kotlin.math.roundToInt
+import com.kieronquinn.app.smartspacer.model.database.Action as DatabaseComplication
+import com.kieronquinn.app.smartspacer.model.database.Target as DatabaseTarget
 import com.kieronquinn.app.smartspacer.repositories.BackupRepository.LoadBackupResult.ErrorReason as LoadErrorReason
 
 interface BackupRepository {
@@ -51,11 +60,6 @@ interface BackupRepository {
         val settings: Map<String, String>
     ): Parcelable
 
-    sealed class BackupProgress {
-        data class CreatingBackup(val current: Int, val total: Int): BackupProgress()
-        data class Finished<T>(val backups: List<T>): BackupProgress()
-    }
-
     sealed class SmartspacerBackupProgress {
         object CreatingBackup: SmartspacerBackupProgress()
         data class CreatingTargetsBackup(val progress: Int): SmartspacerBackupProgress()
@@ -110,152 +114,208 @@ class BackupRepositoryImpl(
     private val expandedRepository: ExpandedRepository
 ): BackupRepository {
 
+    companion object {
+        private const val TAG = "BackupRepository"
+        private const val TEMP_FILE_PREFIX = "backup"
+
+        /**
+         *  Maximum number of plugin backups being created or waiting to be written at once. Each
+         *  call also has its own deadline and per-plugin limit, set by [PluginCallRepository].
+         */
+        const val MAX_CONCURRENT_BACKUPS = 4
+
+        //Must match the names in SmartspacerBackup, which is used to load the backup
+        private const val BACKUP_VERSION = 1
+        private const val KEY_VERSION = "version"
+        private const val KEY_TIMESTAMP = "timestamp"
+        private const val KEY_TARGET_BACKUPS = "target_backups"
+        private const val KEY_COMPLICATION_BACKUPS = "complication_backups"
+        private const val KEY_REQUIREMENT_BACKUPS = "requirement_backups"
+        private const val KEY_CUSTOM_WIDGETS = "custom_widgets"
+        private const val KEY_SETTINGS = "settings"
+    }
+
+    /**
+     *  Each section is written to the file as it is created, rather than building the whole
+     *  backup in memory first, so memory use does not grow with the size of the backup. The
+     *  backup is written to a temporary file and only copied to [toUri] once complete, so a
+     *  failed or cancelled backup deletes the document rather than leaving a partial one.
+     */
     override fun createBackup(toUri: Uri) = flow {
         emit(SmartspacerBackupProgress.CreatingBackup)
         val outFile = DocumentFile.fromSingleUri(context, toUri) ?: run {
             emit(SmartspacerBackupProgress.Error(ErrorReason.FAILED_TO_CREATE_FILE))
             return@flow
         }
-        val outStream = context.contentResolver.openOutputStream(toUri) ?: run {
-            emit(SmartspacerBackupProgress.Error(ErrorReason.FAILED_TO_WRITE_FILE))
-            return@flow
-        }
-        val targetsBackup = getTargetBackups().getBackups<TargetBackup> {
-            emit(SmartspacerBackupProgress.CreatingTargetsBackup(it))
-        }
-        val complicationsBackup = getComplicationBackups().getBackups<ComplicationBackup> {
-            emit(SmartspacerBackupProgress.CreatingComplicationsBackup(it))
-        }
-        val requirementsBackup = getRequirementBackups().getBackups<RequirementBackup> {
-            emit(SmartspacerBackupProgress.CreatingRequirementsBackup(it))
-        }
-        emit(SmartspacerBackupProgress.CreatingCustomWidgetsBackup)
-        val customWidgets = expandedRepository.getExpandedCustomWidgetBackups()
-        emit(SmartspacerBackupProgress.CreatingSettingsBackup)
-        val settingsBackup = settingsRepository.getBackup()
-        val backup = SmartspacerBackup(
-            targetBackups = targetsBackup,
-            complicationBackups = complicationsBackup,
-            requirementBackups = requirementsBackup,
-            expandedCustomWidgets = customWidgets,
-            settings = settingsBackup
-        )
-        emit(SmartspacerBackupProgress.WritingFile)
-        outStream.buffered().use {
-            it.write(gson.toJson(backup).gzip())
-            it.flush()
+        val tempFile = File.createTempFile(TEMP_FILE_PREFIX, null, context.cacheDir)
+        try {
+            tempFile.outputStream().createJsonWriter().use { writer ->
+                writer.beginObject()
+                writer.name(KEY_VERSION).value(BACKUP_VERSION)
+                writer.name(KEY_TIMESTAMP).value(System.currentTimeMillis())
+                val targets = targetsRepository.getAvailableTargets().first()
+                writer.writeBackups(
+                    KEY_TARGET_BACKUPS, targets, TargetBackup::class.java, {
+                        emit(SmartspacerBackupProgress.CreatingTargetsBackup(it))
+                    }
+                ) {
+                    if(!it.getPluginConfig().firstNotNull().isCompatible()) return@writeBackups null
+                    it.createBackup()
+                }
+                val complications = targetsRepository.getAvailableComplications().first()
+                writer.writeBackups(
+                    KEY_COMPLICATION_BACKUPS, complications, ComplicationBackup::class.java, {
+                        emit(SmartspacerBackupProgress.CreatingComplicationsBackup(it))
+                    }
+                ) {
+                    if(!it.getPluginConfig().firstNotNull().isCompatible()) return@writeBackups null
+                    it.createBackup()
+                }
+                val requirements = requirementsRepository.getAllInUseRequirements().first()
+                val databaseTargets = databaseRepository.getTargets().first()
+                val databaseComplications = databaseRepository.getActions().first()
+                writer.writeBackups(
+                    KEY_REQUIREMENT_BACKUPS, requirements, RequirementBackup::class.java, {
+                        emit(SmartspacerBackupProgress.CreatingRequirementsBackup(it))
+                    }
+                ) {
+                    if(!it.getPluginConfig().firstNotNull().isCompatible()) return@writeBackups null
+                    it.createBackup(databaseTargets, databaseComplications)
+                }
+                emit(SmartspacerBackupProgress.CreatingCustomWidgetsBackup)
+                writer.name(KEY_CUSTOM_WIDGETS).beginArray()
+                expandedRepository.getExpandedCustomWidgetBackups().forEach {
+                    gson.toJson(it, ExpandedCustomWidgetBackup::class.java, writer)
+                }
+                writer.endArray()
+                emit(SmartspacerBackupProgress.CreatingSettingsBackup)
+                writer.name(KEY_SETTINGS).beginObject()
+                settingsRepository.getBackup().forEach {
+                    writer.name(it.key).value(it.value)
+                }
+                writer.endObject()
+                emit(SmartspacerBackupProgress.WritingFile)
+                writer.endObject()
+            }
+            val outStream = context.contentResolver.openOutputStream(toUri)
+                ?: throw IOException("Failed to open $toUri")
+            outStream.use { output ->
+                tempFile.inputStream().use { it.copyTo(output) }
+            }
+        }catch (e: Throwable) {
+            outFile.delete()
+            throw e
+        }finally {
+            tempFile.delete()
         }
-        outStream.flush()
-        outStream.close()
         emit(SmartspacerBackupProgress.Finished(outFile.name))
+    }.catch {
+        //Cancellation of the collector is rethrown by catch, so this is only reached on failure
+        Log.e(TAG, "Failed to create backup", it)
+        emit(SmartspacerBackupProgress.Error(ErrorReason.FAILED_TO_WRITE_FILE))
     }.flowOn(Dispatchers.IO)
 
     override suspend fun loadBackup(fromUri: Uri): LoadBackupResult = withContext(Dispatchers.IO) {
         val inStream = context.contentResolver.openInputStream(fromUri)
             ?: return@withContext LoadBackupResult.Error(LoadErrorReason.FAILED_TO_READ_FILE)
-        val bytes = inStream.buffered().use {
-            it.readBytes()
-        }
         val backup = try {
-            gson.fromJson(bytes.ungzip(), SmartspacerBackup::class.java)
+            GZIPInputStream(inStream.buffered()).bufferedReader().use {
+                gson.fromJson<SmartspacerBackup?>(
+                    gson.newJsonReader(it), SmartspacerBackup::class.java
+                )
+            }
         }catch (e: Exception){
+            null
+        }finally {
             inStream.close()
-            return@withContext LoadBackupResult.Error(LoadErrorReason.FAILED_TO_LOAD_BACKUP)
-        }
-        inStream.close()
+        } ?: return@withContext LoadBackupResult.Error(LoadErrorReason.FAILED_TO_LOAD_BACKUP)
         LoadBackupResult.Success(backup)
     }
 
-    private suspend fun <T> Flow<BackupProgress>.getBackups(
-        onProgress: suspend (Int) -> Unit
-    ): List<T> {
-        return onEach {
-            if(it is BackupProgress.CreatingBackup){
-                val progress = (it.current / it.total.toFloat() * 100).roundToInt()
-                onProgress(progress)
-            }
-        }.firstOfInstance<BackupProgress.Finished<T>>().backups
+    private fun OutputStream.createJsonWriter(): JsonWriter {
+        return gson.newJsonWriter(GZIPOutputStream(buffered()).bufferedWriter())
     }
 
-    private suspend fun getTargetBackups(): Flow<BackupProgress> = flow {
-        val targets = targetsRepository.getAvailableTargets().first()
-        val total = targets.size
-        val list = targets.filter {
-            it.getPluginConfig().firstNotNull().compatibilityState == CompatibilityState.Compatible
-        }.onEachIndexed { index, _ ->
-            emit(BackupProgress.CreatingBackup(index, total))
-        }.mapNotNull {
-            try {
-                it.createBackup()
-            }catch (e: Exception){
-                null
+    /**
+     *  Creates the backups of [items] in parallel, and writes them to an array called [key].
+     *  Backups are written in the order of [items], each as soon as it and those before it are
+     *  ready, so the backup takes about as long as the slowest plugin rather than the sum of all
+     *  of them. Only [MAX_CONCURRENT_BACKUPS] items are created or waiting to be written at once,
+     *  the next being started as the oldest is written, so a slow plugin does not cause the
+     *  backups of every item after it to be held in memory. Items which return `null` or fail
+     *  are skipped.
+     */
+    private suspend fun <I, T> JsonWriter.writeBackups(
+        key: String,
+        items: List<I>,
+        type: Class<T>,
+        onProgress: suspend (Int) -> Unit,
+        createBackup: suspend (I) -> T?
+    ) = coroutineScope {
+        val pending = items.iterator()
+        val window = ArrayDeque<Deferred<T?>>(MAX_CONCURRENT_BACKUPS)
+        fun startNext() {
+            if(!pending.hasNext()) return
+            val item = pending.next()
+            window.addLast(async {
+                try {
+                    createBackup(item)
+                }catch (e: Exception){
+                    null
+                }
+            })
+        }
+        repeat(MAX_CONCURRENT_BACKUPS) { startNext() }
+        name(key).beginArray()
+        items.indices.forEach { index ->
+            val backup = window.removeFirst().await()
+            startNext()
+            backup?.let {
+                gson.toJson(it, type, this@writeBackups)
             }
+            onProgress(((index + 1) / items.size.toFloat() * 100).roundToInt())
         }
-        emit(BackupProgress.Finished(list))
+        endArray()
     }
 
-    private suspend fun getComplicationBackups(): Flow<BackupProgress> = flow {
-        val complications = targetsRepository.getAvailableComplications().first()
-        val total = complications.size
-        val list = complications.filter {
-            it.getPluginConfig().firstNotNull().compatibilityState == CompatibilityState.Compatible
-        }.onEachIndexed { index, _ ->
-            emit(BackupProgress.CreatingBackup(index, total))
-        }.mapNotNull {
-            try {
-                it.createBackup()
-            }catch (e: Exception){
-                null
-            }
-        }
-        emit(BackupProgress.Finished(list))
+    private fun CompatibilityState.isCompatible(): Boolean {
+        return this == CompatibilityState.Compatible
     }
 
-    private suspend fun getRequirementBackups(): Flow<BackupProgress> = flow {
-        val requirements = requirementsRepository.getAllInUseRequirements().first()
-        val total = requirements.size
-        val targets = databaseRepository.getTargets().first()
-        val complications = databaseRepository.getActions().first()
-        val list = requirements.filter {
-            it.getPluginConfig().firstNotNull().compatibilityState == CompatibilityState.Compatible
-        }.onEachIndexed { index, _ ->
-            emit(BackupProgress.CreatingBackup(index, total))
-        }.mapNotNull { req ->
-            if(req.id == null) return@mapNotNull null
-            //Find the target or complication the requirement is attached to
-            val targetRequirement = targets.firstOrNull { target -> target.hasRequirement(req.id) }
-            val complicationRequirement = complications.firstOrNull { complication ->
-                complication.hasRequirement(req.id)
+    /**
+     *  Backs up this Requirement along with the Target or Complication it's attached to, from
+     *  [targets] and [complications]. Returns `null` if it is no longer attached to either.
+     */
+    private suspend fun Requirement.createBackup(
+        targets: List<DatabaseTarget>,
+        complications: List<DatabaseComplication>
+    ): RequirementBackup? {
+        val requirementId = id ?: return null
+        //Find the target or complication the requirement is attached to
+        val target = targets.firstOrNull { it.hasRequirement(requirementId) }
+        val complication = complications.firstOrNull { it.hasRequirement(requirementId) }
+        val requirementType = when {
+            target != null && target.anyRequirements.contains(requirementId) -> {
+                RequirementType.ANY
             }
-            val requirementType = when {
-                targetRequirement != null && targetRequirement.anyRequirements.contains(req.id) -> {
-                    RequirementType.ANY
-                }
-                targetRequirement != null && targetRequirement.allRequirements.contains(req.id) -> {
-                    RequirementType.ALL
-                }
-                complicationRequirement != null &&
-                        complicationRequirement.anyRequirements.contains(req.id) -> {
-                    RequirementType.ANY
-                }
-                complicationRequirement != null &&
-                        complicationRequirement.allRequirements.contains(req.id) -> {
-                    RequirementType.ALL
-                }
-                //No longer in the database? Don't back it up.
-                else -> return@mapNotNull null
+            target != null && target.allRequirements.contains(requirementId) -> {
+                RequirementType.ALL
+            }
+            complication != null && complication.anyRequirements.contains(requirementId) -> {
+                RequirementType.ANY
             }
-            val requirementFor = targetRequirement?.id ?: complicationRequirement?.id
-                ?: return@mapNotNull null
-            try {
-                req.createBackup(requirementType, requirementFor)
-            }catch (e: Exception){
-                null
-            }.also {
-                req.close()
+            complication != null && complication.allRequirements.contains(requirementId) -> {
+                RequirementType.ALL
             }
+            //No longer in the database? Don't back it up.
+            else -> return null
+        }
+        val requirementFor = target?.id ?: complication?.id ?: return null
+        return try {
+            createBackup(requirementType, requirementFor)
+        }finally {
+            close()
         }
-        emit(BackupProgress.Finished(list))
     }
 
-}
\ No newline at end of file
+}
@@ -1,15 +1,57 @@
 package com.kieronquinn.app.smartspacer.repositories
 
+import android.content.BroadcastReceiver
 import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.os.Build
+import android.util.Log
 import com.kieronquinn.app.smartspacer.model.smartspace.BroadcastListener
+import com.kieronquinn.app.smartspacer.utils.extensions.registerReceiverCompat
+import com.kieronquinn.app.smartspacer.utils.extensions.unregisterReceiverCompat
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.MainScope
+import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.launch
 import org.jetbrains.annotations.VisibleForTesting
 
-interface BroadcastRepository
+/**
+ *  Registers the broadcast receivers requested by plugins' Broadcast Providers. Rather than each
+ *  [BroadcastListener] registering its own receiver for each of its filters, filters which only
+ *  differ by their actions are merged, so a broadcast requested by many listeners is only
+ *  registered and dispatched once. Received broadcasts are sent once per plugin authority, since
+ *  providers receive the same Intent regardless of which instance requested it.
+ */
+interface BroadcastRepository {
+
+    /**
+     *  Returns the current receiver & dispatch stats
+     */
+    fun getStats(): BroadcastStats
+
+    data class BroadcastStats(
+        /**
+         *  Number of receivers registered with the system
+         */
+        val receivers: Int,
+        /**
+         *  Number of filters requested by listeners
+         */
+        val subscriptions: Int,
+        /**
+         *  Broadcasts received from the system
+         */
+        val received: Long,
+        /**
+         *  Calls made to plugins for received broadcasts
+         */
+        val calls: Long
+    )
+
+}
 
 class BroadcastRepositoryImpl(
     private val context: Context,
@@ -17,6 +59,10 @@ class BroadcastRepositoryImpl(
     private val scope: CoroutineScope = MainScope()
 ): BroadcastRepository {
 
+    companion object {
+        private const val TAG = "BroadcastRepository"
+    }
+
     @VisibleForTesting
     val broadcastListeners = databaseRepository.getBroadcastListeners()
         .stateIn(scope, SharingStarted.Eagerly, emptyList())
@@ -24,18 +70,249 @@ class BroadcastRepositoryImpl(
     @VisibleForTesting
     var currentListeners = emptyList<BroadcastListener>()
 
+    /**
+     *  The filters currently requested by each listener. Only accessed from the main thread, as
+     *  are receivers' `onReceive` calls.
+     */
+    private val subscriptions = HashMap<BroadcastListener, List<IntentFilter>>()
+    private val receivers = HashMap<String, MergedReceiver>()
+    private val authorityQueues = HashMap<String, Channel<Pair<BroadcastListener, Intent>>>()
+    private var listenerJobs = emptyList<Job>()
+    private var received = 0L
+    private var calls = 0L
+
+    override fun getStats(): BroadcastRepository.BroadcastStats {
+        return BroadcastRepository.BroadcastStats(
+            receivers.size, subscriptions.values.sumOf { it.size }, received, calls
+        )
+    }
+
     private fun setupListeners() = scope.launch {
         broadcastListeners.collect {
+            listenerJobs.forEach { job -> job.cancel() }
             currentListeners.forEach { listener -> listener.close() }
+            subscriptions.clear()
             currentListeners = it.map { listener ->
                 @Suppress("CloseBroadcastListener")
                 BroadcastListener(context, listener.id, listener.packageName, listener.authority)
             }
+            listenerJobs = currentListeners.map { listener ->
+                scope.launch {
+                    listener.intentFilters.collect { filters ->
+                        setFilters(listener, filters)
+                    }
+                }
+            }
+            updateReceivers()
+            closeUnusedQueues()
+        }
+    }
+
+    @VisibleForTesting
+    fun setFilters(listener: BroadcastListener, filters: List<IntentFilter>) {
+        val previous = subscriptions.put(listener, filters)
+            ?.mapTo(HashSet()) { it.getSubscriptionKey() } ?: emptySet()
+        val registered = updateReceivers()
+        //Sticky broadcasts are only sent on registration, so send them for already registered keys
+        filters.forEach { filter ->
+            val key = filter.getMergeKey()
+            if(registered.contains(key)) return@forEach
+            //The listener has already had the sticky broadcast for a filter it had before
+            if(previous.contains(filter.getSubscriptionKey())) return@forEach
+            val sticky = context.getStickyIntent(filter) ?: return@forEach
+            enqueue(listener, sticky)
+        }
+    }
+
+    /**
+     *  Merges all requested filters by their [getMergeKey], registering receivers for new or
+     *  changed merged filters and unregistering those which are no longer needed. A changed
+     *  receiver is registered before the one it replaces is unregistered, so no broadcasts are
+     *  missed in between. Returns the keys of the receivers which were (re)registered.
+     */
+    private fun updateReceivers(): Set<String> {
+        val groups = HashMap<String, MutableList<Pair<BroadcastListener, IntentFilter>>>()
+        subscriptions.forEach { (listener, filters) ->
+            filters.forEach {
+                groups.getOrPut(it.getMergeKey()) { ArrayList() }.add(Pair(listener, it))
+            }
+        }
+        receivers.keys.filterNot { groups.containsKey(it) }.forEach {
+            receivers.remove(it)?.unregister()
+        }
+        val registered = HashSet<String>()
+        groups.forEach { (key, members) ->
+            val actions = members.flatMapTo(HashSet()) { it.second.actionsIterator().asSequence() }
+            val existing = receivers[key]
+            if(existing != null && existing.actions == actions) {
+                existing.setMembers(members)
+                return@forEach
+            }
+            receivers[key] = MergedReceiver(members.first().second, actions).apply {
+                setMembers(members)
+                setStickyListeners(existing)
+                register()
+            }
+            existing?.unregister()
+            registered.add(key)
+        }
+        return registered
+    }
+
+    private fun onReceive(receiver: MergedReceiver, intent: Intent, isInitialSticky: Boolean) {
+        received++
+        val action = intent.action ?: return
+        val listeners = if(isInitialSticky) {
+            receiver.getStickyListeners(action)
+        }else{
+            receiver.getListeners(action)
+        }
+        //Each authority receives the broadcast once, even if it has multiple instances
+        listeners.distinctBy { it.authority }.forEach {
+            enqueue(it, intent)
+        }
+    }
+
+    /**
+     *  Queues a broadcast to be sent to a plugin. Each authority has its own queue, so a slow
+     *  plugin does not delay others, while broadcasts to a plugin are sent in order.
+     */
+    private fun enqueue(listener: BroadcastListener, intent: Intent) {
+        val queue = authorityQueues.getOrPut(listener.authority) {
+            Channel<Pair<BroadcastListener, Intent>>(Channel.UNLIMITED).also {
+                scope.launch {
+                    for((queuedListener, queuedIntent) in it) {
+                        calls++
+                        queuedListener.onReceive(queuedIntent)
+                    }
+                }
+            }
+        }
+        queue.trySend(Pair(listener, intent))
+    }
+
+    private fun closeUnusedQueues() {
+        val authorities = currentListeners.mapTo(HashSet()) { it.authority }
+        authorityQueues.keys.filterNot { authorities.contains(it) }.forEach {
+            authorityQueues.remove(it)?.close()
+        }
+    }
+
+    /**
+     *  Identifies a filter by its [getMergeKey] and actions, to check whether a listener already
+     *  had it before its filters changed.
+     */
+    private fun IntentFilter.getSubscriptionKey(): String {
+        val actions = actionsIterator()?.asSequence()?.sorted()?.joinToString(",")
+        return "${getMergeKey()}|$actions"
+    }
+
+    /**
+     *  Filters can be merged if they only differ by their actions, so the key is made up of
+     *  everything else.
+     */
+    private fun IntentFilter.getMergeKey(): String {
+        return buildString {
+            append(categoriesIterator()?.asSequence()?.sorted()?.joinToString(","))
+            append("|")
+            append((0 until countDataSchemes()).map { getDataScheme(it) }.sorted())
+            append("|")
+            append((0 until countDataSchemeSpecificParts()).map {
+                getDataSchemeSpecificPart(it).toString()
+            }.sorted())
+            append("|")
+            append((0 until countDataAuthorities()).map {
+                getDataAuthority(it).let { entry -> "${entry.host}:${entry.port}" }
+            }.sorted())
+            append("|")
+            append((0 until countDataPaths()).map { getDataPath(it).toString() }.sorted())
+            append("|")
+            append((0 until countDataTypes()).map { getDataType(it) }.sorted())
+            append("|")
+            append(priority)
+        }
+    }
+
+    private fun Context.getStickyIntent(filter: IntentFilter): Intent? {
+        return try {
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                registerReceiver(null, filter, Context.RECEIVER_EXPORTED)
+            }else{
+                registerReceiver(null, filter)
+            }
+        }catch (e: Exception) {
+            null
+        }
+    }
+
+    /**
+     *  A receiver for a set of filters which only differ by their actions, registered with all of
+     *  their [actions]. Incoming broadcasts are matched to listeners by an action index, the rest
+     *  of the filter has already been matched by the system.
+     */
+    private inner class MergedReceiver(
+        template: IntentFilter,
+        val actions: Set<String>
+    ): BroadcastReceiver() {
+
+        private val filter = IntentFilter(template).apply {
+            actions.forEach { addAction(it) }
+        }
+
+        private var listenersByAction = emptyMap<String, List<BroadcastListener>>()
+        private var stickyListenersByAction = emptyMap<String, List<BroadcastListener>>()
+
+        fun setMembers(members: List<Pair<BroadcastListener, IntentFilter>>) {
+            val index = HashMap<String, MutableList<BroadcastListener>>()
+            members.forEach { (listener, filter) ->
+                filter.actionsIterator().forEach {
+                    index.getOrPut(it) { ArrayList() }.add(listener)
+                }
+            }
+            listenersByAction = index
+        }
+
+        /**
+         *  Sets the listeners which are sent the initial sticky broadcasts the system sends on
+         *  registration. When this receiver replaces another, listeners which were registered for
+         *  an action with the [replaced] receiver have already had its sticky broadcast, so are
+         *  left out.
+         */
+        fun setStickyListeners(replaced: MergedReceiver?) {
+            stickyListenersByAction = listenersByAction.mapValues { (action, listeners) ->
+                val registered = replaced?.getListeners(action) ?: emptyList()
+                listeners.filterNot { registered.contains(it) }
+            }
+        }
+
+        fun getListeners(action: String): List<BroadcastListener> {
+            return listenersByAction[action] ?: emptyList()
+        }
+
+        fun getStickyListeners(action: String): List<BroadcastListener> {
+            return stickyListenersByAction[action] ?: emptyList()
+        }
+
+        fun register() {
+            context.registerReceiverCompat(this, filter)
+        }
+
+        fun unregister() {
+            try {
+                context.unregisterReceiverCompat(this)
+            }catch (e: IllegalArgumentException) {
+                Log.w(TAG, "Receiver was not registered", e)
+            }
+        }
+
+        override fun onReceive(context: Context, intent: Intent) {
+            onReceive(this, intent, isInitialStickyBroadcast)
         }
+
     }
 
     init {
         setupListeners()
     }
 
-}
\ No newline at end of file
+}
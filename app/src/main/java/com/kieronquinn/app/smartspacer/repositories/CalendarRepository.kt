@@ -14,6 +14,8 @@ import com.kieronquinn.app.smartspacer.repositories.CalendarRepository.CalendarD
 import com.kieronquinn.app.smartspacer.repositories.CalendarRepository.CalendarEvent
 import com.kieronquinn.app.smartspacer.repositories.CalendarRepository.CalendarTrigger
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerTargetProvider
+import com.kieronquinn.app.smartspacer.utils.calendar.IntervalIndex
+import com.kieronquinn.app.smartspacer.utils.calendar.IntervalIndex.Interval
 import com.kieronquinn.app.smartspacer.utils.calendar.RFC2245Duration
 import com.kieronquinn.app.smartspacer.utils.extensions.atStartOfMinute
 import com.kieronquinn.app.smartspacer.utils.extensions.firstNotNull
@@ -28,14 +30,14 @@ import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.combine
 import kotlinx.coroutines.flow.debounce
-import kotlinx.coroutines.flow.emptyFlow
+import kotlinx.coroutines.flow.distinctUntilChanged
 import kotlinx.coroutines.flow.filterNotNull
 import kotlinx.coroutines.flow.flatMapLatest
 import kotlinx.coroutines.flow.flowOf
 import kotlinx.coroutines.flow.flowOn
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.mapLatest
-import kotlinx.coroutines.flow.merge
+import kotlinx.coroutines.flow.runningReduce
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
@@ -48,6 +50,7 @@ import java.time.LocalDate
 import java.time.ZoneId
 import java.time.ZoneOffset
 import java.time.ZonedDateTime
+import java.util.TreeSet
 import kotlin.math.abs
 
 interface CalendarRepository {
@@ -142,37 +145,38 @@ class CalendarRepositoryImpl(
         }
     }.flowOn(Dispatchers.IO).stateIn(scope, SharingStarted.Eagerly, null)
 
-    private val calendarListeners = dataRepository.getTargetData(
+    private val calendarTargets = dataRepository.getTargetData(
         TargetDataType.CALENDAR, TargetData::class.java
-    ).flatMapLatest {
-        it.map { data ->
-            getCalendarData(data)
-        }.let { listeners ->
-            merge(*listeners.toTypedArray())
+    ).stateIn(scope, SharingStarted.Eagerly, null)
+
+    private val selectedCalendarIds = calendarTargets.filterNotNull().map { targets ->
+        targets.flatMapTo(HashSet()) { it.calendars }
+    }.distinctUntilChanged()
+
+    /**
+     *  Events for the next two days of every calendar selected by any Calendar Target, by calendar
+     *  ID. All calendars are loaded by one shared query, so targets which share a calendar do not
+     *  query it again. Lists for calendars whose events did not change keep their identity, so
+     *  targets using them are not re-indexed.
+     */
+    private val calendarEventCache = combine(
+        calendars.filterNotNull(),
+        selectedCalendarIds,
+        reloadEventsBus
+    ) { calendars, ids, _ ->
+        calendars.filter { ids.contains(it.id) }
+    }.flatMapLatest {
+        it.getEventsForNextTwoDays()
+    }.runningReduce { previous, events ->
+        events.mapValues { (id, calendarEvents) ->
+            previous[id]?.takeIf { it == calendarEvents } ?: calendarEvents
         }
-    }
+    }.stateIn(scope, SharingStarted.Eagerly, null)
 
-    private fun getCalendarData(targetData: TargetData): Flow<CalendarData> {
-        val events = combine(
-            calendars.filterNotNull(),
-            reloadEventsBus
-        ) { calendars, _ ->
-            if(calendars.isEmpty()) return@combine emptyList()
-            targetData.calendars.mapNotNull { id ->
-                calendars.firstOrNull { c -> c.id == id }
-            }.map { c ->
-                c.getEventsForNextTwoDays()
-            }
-        }
-        return events.flatMapLatest { eventList ->
-            if(eventList.isEmpty()) return@flatMapLatest emptyFlow()
-            combine(*eventList.toTypedArray()) {
-                it.toList()
-            }.map { events ->
-                CalendarData(targetData, events.flatten())
-            }
-        }
-    }
+    /**
+     *  Interval index of each target's events, rebuilt only when its [CalendarData] changes.
+     */
+    private val calendarIndexes = HashMap<String, CalendarIndex>()
 
     override fun checkPermission() {
         scope.launch {
@@ -187,9 +191,10 @@ class CalendarRepositoryImpl(
     }
 
     override fun updateActiveCalendarEvents() {
+        val now = ZonedDateTime.now().atStartOfMinute().toInstant()
         allCalendarEvents.entries.forEach {
             activeCalendarEvents[it.key] = it.value.copy(
-                events = it.value.filter()
+                events = getIndex(it.key, it.value).getActiveEvents(now)
             )
             SmartspacerTargetProvider.notifyChange(context, CalendarTarget::class.java, it.key)
         }
@@ -197,34 +202,13 @@ class CalendarRepositoryImpl(
         enqueueTOTMAlarmIfNeeded()
     }
 
-    private fun CalendarData.filter(): List<CalendarEvent> {
-        val preEventTime = data.preEventTime.length
-        val postEventTime = data.postEventTime?.length
-        val showAllDay = data.showAllDay
-        val showUnconfirmed = data.showUnconfirmed
-        val now = ZonedDateTime.now().atStartOfMinute().toInstant()
-        return events.asSequence().filter {
-            if(postEventTime != null && it.startTime.isBefore(now)) {
-                Duration.between(it.startTime, now) < postEventTime
-            }else{
-                it.endTime == now || it.endTime.isAfter(now)
-            }
-        }.filterNot {
-            it.status == CalendarContract.Events.STATUS_CANCELED
-        }.filter {
-            it.status == CalendarContract.Events.STATUS_CONFIRMED || showUnconfirmed
-        }.filter {
-            !it.isAllDay || showAllDay
-        }.filter {
-            it.startTime.isBefore(now) || Duration.between(now, it.startTime) <= preEventTime
-        }.sortedWith(
-            compareBy<CalendarEvent> {
-                val timeUntilStart = Duration.between(it.startTime, now)
-                !timeUntilStart.isNegative
-            }.thenByDescending {
-                Duration.between(it.startTime, now)
-            }
-        ).toList()
+    private fun getIndex(smartspacerId: String, calendarData: CalendarData): CalendarIndex {
+        calendarIndexes[smartspacerId]?.takeIf { it.calendarData === calendarData }?.let {
+            return it
+        }
+        return CalendarIndex(calendarData).also {
+            calendarIndexes[smartspacerId] = it
+        }
     }
 
     override fun getCalendars(): Flow<List<Calendar>> {
@@ -239,36 +223,21 @@ class CalendarRepositoryImpl(
 
     override fun getNextCalendarTrigger(): CalendarTrigger? {
         val now = Instant.now()
-        val allEvents = ArrayList<Triple<Instant, CalendarData, CalendarEvent>>()
+        var nextTime: Instant? = null
+        val nextEvents = ArrayList<CalendarData>()
         allCalendarEvents.entries.forEach {
-            val preEventTime = it.value.data.preEventTime.length
-            it.value.events.forEach { event ->
-                //The Target will be shown at the start - pre-event time, so take that into account
-                val eventStartTime = event.startTime - preEventTime
-                if(!event.isAllDay && eventStartTime.isAfter(now)) {
-                    allEvents.add(Triple(eventStartTime, it.value, event))
-                }
-                val postEventTime = it.value.data.postEventTime?.length
-                //Include the whole end minute so it doesn't disappear exactly on the end time
-                val endTime = event.endTime.plusMillis(60_000L)
-                val eventEndTime = if (postEventTime != null) {
-                    //User has specified how long to show it for, clipped at the end time
-                    (event.startTime + postEventTime).coerceAtMost(endTime)
-                } else endTime
-                if(eventEndTime.isAfter(now)) {
-                    allEvents.add(Triple(eventEndTime, it.value, event))
+            val time = getIndex(it.key, it.value).triggers.higher(now) ?: return@forEach
+            when {
+                nextTime == null || time.isBefore(nextTime) -> {
+                    nextTime = time
+                    nextEvents.clear()
+                    nextEvents.add(it.value)
                 }
+                time == nextTime -> nextEvents.add(it.value)
             }
         }
-        val eventsByTime = allEvents.groupBy {
-            it.first
-        }.mapValues {
-            it.value.map { event ->
-                event.second
-            }
-        }
-        return eventsByTime.entries.minByOrNull { it.key }?.let {
-            CalendarTrigger(it.key, it.value)
+        return nextTime?.let {
+            CalendarTrigger(it, nextEvents)
         }
     }
 
@@ -291,8 +260,9 @@ class CalendarRepositoryImpl(
         }
     }
 
-    private fun Calendar.getEventsForNextTwoDays(): Flow<List<CalendarEvent>> {
-        if(!hasPermission()) return flowOf(emptyList())
+    private fun List<Calendar>.getEventsForNextTwoDays(): Flow<Map<String, List<CalendarEvent>>> {
+        if(isEmpty() || !hasPermission()) return flowOf(emptyMap())
+        val calendars = associateBy { it.id }
         val startOfToday = LocalDate.now().atStartOfDay(ZoneId.systemDefault())
         val startOfTwoDays = startOfToday.plusDays(2)
         val uri = CalendarContract.Instances.CONTENT_URI.buildUpon()
@@ -310,12 +280,15 @@ class CalendarRepositoryImpl(
                 CalendarContract.Instances.EVENT_LOCATION,
                 CalendarContract.Instances.ALL_DAY,
                 CalendarContract.Instances.SELF_ATTENDEE_STATUS,
-                CalendarContract.Instances.LAST_DATE
+                CalendarContract.Instances.LAST_DATE,
+                CalendarContract.Instances.CALENDAR_ID
             ),
-            selection = "${CalendarContract.Events.CALENDAR_ID}=?",
-            selectionArgs = arrayOf(id)
+            selection = "${CalendarContract.Instances.CALENDAR_ID} IN " +
+                    calendars.keys.joinToString(",", "(", ")") { "?" },
+            selectionArgs = calendars.keys.toTypedArray()
         ).flowOn(Dispatchers.IO).debounce(250L).mapLatest {
             it.map { event ->
+                val calendar = calendars[event.getStringOrNull(9)] ?: return@map null
                 val startTime = Instant.ofEpochMilli(event.getLong(2))
                 var endTime = event.getLongOrNull(3)?.let { end ->
                     Instant.ofEpochMilli(end)
@@ -345,7 +318,7 @@ class CalendarRepositoryImpl(
                         .atStartOfDay(ZoneId.systemDefault()).toInstant()
                 } else endTime
                 CalendarEvent(
-                    this,
+                    calendar,
                     event.getString(0),
                     event.getStringOrNull(1)
                         ?: context.getString(R.string.target_calendar_title_default),
@@ -357,6 +330,8 @@ class CalendarRepositoryImpl(
                 )
             }.filterNotNull().filterNot { event ->
                 event.status == CalendarContract.Events.STATUS_CANCELED
+            }.groupBy { event ->
+                event.calendar.id
             }
         }
     }
@@ -375,8 +350,25 @@ class CalendarRepositoryImpl(
     }
 
     private fun setupCalendarListeners() = scope.launch {
-        calendarListeners.collect {
-            allCalendarEvents[it.data.id] = it
+        combine(
+            calendarTargets.filterNotNull(),
+            calendarEventCache.filterNotNull()
+        ) { targets, events ->
+            targets.map { target ->
+                CalendarData(target, target.calendars.flatMap { events[it] ?: emptyList() })
+            }
+        }.collect { calendarData ->
+            val ids = calendarData.mapTo(HashSet()) { it.data.id }
+            allCalendarEvents.keys.filterNot { ids.contains(it) }.forEach {
+                allCalendarEvents.remove(it)
+                activeCalendarEvents.remove(it)
+                calendarIndexes.remove(it)
+            }
+            val changed = calendarData.filter { allCalendarEvents[it.data.id] != it }
+            if(changed.isEmpty()) return@collect
+            changed.forEach {
+                allCalendarEvents[it.data.id] = it
+            }
             updateActiveCalendarEvents()
         }
     }
@@ -389,4 +381,81 @@ class CalendarRepositoryImpl(
         setupCalendarListeners()
     }
 
+    /**
+     *  Index of a target's events, built once per [CalendarData]. Each event which passes the
+     *  target's status & all day options is indexed by the interval in which it should be shown,
+     *  from the pre-event time before its start until it ends or the post-event time has passed,
+     *  so the active events at a given time are a single stabbing query. The times at which the
+     *  active events next change are kept sorted, for scheduling the next update.
+     */
+    private class CalendarIndex(val calendarData: CalendarData) {
+
+        companion object {
+            private val ONE_NANO = Duration.ofNanos(1)
+        }
+
+        private val active: IntervalIndex<CalendarEvent>
+
+        val triggers = TreeSet<Instant>()
+
+        init {
+            val data = calendarData.data
+            val preEventTime = data.preEventTime.length
+            val postEventTime = data.postEventTime?.length
+            active = IntervalIndex(
+                calendarData.events.filterNot {
+                    it.status == CalendarContract.Events.STATUS_CANCELED
+                }.filter {
+                    it.status == CalendarContract.Events.STATUS_CONFIRMED || data.showUnconfirmed
+                }.filter {
+                    !it.isAllDay || data.showAllDay
+                }.map {
+                    Interval(it.startTime - preEventTime, it.getShownUntil(postEventTime), it)
+                }
+            )
+            calendarData.events.forEach { event ->
+                //The Target will be shown at the start - pre-event time, so take that into account
+                if(!event.isAllDay) {
+                    triggers.add(event.startTime - preEventTime)
+                }
+                //Include the whole end minute so it doesn't disappear exactly on the end time
+                val endTime = event.endTime.plusMillis(60_000L)
+                val eventEndTime = if (postEventTime != null) {
+                    //User has specified how long to show it for, clipped at the end time
+                    (event.startTime + postEventTime).coerceAtMost(endTime)
+                } else endTime
+                triggers.add(eventEndTime)
+            }
+        }
+
+        /**
+         *  Returns the events which should be shown at [now], those which have started first, most
+         *  recently started first, then those which have not started yet.
+         */
+        fun getActiveEvents(now: Instant): List<CalendarEvent> {
+            return active.query(now).sortedWith(
+                compareBy<CalendarEvent> {
+                    val timeUntilStart = Duration.between(it.startTime, now)
+                    !timeUntilStart.isNegative
+                }.thenByDescending {
+                    Duration.between(it.startTime, now)
+                }
+            )
+        }
+
+        /**
+         *  Returns the exclusive end of the time this event is shown for. With a post-event time,
+         *  an event is shown until it has elapsed once started, otherwise until its end time
+         *  (inclusive) has passed.
+         */
+        private fun CalendarEvent.getShownUntil(postEventTime: Duration?): Instant {
+            return if(postEventTime != null && !endTime.isBefore(startTime)) {
+                (startTime + postEventTime).coerceAtLeast(startTime + ONE_NANO)
+            }else{
+                endTime + ONE_NANO
+            }
+        }
+
+    }
+
 }
\ No newline at end of file
@@ -10,15 +10,30 @@ import com.kieronquinn.app.smartspacer.model.database.RequirementDataType
 import com.kieronquinn.app.smartspacer.model.database.TargetData
 import com.kieronquinn.app.smartspacer.model.database.TargetDataType
 import com.kieronquinn.app.smartspacer.utils.extensions.firstNotNull
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.MainScope
 import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
+import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.distinctUntilChanged
 import kotlinx.coroutines.flow.filterNotNull
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.stateIn
+import kotlinx.coroutines.flow.update
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
-
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ *  Stores the data for built in Targets, Complications (Actions) and Requirements as JSON, by
+ *  their Smartspacer ID. Rows are indexed by ID and decoded objects are cached until their row
+ *  changes, so lookups do not scan or parse. Decoded objects are shared between callers and must
+ *  not be mutated, use the update methods instead.
+ */
 interface DataRepository {
 
     fun <T> getTargetData(id: String, type: Class<T>): T?
@@ -65,6 +80,26 @@ interface DataRepository {
     fun deleteActionData(id: String)
     fun deleteRequirementData(id: String)
 
+    /**
+     *  Returns the decoded object cache stats for target, action and requirement data
+     */
+    fun getCacheStats(): Map<String, CacheStats>
+
+    data class CacheStats(
+        /**
+         *  Number of rows currently indexed
+         */
+        val size: Int,
+        /**
+         *  Lookups served from an already decoded object
+         */
+        val hits: Long,
+        /**
+         *  Lookups which required the row to be decoded
+         */
+        val misses: Long
+    )
+
 }
 
 class DataRepositoryImpl(
@@ -75,97 +110,83 @@ class DataRepositoryImpl(
 
     private val scope = MainScope()
 
-    private val targetData = databaseRepository.getTargetData()
-        .stateIn(scope, SharingStarted.Eagerly, null)
-
-    private val actionData = databaseRepository.getActionData()
-        .stateIn(scope, SharingStarted.Eagerly, null)
-
-    private val requirementData = databaseRepository.getRequirementData()
-        .stateIn(scope, SharingStarted.Eagerly, null)
+    private val targetData = DataCache(databaseRepository.getTargetData())
+    private val actionData = DataCache(databaseRepository.getActionData())
+    private val requirementData = DataCache(databaseRepository.getRequirementData())
 
-    override fun <T> getTargetData(id: String, type: Class<T>): T? = runBlocking {
-        targetData.firstNotNull().getItem(id, type)
+    override fun <T> getTargetData(id: String, type: Class<T>): T? {
+        return targetData.get(id, type)
     }
 
-    override fun <T> getActionData(id: String, type: Class<T>): T? = runBlocking {
-        actionData.firstNotNull().getItem(id, type)
+    override fun <T> getActionData(id: String, type: Class<T>): T? {
+        return actionData.get(id, type)
     }
 
-    override fun <T> getRequirementData(id: String, type: Class<T>): T? = runBlocking {
-        requirementData.firstNotNull().getItem(id, type)
+    override fun <T> getRequirementData(id: String, type: Class<T>): T? {
+        return requirementData.get(id, type)
     }
 
     override fun <T> getTargetDataFlow(id: String, type: Class<T>): Flow<T?> {
-        return targetData.filterNotNull().map {
-            it.getItem(id, type)
-        }
+        return targetData.getFlow(id, type)
     }
 
     override fun <T> getActionDataFlow(id: String, type: Class<T>): Flow<T?> {
-        return actionData.filterNotNull().map {
-            it.getItem(id, type)
-        }
+        return actionData.getFlow(id, type)
     }
 
     override fun <T> getRequirementDataFlow(id: String, type: Class<T>): Flow<T?> {
-        return requirementData.filterNotNull().map {
-            it.getItem(id, type)
-        }
+        return requirementData.getFlow(id, type)
     }
 
     override fun <T> getTargetData(dataType: TargetDataType, type: Class<T>): Flow<List<T>> {
-        return targetData.filterNotNull().map {
-            it.mapNotNull { data ->
-                if(data.type != dataType.name) return@mapNotNull null
-                gson.fromJson(data.data, type)
-            }
-        }
+        return targetData.getTypeFlow(dataType.name, type)
     }
 
     override fun <T> getActionData(dataType: ActionDataType, type: Class<T>): Flow<List<T>> {
-        return actionData.filterNotNull().map {
-            it.mapNotNull { data ->
-                if(data.type != dataType.name) return@mapNotNull null
-                gson.fromJson(data.data, type)
-            }
-        }
+        return actionData.getTypeFlow(dataType.name, type)
     }
 
     override fun <T> getRequirementData(
         dataType: RequirementDataType,
         type: Class<T>
     ): Flow<List<T>> {
-        return requirementData.filterNotNull().map {
-            it.mapNotNull { data ->
-                if(data.type != dataType.name) return@mapNotNull null
-                gson.fromJson(data.data, type)
-            }
-        }
+        return requirementData.getTypeFlow(dataType.name, type)
     }
 
     override suspend fun addTargetData(targetData: TargetData) {
-        databaseRepository.addTargetData(targetData)
+        this.targetData.write(targetData) {
+            databaseRepository.addTargetData(targetData)
+        }
     }
 
     override suspend fun addActionData(actionData: ActionData) {
-        databaseRepository.addActionData(actionData)
+        this.actionData.write(actionData) {
+            databaseRepository.addActionData(actionData)
+        }
     }
 
     override suspend fun addRequirementData(requirementData: RequirementData) {
-        databaseRepository.addRequirementData(requirementData)
+        this.requirementData.write(requirementData) {
+            databaseRepository.addRequirementData(requirementData)
+        }
     }
 
     override fun deleteTargetData(id: String) {
-        databaseRepository.deleteTargetData(id)
+        targetData.delete(id) {
+            databaseRepository.deleteTargetData(id)
+        }
     }
 
     override fun deleteActionData(id: String) {
-        databaseRepository.deleteActionData(id)
+        actionData.delete(id) {
+            databaseRepository.deleteActionData(id)
+        }
     }
 
     override fun deleteRequirementData(id: String) {
-        databaseRepository.deleteRequirementData(id)
+        requirementData.delete(id) {
+            databaseRepository.deleteRequirementData(id)
+        }
     }
 
     override fun <T> updateTargetData(
@@ -176,10 +197,9 @@ class DataRepositoryImpl(
         update: (T?) -> T
     ) {
         scope.launch {
-            val targetData = getTargetData(id, type)
-            val updated = update(targetData)
-            val data = TargetData(id, dataType.name, gson.toJson(updated))
-            addTargetData(data)
+            targetData.update(id, type, update) {
+                addTargetData(TargetData(id, dataType.name, it))
+            }
             onComplete?.invoke(context, id)
         }
     }
@@ -192,10 +212,9 @@ class DataRepositoryImpl(
         update: (T?) -> T
     ) {
         scope.launch {
-            val actionData = getActionData(id, type)
-            val updated = update(actionData)
-            val data = ActionData(id, dataType.name, gson.toJson(updated))
-            addActionData(data)
+            actionData.update(id, type, update) {
+                addActionData(ActionData(id, dataType.name, it))
+            }
             onComplete?.invoke(context, id)
         }
     }
@@ -208,20 +227,197 @@ class DataRepositoryImpl(
         update: (T?) -> T
     ) {
         scope.launch {
-            val requirementData = getRequirementData(id, type)
-            val updated = update(requirementData)
-            val data = RequirementData(id, dataType.name, gson.toJson(updated))
-            addRequirementData(data)
+            requirementData.update(id, type, update) {
+                addRequirementData(RequirementData(id, dataType.name, it))
+            }
             onComplete?.invoke(context, id)
         }
     }
 
-    private fun <T> List<BaseData>.getItem(id: String, type: Class<T>): T? {
-        return firstOrNull {
-            it.id == id
-        }?.let {
-            gson.fromJson(it.data, type)
+    override fun getCacheStats(): Map<String, DataRepository.CacheStats> {
+        return mapOf(
+            "target" to targetData.getStats(),
+            "action" to actionData.getStats(),
+            "requirement" to requirementData.getStats()
+        )
+    }
+
+    /**
+     *  An index of rows by ID, with a cache of their decoded objects. Decoded objects are kept
+     *  until their row's data changes, and rows written by this repository are visible
+     *  immediately, before Room emits them back.
+     */
+    private inner class DataCache<D: BaseData>(rows: Flow<List<D>>) {
+
+        /**
+         *  Rows which have been written or deleted (`null`) but not yet emitted by Room
+         */
+        private val pending = ConcurrentHashMap<String, PendingRow<D>>()
+        private val pendingChanged = MutableStateFlow(0L)
+        private val decoded = ConcurrentHashMap<String, Decoded>()
+        private val updateLock = Mutex()
+        private val hits = AtomicLong()
+        private val misses = AtomicLong()
+
+        private val index = rows.map { list ->
+            list.associateBy { it.id }.also { onRowsChanged(it) }
+        }.stateIn(scope, SharingStarted.Eagerly, null)
+
+        /**
+         *  The indexed rows with any pending writes applied, re-emitting when either changes
+         */
+        private val current = combine(index.filterNotNull(), pendingChanged) { rows, _ ->
+            rows.withPending()
+        }
+
+        fun <T> get(id: String, type: Class<T>): T? {
+            return getRow(id)?.let { decode(it, type) }
+        }
+
+        fun <T> getFlow(id: String, type: Class<T>): Flow<T?> {
+            return current.map {
+                it[id]
+            }.distinctUntilChanged { old, new ->
+                old?.data == new?.data
+            }.map {
+                it?.let { row -> decode(row, type) }
+            }
+        }
+
+        fun <T> getTypeFlow(dataType: String, type: Class<T>): Flow<List<T>> {
+            return current.map { rows ->
+                rows.values.mapNotNull {
+                    if(it.type != dataType) return@mapNotNull null
+                    decode(it, type)
+                }
+            }
+        }
+
+        /**
+         *  Reads, updates and writes the row for [id], serialised so concurrent updates do not
+         *  overwrite each other.
+         */
+        suspend fun <T> update(
+            id: String,
+            type: Class<T>,
+            update: (T?) -> T,
+            write: suspend (String) -> Unit
+        ) = updateLock.withLock {
+            val updated = update(get(id, type))
+            write(gson.toJson(updated))
         }
+
+        /**
+         *  Makes [row] visible immediately while [write] runs. If the write fails the row is
+         *  dropped again, otherwise it is kept until Room next emits.
+         */
+        suspend fun write(row: D, write: suspend () -> Unit) {
+            val pendingRow = addPending(row.id, PendingRow(row))
+            try {
+                write()
+            }catch (e: Throwable) {
+                removePending(row.id, pendingRow)
+                throw e
+            }
+            onCommitted(row.id, pendingRow)
+        }
+
+        fun delete(id: String, delete: () -> Job) {
+            val pendingRow = addPending(id, PendingRow(null))
+            decoded.remove(id)
+            delete().invokeOnCompletion {
+                if(it == null) {
+                    onCommitted(id, pendingRow)
+                }else{
+                    removePending(id, pendingRow)
+                }
+            }
+        }
+
+        fun getStats(): DataRepository.CacheStats {
+            return DataRepository.CacheStats(
+                index.value?.size ?: 0, hits.get(), misses.get()
+            )
+        }
+
+        private fun addPending(id: String, pendingRow: PendingRow<D>): PendingRow<D> {
+            pending[id] = pendingRow
+            pendingChanged.update { it + 1 }
+            return pendingRow
+        }
+
+        private fun removePending(id: String, pendingRow: PendingRow<D>) {
+            if(pending.remove(id, pendingRow)) {
+                pendingChanged.update { it + 1 }
+            }
+        }
+
+        /**
+         *  Room only emits after a write has committed, so the next emission will include it. If
+         *  the current rows already do, the pending row can be dropped now.
+         */
+        private fun onCommitted(id: String, pendingRow: PendingRow<D>) {
+            pendingRow.committed = true
+            if(index.value?.get(id)?.data == pendingRow.row?.data) {
+                removePending(id, pendingRow)
+            }
+        }
+
+        private fun Map<String, D>.withPending(): Map<String, D> {
+            if(pending.isEmpty()) return this
+            return toMutableMap().apply {
+                pending.forEach { (id, pendingRow) ->
+                    val row = pendingRow.row
+                    if(row != null) put(id, row) else remove(id)
+                }
+            }
+        }
+
+        private fun getRow(id: String): D? {
+            pending[id]?.let { return it.row }
+            val rows = index.value ?: runBlocking {
+                //Only blocks until the database has loaded for the first time
+                index.firstNotNull()
+            }
+            return rows[id]
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        private fun <T> decode(row: D, type: Class<T>): T? {
+            val cached = decoded[row.id]
+            if(cached != null && cached.type == type && cached.data == row.data) {
+                hits.incrementAndGet()
+                return cached.value as T?
+            }
+            misses.incrementAndGet()
+            return gson.fromJson(row.data, type).also {
+                decoded[row.id] = Decoded(row.data, type, it)
+            }
+        }
+
+        /**
+         *  Drops decoded objects for rows which have changed or been removed, and pending writes
+         *  which have committed or which Room has otherwise caught up with.
+         */
+        private fun onRowsChanged(rows: Map<String, D>) {
+            decoded.entries.removeAll { (id, cached) ->
+                rows[id]?.data != cached.data
+            }
+            pending.entries.removeAll { (id, row) ->
+                row.committed || rows[id]?.data == row.row?.data
+            }
+        }
+
     }
 
-}
\ No newline at end of file
+    private class PendingRow<D: BaseData>(val row: D?) {
+        /**
+         *  Set once the write has completed, after which the next emission from Room includes it
+         */
+        @Volatile
+        var committed = false
+    }
+
+    private class Decoded(val data: String, val type: Class<*>, val value: Any?)
+
+}
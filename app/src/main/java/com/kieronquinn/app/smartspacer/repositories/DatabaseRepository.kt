@@ -15,6 +15,7 @@ import com.kieronquinn.app.smartspacer.model.database.Target
 import com.kieronquinn.app.smartspacer.model.database.TargetData
 import com.kieronquinn.app.smartspacer.model.database.Widget
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.MainScope
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.first
@@ -76,9 +77,9 @@ interface DatabaseRepository {
     suspend fun deleteWidget(id: String, type: Widget.Type)
     suspend fun deleteExpandedAppWidget(id: Int)
     suspend fun deleteExpandedCustomAppWidget(id: Int)
-    fun deleteRequirementData(id: String)
-    fun deleteTargetData(id: String)
-    fun deleteActionData(id: String)
+    fun deleteRequirementData(id: String): Job
+    fun deleteTargetData(id: String): Job
+    fun deleteActionData(id: String): Job
 
 }
 
@@ -280,24 +281,24 @@ class DatabaseRepositoryImpl(
         requirements.delete(requirement)
     }
 
-    override fun deleteRequirementData(id: String) {
-        scope.launch(Dispatchers.IO) {
+    override fun deleteRequirementData(id: String): Job {
+        return scope.launch(Dispatchers.IO) {
             requirementData.getById(id)?.let {
                 requirementData.delete(it)
             }
         }
     }
 
-    override fun deleteTargetData(id: String) {
-        scope.launch(Dispatchers.IO) {
+    override fun deleteTargetData(id: String): Job {
+        return scope.launch(Dispatchers.IO) {
             targetData.getById(id)?.let {
                 targetData.delete(it)
             }
         }
     }
 
-    override fun deleteActionData(id: String) {
-        scope.launch(Dispatchers.IO) {
+    override fun deleteActionData(id: String): Job {
+        return scope.launch(Dispatchers.IO) {
             actionData.getById(id)?.let {
                 actionData.delete(it)
             }
@@ -0,0 +1,295 @@
+package com.kieronquinn.app.smartspacer.repositories
+
+import android.os.Parcel
+import android.os.Parcelable
+import com.kieronquinn.app.smartspacer.repositories.MetricsRepository.Histogram
+import com.kieronquinn.app.smartspacer.repositories.MetricsRepository.PayloadStats
+import com.kieronquinn.app.smartspacer.repositories.MetricsRepository.PluginCallStats
+import com.kieronquinn.app.smartspacer.repositories.MetricsRepository.SessionStats
+import com.kieronquinn.app.smartspacer.repositories.MetricsRepository.SlowUpdate
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.MainScope
+import kotlinx.coroutines.launch
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ *  Always-on runtime metrics, shown in the Smartspace service's dump. Recording only updates
+ *  counters, so is cheap enough to do on every update. Payload sizes require the payload to be
+ *  parcelled, so are only measured for a sample of updates, and off the thread sending them.
+ */
+interface MetricsRepository {
+
+    /**
+     *  Records a merge by [session], which took [durationNanos] and was caused by [trigger]
+     */
+    fun recordMerge(session: String, trigger: String, durationNanos: Long)
+
+    /**
+     *  Records a `ContentResolver.call` to [method] of the plugin at [authority]
+     */
+    fun recordPluginCall(authority: String, method: String, durationNanos: Long, failed: Boolean)
+
+    /**
+     *  Records [items] being sent over binder to [destination], eg. SystemUI or a client app.
+     *  [items] should be what is actually parcelled, [itemCount] is the number of Targets they
+     *  contain if that differs, eg. for a patch or the compact format.
+     */
+    fun recordPayload(destination: String, items: List<Parcelable>, itemCount: Int = items.size)
+
+    /**
+     *  Removes the stats for [session], called when it is destroyed
+     */
+    fun removeSession(session: String)
+
+    fun getSessionStats(): Map<String, SessionStats>
+    fun getPluginCallStats(): Map<String, Map<String, PluginCallStats>>
+    fun getPayloadStats(): Map<String, PayloadStats>
+
+    /**
+     *  Returns the most recent slow updates, newest first
+     */
+    fun getSlowUpdates(): List<SlowUpdate>
+
+    data class SessionStats(
+        val merges: Long,
+        val latency: Histogram
+    )
+
+    data class PluginCallStats(
+        val calls: Long,
+        val failures: Long,
+        val latency: Histogram
+    )
+
+    data class PayloadStats(
+        /**
+         *  Number of payloads sent
+         */
+        val sent: Long,
+        /**
+         *  Number of payloads which were parcelled to measure their size
+         */
+        val sampled: Long,
+        val lastSizeBytes: Int,
+        val maxSizeBytes: Int,
+        val lastItems: Int
+    )
+
+    data class SlowUpdate(
+        /**
+         *  Time of the update, in epoch millis
+         */
+        val time: Long,
+        val session: String,
+        val trigger: String,
+        val durationMillis: Long
+    )
+
+    data class Histogram(
+        /**
+         *  Counts of values below each of [BUCKET_BOUNDS_MILLIS], followed by a final count of
+         *  values at or above the last bound
+         */
+        val buckets: List<Long>,
+        val count: Long,
+        val totalNanos: Long
+    ) {
+
+        companion object {
+            val BUCKET_BOUNDS_MILLIS = longArrayOf(1, 2, 4, 8, 16, 32, 64, 128, 256, 512)
+        }
+
+        val averageMillis
+            get() = if(count == 0L) 0.0 else totalNanos / count / 1_000_000.0
+
+        override fun toString(): String {
+            val labels = BUCKET_BOUNDS_MILLIS.map { "<${it}ms" } +
+                    ">=${BUCKET_BOUNDS_MILLIS.last()}ms"
+            val nonEmpty = buckets.mapIndexedNotNull { index, bucket ->
+                "${labels[index]}: $bucket".takeIf { bucket > 0 }
+            }
+            return "avg %.2fms [%s]".format(averageMillis, nonEmpty.joinToString(", "))
+        }
+
+    }
+
+}
+
+class MetricsRepositoryImpl(
+    private val scope: CoroutineScope = MainScope(),
+    private val dispatcher: CoroutineDispatcher = Dispatchers.IO
+): MetricsRepository {
+
+    companion object {
+        /**
+         *  Merges at or over this duration are recorded as slow updates
+         */
+        private const val SLOW_UPDATE_MILLIS = 32L
+        private const val MAX_SLOW_UPDATES = 20
+
+        /**
+         *  The first payload to each destination and every nth after that are parcelled, unless
+         *  the previous sample is still being measured
+         */
+        private const val PAYLOAD_SAMPLE_RATE = 16
+    }
+
+    private val sessions = ConcurrentHashMap<String, SessionMetrics>()
+    private val pluginCalls = ConcurrentHashMap<String, ConcurrentHashMap<String, CallMetrics>>()
+    private val payloads = ConcurrentHashMap<String, PayloadMetrics>()
+    private val slowUpdates = ArrayDeque<SlowUpdate>()
+
+    override fun recordMerge(session: String, trigger: String, durationNanos: Long) {
+        sessions.getOrPut(session) { SessionMetrics() }.run {
+            merges.incrementAndGet()
+            latency.record(durationNanos)
+        }
+        val durationMillis = TimeUnit.NANOSECONDS.toMillis(durationNanos)
+        if(durationMillis < SLOW_UPDATE_MILLIS) return
+        val update = SlowUpdate(System.currentTimeMillis(), session, trigger, durationMillis)
+        synchronized(slowUpdates) {
+            slowUpdates.addFirst(update)
+            if(slowUpdates.size > MAX_SLOW_UPDATES) slowUpdates.removeLast()
+        }
+    }
+
+    override fun recordPluginCall(
+        authority: String,
+        method: String,
+        durationNanos: Long,
+        failed: Boolean
+    ) {
+        val methods = pluginCalls.getOrPut(authority) { ConcurrentHashMap() }
+        methods.getOrPut(method) { CallMetrics() }.run {
+            calls.incrementAndGet()
+            if(failed) failures.incrementAndGet()
+            latency.record(durationNanos)
+        }
+    }
+
+    override fun recordPayload(destination: String, items: List<Parcelable>, itemCount: Int) {
+        val metrics = payloads.getOrPut(destination) { PayloadMetrics() }
+        val sent = metrics.sent.getAndIncrement()
+        if(sent % PAYLOAD_SAMPLE_RATE != 0L) return
+        if(!metrics.measuring.compareAndSet(false, true)) return
+        //Parcelling RemoteViews and bitmaps is expensive, so is kept off the send path
+        scope.launch(dispatcher) {
+            try {
+                val size = items.getParcelledSize() ?: return@launch
+                synchronized(metrics) {
+                    metrics.sampled++
+                    metrics.lastSizeBytes = size
+                    metrics.lastItems = itemCount
+                    if(size > metrics.maxSizeBytes) metrics.maxSizeBytes = size
+                }
+            }finally {
+                metrics.measuring.set(false)
+            }
+        }
+    }
+
+    override fun removeSession(session: String) {
+        sessions.remove(session)
+    }
+
+    override fun getSessionStats(): Map<String, SessionStats> {
+        return sessions.mapValues {
+            SessionStats(it.value.merges.get(), it.value.latency.snapshot())
+        }.toSortedMap()
+    }
+
+    override fun getPluginCallStats(): Map<String, Map<String, PluginCallStats>> {
+        return pluginCalls.mapValues { methods ->
+            methods.value.mapValues {
+                PluginCallStats(
+                    it.value.calls.get(), it.value.failures.get(), it.value.latency.snapshot()
+                )
+            }.toSortedMap()
+        }.toSortedMap()
+    }
+
+    override fun getPayloadStats(): Map<String, PayloadStats> {
+        return payloads.mapValues {
+            val metrics = it.value
+            synchronized(metrics) {
+                PayloadStats(
+                    metrics.sent.get(),
+                    metrics.sampled,
+                    metrics.lastSizeBytes,
+                    metrics.maxSizeBytes,
+                    metrics.lastItems
+                )
+            }
+        }.toSortedMap()
+    }
+
+    override fun getSlowUpdates(): List<SlowUpdate> {
+        return synchronized(slowUpdates) {
+            slowUpdates.toList()
+        }
+    }
+
+    private fun List<Parcelable>.getParcelledSize(): Int? {
+        val parcel = Parcel.obtain()
+        return try {
+            parcel.writeParcelableList(this, 0)
+            parcel.dataSize()
+        }catch (e: Exception) {
+            //Items which can't be parcelled would have failed to send anyway
+            null
+        }finally {
+            parcel.recycle()
+        }
+    }
+
+    private class SessionMetrics {
+        val merges = AtomicLong()
+        val latency = LatencyHistogram()
+    }
+
+    private class CallMetrics {
+        val calls = AtomicLong()
+        val failures = AtomicLong()
+        val latency = LatencyHistogram()
+    }
+
+    private class PayloadMetrics {
+        val sent = AtomicLong()
+        val measuring = AtomicBoolean()
+        var sampled = 0L
+        var lastSizeBytes = 0
+        var maxSizeBytes = 0
+        var lastItems = 0
+    }
+
+    private class LatencyHistogram {
+
+        private val bounds = Histogram.BUCKET_BOUNDS_MILLIS
+        private val buckets = AtomicLongArray(bounds.size + 1)
+        private val count = AtomicLong()
+        private val totalNanos = AtomicLong()
+
+        fun record(durationNanos: Long) {
+            val millis = TimeUnit.NANOSECONDS.toMillis(durationNanos)
+            var index = 0
+            while(index < bounds.size && millis >= bounds[index]) index++
+            buckets.incrementAndGet(index)
+            count.incrementAndGet()
+            totalNanos.addAndGet(durationNanos)
+        }
+
+        fun snapshot(): Histogram {
+            return Histogram(
+                List(buckets.length()) { buckets.get(it) }, count.get(), totalNanos.get()
+            )
+        }
+
+    }
+
+}
@@ -30,19 +30,18 @@ import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.flowOf
 import kotlinx.coroutines.flow.stateIn
+import kotlinx.coroutines.flow.update
 import kotlinx.coroutines.launch
+import java.util.concurrent.ConcurrentHashMap
 import android.app.Notification as AndroidNotification
 import com.kieronquinn.app.smartspacer.components.notifications.NotificationChannel as NotificationsNotificationChannel
 import com.kieronquinn.app.smartspacer.model.database.NotificationListener as DatabaseNotificationListener
 
 interface NotificationRepository {
 
-    /**
-     *  All visible notifications, not filtered
-     */
-    val activeNotifications: StateFlow<List<StatusBarNotification>>
-
     /**
      *  Bus for notifications to be dismissed. This allows notification targets to dismiss the
      *  notification that has created the target, which will dismiss the target too.
@@ -65,10 +64,32 @@ interface NotificationRepository {
     fun hasNotificationPermission(): Boolean
 
     /**
-     *  Update the current list of active system notifications, called from the notification
+     *  Returns the active notifications for a given set of [packageNames], re-emitting only when
+     *  a notification from one of those packages is posted or removed.
+     */
+    fun getNotifications(packageNames: Set<String>): Flow<List<StatusBarNotification>>
+
+    /**
+     *  Returns the current active notifications for a given [packageName]
+     */
+    fun getNotifications(packageName: String): List<StatusBarNotification>
+
+    /**
+     *  Adds or replaces a posted [notification] in the index, called from the notification
      *  listener.
      */
-    suspend fun updateNotifications(notifications: List<StatusBarNotification>)
+    fun onNotificationPosted(notification: StatusBarNotification)
+
+    /**
+     *  Removes a [notification] from the index, called from the notification listener.
+     */
+    fun onNotificationRemoved(notification: StatusBarNotification)
+
+    /**
+     *  Replaces the whole index with the current list of active system notifications, called from
+     *  the notification listener when it connects or disconnects.
+     */
+    fun updateNotifications(notifications: List<StatusBarNotification>)
 
     /**
      *  Dismiss a given notification
@@ -144,7 +165,13 @@ class NotificationRepositoryImpl(
     private val scope: CoroutineScope = MainScope()
 ): NotificationRepository {
 
-    override val activeNotifications = MutableStateFlow(emptyList<StatusBarNotification>())
+    /**
+     *  Active notifications by package name, then by notification key. Each package has its own
+     *  flow, so a change to one package does not wake up subscribers of any other.
+     */
+    private val notificationIndex =
+        ConcurrentHashMap<String, MutableStateFlow<Map<String, StatusBarNotification>>>()
+
     override val dismissNotificationBus = MutableSharedFlow<StatusBarNotification>()
     override val mirroredNotifications = HashMap<String, List<StatusBarNotification>>()
 
@@ -222,8 +249,47 @@ class NotificationRepositoryImpl(
         }
     }
 
-    override suspend fun updateNotifications(notifications: List<StatusBarNotification>) {
-        activeNotifications.emit(notifications)
+    override fun getNotifications(
+        packageNames: Set<String>
+    ): Flow<List<StatusBarNotification>> {
+        if(packageNames.isEmpty()) return flowOf(emptyList())
+        return combine(packageNames.map { getPackageIndex(it) }) { packages ->
+            packages.flatMap { it.values }
+        }
+    }
+
+    override fun getNotifications(packageName: String): List<StatusBarNotification> {
+        return notificationIndex[packageName]?.value?.values?.toList() ?: emptyList()
+    }
+
+    override fun onNotificationPosted(notification: StatusBarNotification) {
+        getPackageIndex(notification.packageName).update {
+            it + (notification.key to notification)
+        }
+    }
+
+    override fun onNotificationRemoved(notification: StatusBarNotification) {
+        notificationIndex[notification.packageName]?.update {
+            it - notification.key
+        }
+    }
+
+    override fun updateNotifications(notifications: List<StatusBarNotification>) {
+        val packages = notifications.groupBy { it.packageName }
+        notificationIndex.forEach { (packageName, index) ->
+            if(!packages.containsKey(packageName)) {
+                index.value = emptyMap()
+            }
+        }
+        packages.forEach { (packageName, packageNotifications) ->
+            getPackageIndex(packageName).value = packageNotifications.associateBy { it.key }
+        }
+    }
+
+    private fun getPackageIndex(
+        packageName: String
+    ): MutableStateFlow<Map<String, StatusBarNotification>> {
+        return notificationIndex.getOrPut(packageName) { MutableStateFlow(emptyMap()) }
     }
 
     override fun cancelNotification(id: NotificationId) {
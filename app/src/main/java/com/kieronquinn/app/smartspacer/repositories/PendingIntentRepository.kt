@@ -0,0 +1,159 @@
+package com.kieronquinn.app.smartspacer.repositories
+
+import android.app.PendingIntent
+import android.content.Context
+import android.content.Intent
+import com.kieronquinn.app.smartspacer.repositories.PendingIntentRepository.PendingIntentKey
+
+/**
+ *  Registry of PendingIntents created for Targets shown by sessions, such as kebab menu broadcasts
+ *  and click proxies. Each [PendingIntentKey] is given a stable request code, and its PendingIntent
+ *  is reused until the contents it was created from change, so showing an unchanged Target again
+ *  does not create another PendingIntent. Releasing a key only drops it from the registry: its
+ *  PendingIntent may still be used by views the host has not yet re-rendered, so is not cancelled,
+ *  and is instead freed by the system once nothing references it.
+ */
+interface PendingIntentRepository {
+
+    /**
+     *  Returns the broadcast PendingIntent for [key], creating it from [createIntent] if it does
+     *  not exist, or was created with different [contents].
+     */
+    fun getBroadcast(
+        key: PendingIntentKey,
+        contents: Any?,
+        flags: Int,
+        createIntent: () -> Intent
+    ): PendingIntent
+
+    /**
+     *  Returns the activity PendingIntent for [key], creating it from [createIntent] if it does
+     *  not exist, or was created with different [contents].
+     */
+    fun getActivity(
+        key: PendingIntentKey,
+        contents: Any?,
+        flags: Int,
+        createIntent: () -> Intent
+    ): PendingIntent
+
+    /**
+     *  Releases the keys of [owner] for Targets which are not in [targetIds]
+     */
+    fun retain(owner: String, targetIds: Set<String>)
+
+    /**
+     *  Releases all keys of [owner]
+     */
+    fun release(owner: String)
+
+    /**
+     *  Returns the number of PendingIntents currently held
+     */
+    fun getLiveCount(): Int
+
+    data class PendingIntentKey(
+        /**
+         *  The session (or other component) which shows the PendingIntent
+         */
+        val owner: String,
+        val targetId: String,
+        /**
+         *  What the PendingIntent is for within the Target, eg. the kebab menu
+         */
+        val action: String
+    )
+
+}
+
+class PendingIntentRepositoryImpl(private val context: Context): PendingIntentRepository {
+
+    companion object {
+        /**
+         *  Request codes are allocated from here upwards, well clear of the small fixed codes used
+         *  elsewhere. They only need to be unique between intents which are otherwise equal, and
+         *  are never reused, since updating a released PendingIntent would change what views still
+         *  showing it do when clicked.
+         */
+        private const val REQUEST_CODE_START = 0x10000
+    }
+
+    private data class Entry(
+        val requestCode: Int,
+        val contents: Any?,
+        val pendingIntent: PendingIntent
+    )
+
+    private val entries = HashMap<PendingIntentKey, Entry>()
+    private var nextRequestCode = REQUEST_CODE_START
+
+    override fun getBroadcast(
+        key: PendingIntentKey,
+        contents: Any?,
+        flags: Int,
+        createIntent: () -> Intent
+    ): PendingIntent {
+        return getOrCreate(key, contents) { requestCode ->
+            PendingIntent.getBroadcast(
+                context,
+                requestCode,
+                createIntent(),
+                flags or PendingIntent.FLAG_UPDATE_CURRENT
+            )
+        }
+    }
+
+    override fun getActivity(
+        key: PendingIntentKey,
+        contents: Any?,
+        flags: Int,
+        createIntent: () -> Intent
+    ): PendingIntent {
+        return getOrCreate(key, contents) { requestCode ->
+            PendingIntent.getActivity(
+                context,
+                requestCode,
+                createIntent(),
+                flags or PendingIntent.FLAG_UPDATE_CURRENT
+            )
+        }
+    }
+
+    override fun retain(owner: String, targetIds: Set<String>) {
+        releaseWhere { it.owner == owner && !targetIds.contains(it.targetId) }
+    }
+
+    override fun release(owner: String) {
+        releaseWhere { it.owner == owner }
+    }
+
+    override fun getLiveCount(): Int = synchronized(entries) {
+        entries.size
+    }
+
+    /**
+     *  Returns the existing PendingIntent for [key] if its contents are unchanged, otherwise
+     *  creates it. A changed PendingIntent keeps its request code, so is updated in place.
+     */
+    private fun getOrCreate(
+        key: PendingIntentKey,
+        contents: Any?,
+        create: (requestCode: Int) -> PendingIntent
+    ): PendingIntent = synchronized(entries) {
+        val existing = entries[key]
+        if(existing != null && existing.contents == contents) {
+            return existing.pendingIntent
+        }
+        val requestCode = existing?.requestCode ?: nextRequestCode++
+        return create(requestCode).also {
+            entries[key] = Entry(requestCode, contents, it)
+        }
+    }
+
+    private fun releaseWhere(predicate: (PendingIntentKey) -> Boolean) {
+        synchronized(entries) {
+            entries.keys.removeAll(predicate)
+        }
+    }
+
+}
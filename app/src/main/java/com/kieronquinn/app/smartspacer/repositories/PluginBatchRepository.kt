@@ -0,0 +1,239 @@
+package com.kieronquinn.app.smartspacer.repositories
+
+import android.content.Context
+import android.os.Bundle
+import android.util.Log
+import androidx.core.os.bundleOf
+import com.kieronquinn.app.smartspacer.sdk.model.CompactSmartspaceTargets
+import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerComplicationProvider
+import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerTargetProvider
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.MainScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import org.jetbrains.annotations.VisibleForTesting
+
+/**
+ *  Coalesces get calls from multiple instances of a Target or Complication provider into a
+ *  single batched call per authority. When a plugin notifies a change for its authority, every
+ *  instance reloads at once - rather than each making its own calls for their items and config,
+ *  calls which arrive within [PluginBatchRepositoryImpl.BATCH_WINDOW] are sent together. Calls for
+ *  an authority which has only one instance added have nothing to wait for, so are sent at once.
+ *
+ *  Providers built with an older SDK do not support batching, in which case `null` is returned
+ *  and the caller should fall back to its own call. This is remembered per authority until the
+ *  provider's package changes.
+ */
+interface PluginBatchRepository {
+
+    /**
+     *  Returns the result Bundle for a Target with a given [smartspacerId]. For [BatchType.ITEMS],
+     *  this is the same as [SmartspacerTargetProvider.METHOD_GET] would return. For
+     *  [BatchType.CONFIG], the config is in [SmartspacerTargetProvider.RESULT_KEY_CONFIG].
+     *  Returns `null` if batching is not supported or the call failed.
+     */
+    suspend fun getTarget(
+        authority: String,
+        packageName: String,
+        smartspacerId: String,
+        type: BatchType
+    ): Bundle?
+
+    /**
+     *  Returns the result Bundle for a Complication with a given [smartspacerId], in the same
+     *  format as [getTarget]. Returns `null` if batching is not supported or the call failed.
+     */
+    suspend fun getComplication(
+        authority: String,
+        packageName: String,
+        smartspacerId: String,
+        type: BatchType
+    ): Bundle?
+
+    enum class BatchType {
+        ITEMS, CONFIG
+    }
+
+}
+
+class PluginBatchRepositoryImpl(
+    private val context: Context,
+    packageRepository: PackageRepository,
+    private val pluginCallRepository: PluginCallRepository,
+    databaseRepository: DatabaseRepository,
+    private val scope: CoroutineScope = MainScope(),
+    private val dispatcher: CoroutineDispatcher = Dispatchers.IO
+): PluginBatchRepository {
+
+    companion object {
+        @VisibleForTesting
+        const val BATCH_WINDOW = 50L
+        private const val TAG = "PluginBatch"
+    }
+
+    private val pendingTargets = HashMap<String, PendingBatch>()
+    private val pendingComplications = HashMap<String, PendingBatch>()
+
+    /**
+     *  Authorities which have not supported batching, mapped to their package name
+     */
+    @VisibleForTesting
+    val unsupported = HashMap<String, String>()
+
+    private val packageChanges = packageRepository.onPackageChanged
+    private val databaseTargets = databaseRepository.getTargets()
+    private val databaseComplications = databaseRepository.getActions()
+
+    /**
+     *  The number of instances added for each authority, to decide whether a batch should wait
+     *  for other instances to join it
+     */
+    @Volatile
+    private var targetInstances = emptyMap<String, Int>()
+    @Volatile
+    private var complicationInstances = emptyMap<String, Int>()
+
+    override suspend fun getTarget(
+        authority: String,
+        packageName: String,
+        smartspacerId: String,
+        type: PluginBatchRepository.BatchType
+    ): Bundle? {
+        return enqueue(
+            pendingTargets,
+            targetInstances,
+            SmartspacerTargetProvider.METHOD_GET_BATCH,
+            authority,
+            packageName,
+            smartspacerId,
+            type
+        )
+    }
+
+    override suspend fun getComplication(
+        authority: String,
+        packageName: String,
+        smartspacerId: String,
+        type: PluginBatchRepository.BatchType
+    ): Bundle? {
+        return enqueue(
+            pendingComplications,
+            complicationInstances,
+            SmartspacerComplicationProvider.METHOD_GET_BATCH,
+            authority,
+            packageName,
+            smartspacerId,
+            type
+        )
+    }
+
+    private suspend fun enqueue(
+        pending: HashMap<String, PendingBatch>,
+        instances: Map<String, Int>,
+        method: String,
+        authority: String,
+        packageName: String,
+        smartspacerId: String,
+        type: PluginBatchRepository.BatchType
+    ): Bundle? {
+        var isNewBatch = false
+        val batch = synchronized(unsupported) {
+            if(unsupported.containsKey(authority)) return null
+            synchronized(pending) {
+                pending.getOrPut(authority) {
+                    isNewBatch = true
+                    PendingBatch()
+                }.apply {
+                    when(type) {
+                        PluginBatchRepository.BatchType.ITEMS -> ids.add(smartspacerId)
+                        PluginBatchRepository.BatchType.CONFIG -> configIds.add(smartspacerId)
+                    }
+                }
+            }
+        }
+        //Sent once the batch is pending, so a send which doesn't wait can't run before it's added
+        if(isNewBatch) {
+            //Nothing else will join the batch of an authority with a single instance
+            val window = if(instances[authority] == 1) 0L else BATCH_WINDOW
+            send(pending, method, authority, packageName, window, batch)
+        }
+        return batch.result.await()?.getBundle(smartspacerId)
+    }
+
+    private fun send(
+        pending: HashMap<String, PendingBatch>,
+        method: String,
+        authority: String,
+        packageName: String,
+        window: Long,
+        batch: PendingBatch
+    ) = scope.launch(dispatcher) {
+        delay(window)
+        //Remove the batch so later calls start a new one, nothing else can be added after this
+        synchronized(pending) {
+            pending.remove(authority)
+        }
+        //Both Targets and Complications use the same keys, Complications ignore the compact version
+        val extras = bundleOf(
+            SmartspacerTargetProvider.EXTRA_SMARTSPACER_IDS to batch.ids.toTypedArray(),
+            SmartspacerTargetProvider.EXTRA_COMPACT_VERSION to CompactSmartspaceTargets.VERSION,
+            SmartspacerTargetProvider.EXTRA_CONFIG_SMARTSPACER_IDS to batch.configIds.toTypedArray()
+        )
+        val result = pluginCallRepository.callForResult(
+            context.contentResolver, authority, method, extras
+        )
+        //Set before anything is unparcelled, as each item's Bundle is given the same ClassLoader
+        result.result?.classLoader = CompactSmartspaceTargets::class.java.classLoader
+        val batchResult = try {
+            result.result?.getBundle(SmartspacerTargetProvider.RESULT_KEY_BATCH)
+        }catch (e: RuntimeException) {
+            //The reply could not be unparcelled, the items will be requested individually
+            Log.w(TAG, "Failed to read batch from $authority", e)
+            batch.result.complete(null)
+            return@launch
+        }
+        //A call which failed or timed out doesn't mean batching is unsupported
+        if(batchResult == null && result.answered) {
+            synchronized(unsupported) {
+                unsupported[authority] = packageName
+            }
+        }
+        batch.result.complete(batchResult)
+    }
+
+    private fun setupPackageChanges() = scope.launch {
+        packageChanges.collect { packageName ->
+            synchronized(unsupported) {
+                unsupported.entries.removeAll { it.value == packageName }
+            }
+        }
+    }
+
+    private fun setupTargetInstances() = scope.launch {
+        databaseTargets.collect { targets ->
+            targetInstances = targets.groupingBy { it.authority }.eachCount()
+        }
+    }
+
+    private fun setupComplicationInstances() = scope.launch {
+        databaseComplications.collect { complications ->
+            complicationInstances = complications.groupingBy { it.authority }.eachCount()
+        }
+    }
+
+    init {
+        setupPackageChanges()
+        setupTargetInstances()
+        setupComplicationInstances()
+    }
+
+    private class PendingBatch {
+        val ids = HashSet<String>()
+        val configIds = HashSet<String>()
+        val result = CompletableDeferred<Bundle?>()
+    }
+
+}
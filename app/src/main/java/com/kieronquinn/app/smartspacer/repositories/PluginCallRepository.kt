@@ -0,0 +1,274 @@
+package com.kieronquinn.app.smartspacer.repositories
+
+import android.content.ContentResolver
+import android.os.Bundle
+import android.os.SystemClock
+import android.util.Log
+import android.util.LruCache
+import com.kieronquinn.app.smartspacer.repositories.PluginCallRepository.AuthorityStats
+import com.kieronquinn.app.smartspacer.repositories.PluginCallRepository.CallResult
+import com.kieronquinn.app.smartspacer.utils.extensions.callOrThrowIfDead
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.MainScope
+import kotlinx.coroutines.async
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.withTimeoutOrNull
+import org.jetbrains.annotations.VisibleForTesting
+
+/**
+ *  Makes calls to plugin providers with a deadline, so a slow or unresponsive plugin cannot hold
+ *  up loading everything else.
+ *
+ *  - Each call has a deadline based on its method. When it passes, the caller gets the last
+ *  result of the same read call for the same Smartspacer ID, if there is one. The binder call
+ *  itself can't be interrupted, so continues in the background.
+ *  - Each authority has a limited number of calls in flight. Calls over the limit wait for a
+ *  free slot within their deadline, so a hung plugin only ever blocks that many IO threads.
+ *  - Authorities which fail or time out repeatedly are not called at all for a cool-down period,
+ *  after which a single call is allowed through to check if they have recovered.
+ */
+interface PluginCallRepository {
+
+    /**
+     *  Calls [method] on the provider at [authority], returning its result, or the last result
+     *  for this [smartspacerId] if the call failed or did not complete within its deadline.
+     */
+    suspend fun call(
+        contentResolver: ContentResolver,
+        authority: String,
+        method: String,
+        extras: Bundle?,
+        smartspacerId: String? = null
+    ): Bundle?
+
+    /**
+     *  As [call], but also returns whether the provider answered. Callers which treat a `null`
+     *  result as a lack of support should check this first.
+     */
+    suspend fun callForResult(
+        contentResolver: ContentResolver,
+        authority: String,
+        method: String,
+        extras: Bundle?,
+        smartspacerId: String? = null
+    ): CallResult
+
+    /**
+     *  Returns the call stats for each authority which has been called
+     */
+    fun getStats(): Map<String, AuthorityStats>
+
+    data class CallResult(
+        val result: Bundle?,
+        /**
+         *  Whether the provider returned [result] within the deadline. If `false`, [result] is
+         *  a stale result or `null`.
+         */
+        val answered: Boolean
+    )
+
+    data class AuthorityStats(
+        val inFlight: Int,
+        val timeouts: Long,
+        val failures: Long,
+        /**
+         *  Calls which were not made as the authority's circuit was open
+         */
+        val rejected: Long,
+        val isOpen: Boolean
+    )
+
+}
+
+class PluginCallRepositoryImpl(
+    private val scope: CoroutineScope = MainScope(),
+    private val dispatcher: CoroutineDispatcher = Dispatchers.IO,
+    private val clock: () -> Long = SystemClock::elapsedRealtime
+): PluginCallRepository {
+
+    companion object {
+        /**
+         *  Deadline for loading items and config, which are expected to be quick
+         */
+        @VisibleForTesting
+        const val DEADLINE_READ = 3_000L
+        /**
+         *  Deadline for backups and restores, where the plugin may have more work to do
+         */
+        @VisibleForTesting
+        const val DEADLINE_BACKUP = 15_000L
+        @VisibleForTesting
+        const val DEADLINE_DEFAULT = 5_000L
+        /**
+         *  Consecutive failures after which an authority is no longer called for [COOL_DOWN]
+         */
+        @VisibleForTesting
+        const val FAILURE_THRESHOLD = 3
+        @VisibleForTesting
+        const val COOL_DOWN = 30_000L
+        @VisibleForTesting
+        const val MAX_IN_FLIGHT = 2
+        private const val MAX_STALE_RESULTS = 128
+        private const val METHOD_BACKUP = "backup"
+        private const val METHOD_RESTORE = "restore"
+        private const val TAG = "PluginCall"
+    }
+
+    private val authorities = HashMap<String, AuthorityState>()
+    private val staleResults = LruCache<StaleKey, Bundle>(MAX_STALE_RESULTS)
+
+    override suspend fun call(
+        contentResolver: ContentResolver,
+        authority: String,
+        method: String,
+        extras: Bundle?,
+        smartspacerId: String?
+    ): Bundle? {
+        return callForResult(contentResolver, authority, method, extras, smartspacerId).result
+    }
+
+    override suspend fun callForResult(
+        contentResolver: ContentResolver,
+        authority: String,
+        method: String,
+        extras: Bundle?,
+        smartspacerId: String?
+    ): CallResult {
+        val state = synchronized(authorities) {
+            authorities.getOrPut(authority) { AuthorityState() }
+        }
+        //Only read calls are safe to answer with an earlier result
+        val staleKey = smartspacerId?.takeIf { method.isRead() }?.let {
+            StaleKey(authority, method, it)
+        }
+        if(!state.tryStart(clock())) {
+            state.onRejected()
+            return getStale(staleKey)
+        }
+        val deadline = getDeadline(method)
+        val start = clock()
+        //Waiting for a slot counts towards the deadline. This is not counted against the plugin,
+        //as it may just be busy, and calls already holding the slots will time out if it has hung.
+        withTimeoutOrNull(deadline) { state.inFlight.acquire() } ?: run {
+            Log.w(TAG, "No free slot for $method on $authority within ${deadline}ms")
+            return getStale(staleKey)
+        }
+        val call = scope.async(dispatcher) {
+            try {
+                //A provider which died during the call is a failure rather than a null result
+                runCatching { contentResolver.callOrThrowIfDead(authority, method, null, extras) }
+            }finally {
+                state.inFlight.release()
+            }
+        }
+        val remaining = (deadline - (clock() - start)).coerceAtLeast(0L)
+        val result = withTimeoutOrNull(remaining) { call.await() } ?: run {
+            Log.w(TAG, "Call to $method on $authority did not complete within ${deadline}ms")
+            state.onFinished(Outcome.TIMEOUT, clock())
+            return getStale(staleKey)
+        }
+        val bundle = result.getOrElse {
+            Log.w(TAG, "Call to $method on $authority failed", it)
+            state.onFinished(Outcome.FAILURE, clock())
+            return getStale(staleKey)
+        }
+        state.onFinished(Outcome.SUCCESS, clock())
+        if(staleKey != null && bundle != null) {
+            //Copied before the caller unparcels it, so the stored result is never modified
+            staleResults.put(staleKey, Bundle(bundle))
+        }
+        return CallResult(bundle, true)
+    }
+
+    override fun getStats(): Map<String, AuthorityStats> {
+        val now = clock()
+        return synchronized(authorities) {
+            authorities.mapValues { it.value.getStats(now) }
+        }
+    }
+
+    /**
+     *  Returns a copy of the stale result for [staleKey], as callers may modify it when reading
+     */
+    private fun getStale(staleKey: StaleKey?): CallResult {
+        return CallResult(staleKey?.let { staleResults.get(it) }?.let { Bundle(it) }, false)
+    }
+
+    private fun getDeadline(method: String): Long {
+        return when {
+            method == METHOD_BACKUP || method == METHOD_RESTORE -> DEADLINE_BACKUP
+            method.isRead() -> DEADLINE_READ
+            else -> DEADLINE_DEFAULT
+        }
+    }
+
+    private fun String.isRead(): Boolean {
+        return startsWith("get_")
+    }
+
+    private data class StaleKey(
+        val authority: String,
+        val method: String,
+        val smartspacerId: String
+    )
+
+    private enum class Outcome {
+        SUCCESS, FAILURE, TIMEOUT
+    }
+
+    private class AuthorityState {
+
+        val inFlight = Semaphore(MAX_IN_FLIGHT)
+
+        private var timeouts = 0L
+        private var failures = 0L
+        private var rejected = 0L
+        private var consecutiveFailures = 0
+        private var openUntil = 0L
+
+        /**
+         *  Returns whether a call can be made. Once the cool-down has passed, one call is let
+         *  through and the circuit stays open for everything else until it finishes.
+         */
+        @Synchronized
+        fun tryStart(now: Long): Boolean {
+            if(consecutiveFailures < FAILURE_THRESHOLD) return true
+            if(now < openUntil) return false
+            openUntil = now + COOL_DOWN
+            return true
+        }
+
+        @Synchronized
+        fun onFinished(outcome: Outcome, now: Long) {
+            when(outcome) {
+                Outcome.SUCCESS -> {
+                    consecutiveFailures = 0
+                    openUntil = 0L
+                    return
+                }
+                Outcome.FAILURE -> failures++
+                Outcome.TIMEOUT -> timeouts++
+            }
+            consecutiveFailures++
+            if(consecutiveFailures >= FAILURE_THRESHOLD) {
+                openUntil = now + COOL_DOWN
+            }
+        }
+
+        @Synchronized
+        fun onRejected() {
+            rejected++
+        }
+
+        @Synchronized
+        fun getStats(now: Long): AuthorityStats {
+            val isOpen = consecutiveFailures >= FAILURE_THRESHOLD && now < openUntil
+            val inFlight = MAX_IN_FLIGHT - this.inFlight.availablePermits
+            return AuthorityStats(inFlight, timeouts, failures, rejected, isOpen)
+        }
+
+    }
+
+}
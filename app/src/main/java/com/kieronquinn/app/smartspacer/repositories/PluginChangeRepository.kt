@@ -0,0 +1,246 @@
+package com.kieronquinn.app.smartspacer.repositories
+
+import android.content.Context
+import android.database.ContentObserver
+import android.net.Uri
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import com.kieronquinn.app.smartspacer.utils.extensions.registerContentObserverSafely
+import com.kieronquinn.app.smartspacer.utils.extensions.unregisterContentObserverSafely
+import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.conflate
+import kotlinx.coroutines.flow.flow
+
+/**
+ *  Routes change notifications from plugins to the Targets, Complications, Requirements etc.
+ *  which load from them. Rather than each instance registering its own observers for its
+ *  authority and ID, a single observer is registered per authority, and changes are routed to the
+ *  subscribers of the notified path. A change to the authority itself notifies every subscriber,
+ *  and a change to `content://authority/id` only notifies subscribers for that ID.
+ */
+interface PluginChangeRepository {
+
+    /**
+     *  Emits immediately, and then whenever the plugin at [authority] notifies a change for itself
+     *  or for [id]. Bursts of changes are coalesced, so at most one emission is sent per
+     *  [PluginChangeRepositoryImpl.COALESCE_WINDOW].
+     */
+    fun observe(authority: String, id: String?): Flow<Unit>
+
+    /**
+     *  Returns the change notification stats for each authority which has been observed
+     */
+    fun getStats(): Map<String, AuthorityStats>
+
+    data class AuthorityStats(
+        /**
+         *  Number of subscribers currently observing this authority
+         */
+        val subscribers: Int,
+        /**
+         *  Total notifications received from the plugin
+         */
+        val notifications: Long,
+        /**
+         *  Total notifications routed to subscribers, before coalescing
+         */
+        val deliveries: Long,
+        /**
+         *  Notifications received in the last minute
+         */
+        val notificationsPerMinute: Int
+    )
+
+}
+
+class PluginChangeRepositoryImpl(context: Context): PluginChangeRepository {
+
+    companion object {
+        const val COALESCE_WINDOW = 100L
+        private const val RATE_WINDOW_SECONDS = 60
+    }
+
+    private val contentResolver = context.contentResolver
+    private val handler = Handler(Looper.getMainLooper())
+    private val authorities = HashMap<String, AuthorityObserver>()
+    private val lock = Object()
+
+    override fun observe(authority: String, id: String?): Flow<Unit> {
+        val changes = callbackFlow {
+            val subscriber = Subscriber { trySend(Unit) }
+            subscribe(authority, id, subscriber)
+            awaitClose {
+                unsubscribe(authority, id, subscriber)
+            }
+        }.conflate()
+        return flow {
+            emit(Unit)
+            //Emit the first change immediately, changes during the window are conflated into one
+            changes.collect {
+                emit(Unit)
+                delay(COALESCE_WINDOW)
+            }
+        }
+    }
+
+    override fun getStats(): Map<String, PluginChangeRepository.AuthorityStats> {
+        return synchronized(lock) {
+            authorities.mapValues { it.value.getStats() }
+        }
+    }
+
+    private fun subscribe(authority: String, id: String?, subscriber: Subscriber) {
+        synchronized(lock) {
+            val observer = authorities.getOrPut(authority) {
+                AuthorityObserver(authority).also {
+                    contentResolver.registerContentObserverSafely(it.uri, true, it)
+                }
+            }
+            observer.root.getOrCreate(id.toPath()).subscribers.add(subscriber)
+            observer.subscriberCount++
+        }
+    }
+
+    private fun unsubscribe(authority: String, id: String?, subscriber: Subscriber) {
+        synchronized(lock) {
+            val observer = authorities[authority] ?: return
+            observer.root.remove(id.toPath(), subscriber)
+            observer.subscriberCount--
+            if(observer.subscriberCount <= 0) {
+                contentResolver.unregisterContentObserverSafely(observer)
+                authorities.remove(authority)
+            }
+        }
+    }
+
+    private fun String?.toPath(): List<String> {
+        return if(this != null) listOf(this) else emptyList()
+    }
+
+    private inner class AuthorityObserver(
+        authority: String
+    ): ContentObserver(handler) {
+
+        val uri: Uri = Uri.Builder()
+            .scheme("content")
+            .authority(authority)
+            .build()
+
+        val root = PathNode()
+        var subscriberCount = 0
+
+        private var notifications = 0L
+        private var deliveries = 0L
+        private val rate = RateCounter()
+
+        override fun onChange(selfChange: Boolean) {
+            onChange(selfChange, null)
+        }
+
+        override fun onChange(selfChange: Boolean, uri: Uri?) {
+            //Collect first, so subscribers are not called while holding the lock
+            val subscribers = synchronized(lock) {
+                notifications++
+                rate.increment()
+                HashSet<Subscriber>().also {
+                    root.collect(uri?.pathSegments ?: emptyList(), it)
+                    deliveries += it.size
+                }
+            }
+            subscribers.forEach { it.onChange() }
+        }
+
+        fun getStats(): PluginChangeRepository.AuthorityStats {
+            return PluginChangeRepository.AuthorityStats(
+                subscriberCount, notifications, deliveries, rate.getCount()
+            )
+        }
+
+    }
+
+    /**
+     *  A node in the path trie for an authority. Subscribers for a given ID are stored in the
+     *  child node for that ID, and authority-wide subscribers are stored in the root.
+     */
+    private class PathNode {
+
+        val children = HashMap<String, PathNode>()
+        val subscribers = HashSet<Subscriber>()
+
+        fun getOrCreate(path: List<String>): PathNode {
+            return path.fold(this) { node, segment ->
+                node.children.getOrPut(segment) { PathNode() }
+            }
+        }
+
+        /**
+         *  Removes a [subscriber] from the node at [path], and removes any nodes left empty
+         */
+        fun remove(path: List<String>, subscriber: Subscriber, index: Int = 0): Boolean {
+            if(index == path.size) {
+                subscribers.remove(subscriber)
+            }else{
+                val child = children[path[index]] ?: return false
+                if(child.remove(path, subscriber, index + 1)) {
+                    children.remove(path[index])
+                }
+            }
+            return subscribers.isEmpty() && children.isEmpty()
+        }
+
+        /**
+         *  Matches [ContentObserver] semantics with `notifyForDescendants`: a change notifies the
+         *  subscribers on its path, and all subscribers below it.
+         */
+        fun collect(path: List<String>, into: MutableSet<Subscriber>, index: Int = 0) {
+            into.addAll(subscribers)
+            if(index == path.size) {
+                children.values.forEach { it.collectAll(into) }
+            }else{
+                children[path[index]]?.collect(path, into, index + 1)
+            }
+        }
+
+        private fun collectAll(into: MutableSet<Subscriber>) {
+            into.addAll(subscribers)
+            children.values.forEach { it.collectAll(into) }
+        }
+
+    }
+
+    /**
+     *  Counts events in the last [RATE_WINDOW_SECONDS] seconds, in one second buckets
+     */
+    private class RateCounter {
+
+        private val buckets = IntArray(RATE_WINDOW_SECONDS)
+        private val bucketSeconds = LongArray(RATE_WINDOW_SECONDS)
+
+        fun increment() {
+            val second = SystemClock.elapsedRealtime() / 1000L
+            val index = (second % RATE_WINDOW_SECONDS).toInt()
+            if(bucketSeconds[index] != second) {
+                bucketSeconds[index] = second
+                buckets[index] = 0
+            }
+            buckets[index]++
+        }
+
+        fun getCount(): Int {
+            val second = SystemClock.elapsedRealtime() / 1000L
+            return buckets.indices.sumOf {
+                if(second - bucketSeconds[it] < RATE_WINDOW_SECONDS) buckets[it] else 0
+            }
+        }
+
+    }
+
+    private fun interface Subscriber {
+        fun onChange()
+    }
+
+}
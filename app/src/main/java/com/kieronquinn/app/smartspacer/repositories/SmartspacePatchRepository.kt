@@ -0,0 +1,74 @@
+package com.kieronquinn.app.smartspacer.repositories
+
+import com.kieronquinn.app.smartspacer.repositories.SmartspacePatchRepository.PatchKey
+import com.kieronquinn.app.smartspacer.repositories.SmartspacePatchRepository.TextPatch
+import com.kieronquinn.app.smartspacer.repositories.SmartspacePatchRepository.TextPatches
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.update
+
+/**
+ *  Fast path for updates which only change the text of a Target or Complication, such as the
+ *  clock changing every minute. Rather than notifying a change, which reloads the provider and
+ *  re-merges every session's pages, a provider can publish a [TextPatch], which sessions apply
+ *  directly to their already-merged pages.
+ *
+ *  Patches are replaced rather than cleared: a patch only applies to items which were loaded
+ *  before it was made, so a full reload of a provider always takes priority over older patches.
+ */
+interface SmartspacePatchRepository {
+
+    /**
+     *  The latest patches
+     */
+    val patches: StateFlow<TextPatches>
+
+    /**
+     *  Publishes a [patch] for the provider at [authority]. Pass a [smartspacerId] to only patch
+     *  that instance, otherwise all instances of this provider will be patched.
+     */
+    fun patch(authority: String, smartspacerId: String?, patch: TextPatch)
+
+    data class PatchKey(val authority: String, val smartspacerId: String?)
+
+    data class TextPatch(
+        /**
+         *  The new title text, or `null` to leave it unchanged
+         */
+        val title: String? = null,
+        /**
+         *  The new subtitle text, or `null` to leave it unchanged
+         */
+        val subtitle: String? = null,
+        val createdAt: Long = System.currentTimeMillis()
+    )
+
+    data class TextPatches(val patches: Map<PatchKey, TextPatch> = emptyMap()) {
+
+        /**
+         *  Returns the latest patch which applies to the instance of [authority] with a given
+         *  [smartspacerId], either for that instance or for all instances of the provider.
+         */
+        fun getPatch(authority: String, smartspacerId: String?): TextPatch? {
+            val instancePatch = patches[PatchKey(authority, smartspacerId)]
+            val providerPatch = patches[PatchKey(authority, null)]
+            return listOfNotNull(instancePatch, providerPatch).maxByOrNull { it.createdAt }
+        }
+
+        fun isEmpty() = patches.isEmpty()
+
+    }
+
+}
+
+class SmartspacePatchRepositoryImpl: SmartspacePatchRepository {
+
+    override val patches = MutableStateFlow(TextPatches())
+
+    override fun patch(authority: String, smartspacerId: String?, patch: TextPatch) {
+        patches.update {
+            TextPatches(it.patches.plus(PatchKey(authority, smartspacerId) to patch))
+        }
+    }
+
+}
@@ -12,6 +12,7 @@ import com.kieronquinn.app.smartspacer.model.smartspace.Action
 import com.kieronquinn.app.smartspacer.model.smartspace.Target
 import com.kieronquinn.app.smartspacer.repositories.PluginRepository.Companion.ACTION_COMPLICATION
 import com.kieronquinn.app.smartspacer.repositories.PluginRepository.Companion.ACTION_TARGET
+import com.kieronquinn.app.smartspacer.repositories.TargetsRepository.ReconcileStats
 import com.kieronquinn.app.smartspacer.sdk.model.Backup
 import com.kieronquinn.app.smartspacer.sdk.model.CompatibilityState
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerComplicationProvider
@@ -114,6 +115,25 @@ interface TargetsRepository {
         authority: String, smartspacerId: String, backup: Backup
     ): Boolean
 
+    /**
+     *  Returns the counts from the last time the Target instances were reconciled with the
+     *  database
+     */
+    fun getTargetReconcileStats(): ReconcileStats
+
+    /**
+     *  Returns the counts from the last time the Complication instances were reconciled with the
+     *  database
+     */
+    fun getComplicationReconcileStats(): ReconcileStats
+
+    data class ReconcileStats(
+        val reused: Int = 0,
+        val updated: Int = 0,
+        val created: Int = 0,
+        val closed: Int = 0
+    )
+
 }
 
 class TargetsRepositoryImpl(
@@ -143,12 +163,27 @@ class TargetsRepositoryImpl(
 
     override val smartspaceVisible = MutableStateFlow(false)
 
-    private val targets = combine(databaseRepository.getTargets(), forceReload) { targets, _ ->
-        loadTargets(context, targets)
+    /**
+     *  Live instances, by ID. These are only accessed from the loading flows below, which run
+     *  sequentially, and are reconciled against the database on every change.
+     */
+    private val targetInstances = HashMap<String, Target>()
+    private val actionInstances = HashMap<String, Complication>()
+    private var targetsReloadAt = 0L
+    private var actionsReloadAt = 0L
+
+    @Volatile
+    private var targetReconcileStats = ReconcileStats()
+
+    @Volatile
+    private var actionReconcileStats = ReconcileStats()
+
+    private val targets = combine(databaseRepository.getTargets(), forceReload) { targets, reload ->
+        loadTargets(context, targets, reload)
     }.stateIn(scope, SharingStarted.Eagerly, emptyList())
 
-    private val actions = combine(databaseRepository.getActions(), forceReload) { actions, _ ->
-        loadActions(context, actions)
+    private val actions = combine(databaseRepository.getActions(), forceReload) { actions, reload ->
+        loadActions(context, actions, reload)
     }.stateIn(scope, SharingStarted.Eagerly, emptyList())
 
     override fun getAvailableTargets(): Flow<List<Target>> {
@@ -270,9 +305,30 @@ class TargetsRepositoryImpl(
         complication.restoreBackup(backup)
     }
 
-    private suspend fun loadTargets(context: Context, targets: List<DatabaseTarget>): List<Target> {
+    override fun getTargetReconcileStats() = targetReconcileStats
+
+    override fun getComplicationReconcileStats() = actionReconcileStats
+
+    /**
+     *  Reconciles the live Target instances with the database. Instances whose row is unchanged
+     *  are reused, a change to only the config is applied in place, and only new or otherwise
+     *  changed rows create a new instance. Instances for removed rows are closed. A force reload
+     *  recreates every instance, to re-check compatibility.
+     */
+    private suspend fun loadTargets(
+        context: Context,
+        targets: List<DatabaseTarget>,
+        reloadAt: Long
+    ): List<Target> {
         return withContext(Dispatchers.IO) {
-            targets.mapNotNull {
+            val forceRecreate = reloadAt != targetsReloadAt
+            targetsReloadAt = reloadAt
+            val previous = HashMap(targetInstances)
+            targetInstances.clear()
+            var reused = 0
+            var updated = 0
+            var created = 0
+            val instances = targets.map {
                 val config = Target.Config(
                     showOnHomeScreen = it.showOnHomeScreen,
                     showOnLockScreen = it.showOnLockScreen,
@@ -285,19 +341,55 @@ class TargetsRepositoryImpl(
                     expandedShowWhenLocked = it.expandedShowWhenLocked,
                     disableSubComplications = it.disableSubComplications
                 )
-                @Suppress("CloseTarget")
-                val target = Target(context, it.authority, it.id, it.packageName, config)
-                if(target.getPluginConfig().firstNotNull().compatibilityState != CompatibilityState.Compatible) {
-                    return@mapNotNull null
+                val existing = previous[it.id]?.takeIf { target ->
+                    !forceRecreate && target.authority == it.authority &&
+                            target.sourcePackage == it.packageName
+                }
+                val target = when {
+                    existing == null -> {
+                        created++
+                        @Suppress("CloseTarget")
+                        Target(context, it.authority, it.id, it.packageName, config)
+                    }
+                    existing.config != config -> {
+                        updated++
+                        existing.apply { updateConfig(config) }
+                    }
+                    else -> {
+                        reused++
+                        existing
+                    }
                 }
+                if(existing != null) previous.remove(it.id)
+                targetInstances[it.id] = target
                 target
             }
+            previous.values.forEach { target -> target.close() }
+            targetReconcileStats = ReconcileStats(reused, updated, created, previous.size)
+            instances.filter {
+                it.getPluginConfig().firstNotNull().compatibilityState == CompatibilityState.Compatible
+            }
         }
     }
 
-    private suspend fun loadActions(context: Context, actions: List<RawDatabaseAction>): List<Complication> {
+    /**
+     *  Reconciles the live Complication instances with the database, in the same way as
+     *  [loadTargets]
+     */
+    private suspend fun loadActions(
+        context: Context,
+        actions: List<RawDatabaseAction>,
+        reloadAt: Long
+    ): List<Complication> {
         return withContext(Dispatchers.IO) {
-            actions.mapNotNull {
+            val forceRecreate = reloadAt != actionsReloadAt
+            actionsReloadAt = reloadAt
+            val previous = HashMap(actionInstances)
+            actionInstances.clear()
+            var reused = 0
+            var updated = 0
+            var created = 0
+            val instances = actions.map {
                 val config = Complication.Config(
                     showOnHomeScreen = it.showOnHomeScreen,
                     showOnLockScreen = it.showOnLockScreen,
@@ -305,34 +397,34 @@ class TargetsRepositoryImpl(
                     showOverMusic = it.showOnMusic,
                     expandedShowWhenLocked = it.expandedShowWhenLocked
                 )
-                val complication = Complication(context, it.authority, it.id, it.packageName, config)
-                if(complication.getPluginConfig().firstNotNull().compatibilityState != CompatibilityState.Compatible){
-                    return@mapNotNull null
+                val existing = previous[it.id]?.takeIf { complication ->
+                    !forceRecreate && complication.authority == it.authority &&
+                            complication.sourcePackage == it.packageName
+                }
+                val complication = when {
+                    existing == null -> {
+                        created++
+                        Complication(context, it.authority, it.id, it.packageName, config)
+                    }
+                    existing.config != config -> {
+                        updated++
+                        existing.apply { updateConfig(config) }
+                    }
+                    else -> {
+                        reused++
+                        existing
+                    }
                 }
+                if(existing != null) previous.remove(it.id)
+                actionInstances[it.id] = complication
                 complication
             }
-        }
-    }
-
-    private fun setupDatabaseRefresh() {
-        scope.launch {
-            var targetsCache = targets.value
-            targets.collect {
-                targetsCache.forEach { target -> target.close() }
-                targetsCache = it
+            previous.values.forEach { complication -> complication.close() }
+            actionReconcileStats = ReconcileStats(reused, updated, created, previous.size)
+            instances.filter {
+                it.getPluginConfig().firstNotNull().compatibilityState == CompatibilityState.Compatible
             }
         }
-        scope.launch {
-            var actionsCache = actions.value
-            actions.collect {
-                actionsCache.forEach { action -> action.close() }
-                actionsCache = it
-            }
-        }
-    }
-
-    init {
-        setupDatabaseRefresh()
     }
 
 }
\ No newline at end of file
@@ -111,19 +111,20 @@ class SmartspacerNotificationListenerService: LifecycleNotificationListenerServi
         }
     }.debounce(250L)
 
-    override fun onNotificationPosted(sbn: StatusBarNotification?) {
-        super.onNotificationPosted(sbn)
-        updateNotifications()
+    override fun onListenerConnected() {
+        super.onListenerConnected()
+        //Populate the index once, after which it is kept up to date from posted/removed events
+        notificationRepository.updateNotifications(getActiveNotificationsSafely().toList())
     }
 
-    override fun onNotificationPosted(sbn: StatusBarNotification?, rankingMap: RankingMap?) {
-        super.onNotificationPosted(sbn, rankingMap)
-        updateNotifications()
+    override fun onListenerDisconnected() {
+        notificationRepository.updateNotifications(emptyList())
+        super.onListenerDisconnected()
     }
 
-    override fun onNotificationRemoved(sbn: StatusBarNotification?) {
-        super.onNotificationRemoved(sbn)
-        updateNotifications()
+    override fun onNotificationPosted(sbn: StatusBarNotification?, rankingMap: RankingMap?) {
+        super.onNotificationPosted(sbn, rankingMap)
+        notificationRepository.onNotificationPosted(sbn ?: return)
     }
 
     override fun onNotificationRemoved(
@@ -131,12 +132,7 @@ class SmartspacerNotificationListenerService: LifecycleNotificationListenerServi
         rankingMap: RankingMap?,
         reason: Int
     ) {
-        updateNotifications()
-    }
-
-    override fun onNotificationRemoved(sbn: StatusBarNotification?, rankingMap: RankingMap?) {
-        super.onNotificationRemoved(sbn, rankingMap)
-        updateNotifications()
+        notificationRepository.onNotificationRemoved(sbn ?: return)
     }
 
     override fun onCreate() {
@@ -154,10 +150,6 @@ class SmartspacerNotificationListenerService: LifecycleNotificationListenerServi
         super.onDestroy()
     }
 
-    private fun updateNotifications() = whenCreated {
-        notificationRepository.updateNotifications(getActiveNotificationsSafely().toList())
-    }
-
     private fun setupDismissBus() = whenCreated {
         notificationRepository.dismissNotificationBus.collect {
             cancelNotification(it.key)
@@ -36,6 +36,7 @@ import android.os.RemoteException
 import android.os.UserHandle
 import android.system.Os
 import android.util.Log
+import androidx.core.os.bundleOf
 import com.kieronquinn.app.smartspacer.BuildConfig
 import com.kieronquinn.app.smartspacer.IAppPredictionOnTargetsAvailableListener
 import com.kieronquinn.app.smartspacer.IRunningAppObserver
@@ -55,6 +56,7 @@ import com.kieronquinn.app.smartspacer.utils.extensions.getTaskPackages
 import com.kieronquinn.app.smartspacer.utils.extensions.getUser
 import com.kieronquinn.app.smartspacer.utils.extensions.processDied
 import com.kieronquinn.app.smartspacer.utils.extensions.toggleTorch
+import com.kieronquinn.app.smartspacer.utils.provider.ContentProviderPool
 import com.topjohnwu.superuser.internal.Utils
 import kotlinx.coroutines.MainScope
 import kotlinx.coroutines.cancel
@@ -62,6 +64,7 @@ import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 import rikka.shizuku.SystemServiceHelper
 import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.system.exitProcess
 
 @Suppress("DEPRECATION")
@@ -79,6 +82,13 @@ class SmartspacerShizukuService: ISmartspacerShizukuService.Stub() {
         const val ROOT_PACKAGE = "android"
         const val SHELL_PACKAGE = "com.android.shell"
         private const val PACKAGE_ASI = "com.google.android.as"
+
+        const val KEY_STATS_PID_CACHE_HITS = "pid_cache_hits"
+        const val KEY_STATS_PID_CACHE_MISSES = "pid_cache_misses"
+        const val KEY_STATS_PID_CACHE_SIZE = "pid_cache_size"
+        const val KEY_STATS_PROVIDER_POOL_SIZE = "provider_pool_size"
+        const val KEY_STATS_PROVIDER_POOL_ACQUIRED = "provider_pool_acquired"
+        const val KEY_STATS_PROVIDER_POOL_REUSED = "provider_pool_reused"
     }
 
     private val canUseRoot = Process.myUid() == ROOT_UID
@@ -95,6 +105,19 @@ class SmartspacerShizukuService: ISmartspacerShizukuService.Stub() {
     private val scope = MainScope()
     private var runningAppObserver: IRunningAppObserver? = null
 
+    /**
+     *  Package names of running processes by PID, kept up to date by [processObserver] so that
+     *  foreground changes don't need to list every running process. Only read on a miss.
+     */
+    private val packageNamesForPids = HashMap<Int, String>()
+    /**
+     *  Number of processes which have died, guarded by [packageNamesForPids]. Used to tell whether
+     *  a list of running processes may contain processes which have since died.
+     */
+    private var processDeaths = 0L
+    private val pidCacheHits = AtomicLong()
+    private val pidCacheMisses = AtomicLong()
+
     private val processObserver = object: IProcessObserver.Stub() {
         override fun onForegroundActivitiesChanged(
             pid: Int,
@@ -102,12 +125,16 @@ class SmartspacerShizukuService: ISmartspacerShizukuService.Stub() {
             foregroundActivities: Boolean
         ) {
             if(!foregroundActivities) return
-            val packageName = activityManager.getPackageNameForPid(pid) ?: return
+            val packageName = getPackageNameForPid(pid) ?: return
             runningAppObserver?.onRunningAppChanged(packageName)
         }
 
         override fun onProcessDied(pid: Int, uid: Int) {
-            //No-op
+            //The PID may be reused by a different process later
+            synchronized(packageNamesForPids) {
+                packageNamesForPids.remove(pid)
+                processDeaths++
+            }
         }
 
         override fun onForegroundServicesChanged(pid: Int, uid: Int, serviceTypes: Int) {
@@ -121,7 +148,12 @@ class SmartspacerShizukuService: ISmartspacerShizukuService.Stub() {
             packageName: String?,
             processName: String?
         ) {
-            //No-op
+            //Only called on Android 13 and above, older versions are filled on a miss. The name is
+            //taken from the process name as it is on a miss, so it doesn't depend on the path.
+            val name = processName?.toPackageName() ?: return
+            synchronized(packageNamesForPids) {
+                packageNamesForPids[pid] = name
+            }
         }
     }
 
@@ -163,6 +195,10 @@ class SmartspacerShizukuService: ISmartspacerShizukuService.Stub() {
         IWifiManager.Stub.asInterface(proxy)
     }
 
+    private val proxyProviderPool by lazy {
+        ContentProviderPool(activityManager, getUserId(), scope)
+    }
+
     private val cameraManager = context.getSystemService(Context.CAMERA_SERVICE) as CameraManager
 
     private var appPredictionSession: AppPredictionSessionWrapper? = null
@@ -588,23 +624,13 @@ class SmartspacerShizukuService: ISmartspacerShizukuService.Stub() {
     }
 
     private fun <T> runWithProxyProvider(uri: Uri, block: IContentProvider.() -> T?): T? {
-        return runWithClearedIdentity {
-            val token = Binder()
-            try {
-                val provider = activityManager.getContentProviderExternal(
-                    uri.authority,
-                    getUserId(),
-                    token,
-                    "proxy"
-                )?.provider
-                provider?.let { block(it) }
-            } finally {
-                activityManager.removeContentProviderExternalAsUser(
-                    uri.authority,
-                    token,
-                    getUserId()
-                )
-            }
+        val authority = uri.authority ?: return null
+        //Identity is restored in finally rather than by runWithClearedIdentity, as calls can throw
+        val token = Binder.clearCallingIdentity()
+        return try {
+            proxyProviderPool.runWithProvider(authority, block)
+        }finally {
+            Binder.restoreCallingIdentity(token)
         }
     }
 
@@ -612,15 +638,57 @@ class SmartspacerShizukuService: ISmartspacerShizukuService.Stub() {
         activityManager.registerProcessObserver(processObserver)
     }
 
+    override fun getStats(): Bundle {
+        val poolStats = proxyProviderPool.getStats()
+        return bundleOf(
+            KEY_STATS_PROVIDER_POOL_SIZE to poolStats.size,
+            KEY_STATS_PROVIDER_POOL_ACQUIRED to poolStats.acquired,
+            KEY_STATS_PROVIDER_POOL_REUSED to poolStats.reused,
+            KEY_STATS_PID_CACHE_HITS to pidCacheHits.get(),
+            KEY_STATS_PID_CACHE_MISSES to pidCacheMisses.get(),
+            KEY_STATS_PID_CACHE_SIZE to synchronized(packageNamesForPids) {
+                packageNamesForPids.size
+            }
+        )
+    }
+
+    /**
+     *  Returns the package name for a given PID from the cache, or on a miss finds it in the
+     *  running apps. Every running app is cached from the same list, so only PIDs which started
+     *  since the last miss will miss again. If a process died while the list was being fetched,
+     *  it may still be in the list after its death was handled, so nothing is cached.
+     */
+    private fun getPackageNameForPid(pid: Int): String? {
+        synchronized(packageNamesForPids) {
+            packageNamesForPids[pid]
+        }?.let {
+            pidCacheHits.incrementAndGet()
+            return it
+        }
+        pidCacheMisses.incrementAndGet()
+        val deaths = synchronized(packageNamesForPids) {
+            processDeaths
+        }
+        val processes = activityManager.runningAppProcesses ?: return null
+        val packageNames = processes.mapNotNull {
+            Pair(it.pid, it.processName?.toPackageName() ?: return@mapNotNull null)
+        }
+        synchronized(packageNamesForPids) {
+            if(processDeaths == deaths) {
+                packageNamesForPids.putAll(packageNames)
+            }
+        }
+        return packageNames.firstOrNull { it.first == pid }?.second
+    }
+
     /**
-     *  Finds a given PID in the running apps and returns its process name, which seems to be the
-     *  package name.
+     *  Converts a process name to its package name, which seems to be the process name without
+     *  any suffix.
      */
-    private fun IActivityManager.getPackageNameForPid(pid: Int): String? {
-        val rawName = runningAppProcesses.find { it.pid == pid }?.processName
-        return if(rawName?.contains(":") == true){
-            rawName.substring(0, rawName.indexOf(":"))
-        }else rawName
+    private fun String.toPackageName(): String {
+        return if(contains(":")){
+            substring(0, indexOf(":"))
+        }else this
     }
 
 }
\ No newline at end of file
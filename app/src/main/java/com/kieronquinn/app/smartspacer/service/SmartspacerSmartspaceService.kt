@@ -17,17 +17,32 @@ import com.kieronquinn.app.smartspacer.components.smartspace.AmbientCueSmartspac
 import com.kieronquinn.app.smartspacer.components.smartspace.DreamSmartspacerSession
 import com.kieronquinn.app.smartspacer.components.smartspace.GlanceableHubSmartspacerSession
 import com.kieronquinn.app.smartspacer.components.smartspace.MediaDataSmartspacerSession
+import com.kieronquinn.app.smartspacer.components.smartspace.SharedSmartspaceMerger
 import com.kieronquinn.app.smartspacer.components.smartspace.SystemSmartspacerSession
 import com.kieronquinn.app.smartspacer.receivers.DailyUpdateAlarmReceiver.Companion.INTENT_DAY_CHANGED
 import com.kieronquinn.app.smartspacer.receivers.SafeModeReceiver
+import com.kieronquinn.app.smartspacer.repositories.AlarmRepository
+import com.kieronquinn.app.smartspacer.repositories.BroadcastRepository
 import com.kieronquinn.app.smartspacer.repositories.CompatibilityRepository
+import com.kieronquinn.app.smartspacer.repositories.DataRepository
+import com.kieronquinn.app.smartspacer.repositories.MetricsRepository
 import com.kieronquinn.app.smartspacer.repositories.NotificationRepository
+import com.kieronquinn.app.smartspacer.repositories.PendingIntentRepository
+import com.kieronquinn.app.smartspacer.repositories.PluginCallRepository
+import com.kieronquinn.app.smartspacer.repositories.PluginChangeRepository
 import com.kieronquinn.app.smartspacer.repositories.ShizukuServiceRepository
 import com.kieronquinn.app.smartspacer.repositories.SmartspacerSettingsRepository
 import com.kieronquinn.app.smartspacer.repositories.SystemSmartspaceRepository
+import com.kieronquinn.app.smartspacer.repositories.TargetsRepository
 import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceConfig
 import com.kieronquinn.app.smartspacer.sdk.model.UiSurface
 import com.kieronquinn.app.smartspacer.sdk.utils.applySecurity
+import com.kieronquinn.app.smartspacer.service.SmartspacerShizukuService.Companion.KEY_STATS_PID_CACHE_HITS
+import com.kieronquinn.app.smartspacer.service.SmartspacerShizukuService.Companion.KEY_STATS_PID_CACHE_MISSES
+import com.kieronquinn.app.smartspacer.service.SmartspacerShizukuService.Companion.KEY_STATS_PID_CACHE_SIZE
+import com.kieronquinn.app.smartspacer.service.SmartspacerShizukuService.Companion.KEY_STATS_PROVIDER_POOL_ACQUIRED
+import com.kieronquinn.app.smartspacer.service.SmartspacerShizukuService.Companion.KEY_STATS_PROVIDER_POOL_REUSED
+import com.kieronquinn.app.smartspacer.service.SmartspacerShizukuService.Companion.KEY_STATS_PROVIDER_POOL_SIZE
 import com.kieronquinn.app.smartspacer.utils.extensions.broadcastReceiverAsFlow
 import com.kieronquinn.app.smartspacer.utils.extensions.getDarkMode
 import com.kieronquinn.app.smartspacer.utils.extensions.getDefaultSmartspaceComponent
@@ -51,6 +66,7 @@ import kotlinx.coroutines.withContext
 import org.koin.android.ext.android.inject
 import java.io.FileDescriptor
 import java.io.PrintWriter
+import java.time.Instant
 import kotlin.system.exitProcess
 import android.app.smartspace.SmartspaceConfig as SystemSmartspaceConfig
 import android.app.smartspace.SmartspaceSessionId as SystemSmartspaceSessionId
@@ -89,6 +105,15 @@ class SmartspacerSmartspaceService : LifecycleSmartspaceService() {
     private val systemSmartspace by inject<SystemSmartspaceRepository>()
     private val settings by inject<SmartspacerSettingsRepository>()
     private val compatibilityRepository by inject<CompatibilityRepository>()
+    private val pendingIntentRepository by inject<PendingIntentRepository>()
+    private val metricsRepository by inject<MetricsRepository>()
+    private val sharedMerger by inject<SharedSmartspaceMerger>()
+    private val targetsRepository by inject<TargetsRepository>()
+    private val pluginChangeRepository by inject<PluginChangeRepository>()
+    private val pluginCallRepository by inject<PluginCallRepository>()
+    private val dataRepository by inject<DataRepository>()
+    private val broadcastRepository by inject<BroadcastRepository>()
+    private val alarmRepository by inject<AlarmRepository>()
     private val pruneLock = Mutex()
 
     private var lastTargets = HashMap<String, List<SystemSmartspaceTarget>>()
@@ -315,7 +340,7 @@ class SmartspacerSmartspaceService : LifecycleSmartspaceService() {
     ) {
         if (!sessions.contains(sessionId)) return
         pruneSessions()
-        updateSmartspaceTargets(sessionId, targets).also {
+        sendTargets(sessionId, targets, "systemui").also {
             val id = sessionId.id
             if (BuildConfig.DEBUG && id != null) {
                 lastTargets[id] = targets
@@ -329,7 +354,7 @@ class SmartspacerSmartspaceService : LifecycleSmartspaceService() {
     ) {
         if (!mediaDataSessions.contains(sessionId)) return
         pruneSessions()
-        updateSmartspaceTargets(sessionId, targets)
+        sendTargets(sessionId, targets, "systemui:media")
     }
 
     private suspend fun onHubUpdate(
@@ -338,7 +363,7 @@ class SmartspacerSmartspaceService : LifecycleSmartspaceService() {
     ) {
         if (!glanceableHubSessions.contains(sessionId)) return
         pruneSessions()
-        updateSmartspaceTargets(sessionId, targets)
+        sendTargets(sessionId, targets, "systemui:hub")
     }
 
     private suspend fun onDreamUpdate(
@@ -347,7 +372,7 @@ class SmartspacerSmartspaceService : LifecycleSmartspaceService() {
     ) {
         if (!dreamSessions.contains(sessionId)) return
         pruneSessions()
-        updateSmartspaceTargets(sessionId, targets)
+        sendTargets(sessionId, targets, "systemui:dream")
     }
 
     private suspend fun onAmbientCueUpdate(
@@ -356,7 +381,16 @@ class SmartspacerSmartspaceService : LifecycleSmartspaceService() {
     ) {
         if (!ambientCueSessions.contains(sessionId)) return
         pruneSessions()
+        sendTargets(sessionId, targets, "systemui:cue")
+    }
+
+    private fun sendTargets(
+        sessionId: SystemSmartspaceSessionId,
+        targets: List<SystemSmartspaceTarget>,
+        destination: String
+    ) {
         updateSmartspaceTargets(sessionId, targets)
+        metricsRepository.recordPayload(destination, targets)
     }
 
     override fun onDestroySmartspaceSession(sessionId: SystemSmartspaceSessionId) {
@@ -396,6 +430,8 @@ class SmartspacerSmartspaceService : LifecycleSmartspaceService() {
 
     override fun dump(fd: FileDescriptor, writer: PrintWriter, args: Array<out String>) {
         super.dump(fd, writer, args)
+        dumpMetrics(writer)
+        //Targets may contain personal data, so are only dumped in debug builds
         if (!BuildConfig.DEBUG) return
         with(writer) {
             write("=== SMARTSPACE ===")
@@ -452,6 +488,91 @@ class SmartspacerSmartspaceService : LifecycleSmartspaceService() {
         }
     }
 
+    /**
+     *  Writes the runtime metrics, which are always available so slow updates can be diagnosed
+     *  on release builds. This only reads counters which are already kept, so is cheap to run.
+     */
+    private fun dumpMetrics(writer: PrintWriter) = with(writer) {
+        println("=== METRICS ===")
+        println("Sessions:")
+        metricsRepository.getSessionStats().forEach { (session, stats) ->
+            println("  $session: ${stats.merges} merges, ${stats.latency}")
+        }
+        val mergeStats = sharedMerger.getStats()
+        println(
+            "Shared merges: ${mergeStats.computed} computed, ${mergeStats.shared} shared, " +
+                    "${mergeStats.keys} keys"
+        )
+        val targetReconcile = targetsRepository.getTargetReconcileStats()
+        val complicationReconcile = targetsRepository.getComplicationReconcileStats()
+        println("Last Target reconcile: $targetReconcile")
+        println("Last Complication reconcile: $complicationReconcile")
+        println("Slow updates:")
+        metricsRepository.getSlowUpdates().forEach {
+            val time = Instant.ofEpochMilli(it.time)
+            println("  $time ${it.session}: ${it.durationMillis}ms, trigger ${it.trigger}")
+        }
+        println("Plugin calls:")
+        metricsRepository.getPluginCallStats().forEach { (authority, methods) ->
+            println("  $authority:")
+            methods.forEach { (method, stats) ->
+                println(
+                    "    $method: ${stats.calls} calls, ${stats.failures} failed, ${stats.latency}"
+                )
+            }
+        }
+        println("Plugin call limits:")
+        pluginCallRepository.getStats().toSortedMap().forEach { (authority, stats) ->
+            val state = if(stats.isOpen) "open" else "closed"
+            println(
+                "  $authority: circuit $state, ${stats.inFlight} in flight, ${stats.timeouts} " +
+                        "timeouts, ${stats.failures} failures, ${stats.rejected} rejected"
+            )
+        }
+        println("Plugin change notifications:")
+        pluginChangeRepository.getStats().toSortedMap().forEach { (authority, stats) ->
+            println(
+                "  $authority: ${stats.notificationsPerMinute}/min, ${stats.notifications} " +
+                        "total, ${stats.deliveries} delivered to ${stats.subscribers} subscribers"
+            )
+        }
+        println("Binder payloads:")
+        metricsRepository.getPayloadStats().forEach { (destination, stats) ->
+            println(
+                "  $destination: ${stats.sent} sent, ${stats.sampled} sampled, last " +
+                        "${stats.lastSizeBytes} bytes (${stats.lastItems} items), " +
+                        "max ${stats.maxSizeBytes} bytes"
+            )
+        }
+        println("Data caches:")
+        dataRepository.getCacheStats().forEach { (name, stats) ->
+            println("  $name: ${stats.size} rows, ${stats.hits} hits, ${stats.misses} misses")
+        }
+        val broadcastStats = broadcastRepository.getStats()
+        println(
+            "Broadcasts: ${broadcastStats.receivers} receivers, ${broadcastStats.subscriptions} " +
+                    "subscriptions, ${broadcastStats.received} received, " +
+                    "${broadcastStats.calls} plugin calls"
+        )
+        println("Alarms:")
+        alarmRepository.getTimeline().forEach {
+            println("  ${Instant.ofEpochMilli(it.time)}: ${it.owner}")
+        }
+        println("PendingIntents: ${pendingIntentRepository.getLiveCount()} live")
+        shizuku.runWithServiceIfAvailable { it.stats }.unwrap()?.let {
+            println(
+                "Enhanced mode PID cache: ${it.getInt(KEY_STATS_PID_CACHE_SIZE)} processes, " +
+                        "${it.getLong(KEY_STATS_PID_CACHE_HITS)} hits, " +
+                        "${it.getLong(KEY_STATS_PID_CACHE_MISSES)} misses"
+            )
+            println(
+                "Enhanced mode providers: ${it.getInt(KEY_STATS_PROVIDER_POOL_SIZE)} held, " +
+                        "${it.getLong(KEY_STATS_PROVIDER_POOL_ACQUIRED)} acquired, " +
+                        "${it.getLong(KEY_STATS_PROVIDER_POOL_REUSED)} reused"
+            )
+        }
+    }
+
     /**
      *  Listens for crashes in the logcat via Shizuku, triggering safe mode if any of the packages
      *  in [CompatibilityRepository.compatibilityReports] crash.
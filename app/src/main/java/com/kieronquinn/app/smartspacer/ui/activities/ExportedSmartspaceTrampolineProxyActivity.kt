@@ -10,6 +10,8 @@ import android.util.Log
 import android.widget.RemoteViews.RemoteResponse
 import androidx.appcompat.app.AppCompatActivity
 import com.kieronquinn.app.smartspacer.repositories.CompatibilityRepository.CompatibilityReport.Companion.PACKAGE_PIXEL_LAUNCHER
+import com.kieronquinn.app.smartspacer.repositories.PendingIntentRepository
+import com.kieronquinn.app.smartspacer.repositories.PendingIntentRepository.PendingIntentKey
 import com.kieronquinn.app.smartspacer.repositories.ShizukuServiceRepository
 import com.kieronquinn.app.smartspacer.sdk.model.RemoteOnClickResponse
 import com.kieronquinn.app.smartspacer.sdk.utils.applySecurity
@@ -21,11 +23,13 @@ import com.kieronquinn.app.smartspacer.utils.extensions.toRemoteResponse
 import com.kieronquinn.app.smartspacer.utils.extensions.verifySecurity
 import com.kieronquinn.app.smartspacer.utils.extensions.whenCreated
 import org.koin.android.ext.android.inject
+import org.koin.core.component.KoinComponent
+import org.koin.core.component.inject
 import java.util.UUID
 
 class ExportedSmartspaceTrampolineProxyActivity: AppCompatActivity() {
 
-    companion object {
+    companion object: KoinComponent {
         private const val SMARTSPACE_INTENT_EXTRA =
             "com.google.android.apps.gsa.smartspace.extra.SMARTSPACE_INTENT"
 
@@ -46,7 +50,24 @@ class ExportedSmartspaceTrampolineProxyActivity: AppCompatActivity() {
         private const val ACTION_WEATHER = "com.google.android.apps.weather.action.VIEW_LOCATION_EXTERNAL"
         private const val EXTRA_REMOTE_RESPONSE = "remote_response"
 
-        fun getPendingIntent(context: Context, extra: RemoteResponse): PendingIntent {
+        private val pendingIntentRepository by inject<PendingIntentRepository>()
+
+        /**
+         *  Returns a PendingIntent which proxies [extra]. If a [key] is given, the PendingIntent
+         *  is held in the [PendingIntentRepository] and reused while [extra] is unchanged.
+         */
+        fun getPendingIntent(
+            context: Context,
+            extra: RemoteResponse,
+            key: PendingIntentKey? = null
+        ): PendingIntent {
+            if(key != null) {
+                return pendingIntentRepository.getActivity(
+                    key, extra.toRemoteResponse(), PendingIntent.FLAG_IMMUTABLE
+                ) {
+                    getIntent(context, extra)
+                }
+            }
             return PendingIntent.getActivity(
                 context,
                 UUID.randomUUID().hashCode(),
@@ -40,7 +40,7 @@ class RemoteViewsSmartspaceView(
             ?.wrap(context, textColour == Color.BLACK)
             ?.copy()
             ?.let {
-                if(isList) it.replaceClickWithFillIntent() else it
+                if(isList) it.replaceClickWithFillIntent(context) else it
             }
         remoteViews.setOnClickAction(
             context,
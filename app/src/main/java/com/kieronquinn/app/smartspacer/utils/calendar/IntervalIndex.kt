@@ -0,0 +1,60 @@
+package com.kieronquinn.app.smartspacer.utils.calendar
+
+import java.time.Instant
+
+/**
+ *  Immutable index of half-open intervals `[start, end)`, answering "which items cover this
+ *  instant" in O(log n + k) for k results.
+ *
+ *  Intervals are sorted by start and treated as an implicit balanced tree over the sorted array,
+ *  where each node stores the latest end of its subtree. Subtrees which end at or before the
+ *  query point, or start after it, are skipped without being visited.
+ */
+class IntervalIndex<T>(intervals: List<Interval<T>>) {
+
+    data class Interval<T>(val start: Instant, val end: Instant, val item: T)
+
+    private val sorted = intervals.sortedBy { it.start }
+    private val maxEnds = arrayOfNulls<Instant>(sorted.size)
+
+    val size = sorted.size
+
+    init {
+        buildMaxEnds(0, sorted.size)
+    }
+
+    /**
+     *  Returns the items of all intervals which contain [point], in order of their start
+     */
+    fun query(point: Instant): List<T> {
+        val results = ArrayList<T>()
+        query(0, sorted.size, point, results)
+        return results
+    }
+
+    private fun buildMaxEnds(from: Int, to: Int): Instant? {
+        if(from >= to) return null
+        val mid = (from + to) ushr 1
+        var maxEnd = sorted[mid].end
+        buildMaxEnds(from, mid)?.let { if(it.isAfter(maxEnd)) maxEnd = it }
+        buildMaxEnds(mid + 1, to)?.let { if(it.isAfter(maxEnd)) maxEnd = it }
+        maxEnds[mid] = maxEnd
+        return maxEnd
+    }
+
+    private fun query(from: Int, to: Int, point: Instant, results: MutableList<T>) {
+        if(from >= to) return
+        val mid = (from + to) ushr 1
+        //Nothing in this subtree ends after the point
+        if(!maxEnds[mid]!!.isAfter(point)) return
+        query(from, mid, point, results)
+        val interval = sorted[mid]
+        //Everything to the right starts after the point
+        if(interval.start.isAfter(point)) return
+        if(interval.end.isAfter(point)) {
+            results.add(interval.item)
+        }
+        query(mid + 1, to, point, results)
+    }
+
+}
@@ -8,6 +8,7 @@ import android.os.Bundle
 import android.os.DeadObjectException
 import android.os.Handler
 import android.os.Looper
+import com.kieronquinn.app.smartspacer.repositories.MetricsRepository
 import com.kieronquinn.app.smartspacer.utils.test.TestUtils
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.channels.awaitClose
@@ -17,6 +18,7 @@ import kotlinx.coroutines.flow.flowOf
 import kotlinx.coroutines.flow.flowOn
 import kotlinx.coroutines.flow.mapNotNull
 import kotlinx.coroutines.flow.onCompletion
+import org.koin.core.context.GlobalContext
 
 fun ContentResolver.registerContentObserverSafely(
     uri: Uri,
@@ -119,30 +121,84 @@ fun ContentResolver.callSafely(
     arg: String?,
     extras: Bundle?
 ): Bundle? {
-    val client = acquireUnstableContentProviderClient(authority) ?: run {
-        return null
-    }
     return try {
-        client.call(method, arg, extras).also {
-            client.close()
-        }
+        callOrThrowIfDead(authority, method, arg, extras)
     }catch (e: DeadObjectException){
         null
     }
 }
 
+/**
+ *  As [callSafely], but throws [DeadObjectException] if the provider's process died during the
+ *  call, so it can be told apart from the provider returning `null`.
+ */
+fun ContentResolver.callOrThrowIfDead(
+    authority: String,
+    method: String,
+    arg: String?,
+    extras: Bundle?
+): Bundle? = recordCall(authority, method) {
+    val client = acquireUnstableContentProviderClient(authority) ?: run {
+        return@recordCall null
+    }
+    try {
+        client.call(method, arg, extras)
+    }finally {
+        client.close()
+    }
+}
+
 fun ContentResolver.callSafely(
     uri: Uri,
     method: String,
     arg: String?,
     extras: Bundle?
 ): Bundle? {
-    val client = acquireUnstableContentProviderClient(uri) ?: return null
     return try {
-        client.call(method, arg, extras).also {
-            client.close()
+        recordCall(uri.authority ?: "", method) {
+            val client = acquireUnstableContentProviderClient(uri) ?: return@recordCall null
+            try {
+                client.call(method, arg, extras)
+            }finally {
+                client.close()
+            }
         }
     }catch (e: DeadObjectException){
         null
     }
+}
+
+@Volatile
+private var metricsRepository: MetricsRepository? = null
+
+/**
+ *  Returns the [MetricsRepository] once Koin has started, which is looked up on the first call
+ *  after that rather than on every call.
+ */
+private fun getMetricsRepository(): MetricsRepository? {
+    return metricsRepository ?: GlobalContext.getOrNull()?.getOrNull<MetricsRepository>()?.also {
+        metricsRepository = it
+    }
+}
+
+/**
+ *  Records the duration of a plugin call in the [MetricsRepository], if it is available. Only a
+ *  call which throws (eg. the provider died, timed out or refused the call) is counted as failed,
+ *  since many methods return null when they succeed.
+ */
+private inline fun recordCall(
+    authority: String,
+    method: String,
+    call: () -> Bundle?
+): Bundle? {
+    val metrics = getMetricsRepository() ?: return call()
+    val start = System.nanoTime()
+    var failed = true
+    try {
+        return call().also {
+            failed = false
+        }
+    }finally {
+        metrics.recordPluginCall(authority, method, System.nanoTime() - start, failed)
+    }
 }
\ No newline at end of file
@@ -1,7 +1,12 @@
 package com.kieronquinn.app.smartspacer.utils.extensions
 
-fun List<*>.deepEquals(other : List<*>, eq: Any?.(Any?) -> Boolean = { equals(it) }) =
-    this.size == other.size && this.mapIndexed { i, e -> eq(e, other[i]) }.all { it }
+fun List<*>.deepEquals(other : List<*>, eq: Any?.(Any?) -> Boolean = { equals(it) }): Boolean {
+    if(size != other.size) return false
+    for(i in indices) {
+        if(!eq(this[i], other[i])) return false
+    }
+    return true
+}
 
 /**
  *  Splits a given list using the [predicate], returning a pair of the original list with items
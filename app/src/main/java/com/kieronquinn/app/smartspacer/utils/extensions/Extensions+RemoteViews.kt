@@ -8,7 +8,6 @@ import android.content.Context
 import android.content.Intent
 import android.content.pm.ApplicationInfo
 import android.content.res.ColorStateList
-import android.net.Uri
 import android.os.Build
 import android.os.Bundle
 import android.util.SizeF
@@ -23,145 +22,104 @@ import androidx.annotation.RequiresApi
 import androidx.core.widget.RemoteViewsCompat.setImageViewColorFilter
 import androidx.core.widget.RemoteViewsCompat.setImageViewImageTintList
 import com.kieronquinn.app.smartspacer.components.smartspace.targets.AsNowPlayingTarget
-import com.kieronquinn.app.smartspacer.providers.SmartspacerWidgetProxyContentProvider.Companion.createSmartspacerWidgetProxyUri
 import com.kieronquinn.app.smartspacer.receivers.WidgetListClickReceiver
+import com.kieronquinn.app.smartspacer.repositories.PendingIntentRepository.PendingIntentKey
 import com.kieronquinn.app.smartspacer.sdk.client.views.base.SmartspacerBasePageView.SmartspaceTargetInteractionListener
-import com.kieronquinn.app.smartspacer.sdk.model.RemoteOnClickResponse.RemoteResponse.Companion.INTERACTION_TYPE_CHECKED_CHANGE
-import com.kieronquinn.app.smartspacer.sdk.utils.copy
 import com.kieronquinn.app.smartspacer.ui.activities.ExportedSmartspaceTrampolineProxyActivity
 import com.kieronquinn.app.smartspacer.ui.activities.OverlayTrampolineActivity
+import com.kieronquinn.app.smartspacer.utils.remoteviews.RemoteViewsRewriter
+import com.kieronquinn.app.smartspacer.utils.remoteviews.RemoteViewsRewriter.ActionHandle
+import com.kieronquinn.app.smartspacer.utils.remoteviews.RemoteViewsRewriter.ActionType
+import com.kieronquinn.app.smartspacer.utils.remoteviews.RemoteViewsRewriter.ClickRewrite
+import com.kieronquinn.app.smartspacer.utils.remoteviews.RemoteViewsRewriter.Rewrite
 import dev.rikka.tools.refine.Refine
 import java.lang.reflect.Field
 import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
 import android.util.Pair as AndroidPair
 
-@SuppressLint("DiscouragedPrivateApi")
-private val mActions = RemoteViews::class.java.getDeclaredField("mActions").apply {
-    isAccessible = true
+private val mCollectionCache by lazy {
+    RemoteViews::class.java.findField("mCollectionCache")
 }
 
-@Suppress("UNCHECKED_CAST")
-private var RemoteViews.actions: ArrayList<Any>?
-    get() = mActions.get(this) as? ArrayList<Any>
-    set(value) = mActions.set(this, value)
-
-@Suppress("UNCHECKED_CAST")
-@SuppressLint("DiscouragedPrivateApi")
-private fun RemoteViews.getActionsIncludingSized(): List<Any> {
-    val myActions = actions?.toList() ?: emptyList()
-    val sizedActions = getSizedRemoteViews().mapNotNull {
-        it.actions
-    }.flatten()
-    return myActions + sizedActions
+private val mUriToCollectionMapping by lazy {
+    Class.forName("android.widget.RemoteViews\$RemoteCollectionCache")
+        .findField("mUriToCollectionMapping")
 }
 
-@SuppressLint("PrivateApi")
-fun RemoteViews.getCollectionCache(): Map<String, RemoteCollectionItems> {
-    val collectionCache = RemoteViews::class.java.getDeclaredField("mCollectionCache").apply {
-        isAccessible = true
-    }.get(this)
-    return Class.forName("android.widget.RemoteViews\$RemoteCollectionCache")
-        .getDeclaredField("mUriToCollectionMapping").apply {
-            isAccessible = true
-        }.get(collectionCache) as Map<String, RemoteCollectionItems>
+private val mApplication by lazy {
+    RemoteViews::class.java.findField("mApplication")
 }
 
-fun RemoteViews.getActionsIncludingNested(): List<Any> {
-    val actions = getActionsIncludingSized()
-    val actionsIncludingNested = ArrayList(actions)
-    actions.forEach {
-        when(it.javaClass.simpleName) {
-            "ViewGroupActionAdd" -> {
-                it.getViewGroupActionAddRemoteViews().getActionsIncludingNested().let { actions ->
-                    actionsIncludingNested.addAll(actions)
-                }
+private val actionHandles = ConcurrentHashMap<Class<*>, ActionHandle>()
+
+/**
+ *  The [ActionHandle] for this action's class, resolved on first use
+ */
+internal val Any.actionHandle: ActionHandle
+    get() = actionHandles.getOrPut(javaClass) { ActionHandle(javaClass) }
+
+/**
+ *  Returns the first of the declared fields named in [options] which exists, made accessible
+ */
+internal fun Class<*>.findField(vararg options: String): Field? {
+    return options.firstNotNullOfOrNull {
+        try {
+            getDeclaredField(it).apply {
+                isAccessible = true
             }
+        }catch (e: NoSuchFieldException) {
+            null
         }
     }
-    return actionsIncludingNested.distinct()
-}
-
-private val setRemoteViewsAdapterIntentClass by lazy {
-    Class.forName("${RemoteViews::class.java.name}\$SetRemoteViewsAdapterIntent")
 }
 
-private val setRemoteCollectionItemListAdapterClass by lazy {
-    Class.forName("${RemoteViews::class.java.name}\$SetRemoteCollectionItemListAdapterAction")
-}
-
-private val setOnClickResponseClass by lazy {
-    Class.forName("${RemoteViews::class.java.name}\$SetOnClickResponse")
-}
-
-private val actionClass by lazy {
-    Class.forName("${RemoteViews::class.java.name}\$Action")
-}
-
-private val reflectionActionClass by lazy {
-    Class.forName("${RemoteViews::class.java.name}\$ReflectionAction")
-}
-
-private val reflectionActionValueField by lazy {
-    reflectionActionClass.getDeclaredField("value", "mValue").apply {
-        isAccessible = true
-    }
+@Suppress("UNCHECKED_CAST")
+fun RemoteViews.getCollectionCache(): Map<String, RemoteCollectionItems> {
+    val collectionCache = mCollectionCache!!.get(this)
+    return mUriToCollectionMapping!!.get(collectionCache) as Map<String, RemoteCollectionItems>
 }
 
-private val mApplicationField by lazy {
-    RemoteViews::class.java.getField("mApplication")
+fun RemoteViews.getActionsIncludingNested(): List<Any> {
+    return RemoteViewsRewriter.getAllActions(this)
 }
 
 fun Any.isRemoteViewsAdapterIntent(): Boolean {
-    return this::class.java == setRemoteViewsAdapterIntentClass
+    return actionHandle.type == ActionType.ADAPTER_INTENT
 }
 
 fun Any.isRemoteCollectionItemListAdapter(): Boolean {
-    return this::class.java == setRemoteCollectionItemListAdapterClass
+    return actionHandle.type == ActionType.COLLECTION_ITEMS
 }
 
 fun Any.isOnClickResponse(): Boolean {
-    return this::class.java == setOnClickResponseClass
+    return actionHandle.type == ActionType.ON_CLICK_RESPONSE
 }
 
 fun Any.getId(): Int {
-    return actionClass.getDeclaredField("viewId", "mViewId").apply {
-        isAccessible = true
-    }.get(this) as Int
+    return actionHandle.getViewId(this)
 }
 
 fun Any.extractAdapterIntent(): Pair<Int, Intent> {
-    val intent = setRemoteViewsAdapterIntentClass.getDeclaredField("intent", "mIntent").apply {
-        isAccessible = true
-    }.get(this) as Intent
+    val intent = actionHandle.intent!!.get(this) as Intent
     return Pair(getId(), intent)
 }
 
 @RequiresApi(Build.VERSION_CODES.S)
+@Suppress("UNCHECKED_CAST")
 fun Any.extractRemoteCollectionItems(): Pair<Int, RemoteCollectionItems>? {
-   return setRemoteCollectionItemListAdapterClass.declaredFields.firstNotNullOfOrNull {
-        when(it.name) {
-            "mItems" -> getRemoteCollectItemsLegacy(it)?.let { items ->
-                Pair(getId(), items)
-            }
-            "mItemsFuture" -> getRemoteCollectItemsFuture(it)?.let { items ->
-                Pair(getId(), items)
-            }
-            else -> null
-        }
-    }
+    val handle = actionHandle
+    val items = handle.items?.get(this) as? RemoteCollectionItems
+        ?: (handle.itemsFuture?.get(this) as? CompletableFuture<RemoteCollectionItems?>)?.get()
+        ?: return null
+    return Pair(getId(), items)
 }
 
 //Requires 36
 @RequiresApi(Build.VERSION_CODES.S)
 fun Any.extractRemoteCollectionIntent(): Pair<Int, Intent>? {
-   return setRemoteCollectionItemListAdapterClass.declaredFields.firstNotNullOfOrNull {
-        when(it.name) {
-            "mServiceIntent" -> getRemoteCollectIntent(it)?.let { intent ->
-                Pair(getId(), intent)
-            }
-            else -> null
-        }
-    }
+    val intent = actionHandle.serviceIntent?.get(this) as? Intent ?: return null
+    return Pair(getId(), intent)
 }
 
 sealed class ExtractedRemoteCollectionItems(open val id: Int) {
@@ -171,71 +129,32 @@ sealed class ExtractedRemoteCollectionItems(open val id: Int) {
     ): ExtractedRemoteCollectionItems(id)
 }
 
-@RequiresApi(Build.VERSION_CODES.S)
-private fun Any.getRemoteCollectItemsLegacy(field: Field): RemoteCollectionItems? {
-    return field.let {
-        it.isAccessible = true
-        it.get(this) as? RemoteCollectionItems
-    }
-}
-
-@RequiresApi(Build.VERSION_CODES.S)
-private fun Any.getRemoteCollectItemsFuture(field: Field): RemoteCollectionItems? {
-    return field.let {
-        it.isAccessible = true
-        val future = it.get(this) as CompletableFuture<RemoteCollectionItems?>
-        future.get()
-    }
-}
-
-@RequiresApi(Build.VERSION_CODES.S)
-private fun Any.getRemoteCollectIntent(field: Field): Intent? {
-    return field.let {
-        it.isAccessible = true
-        it.get(this) as? Intent
-    }
-}
-
 fun Any.extractOnClickResponse(): Pair<Int, RemoteResponse> {
-    val intent = setOnClickResponseClass.getDeclaredField("mResponse").apply {
-        isAccessible = true
-    }.get(this) as RemoteResponse
+    val intent = actionHandle.response!!.get(this) as RemoteResponse
     return Pair(getId(), intent)
 }
 
 var Any.reflectionActionValue: Any?
-    get() = reflectionActionValueField.get(this)
-    set(value) = reflectionActionValueField.set(this, value)
-
-fun RemoteViews.removeActionsForId(id: Int) {
-    val actions = actions ?: return
-    actions.removeAll { it.getId() == id }
-    getSizedRemoteViews().forEach {
-        it.removeActionsForId(id)
+    get() = actionHandle.value?.get(this)
+    set(value) {
+        actionHandle.value?.set(this, value)
     }
+
+fun RemoteViews.removeActionsForId(context: Context, id: Int) {
+    RemoteViewsRewriter.rewriteInPlace(context, this, Rewrite(removeViewIds = setOf(id)))
 }
 
 fun RemoteViews.replaceUriActionsWithProxy(
     context: Context,
     pluginPackageName: String
-): RemoteViews = apply {
-    val uriActions = getActionsIncludingNested().filter {
-        it::class.java == reflectionActionClass && it.reflectionActionValue is Uri
-    }.map {
-        Pair(it, it.reflectionActionValue as Uri)
-    }
-    uriActions.forEach {
-        val proxyUri = createSmartspacerWidgetProxyUri(it.second)
-        context.grantUriPermission(
-            pluginPackageName, proxyUri, Intent.FLAG_GRANT_READ_URI_PERMISSION
-        )
-        it.first.reflectionActionValue = proxyUri
-    }
+): RemoteViews {
+    return RemoteViewsRewriter.rewriteInPlace(
+        context, this, Rewrite(proxyUrisForPackage = pluginPackageName)
+    )
 }
 
 fun RemoteViews.getPackageName(): String {
-    val application = this::class.java.getDeclaredField("mApplication")
-        .get(this) as ApplicationInfo
+    val application = mApplication!!.get(this) as ApplicationInfo
     return application.packageName
 }
 
@@ -252,18 +171,8 @@ fun RemoteViews.getBestRemoteViews(context: Context, widgetSize: SizeF): RemoteV
     return sized ?: this
 }
 
-@SuppressLint("SoonBlockedPrivateApi", "BlockedPrivateApi")
 fun RemoteViews.getSizedRemoteViews(): List<RemoteViews> {
-    val landscape = RemoteViews::class.java.getDeclaredField("mLandscape").apply {
-        isAccessible = true
-    }.get(this) as? RemoteViews
-    val portrait = RemoteViews::class.java.getDeclaredField("mPortrait").apply {
-        isAccessible = true
-    }.get(this) as? RemoteViews
-    if(Build.VERSION.SDK_INT < Build.VERSION_CODES.S) return listOfNotNull(landscape, portrait)
-    val sizedRemoteViews = RemoteViews::class.java.getDeclaredField("mSizedRemoteViews")
-        .apply { isAccessible = true }.get(this) as? List<RemoteViews> ?: emptyList()
-    return listOfNotNull(landscape, portrait, *sizedRemoteViews.toTypedArray())
+    return RemoteViewsRewriter.getSizedRemoteViews(this)
 }
 
 fun RemoteViews.apply(
@@ -343,138 +252,43 @@ fun RemoteViews.setImageViewImageTintListCompat(
     }
 }
 
-private fun Class<*>.getDeclaredField(vararg options: String): Field {
-    var lastException = NoSuchFieldException()
-    return options.firstNotNullOfOrNull {
-        try {
-            getDeclaredField(it)
-        }catch (e: NoSuchFieldException) {
-            lastException = e
-            null
-        }
-    } ?: throw lastException
-}
-
 /**
  *  Replaces click actions with fill in proxy actions, running via [WidgetListClickReceiver]
  */
-fun RemoteViews.replaceClickWithFillIntent(): RemoteViews {
+fun RemoteViews.replaceClickWithFillIntent(context: Context): RemoteViews {
     //Not required on Android < 13 since we disable this requirement
     if(Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU) return this
-    actions = actions?.map {
-        when(it.javaClass.simpleName) {
-            "ViewGroupActionAdd" -> it.replaceClickWithFillIntent()
-            "SetOnClickResponse" -> it.convertOnClickResponseForList()
-            "SetOnCheckedChangeResponse" -> it.convertOnCheckedChangeResponse()
-            else -> it
-        }
-    } as ArrayList<Any>?
-    return this
+    return RemoteViewsRewriter.rewriteInPlace(
+        context, this, Rewrite(clicks = ClickRewrite.FILL_IN)
+    )
 }
 
 /**
  *  Replaces click actions with proxy actions, running via [ExportedSmartspaceTrampolineProxyActivity]
  */
 fun RemoteViews.replaceClickWithProxyIntent(context: Context): RemoteViews {
-    // Only applies to AAG Targets
-    if (`package` != AsNowPlayingTarget.PACKAGE_NAME) return this
-    actions = actions?.map {
-        when(it.javaClass.simpleName) {
-            "ViewGroupActionAdd" -> it.replaceClickWithProxyIntent(context)
-            "SetOnClickResponse" -> it.convertOnClickResponseForProxy(context)
-            else -> it
-        }
-    } as ArrayList<Any>?
-    return this
+    return RemoteViewsRewriter.rewriteInPlace(context, this, getProxyRewrite())
 }
 
-@SuppressLint("PrivateApi", "SoonBlockedPrivateApi")
-private fun Any.replaceClickWithFillIntent() = apply {
-    val action = Class.forName("android.widget.RemoteViews\$ViewGroupActionAdd")
-    val mNestedViews = action.getDeclaredField("mNestedViews").apply {
-        isAccessible = true
-    }
-    val nestedViews = mNestedViews.get(this) as RemoteViews
-    mNestedViews.set(this, nestedViews.replaceClickWithFillIntent())
-}
-
-@SuppressLint("PrivateApi", "SoonBlockedPrivateApi")
-private fun Any.replaceClickWithProxyIntent(context: Context) = apply {
-    val action = Class.forName("android.widget.RemoteViews\$ViewGroupActionAdd")
-    val mNestedViews = action.getDeclaredField("mNestedViews").apply {
-        isAccessible = true
-    }
-    val nestedViews = mNestedViews.get(this) as RemoteViews
-    mNestedViews.set(this, nestedViews.replaceClickWithProxyIntent(context))
-}
-
-@SuppressLint("PrivateApi", "SoonBlockedPrivateApi")
-private fun Any.getViewGroupActionAddRemoteViews(): RemoteViews {
-    val action = Class.forName("android.widget.RemoteViews\$ViewGroupActionAdd")
-    val mNestedViews = action.getDeclaredField("mNestedViews").apply {
-        isAccessible = true
-    }
-    return mNestedViews.get(this) as RemoteViews
-}
-
-@SuppressLint("PrivateApi")
-private fun Any.convertOnClickResponseForList() = apply {
-    val action = Class.forName("android.widget.RemoteViews\$SetOnClickResponse")
-    val mResponse = action.getDeclaredField("mResponse").apply {
-        isAccessible = true
-    }
-    val remoteResponse = mResponse.get(this) as RemoteResponse
-    val newResponse = RemoteResponse
-        .fromFillInIntent(WidgetListClickReceiver.getIntent(remoteResponse))
-    mResponse.set(this, newResponse)
-}
-
-@SuppressLint("PrivateApi")
-private fun Any.convertOnClickResponseForProxy(context: Context) = apply {
-    val action = Class.forName("android.widget.RemoteViews\$SetOnClickResponse")
-    val mResponse = action.getDeclaredField("mResponse").apply {
-        isAccessible = true
-    }
-    val remoteResponse = mResponse.get(this) as RemoteResponse
-    val newResponse = RemoteResponse
-        .fromPendingIntent(ExportedSmartspaceTrampolineProxyActivity.getPendingIntent(context, remoteResponse))
-    mResponse.set(this, newResponse)
-}
-
-@SuppressLint("PrivateApi")
-private fun Any.convertOnCheckedChangeResponse() = apply {
-    val action = Class.forName("android.widget.RemoteViews\$SetOnCheckedChangeResponse")
-    val mResponse = action.getDeclaredField("mResponse").apply {
-        isAccessible = true
-    }
-    val remoteResponse = mResponse.get(this) as RemoteResponse
-    val newResponse = RemoteResponse
-        .fromFillInIntent(WidgetListClickReceiver.getIntent(remoteResponse))
-        .setInteractionType(INTERACTION_TYPE_CHECKED_CHANGE)
-    mResponse.set(this, newResponse)
+/**
+ *  Returns the rewrite required to proxy click actions, which only applies to AAG Targets. If a
+ *  [proxyKey] is given, the proxy PendingIntents are held in the PendingIntentRepository.
+ */
+fun RemoteViews.getProxyRewrite(proxyKey: PendingIntentKey? = null): Rewrite {
+    return if (`package` == AsNowPlayingTarget.PACKAGE_NAME) {
+        Rewrite(clicks = ClickRewrite.PROXY, proxyKey = proxyKey)
+    } else Rewrite()
 }
 
 private val INCOMPATIBLE_ACTIONS = setOf(
-    "SetRemoteCollectionItemListAdapterAction",
-    "SetRemoteViewsAdapterIntent"
+    ActionType.COLLECTION_ITEMS,
+    ActionType.ADAPTER_INTENT
 )
 
 fun RemoteViews.checkCompatibility(): Boolean {
-    return getActionsIncludingNested().none {
-        INCOMPATIBLE_ACTIONS.contains(it.javaClass.simpleName)
-    }
-}
-
-@SuppressLint("SoonBlockedPrivateApi")
-private val mIsRoot = RemoteViews::class.java.getDeclaredField("mIsRoot").apply {
-    isAccessible = true
+    return !RemoteViewsRewriter.hasActionOfType(this, INCOMPATIBLE_ACTIONS)
 }
 
 fun RemoteViews.copyAsRoot(): RemoteViews {
-    isRoot = true
-    return copy()
+    return RemoteViewsRewriter.copyAsRoot(this)
 }
-
-private var RemoteViews.isRoot: Boolean
-    get() = mIsRoot.getBoolean(this)
-    set(value) = mIsRoot.setBoolean(this, value)
\ No newline at end of file
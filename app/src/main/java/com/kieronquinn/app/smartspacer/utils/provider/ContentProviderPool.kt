@@ -0,0 +1,204 @@
+package com.kieronquinn.app.smartspacer.utils.provider
+
+import android.app.IActivityManager
+import android.content.IContentProvider
+import android.os.Binder
+import android.os.DeadObjectException
+import android.os.IBinder
+import android.os.SystemClock
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ *  Holds on to external content providers acquired from [activityManager], so a burst of proxied
+ *  calls to the same authority (eg. loading a list of images) only acquires the provider once.
+ *
+ *  - Each handle is reference counted, and only released once it has been unused for
+ *  [IDLE_TIMEOUT].
+ *  - Handles are invalidated when the provider's process dies, so the next call acquires it again
+ *  rather than failing. Handles in use at the time are released once their calls finish.
+ */
+class ContentProviderPool(
+    private val activityManager: IActivityManager,
+    private val userId: Int,
+    private val scope: CoroutineScope,
+    private val clock: () -> Long = SystemClock::elapsedRealtime
+) {
+
+    companion object {
+        const val IDLE_TIMEOUT = 10_000L
+        private const val PROVIDER_TAG = "proxy"
+    }
+
+    private val handles = HashMap<String, Handle>()
+    private val acquired = AtomicLong()
+    private val reused = AtomicLong()
+
+    /**
+     *  Runs [block] with the provider for [authority], returning `null` if it could not be
+     *  acquired. The caller is responsible for clearing the calling identity first.
+     */
+    fun <T> runWithProvider(authority: String, block: IContentProvider.() -> T?): T? {
+        val handle = acquire(authority) ?: return null
+        return try {
+            block(handle.provider)
+        }catch (e: DeadObjectException) {
+            //Death notifications are asynchronous, so may not have been received yet
+            invalidate(handle)
+            throw e
+        }finally {
+            release(handle)
+        }
+    }
+
+    fun getStats(): PoolStats {
+        val size = synchronized(handles) {
+            handles.size
+        }
+        return PoolStats(size, acquired.get(), reused.get())
+    }
+
+    private fun acquire(authority: String): Handle? {
+        synchronized(handles) {
+            handles[authority]?.let {
+                it.onAcquired()
+                reused.incrementAndGet()
+                return it
+            }
+        }
+        val token = Binder()
+        val provider = activityManager.getContentProviderExternal(
+            authority,
+            userId,
+            token,
+            PROVIDER_TAG
+        )?.provider ?: run {
+            activityManager.removeContentProviderExternalAsUser(authority, token, userId)
+            return null
+        }
+        acquired.incrementAndGet()
+        val handle = Handle(authority, token, provider).apply {
+            onAcquired()
+        }
+        val existing = synchronized(handles) {
+            //Another call may have acquired the same provider in the meantime, in which case use
+            //theirs and release this one
+            handles[authority]?.also { it.onAcquired() } ?: run {
+                handles[authority] = handle
+                null
+            }
+        }
+        if(existing != null) {
+            handle.remove()
+            return existing
+        }
+        try {
+            provider.asBinder().linkToDeath(handle, 0)
+        }catch (e: DeadObjectException) {
+            invalidate(handle)
+        }
+        return handle
+    }
+
+    private fun release(handle: Handle) {
+        synchronized(handles) {
+            if(!handle.onReleased(clock())) return
+            if(handles[handle.authority] == handle) {
+                handle.scheduleExpiry()
+                return
+            }
+        }
+        //Invalidated while in use
+        handle.remove()
+    }
+
+    private fun invalidate(handle: Handle) {
+        val unused = synchronized(handles) {
+            if(handles[handle.authority] != handle) return
+            handles.remove(handle.authority)
+            handle.cancelExpiry()
+            !handle.isInUse()
+        }
+        if(unused) handle.remove()
+    }
+
+    private fun expire(handle: Handle) {
+        synchronized(handles) {
+            if(handles[handle.authority] != handle) return
+            if(handle.isInUse() || clock() - handle.lastReleased < IDLE_TIMEOUT) return
+            handles.remove(handle.authority)
+        }
+        handle.remove()
+    }
+
+    private inner class Handle(
+        val authority: String,
+        private val token: IBinder,
+        val provider: IContentProvider
+    ): IBinder.DeathRecipient {
+
+        private var references = 0
+        private var expiry: Job? = null
+
+        var lastReleased = 0L
+            private set
+
+        fun onAcquired() {
+            references++
+            cancelExpiry()
+        }
+
+        /**
+         *  Returns whether this handle is no longer in use
+         */
+        fun onReleased(now: Long): Boolean {
+            references--
+            lastReleased = now
+            return references == 0
+        }
+
+        fun isInUse() = references > 0
+
+        fun scheduleExpiry() {
+            expiry = scope.launch {
+                delay(IDLE_TIMEOUT)
+                expire(this@Handle)
+            }
+        }
+
+        fun cancelExpiry() {
+            expiry?.cancel()
+            expiry = null
+        }
+
+        fun remove() {
+            try {
+                provider.asBinder().unlinkToDeath(this, 0)
+            }catch (e: NoSuchElementException) {
+                //Not linked
+            }
+            activityManager.removeContentProviderExternalAsUser(authority, token, userId)
+        }
+
+        override fun binderDied() {
+            invalidate(this)
+        }
+
+    }
+
+    data class PoolStats(
+        val size: Int,
+        /**
+         *  Number of times a provider was acquired from the system
+         */
+        val acquired: Long,
+        /**
+         *  Number of calls which reused an already acquired provider
+         */
+        val reused: Long
+    )
+
+}
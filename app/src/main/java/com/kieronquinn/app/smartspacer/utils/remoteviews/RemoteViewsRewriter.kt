@@ -0,0 +1,365 @@
+@file:SuppressLint(
+    "BlockedPrivateApi", "PrivateApi", "DiscouragedPrivateApi", "SoonBlockedPrivateApi"
+)
+package com.kieronquinn.app.smartspacer.utils.remoteviews
+
+import android.annotation.SuppressLint
+import android.content.Context
+import android.content.Intent
+import android.net.Uri
+import android.os.Build
+import android.widget.RemoteViews
+import android.widget.RemoteViews.RemoteResponse
+import com.kieronquinn.app.smartspacer.providers.SmartspacerWidgetProxyContentProvider.Companion.createSmartspacerWidgetProxyUri
+import com.kieronquinn.app.smartspacer.receivers.WidgetListClickReceiver
+import com.kieronquinn.app.smartspacer.repositories.PendingIntentRepository.PendingIntentKey
+import com.kieronquinn.app.smartspacer.sdk.model.RemoteOnClickResponse.RemoteResponse.Companion.INTERACTION_TYPE_CHECKED_CHANGE
+import com.kieronquinn.app.smartspacer.sdk.utils.copy
+import com.kieronquinn.app.smartspacer.ui.activities.ExportedSmartspaceTrampolineProxyActivity
+import com.kieronquinn.app.smartspacer.utils.extensions.actionHandle
+import com.kieronquinn.app.smartspacer.utils.extensions.findField
+import com.kieronquinn.app.smartspacer.utils.remoteviews.RemoteViewsRewriter.ActionHandle
+import java.lang.reflect.Field
+import java.util.Collections
+import java.util.IdentityHashMap
+import java.util.WeakHashMap
+
+/**
+ *  Rewrites the actions of [RemoteViews], applying any combination of transforms in a single
+ *  traversal of the views, their sized/orientation variants and nested views.
+ *
+ *  RemoteViews' actions are private framework classes, so their fields are resolved once per
+ *  action class into an [ActionHandle] and reused, rather than being looked up for every action
+ *  of every traversal.
+ */
+object RemoteViewsRewriter {
+
+    enum class ClickRewrite {
+        /**
+         *  Leave click actions as they are
+         */
+        NONE,
+        /**
+         *  Replace click actions with proxy actions, running via
+         *  [ExportedSmartspaceTrampolineProxyActivity]
+         */
+        PROXY,
+        /**
+         *  Replace click and checked change actions with fill in actions, running via
+         *  [WidgetListClickReceiver]
+         */
+        FILL_IN
+    }
+
+    data class Rewrite(
+        val clicks: ClickRewrite = ClickRewrite.NONE,
+        /**
+         *  Actions for these view IDs will be removed
+         */
+        val removeViewIds: Set<Int> = emptySet(),
+        /**
+         *  If set, Uris set on views are replaced with proxy Uris, readable by this package
+         */
+        val proxyUrisForPackage: String? = null,
+        /**
+         *  If set, proxied click actions are held in the PendingIntentRepository under this key,
+         *  with the action suffixed by the index of the click action
+         */
+        val proxyKey: PendingIntentKey? = null
+    ) {
+        val isEmpty = clicks == ClickRewrite.NONE && removeViewIds.isEmpty()
+                && proxyUrisForPackage == null
+    }
+
+    enum class ActionType(val className: String?) {
+        VIEW_GROUP_ADD("ViewGroupActionAdd"),
+        ON_CLICK_RESPONSE("SetOnClickResponse"),
+        ON_CHECKED_CHANGE_RESPONSE("SetOnCheckedChangeResponse"),
+        REFLECTION("ReflectionAction"),
+        ADAPTER_INTENT("SetRemoteViewsAdapterIntent"),
+        COLLECTION_ITEMS("SetRemoteCollectionItemListAdapterAction"),
+        OTHER(null);
+
+        companion object {
+            fun fromClass(actionClass: Class<*>): ActionType {
+                val name = actionClass.name.removePrefix("${RemoteViews::class.java.name}\$")
+                return entries.firstOrNull { it.className == name } ?: OTHER
+            }
+        }
+    }
+
+    /**
+     *  Fields of an action class, resolved once. Fields which do not exist on this version of
+     *  Android are `null`.
+     */
+    class ActionHandle(actionClass: Class<*>) {
+
+        val type = ActionType.fromClass(actionClass)
+
+        private val viewId = actionBaseClass.findField("viewId", "mViewId")
+
+        val nestedViews = actionClass.findFieldIf(
+            type == ActionType.VIEW_GROUP_ADD, "mNestedViews"
+        )
+
+        val response = actionClass.findFieldIf(
+            type == ActionType.ON_CLICK_RESPONSE || type == ActionType.ON_CHECKED_CHANGE_RESPONSE,
+            "mResponse"
+        )
+
+        val value = actionClass.findFieldIf(type == ActionType.REFLECTION, "value", "mValue")
+
+        val intent = actionClass.findFieldIf(
+            type == ActionType.ADAPTER_INTENT, "intent", "mIntent"
+        )
+
+        val items = actionClass.findFieldIf(type == ActionType.COLLECTION_ITEMS, "mItems")
+
+        val itemsFuture = actionClass.findFieldIf(
+            type == ActionType.COLLECTION_ITEMS, "mItemsFuture"
+        )
+
+        val serviceIntent = actionClass.findFieldIf(
+            type == ActionType.COLLECTION_ITEMS, "mServiceIntent"
+        )
+
+        fun getViewId(action: Any): Int {
+            return viewId?.getInt(action) ?: 0
+        }
+
+    }
+
+    private val actionBaseClass by lazy {
+        Class.forName("${RemoteViews::class.java.name}\$Action")
+    }
+
+    private val mActions by lazy {
+        RemoteViews::class.java.findField("mActions")
+    }
+
+    private val mLandscape by lazy {
+        RemoteViews::class.java.findField("mLandscape")
+    }
+
+    private val mPortrait by lazy {
+        RemoteViews::class.java.findField("mPortrait")
+    }
+
+    private val mSizedRemoteViews by lazy {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            RemoteViews::class.java.findField("mSizedRemoteViews")
+        }else null
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private val RemoteViews.actions: ArrayList<Any>?
+        get() = mActions?.get(this) as? ArrayList<Any>
+
+    /**
+     *  Returns the landscape, portrait and sized variants of [remoteViews], if set
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun getSizedRemoteViews(remoteViews: RemoteViews): List<RemoteViews> {
+        val landscape = mLandscape?.get(remoteViews) as? RemoteViews
+        val portrait = mPortrait?.get(remoteViews) as? RemoteViews
+        val sized = mSizedRemoteViews?.get(remoteViews) as? List<RemoteViews> ?: emptyList()
+        return listOfNotNull(landscape, portrait, *sized.toTypedArray())
+    }
+
+    /**
+     *  Returns a copy of [source] with [rewrite] applied. The source is not modified, except for
+     *  its root flag if [asRoot] is set, as the copy takes this from the source.
+     */
+    fun rewrite(
+        context: Context,
+        source: RemoteViews,
+        rewrite: Rewrite,
+        asRoot: Boolean = false
+    ): RemoteViews {
+        val copy = if(asRoot) copyAsRoot(source) else source.copy()
+        return rewriteInPlace(context, copy, rewrite)
+    }
+
+    /**
+     *  Applies [rewrite] directly to [remoteViews] and its actions
+     */
+    fun rewriteInPlace(context: Context, remoteViews: RemoteViews, rewrite: Rewrite): RemoteViews {
+        if(rewrite.isEmpty) return remoteViews
+        var proxyIndex = 0
+        val nextProxyKey = {
+            rewrite.proxyKey?.let { it.copy(action = "${it.action}_${proxyIndex++}") }
+        }
+        remoteViews.visit { actions ->
+            val iterator = actions.listIterator()
+            while(iterator.hasNext()) {
+                val action = iterator.next()
+                val handle = action.actionHandle
+                if(rewrite.removeViewIds.isNotEmpty()
+                    && rewrite.removeViewIds.contains(handle.getViewId(action))) {
+                    iterator.remove()
+                    continue
+                }
+                when(handle.type) {
+                    ActionType.ON_CLICK_RESPONSE -> {
+                        action.rewriteClick(context, handle, rewrite.clicks, false, nextProxyKey)
+                    }
+                    ActionType.ON_CHECKED_CHANGE_RESPONSE -> {
+                        action.rewriteClick(context, handle, rewrite.clicks, true, nextProxyKey)
+                    }
+                    ActionType.REFLECTION -> {
+                        val packageName = rewrite.proxyUrisForPackage ?: continue
+                        action.proxyUri(context, handle, packageName)
+                    }
+                    else -> {
+                        //No changes required
+                    }
+                }
+            }
+        }
+        return remoteViews
+    }
+
+    /**
+     *  Returns all actions of [remoteViews], its sized/orientation variants and nested views
+     */
+    fun getAllActions(remoteViews: RemoteViews): List<Any> {
+        val allActions = ArrayList<Any>()
+        remoteViews.visit { allActions.addAll(it) }
+        return allActions
+    }
+
+    /**
+     *  Returns whether any action of [remoteViews] or its nested views is of one of [types]
+     */
+    fun hasActionOfType(remoteViews: RemoteViews, types: Set<ActionType>): Boolean {
+        var found = false
+        remoteViews.visit { actions ->
+            if(!found) {
+                found = actions.any { types.contains(it.actionHandle.type) }
+            }
+        }
+        return found
+    }
+
+    /**
+     *  Calls [block] with the actions of this RemoteViews, then those of its nested and
+     *  sized/orientation variants. Each instance is only visited once, even if it is shared.
+     */
+    private fun RemoteViews.visit(
+        visited: MutableSet<RemoteViews> = Collections.newSetFromMap(IdentityHashMap()),
+        block: (MutableList<Any>) -> Unit
+    ) {
+        if(!visited.add(this)) return
+        val actions = actions
+        if(actions != null) {
+            block(actions)
+            actions.forEach {
+                val handle = it.actionHandle
+                if(handle.type != ActionType.VIEW_GROUP_ADD) return@forEach
+                (handle.nestedViews?.get(it) as? RemoteViews)?.visit(visited, block)
+            }
+        }
+        getSizedRemoteViews(this).forEach {
+            it.visit(visited, block)
+        }
+    }
+
+    private fun Any.rewriteClick(
+        context: Context,
+        handle: ActionHandle,
+        clicks: ClickRewrite,
+        isCheckedChange: Boolean,
+        proxyKey: () -> PendingIntentKey?
+    ) {
+        val field = handle.response ?: return
+        val response = field.get(this) as? RemoteResponse ?: return
+        val newResponse = when {
+            clicks == ClickRewrite.FILL_IN && isCheckedChange -> {
+                //Not required on Android < 13 since we disable this requirement
+                if(Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU) return
+                RemoteResponse.fromFillInIntent(WidgetListClickReceiver.getIntent(response))
+                    .setInteractionType(INTERACTION_TYPE_CHECKED_CHANGE)
+            }
+            clicks == ClickRewrite.FILL_IN -> {
+                if(Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU) return
+                RemoteResponse.fromFillInIntent(WidgetListClickReceiver.getIntent(response))
+            }
+            clicks == ClickRewrite.PROXY && !isCheckedChange -> {
+                RemoteResponse.fromPendingIntent(
+                    ExportedSmartspaceTrampolineProxyActivity
+                        .getPendingIntent(context, response, proxyKey())
+                )
+            }
+            else -> return
+        }
+        field.set(this, newResponse)
+    }
+
+    private fun Any.proxyUri(context: Context, handle: ActionHandle, packageName: String) {
+        val field = handle.value ?: return
+        val uri = field.get(this) as? Uri ?: return
+        val proxyUri = createSmartspacerWidgetProxyUri(uri)
+        context.grantUriPermission(packageName, proxyUri, Intent.FLAG_GRANT_READ_URI_PERMISSION)
+        field.set(this, proxyUri)
+    }
+
+    private val mIsRoot by lazy {
+        RemoteViews::class.java.findField("mIsRoot")
+    }
+
+    /**
+     *  Returns a copy of [remoteViews] marked as root, which RemoteViews containing bitmaps need to
+     *  be displayed outside of widgets or notifications
+     */
+    fun copyAsRoot(remoteViews: RemoteViews): RemoteViews {
+        mIsRoot?.setBoolean(remoteViews, true)
+        return remoteViews.copy()
+    }
+
+    private fun Class<*>.findFieldIf(condition: Boolean, vararg options: String): Field? {
+        return if(condition) findField(*options) else null
+    }
+
+    /**
+     *  Caches the result of rewriting a RemoteViews by the identity of the source, so a Target
+     *  which has not changed is not copied and rewritten again on each emission. Sources are held
+     *  weakly, so entries are dropped once the Target they came from is no longer used.
+     */
+    class Cache {
+
+        private data class Entry(val targetId: String, val key: Any, val result: RemoteViews)
+
+        private val cache = Collections.synchronizedMap(WeakHashMap<RemoteViews, Entry>())
+
+        /**
+         *  Returns the cached result for [source] if it was created for the same [targetId] and
+         *  [key], otherwise calls [create] and caches its result. The result must not be modified
+         *  after creation.
+         */
+        fun getOrPut(
+            source: RemoteViews,
+            targetId: String,
+            key: Any,
+            create: () -> RemoteViews
+        ): RemoteViews {
+            cache[source]?.takeIf { it.targetId == targetId && it.key == key }?.let {
+                return it.result
+            }
+            return create().also {
+                cache[source] = Entry(targetId, key, it)
+            }
+        }
+
+        /**
+         *  Removes results for Targets which are not in [targetIds], since their PendingIntents
+         *  may have been released
+         */
+        fun retain(targetIds: Set<String>) {
+            synchronized(cache) {
+                cache.values.removeAll { !targetIds.contains(it.targetId) }
+            }
+        }
+
+    }
+
+}
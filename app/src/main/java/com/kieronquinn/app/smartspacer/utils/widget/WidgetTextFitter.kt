@@ -0,0 +1,166 @@
+package com.kieronquinn.app.smartspacer.utils.widget
+
+import android.text.TextPaint
+import android.util.LruCache
+import android.widget.TextView
+import kotlin.math.ceil
+
+/**
+ *  Fits widget text to a given width without laying out a [TextView] per candidate length. Glyph
+ *  advances are measured once per (text, text size), and the ellipsised width of every cut point
+ *  is then read from their prefix sums, so the best length is found with a binary search.
+ *
+ *  The [template] TextView provides the typeface, text appearance and padding, and is only read
+ *  when this class is created. Each thread measures with its own copy of its paint, so widgets can
+ *  be sized in parallel.
+ */
+class WidgetTextFitter(template: TextView) {
+
+    companion object {
+        private const val ELLIPSIS = "…"
+        private const val MEASUREMENT_CACHE_SIZE = 256
+        private const val RESULT_CACHE_SIZE = 256
+    }
+
+    private val templatePaint = TextPaint(template.paint)
+    private val horizontalPadding = template.compoundPaddingLeft + template.compoundPaddingRight
+
+    private val paint = object: ThreadLocal<TextPaint>() {
+        override fun initialValue() = TextPaint(templatePaint)
+    }
+
+    private val measurements = LruCache<MeasurementKey, Measurement>(MEASUREMENT_CACHE_SIZE)
+    private val results = LruCache<ResultKey, Pair<Int, Int?>>(RESULT_CACHE_SIZE)
+
+    /**
+     *  Calculates the best max length for a [title] and optional [subtitle] with a given [width],
+     *  see [com.kieronquinn.app.smartspacer.repositories.AppWidgetRepository.getBestMaxLength]
+     */
+    fun getBestMaxLength(
+        width: Int,
+        textSize: Float,
+        shadowEnabled: Boolean,
+        title: CharSequence,
+        subtitle: CharSequence?
+    ): Pair<Int, Int?> {
+        //If there's no subtitle, always include as much of the title as possible
+        if(subtitle.isNullOrBlank()){
+            return Pair(title.length, null)
+        }
+        val key = ResultKey(title.toString(), subtitle.toString(), textSize, shadowEnabled, width)
+        results.get(key)?.let { return it }
+        val titleMeasurement = getMeasurement(key.title, textSize)
+        val subtitleMeasurement = getMeasurement(key.subtitle, textSize)
+        return calculateBestMaxLength(width, titleMeasurement, subtitleMeasurement).also {
+            results.put(key, it)
+        }
+    }
+
+    private fun calculateBestMaxLength(
+        width: Int,
+        title: Measurement,
+        subtitle: Measurement
+    ): Pair<Int, Int> {
+        val titleWidth = title.getWidth()
+        val subtitleWidth = subtitle.getWidth()
+        //If both will fit naturally, we can just show their full content
+        if(titleWidth + subtitleWidth <= width){
+            return Pair(title.length, subtitle.length)
+        }
+        //If clipping the title width by the subtitle width will fit, use that to fill the space
+        val clippedTitleLength = title.getLengthForWidth(width - subtitleWidth)
+        if(title.getWidth(clippedTitleLength) + subtitleWidth <= width){
+            return Pair(clippedTitleLength, subtitle.length)
+        }
+        //Otherwise compromise and clip half way between
+        val halfWidth = (width / 2f).toInt()
+        return Pair(title.getLengthForWidth(halfWidth), subtitle.getLengthForWidth(halfWidth))
+    }
+
+    private fun getMeasurement(text: String, textSize: Float): Measurement {
+        val key = MeasurementKey(text, textSize)
+        measurements.get(key)?.let { return it }
+        val paint = paint.get()!!
+        paint.textSize = textSize
+        val advances = FloatArray(text.length)
+        paint.getTextWidths(text, advances)
+        val prefix = FloatArray(text.length + 1)
+        advances.forEachIndexed { index, advance ->
+            prefix[index + 1] = prefix[index] + advance
+        }
+        val measurement = Measurement(text, prefix, paint.measureText(ELLIPSIS))
+        measurements.put(key, measurement)
+        return measurement
+    }
+
+    /**
+     *  Prefix sums of the glyph advances of [text], where `prefix[i]` is the width of the first
+     *  `i` characters.
+     */
+    private inner class Measurement(
+        private val text: String,
+        private val prefix: FloatArray,
+        private val ellipsisWidth: Float
+    ) {
+
+        val length = text.length
+
+        /**
+         *  The measured width of the first [length] characters, without ellipsising
+         */
+        fun getWidth(length: Int = this.length): Int {
+            return horizontalPadding + ceil(prefix[length]).toInt()
+        }
+
+        /**
+         *  The measured width of `text.takeEllipsised(length)`, which trims the text it keeps
+         */
+        private fun getEllipsisedWidth(length: Int): Int {
+            if(length == 0) return horizontalPadding
+            if(length >= this.length) return getWidth()
+            var start = 0
+            var end = length - 1
+            while(start < end && text[start].isWhitespace()) start++
+            while(end > start && text[end - 1].isWhitespace()) end--
+            val textWidth = prefix[end] - prefix[start] + ellipsisWidth
+            return horizontalPadding + ceil(textWidth).toInt()
+        }
+
+        /**
+         *  Finds the longest length whose ellipsised text fits in [width]. Ellipsised widths do not
+         *  decrease as the length grows, except the full text which has no ellipsis, so that is
+         *  checked first.
+         */
+        fun getLengthForWidth(width: Int): Int {
+            if(getWidth() <= width) return length
+            var low = 0
+            var high = length - 1
+            while(low < high) {
+                val mid = (low + high + 1) ushr 1
+                if(getEllipsisedWidth(mid) <= width) {
+                    low = mid
+                }else{
+                    high = mid - 1
+                }
+            }
+            return low
+        }
+
+    }
+
+    private data class MeasurementKey(val text: String, val textSize: Float)
+
+    /**
+     *  Shadows do not change glyph advances, but are part of the key since they are part of the
+     *  widget's style.
+     */
+    private data class ResultKey(
+        val title: String,
+        val subtitle: String,
+        val textSize: Float,
+        val shadowEnabled: Boolean,
+        val width: Int
+    )
+
+}
+
@@ -2,10 +2,18 @@ package com.kieronquinn.app.smartspacer.sdk.client
 
 import android.os.Binder
 import android.os.Bundle
+import android.util.Log
 import com.kieronquinn.app.smartspacer.sdk.utils.ParceledListSlice
+import com.kieronquinn.app.smartspacer.sdk.model.CompactSmartspaceTargets
 import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceSessionId
 import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceTarget
 import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceTargetEvent
+import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceTargetPatch
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.launch
 import java.util.concurrent.Executor
 import java.util.concurrent.atomic.AtomicBoolean
 
@@ -21,8 +29,13 @@ class SmartspaceSession internal constructor(
     private val destroySmartspaceSession: suspend (SmartspaceSessionId) -> Unit
 ) {
 
+    companion object {
+        private const val TAG = "SmartspaceSession"
+    }
+
     private val isClosed = AtomicBoolean(false)
     private val registeredListeners = HashMap<OnTargetsAvailableListener, CallbackWrapper>()
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
 
     /**
      *  Notify the Smartspace service of a [SmartspaceTargetEvent], such as resuming or pausing
@@ -48,7 +61,7 @@ class SmartspaceSession internal constructor(
         executor: Executor, listener: OnTargetsAvailableListener
     ): Boolean {
         throwIfClosed()
-        val wrapper = CallbackWrapper(executor, listener)
+        val wrapper = CallbackWrapper(executor, listener) { resync(it) }
         registeredListeners[listener] = wrapper
         return registerSmartspaceUpdates(sessionId, wrapper)
     }
@@ -70,9 +83,19 @@ class SmartspaceSession internal constructor(
     suspend fun close() {
         throwIfClosed()
         isClosed.set(true)
+        scope.cancel()
         destroySmartspaceSession(sessionId)
     }
 
+    /**
+     *  Registers [callback] again, which causes Smartspacer to send it the full list of Targets
+     *  rather than a patch against a list it no longer has.
+     */
+    private fun resync(callback: CallbackWrapper) = scope.launch {
+        if(isClosed.get()) return@launch
+        registerSmartspaceUpdates(sessionId, callback)
+    }
+
     private fun throwIfClosed() {
         if(isClosed.get()){
             throw IllegalStateException("Session has already been closed")
@@ -88,17 +111,72 @@ class SmartspaceSession internal constructor(
 
     private class CallbackWrapper(
         private val executor: Executor,
-        private val listener: OnTargetsAvailableListener
+        private val listener: OnTargetsAvailableListener,
+        private val resync: (CallbackWrapper) -> Unit
     ): ISmartspaceCallback.Stub() {
+
+        /**
+         *  The current list of Targets, which patches are applied to. Targets which are unchanged
+         *  by a patch keep the same instance, so views can skip rebinding them.
+         */
+        private var targets = emptyList<SmartspaceTarget>()
+
+        /**
+         *  Set when a patch could not be applied, patches are then ignored until the full list
+         *  has been received again
+         */
+        private var awaitingResync = false
+        private val lock = Any()
+
         override fun onResult(result: ParceledListSlice<*>) {
             val identity = Binder.clearCallingIdentity()
             try {
                 val list = result.list as List<Bundle>
-                executor.execute { listener.onTargetsAvailable(list.map { SmartspaceTarget(it) }) }
+                setTargets(list.map { SmartspaceTarget(it) })
+            }finally {
+                Binder.restoreCallingIdentity(identity)
+            }
+        }
+
+        override fun onCompactResult(result: CompactSmartspaceTargets) {
+            val identity = Binder.clearCallingIdentity()
+            try {
+                setTargets(result.targets)
             }finally {
                 Binder.restoreCallingIdentity(identity)
             }
         }
+
+        override fun onPatch(operations: ParceledListSlice<*>) {
+            val identity = Binder.clearCallingIdentity()
+            try {
+                val patch = SmartspaceTargetPatch.fromBundles(operations.list as List<Bundle>)
+                val patched = synchronized(lock) {
+                    if(awaitingResync) return
+                    //Patch a copy, so a failure part way through leaves the current list intact
+                    val copy = ArrayList(targets)
+                    if(!patch.applyTo(copy)) {
+                        Log.e(TAG, "Failed to apply patch, requesting the full list")
+                        awaitingResync = true
+                        resync(this)
+                        return
+                    }
+                    targets = copy
+                    copy.toList()
+                }
+                executor.execute { listener.onTargetsAvailable(patched) }
+            }finally {
+                Binder.restoreCallingIdentity(identity)
+            }
+        }
+
+        private fun setTargets(new: List<SmartspaceTarget>) {
+            synchronized(lock) {
+                awaitingResync = false
+                targets = new.toList()
+            }
+            executor.execute { listener.onTargetsAvailable(new) }
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -9,24 +9,36 @@ import android.os.Binder
 import android.os.IBinder
 import android.os.Process
 import android.os.RemoteException
+import android.os.SystemClock
 import android.util.Log
 import com.kieronquinn.app.smartspacer.sdk.SmartspacerConstants
 import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceConfig
 import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceSessionId
 import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceTargetEvent
+import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.filterNotNull
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
 import java.util.UUID
-import kotlin.coroutines.resume
-import kotlin.coroutines.suspendCoroutine
 
 class SmartspacerClient(context: Context) {
 
     companion object {
         private const val ACTION_MANAGER = "com.kieronquinn.app.smartspacer.MANAGER"
         private const val TAG = "SmartspacerClient"
+        private const val CONNECT_TIMEOUT = 10_000L
+        private const val RECONNECT_BASE_DELAY = 1_000L
+        private const val RECONNECT_MAX_DELAY = 30_000L
         private val instanceLock = Object()
 
         @JvmStatic
@@ -56,9 +68,18 @@ class SmartspacerClient(context: Context) {
 
     private val applicationContext = context.applicationContext
     private val serviceLock = Mutex()
+    private val connectedService = MutableStateFlow<ISmartspaceManager?>(null)
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val metrics = Metrics()
+    private var reconnectJob: Job? = null
+    private var reconnectAttempt = 0
+    private val token = Binder()
+
+    @Volatile
     private var serviceConnection: ServiceConnection? = null
+
+    @Volatile
     private var service: ISmartspaceManager? = null
-    private val token = Binder()
 
     /**
      *  Creates a new [SmartspaceSession] for a given [config].
@@ -89,13 +110,8 @@ class SmartspacerClient(context: Context) {
         runWithServiceIfAvailable {
             it.onDestroy()
         }
-        serviceConnection?.let {
-            try {
-                applicationContext.unbindService(it)
-            }catch (e: IllegalArgumentException){
-                //Already unbound
-            }
-        }
+        scope.cancel()
+        unbindService()
     }
 
     /**
@@ -161,11 +177,15 @@ class SmartspacerClient(context: Context) {
 
     private suspend fun <T> runWithService(
         block: suspend (ISmartspaceManager) -> T?
-    ): T? = serviceLock.withLock {
-        try {
-            getService()?.let { block(it) }
+    ): T? {
+        val service = getService() ?: return null
+        return try {
+            block(service)
         }catch (e: RemoteException){
             Log.e(TAG, "Error running remote call", e)
+            if(!service.asBinder().isBinderAlive) {
+                onServiceDied(service)
+            }
             null
         }
     }
@@ -181,40 +201,126 @@ class SmartspacerClient(context: Context) {
         }
     }
 
-    private suspend fun getService(): ISmartspaceManager? = withContext(Dispatchers.IO) {
-        suspendCoroutine {
-            var hasResumed = false
-            val serviceConnection = object: ServiceConnection {
-                override fun onServiceConnected(component: ComponentName, binder: IBinder) {
-                    serviceConnection = this
-                    val service = ISmartspaceManager.Stub.asInterface(binder)
-                    this@SmartspacerClient.service = service
-                    if(!hasResumed){
-                        hasResumed = true
-                        it.resume(service)
-                    }
-                }
+    /**
+     *  Returns the connected service, if available. If not connected, binds to the service and
+     *  waits for it to connect, so calls made while disconnected are queued until it is. Only
+     *  binding is done under [serviceLock], calls to a connected service do not wait for each
+     *  other.
+     */
+    private suspend fun getService(): ISmartspaceManager? {
+        getConnectedService()?.let { return it }
+        return serviceLock.withLock {
+            getConnectedService()?.let { return@withLock it }
+            if(serviceConnection == null && !bindService()) return@withLock null
+            withTimeoutOrNull(CONNECT_TIMEOUT) {
+                connectedService.filterNotNull().first()
+            }
+        }
+    }
 
-                override fun onServiceDisconnected(component: ComponentName) {
-                    serviceConnection = null
-                    service = null
+    private fun getConnectedService(): ISmartspaceManager? {
+        return service?.takeIf { it.asBinder().isBinderAlive }
+    }
+
+    private suspend fun bindService(): Boolean = withContext(Dispatchers.IO) {
+        val serviceConnection = object: ServiceConnection {
+            //Reset on disconnect, since the system will then reconnect the same connection
+            private var connectStartTime = SystemClock.elapsedRealtime()
+
+            override fun onServiceConnected(component: ComponentName, binder: IBinder) {
+                val service = ISmartspaceManager.Stub.asInterface(binder)
+                try {
+                    binder.linkToDeath({ onServiceDied(service) }, 0)
+                }catch (e: RemoteException) {
+                    //Died before we could link, the connection will be restarted
+                    return
                 }
+                metrics.onConnected(SystemClock.elapsedRealtime() - connectStartTime)
+                reconnectAttempt = 0
+                this@SmartspacerClient.service = service
+                connectedService.value = service
+            }
+
+            override fun onServiceDisconnected(component: ComponentName) {
+                //The system will reconnect this connection when the service restarts
+                connectStartTime = SystemClock.elapsedRealtime()
+                clearService()
             }
-            val success = try {
-                applicationContext.bindService(
-                    getServiceIntent(), serviceConnection, Context.BIND_AUTO_CREATE
-                )
-            }catch (e: IllegalStateException) {
-                //Rare case where Android thinks there's too many bind requests, despite locking
-                false
+
+            override fun onBindingDied(name: ComponentName) {
+                //The binding will never reconnect, so it needs to be recreated
+                unbindService()
+                scheduleReconnect()
             }
-            if(!success){
-                hasResumed = true
-                it.resume(null)
+        }
+        val success = try {
+            applicationContext.bindService(
+                getServiceIntent(), serviceConnection, Context.BIND_AUTO_CREATE
+            )
+        }catch (e: IllegalStateException) {
+            //Rare case where Android thinks there's too many bind requests, despite locking
+            false
+        }
+        if(success) {
+            this@SmartspacerClient.serviceConnection = serviceConnection
+        }else{
+            unbindService(serviceConnection)
+        }
+        success
+    }
+
+    private fun onServiceDied(service: ISmartspaceManager) {
+        if(this.service != service) return
+        metrics.onDisconnected()
+        clearService()
+    }
+
+    private fun clearService() {
+        service = null
+        connectedService.value = null
+    }
+
+    private fun unbindService(
+        connection: ServiceConnection? = serviceConnection
+    ) {
+        clearService()
+        if(connection == serviceConnection) {
+            serviceConnection = null
+        }
+        try {
+            connection?.let { applicationContext.unbindService(it) }
+        }catch (e: IllegalArgumentException){
+            //Already unbound
+        }
+    }
+
+    /**
+     *  Rebinds the service after its binding has died, backing off exponentially between
+     *  attempts up to [RECONNECT_MAX_DELAY].
+     */
+    private fun scheduleReconnect() {
+        reconnectJob?.cancel()
+        reconnectJob = scope.launch {
+            val delay = (RECONNECT_BASE_DELAY shl reconnectAttempt.coerceAtMost(5))
+                .coerceAtMost(RECONNECT_MAX_DELAY)
+            reconnectAttempt++
+            delay(delay)
+            metrics.onReconnect()
+            serviceLock.withLock {
+                if(serviceConnection == null && !bindService()) {
+                    scheduleReconnect()
+                }
             }
         }
     }
 
+    /**
+     *  Returns metrics on the connection to Smartspacer
+     */
+    fun getConnectionMetrics(): ConnectionMetrics {
+        return metrics.toConnectionMetrics()
+    }
+
     private fun getServiceIntent(): Intent {
         return Intent(ACTION_MANAGER).apply {
             `package` = SmartspacerConstants.SMARTSPACER_PACKAGE_NAME
@@ -228,4 +334,63 @@ class SmartspacerClient(context: Context) {
         return this ?: false
     }
 
+    data class ConnectionMetrics(
+        /**
+         *  How many times the service has connected, including reconnections
+         */
+        val connectCount: Int,
+        /**
+         *  How many times the service has died or disconnected while in use
+         */
+        val disconnectCount: Int,
+        /**
+         *  How many times a dead binding has been rebound
+         */
+        val reconnectCount: Int,
+        /**
+         *  The time taken from binding to connection for the most recent connection, in ms
+         */
+        val lastConnectLatency: Long,
+        /**
+         *  The average time taken from binding to connection, in ms
+         */
+        val averageConnectLatency: Long
+    )
+
+    private class Metrics {
+        private var connectCount = 0
+        private var disconnectCount = 0
+        private var reconnectCount = 0
+        private var lastConnectLatency = 0L
+        private var totalConnectLatency = 0L
+
+        @Synchronized
+        fun onConnected(latency: Long) {
+            connectCount++
+            lastConnectLatency = latency
+            totalConnectLatency += latency
+        }
+
+        @Synchronized
+        fun onDisconnected() {
+            disconnectCount++
+        }
+
+        @Synchronized
+        fun onReconnect() {
+            reconnectCount++
+        }
+
+        @Synchronized
+        fun toConnectionMetrics(): ConnectionMetrics {
+            return ConnectionMetrics(
+                connectCount,
+                disconnectCount,
+                reconnectCount,
+                lastConnectLatency,
+                if(connectCount > 0) totalConnectLatency / connectCount else 0L
+            )
+        }
+    }
+
 }
\ No newline at end of file
@@ -11,10 +11,20 @@ class CardPagerAdapter(
     private val interactionListener: SmartspacerBasePageView.SmartspaceTargetInteractionListener
 ) : PagerAdapter() {
 
+    companion object {
+        private const val MAX_RECYCLED_PER_PAGE_CLASS = 2
+    }
+
     private val targets = mutableListOf<SmartspaceTarget>()
     private var smartspaceTargets = targets
     private val holders = SparseArray<ViewHolder>()
 
+    /**
+     *  Cards whose pages have been removed, keyed by the class of page they show, so a new page
+     *  using the same template can reuse one rather than inflating a new card
+     */
+    private val recycledCards = HashMap<Class<*>, ArrayDeque<SmartspacerView>>()
+
     private var tintColour: Int? = null
     private var applyShadowIfRequired: Boolean? = null
     private var forceReload = false
@@ -31,17 +41,19 @@ class CardPagerAdapter(
         this.tintColour = tintColour
         forceReload = true
         notifyDataSetChanged()
+        forceReload = false
     }
 
     fun setApplyShadowIfRequired(applyShadowIfRequired: Boolean) {
         this.applyShadowIfRequired = applyShadowIfRequired
         forceReload = true
         notifyDataSetChanged()
+        forceReload = false
     }
 
     override fun instantiateItem(container: ViewGroup, position: Int): ViewHolder {
         val target = smartspaceTargets[position]
-        val card = createCard(container, target)
+        val card = getRecycledCard(target) ?: createCard(container, target)
         val viewHolder = ViewHolder(position, card, target)
         onBindViewHolder(viewHolder)
         container.addView(card)
@@ -55,26 +67,58 @@ class CardPagerAdapter(
         if (holders[position] == viewHolder) {
             holders.remove(position)
         }
+        recycleCard(viewHolder.card)
+    }
+
+    private fun recycleCard(card: SmartspacerView) {
+        val pageClass = card.pageClass ?: return
+        val cards = recycledCards.getOrPut(pageClass) { ArrayDeque() }
+        if (cards.size < MAX_RECYCLED_PER_PAGE_CLASS) {
+            cards.addLast(card)
+        }
+    }
+
+    private fun getRecycledCard(target: SmartspaceTarget): SmartspacerView? {
+        return recycledCards[SmartspacerView.getPageClass(target)]?.removeFirstOrNull()
     }
 
     fun getCardAtPosition(position: Int) = holders[position]?.card
 
+    /**
+     *  Finds the new position of an existing card by its Target ID, so cards which have only moved
+     *  are kept rather than recreated. Cards whose Target is the same instance are not rebound,
+     *  which is the case for Targets which were unchanged by a patch.
+     */
     override fun getItemPosition(obj: Any): Int {
         val viewHolder = obj as ViewHolder
-        val target = getTargetAtPosition(viewHolder.position)
-        if (viewHolder.target === target && !forceReload) {
-            return POSITION_UNCHANGED
+        val position = getPositionForId(viewHolder.target.smartspaceTargetId)
+        val target = getTargetAtPosition(position)
+        if (target == null || getFeatureType(target) != getFeatureType(viewHolder.target)) {
+            return POSITION_NONE
         }
-        forceReload = false
-        if (target == null
-            || getFeatureType(target) != getFeatureType(viewHolder.target)
-            || target.smartspaceTargetId != viewHolder.target.smartspaceTargetId
-        ) {
+        val oldPosition = viewHolder.position
+        val existing = holders[position]
+        if (existing != null && existing !== viewHolder &&
+            existing.target.smartspaceTargetId == target.smartspaceTargetId) {
+            //Duplicate Target ID, which has already been claimed by another card
             return POSITION_NONE
         }
-        viewHolder.target = target
-        onBindViewHolder(viewHolder)
-        return POSITION_UNCHANGED
+        if (position != oldPosition) {
+            if (holders[oldPosition] == viewHolder) {
+                holders.remove(oldPosition)
+            }
+            holders.put(position, viewHolder)
+            viewHolder.position = position
+        }
+        if (viewHolder.target !== target || forceReload) {
+            viewHolder.target = target
+            onBindViewHolder(viewHolder)
+        }
+        return if (position == oldPosition) POSITION_UNCHANGED else position
+    }
+
+    private fun getPositionForId(id: String): Int {
+        return smartspaceTargets.indexOfFirst { it.smartspaceTargetId == id }
     }
 
     fun getTargetAtPosition(position: Int): SmartspaceTarget? {
@@ -108,8 +152,11 @@ class CardPagerAdapter(
     private fun getFeatureType(target: SmartspaceTarget) = target.featureType
 
     class ViewHolder internal constructor(
-        val position: Int,
+        position: Int,
         val card: SmartspacerView,
         var target: SmartspaceTarget
-    )
+    ) {
+        var position = position
+            internal set
+    }
 }
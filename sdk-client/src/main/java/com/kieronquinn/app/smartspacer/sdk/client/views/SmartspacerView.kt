@@ -54,6 +54,48 @@ open class SmartspacerView: FrameLayout {
 
     companion object {
         private const val TAG = "SmartspacerView"
+
+        /**
+         *  Returns the class of page which shows [target]
+         */
+        internal fun getPageClass(
+            target: SmartspaceTarget
+        ): Class<out SmartspacerBasePageView<*>> = when {
+            target.remoteViews != null -> SmartspacerRemoteViewsPageView::class.java
+            target.templateData != null -> {
+                when(target.templateData){
+                    is CarouselTemplateData -> SmartspacerCarouselTemplatePageView::class.java
+                    is HeadToHeadTemplateData -> SmartspacerHeadToHeadTemplatePageView::class.java
+                    is SubCardTemplateData -> SmartspacerCardTemplatePageView::class.java
+                    is SubListTemplateData -> SmartspacerListTemplatePageView::class.java
+                    is SubImageTemplateData -> SmartspacerCardImagesPageView::class.java
+                    else -> {
+                        if(target.featureType == FEATURE_WEATHER){
+                            SmartspacerWeatherTemplatePageView::class.java
+                        }else {
+                            SmartspacerBasicTemplatePageView::class.java
+                        }
+                    }
+                }
+            }
+            else -> {
+                when{
+                    FEATURE_ALLOWLIST_DOORBELL.contains(target.featureType) -> {
+                        SmartspacerDoorbellFeaturePageView::class.java
+                    }
+
+                    FEATURE_ALLOWLIST_IMAGE.contains(target.featureType) -> {
+                        SmartspacerCommuteTimeFeaturePageView::class.java
+                    }
+
+                    target.featureType == FEATURE_WEATHER -> {
+                        SmartspacerWeatherFeaturePageView::class.java
+                    }
+
+                    else -> SmartspacerUndefinedFeaturePageView::class.java
+                }
+            }
+        }
     }
 
     init {
@@ -81,8 +123,17 @@ open class SmartspacerView: FrameLayout {
         }
         this.target = target
         this.listener = listener
+        val newTarget = target ?: generateBlankTarget()
+        val pageClass = getPageClass(newTarget)
+        //Reuse the current page if it shows the same template, it will only rebind if changed
+        val current = getChildAt(0) as? SmartspacerBasePageView<*>
+        if(current != null && current.javaClass == pageClass) {
+            current.bind(newTarget, listener, this.tintColour, this.applyShadowIfRequired)
+            return
+        }
         val view = createView(
-            target ?: generateBlankTarget(),
+            pageClass,
+            newTarget,
             listener,
             this.tintColour,
             this.applyShadowIfRequired
@@ -94,6 +145,12 @@ open class SmartspacerView: FrameLayout {
         addView(view)
     }
 
+    /**
+     *  Returns the class of page currently shown, used to reuse Views which show the same template
+     */
+    internal val pageClass: Class<*>?
+        get() = getChildAt(0)?.javaClass
+
     /**
      *  Sets the base tint colour of the View. This is used on icons and text which have not been
      *  tinted by plugins. This will automatically re-apply the current Target, if it is set.
@@ -138,48 +195,13 @@ open class SmartspacerView: FrameLayout {
     }
 
     private fun createView(
+        clazz: Class<out SmartspacerBasePageView<*>>,
         target: SmartspaceTarget,
         listener: SmartspaceTargetInteractionListener?,
         tintColour: Int,
         applyShadowIfRequired: Boolean
     ): SmartspacerBasePageView<*>? {
         return try {
-            val clazz = when {
-                target.remoteViews != null -> SmartspacerRemoteViewsPageView::class.java
-                target.templateData != null -> {
-                    when(target.templateData){
-                        is CarouselTemplateData -> SmartspacerCarouselTemplatePageView::class.java
-                        is HeadToHeadTemplateData -> SmartspacerHeadToHeadTemplatePageView::class.java
-                        is SubCardTemplateData -> SmartspacerCardTemplatePageView::class.java
-                        is SubListTemplateData -> SmartspacerListTemplatePageView::class.java
-                        is SubImageTemplateData -> SmartspacerCardImagesPageView::class.java
-                        else -> {
-                            if(target.featureType == FEATURE_WEATHER){
-                                SmartspacerWeatherTemplatePageView::class.java
-                            }else {
-                                SmartspacerBasicTemplatePageView::class.java
-                            }
-                        }
-                    }
-                }
-                else -> {
-                    when{
-                        FEATURE_ALLOWLIST_DOORBELL.contains(target.featureType) -> {
-                            SmartspacerDoorbellFeaturePageView::class.java
-                        }
-
-                        FEATURE_ALLOWLIST_IMAGE.contains(target.featureType) -> {
-                            SmartspacerCommuteTimeFeaturePageView::class.java
-                        }
-
-                        target.featureType == FEATURE_WEATHER -> {
-                            SmartspacerWeatherFeaturePageView::class.java
-                        }
-
-                        else -> SmartspacerUndefinedFeaturePageView::class.java
-                    }
-                }
-            }
             SmartspacerBasePageView.createInstance(
                 context,
                 clazz,
@@ -198,7 +220,8 @@ open class SmartspacerView: FrameLayout {
         tintColour: Int,
         applyShadowIfRequired: Boolean
     ): SmartspacerBasePageView<*>? {
-        return createView(generateBlankTarget(), null, tintColour, applyShadowIfRequired)
+        val target = generateBlankTarget()
+        return createView(getPageClass(target), target, null, tintColour, applyShadowIfRequired)
     }
 
     private fun generateBlankTarget(): SmartspaceTarget = SmartspaceTarget(
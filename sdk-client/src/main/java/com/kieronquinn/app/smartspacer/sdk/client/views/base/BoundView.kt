@@ -26,9 +26,10 @@ abstract class BoundView<V: ViewBinding>(
     private var _binding: V? = null
     private var isResumed = false
 
-    private val lifecycleRegistry by lazy {
-        LifecycleRegistry(this)
-    }
+    private var _lifecycleRegistry: LifecycleRegistry? = null
+
+    private val lifecycleRegistry: LifecycleRegistry
+        get() = _lifecycleRegistry ?: LifecycleRegistry(this).also { _lifecycleRegistry = it }
 
     protected val binding
         get() = _binding ?: throw RuntimeException(
@@ -37,6 +38,10 @@ abstract class BoundView<V: ViewBinding>(
 
     override fun onAttachedToWindow() {
         super.onAttachedToWindow()
+        if(lifecycle.currentState == Lifecycle.State.DESTROYED) {
+            //A destroyed lifecycle can't be restarted, so a recycled View needs a new one
+            _lifecycleRegistry = null
+        }
         removeAllViews()
         _binding = inflate(layoutInflater, this, false)
         addView(binding.root)
@@ -47,6 +52,7 @@ abstract class BoundView<V: ViewBinding>(
     override fun onDetachedFromWindow() {
         super.onDetachedFromWindow()
         _binding = null
+        isResumed = false
         if(lifecycle.currentState.isAtLeast(Lifecycle.State.CREATED)) {
             lifecycleRegistry.handleLifecycleEvent(Lifecycle.Event.ON_DESTROY)
         }
@@ -15,6 +15,7 @@ import com.kieronquinn.app.smartspacer.sdk.client.utils.expressiveTitleTypeface
 import com.kieronquinn.app.smartspacer.sdk.client.utils.whenResumed
 import com.kieronquinn.app.smartspacer.sdk.client.views.DoubleShadowImageView
 import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceTarget
+import kotlinx.coroutines.Job
 
 abstract class SmartspacerBasePageView<V: ViewBinding>(
     context: Context,
@@ -31,14 +32,53 @@ abstract class SmartspacerBasePageView<V: ViewBinding>(
             applyShadowIfRequired: Boolean
         ): SmartspacerBasePageView<*> {
             return clazz.getConstructor(Context::class.java).newInstance(context).apply {
-                val shouldApplyShadow = applyShadowIfRequired && tintColour == Color.WHITE
-                whenResumed {
-                    setTarget(target, listener, tintColour, shouldApplyShadow)
-                }
+                bind(target, listener, tintColour, applyShadowIfRequired)
             }
         }
     }
 
+    private var targetBinding: TargetBinding? = null
+    private var bindJob: Job? = null
+
+    /**
+     *  Shows [target] on this existing View, once it is resumed. Calls with the same Target
+     *  instance and arguments as the current one are ignored, so it is not set again. Targets are
+     *  compared by identity, as [SmartspaceTarget.equals] does not cover everything shown.
+     */
+    fun bind(
+        target: SmartspaceTarget,
+        listener: SmartspaceTargetInteractionListener?,
+        tintColour: Int,
+        applyShadowIfRequired: Boolean
+    ) {
+        val shouldApplyShadow = applyShadowIfRequired && tintColour == Color.WHITE
+        val targetBinding = TargetBinding(target, listener, tintColour, shouldApplyShadow)
+        if(targetBinding.isSameAs(this.targetBinding) && bindJob?.isActive == true) return
+        this.targetBinding = targetBinding
+        launchBind()
+    }
+
+    override fun onAttachedToWindow() {
+        super.onAttachedToWindow()
+        //The previous lifecycle's jobs were cancelled when this View was detached
+        if(bindJob?.isActive != true) {
+            launchBind()
+        }
+    }
+
+    private fun launchBind() {
+        val targetBinding = targetBinding ?: return
+        bindJob?.cancel()
+        bindJob = whenResumed {
+            setTarget(
+                targetBinding.target,
+                targetBinding.listener,
+                targetBinding.tintColour,
+                targetBinding.applyShadow
+            )
+        }
+    }
+
     abstract suspend fun setTarget(
         target: SmartspaceTarget,
         interactionListener: SmartspaceTargetInteractionListener?,
@@ -73,6 +113,19 @@ abstract class SmartspacerBasePageView<V: ViewBinding>(
         }
     }
 
+    private data class TargetBinding(
+        val target: SmartspaceTarget,
+        val listener: SmartspaceTargetInteractionListener?,
+        val tintColour: Int,
+        val applyShadow: Boolean
+    ) {
+        fun isSameAs(other: TargetBinding?): Boolean {
+            if(other == null) return false
+            return target === other.target && listener == other.listener &&
+                    tintColour == other.tintColour && applyShadow == other.applyShadow
+        }
+    }
+
     interface SmartspaceTargetInteractionListener {
         companion object {
             fun SmartspaceTargetInteractionListener?.launchAction(
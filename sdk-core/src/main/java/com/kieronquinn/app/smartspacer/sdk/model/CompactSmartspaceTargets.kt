@@ -0,0 +1,281 @@
+package com.kieronquinn.app.smartspacer.sdk.model
+
+import android.os.BadParcelableException
+import android.os.Bundle
+import android.os.Parcel
+import android.os.Parcelable
+import androidx.annotation.RestrictTo
+import androidx.core.os.bundleOf
+
+/**
+ *  A compact encoding of a list of [SmartspaceTarget]s, for sending over Binder.
+ *
+ *  [SmartspaceTarget.toBundle] writes every key of every nested Bundle as a string, along with a
+ *  type for every value, which makes up most of the size of a parcelled Target. This writes the
+ *  same Bundles, but replaces keys and common values found in a fixed, versioned schema with their
+ *  index, and writes the common types without Bundle's overhead. Anything else is written with
+ *  [Parcel.writeValue], so fields added in newer SDK versions still make it across.
+ *
+ *  The receiving side must ask for this with the [VERSION] it can read, and the sender then
+ *  writes the lower of that and its own version. Senders which were not asked for it, or do not
+ *  support it, send the Bundles instead.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+class CompactSmartspaceTargets(
+    val targets: List<SmartspaceTarget>,
+    private val version: Int = VERSION
+): Parcelable {
+
+    companion object CREATOR : Parcelable.Creator<CompactSmartspaceTargets> {
+
+        /**
+         *  The highest version of the format this SDK can read and write
+         */
+        const val VERSION = 1
+
+        private const val TYPE_NULL = 0
+        private const val TYPE_STRING = 1
+        private const val TYPE_SCHEMA_STRING = 2
+        private const val TYPE_INT = 3
+        private const val TYPE_LONG = 4
+        private const val TYPE_FLOAT = 5
+        private const val TYPE_TRUE = 6
+        private const val TYPE_FALSE = 7
+        private const val TYPE_BUNDLE = 8
+        private const val TYPE_BUNDLE_LIST = 9
+        private const val TYPE_STRING_ARRAY = 10
+        private const val TYPE_RAW_BUNDLE = 11
+        private const val TYPE_VALUE = 12
+
+        private const val TYPE_BITS = 4
+        private const val TYPE_MASK = (1 shl TYPE_BITS) - 1
+
+        /**
+         *  Bundles under these keys are provided by plugins and may contain their own classes, so
+         *  are written as-is to be unparcelled lazily, as they would be in the Bundle format.
+         */
+        private val RAW_KEYS = setOf("extras")
+
+        /**
+         *  Keys and values used by the models in version 1. This must never be changed, later
+         *  versions must copy this and append to it.
+         */
+        private val SCHEMA_V1 = Schema(
+            //SmartspaceTarget
+            "smartspace_target_id",
+            "header_action",
+            "base_action",
+            "creation_time_millis",
+            "expiry_time_millis",
+            "score",
+            "action_chips",
+            "icon_grid",
+            "feature_type",
+            "is_sensitive",
+            "should_show_expanded",
+            "source_notification_key",
+            "component_name",
+            "user_handle",
+            "associated_smartspace_target_id",
+            "slice_uri",
+            "widget",
+            "remote_views",
+            "template_data",
+            "template_data_type",
+            "expanded_state",
+            "can_be_dismissed",
+            "can_take_two_complications",
+            "hide_if_no_complications",
+            "limit_to_surfaces",
+            //SmartspaceAction
+            "id",
+            "icon",
+            "title",
+            "subtitle",
+            "content_description",
+            "pending_intent",
+            "intent",
+            "extras",
+            "sub_item_info",
+            "skip_pending_intent",
+            //BaseTemplateData and its sub-items
+            "template_type",
+            "layout_weight",
+            "primary_item",
+            "subtitle_item",
+            "subtitle_supplemental_item",
+            "supplemental_alarm_item",
+            "supplemental_line_item",
+            "text",
+            "tap_action",
+            "logging_info",
+            "instance_id",
+            "package_name",
+            "should_tint",
+            "should_show_on_lock_screen",
+            "truncate_at_type",
+            "max_lines",
+            //Template subclasses
+            "carousel_items",
+            "carousel_action",
+            "upper_text",
+            "lower_text",
+            "image",
+            "combined_card_data_list_type",
+            "combined_card_data_list",
+            "head_to_head_action",
+            "head_to_head_title",
+            "head_to_head_first_competitor_icon",
+            "head_to_head_first_competitor_text",
+            "head_to_head_second_competitor_icon",
+            "head_to_head_second_competitor_text",
+            "sub_card_text",
+            "sub_card_icon",
+            "sub_card_action",
+            "sub_images",
+            "sub_image_text",
+            "sub_image_action",
+            "sub_list_texts",
+            "sub_list_icon",
+            "sub_list_action",
+            //ExpandedState
+            "shortcuts",
+            "app_shortcuts",
+            "view",
+            "unlocked",
+            "locked",
+            "info",
+            "show_when_locked",
+            "height",
+            "width",
+            "label",
+            "package_names",
+            "app_shortcut_count",
+            //Values
+            "com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.BaseTemplateData",
+            "com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.BasicTemplateData",
+            "com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.CarouselTemplateData",
+            "com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.CombinedCardsTemplateData",
+            "com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.HeadToHeadTemplateData",
+            "com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.SubCardTemplateData",
+            "com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.SubImageTemplateData",
+            "com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.SubListTemplateData"
+        )
+
+        private class Schema(vararg val strings: String) {
+            private val indexes = strings.withIndex().associate { it.value to it.index }
+
+            fun indexOf(string: String) = indexes[string] ?: -1
+        }
+
+        private fun getSchema(version: Int): Schema {
+            return when(version) {
+                1 -> SCHEMA_V1
+                else -> throw BadParcelableException("Unsupported compact Target version $version")
+            }
+        }
+
+        override fun createFromParcel(parcel: Parcel): CompactSmartspaceTargets {
+            val version = parcel.readInt()
+            val schema = getSchema(version)
+            val classLoader = CompactSmartspaceTargets::class.java.classLoader
+            val targets = List(parcel.readInt()) {
+                SmartspaceTarget(parcel.readCompactBundle(schema, classLoader))
+            }
+            return CompactSmartspaceTargets(targets, version)
+        }
+
+        override fun newArray(size: Int): Array<CompactSmartspaceTargets?> {
+            return arrayOfNulls(size)
+        }
+
+        @Suppress("DEPRECATION")
+        private fun Parcel.writeCompactBundle(bundle: Bundle, schema: Schema) {
+            val keys = bundle.keySet()
+            writeInt(keys.size)
+            keys.forEach { key ->
+                val value = bundle.get(key)
+                val type = when {
+                    value == null -> TYPE_NULL
+                    value is String -> {
+                        if(schema.indexOf(value) >= 0) TYPE_SCHEMA_STRING else TYPE_STRING
+                    }
+                    value is Int -> TYPE_INT
+                    value is Long -> TYPE_LONG
+                    value is Float -> TYPE_FLOAT
+                    value is Boolean -> if(value) TYPE_TRUE else TYPE_FALSE
+                    value is Bundle -> if(RAW_KEYS.contains(key)) TYPE_RAW_BUNDLE else TYPE_BUNDLE
+                    value is List<*> && value.all { it is Bundle } -> TYPE_BUNDLE_LIST
+                    value is Array<*> && value.isArrayOf<String>() -> TYPE_STRING_ARRAY
+                    else -> TYPE_VALUE
+                }
+                //Keys in the schema are written as their index + 1, otherwise 0 and then the key
+                val keyIndex = schema.indexOf(key)
+                writeInt(((keyIndex + 1) shl TYPE_BITS) or type)
+                if(keyIndex < 0) writeString(key)
+                when(type) {
+                    TYPE_STRING -> writeString(value as String)
+                    TYPE_SCHEMA_STRING -> writeInt(schema.indexOf(value as String))
+                    TYPE_INT -> writeInt(value as Int)
+                    TYPE_LONG -> writeLong(value as Long)
+                    TYPE_FLOAT -> writeFloat(value as Float)
+                    TYPE_BUNDLE -> writeCompactBundle(value as Bundle, schema)
+                    TYPE_BUNDLE_LIST -> {
+                        val list = value as List<*>
+                        writeInt(list.size)
+                        list.forEach { writeCompactBundle(it as Bundle, schema) }
+                    }
+                    TYPE_STRING_ARRAY -> writeStringArray(value as Array<String>)
+                    TYPE_RAW_BUNDLE -> writeBundle(value as Bundle)
+                    TYPE_VALUE -> writeValue(value)
+                }
+            }
+        }
+
+        private fun Parcel.readCompactBundle(schema: Schema, classLoader: ClassLoader?): Bundle {
+            val size = readInt()
+            val bundle = Bundle(size)
+            repeat(size) {
+                val header = readInt()
+                val keyIndex = (header ushr TYPE_BITS) - 1
+                val key = if(keyIndex >= 0) schema.strings[keyIndex] else readString()!!
+                when(header and TYPE_MASK) {
+                    TYPE_NULL -> bundle.putString(key, null)
+                    TYPE_STRING -> bundle.putString(key, readString())
+                    TYPE_SCHEMA_STRING -> bundle.putString(key, schema.strings[readInt()])
+                    TYPE_INT -> bundle.putInt(key, readInt())
+                    TYPE_LONG -> bundle.putLong(key, readLong())
+                    TYPE_FLOAT -> bundle.putFloat(key, readFloat())
+                    TYPE_TRUE -> bundle.putBoolean(key, true)
+                    TYPE_FALSE -> bundle.putBoolean(key, false)
+                    TYPE_BUNDLE -> bundle.putBundle(key, readCompactBundle(schema, classLoader))
+                    TYPE_BUNDLE_LIST -> {
+                        val list = ArrayList<Bundle>()
+                        repeat(readInt()) { list.add(readCompactBundle(schema, classLoader)) }
+                        bundle.putParcelableArrayList(key, list)
+                    }
+                    TYPE_STRING_ARRAY -> bundle.putStringArray(key, createStringArray())
+                    TYPE_RAW_BUNDLE -> bundle.putBundle(key, readBundle(classLoader))
+                    //Bundle has no generic put, so let bundleOf pick the right type
+                    TYPE_VALUE -> bundle.putAll(bundleOf(key to readValue(classLoader)))
+                    else -> throw BadParcelableException("Unknown compact Target type $header")
+                }
+            }
+            return bundle
+        }
+    }
+
+    override fun writeToParcel(parcel: Parcel, flags: Int) {
+        val schema = getSchema(version)
+        parcel.writeInt(version)
+        parcel.writeInt(targets.size)
+        targets.forEach {
+            parcel.writeCompactBundle(it.toBundle(), schema)
+        }
+    }
+
+    override fun describeContents(): Int {
+        return 0
+    }
+
+}
@@ -15,6 +15,7 @@ import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.TapAction
 import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.Text
 import com.kieronquinn.app.smartspacer.sdk.model.weather.WeatherData
 import com.kieronquinn.app.smartspacer.sdk.utils.ComplicationTemplate
+import com.kieronquinn.app.smartspacer.sdk.utils.Fingerprint
 import com.kieronquinn.app.smartspacer.sdk.utils.getEnumList
 import com.kieronquinn.app.smartspacer.sdk.utils.getParcelableCompat
 import com.kieronquinn.app.smartspacer.sdk.utils.putEnumList
@@ -322,6 +323,21 @@ data class SmartspaceAction(
         )
     }
 
+    /**
+     *  Returns a 64-bit fingerprint of the fields checked by [equals]. This is recalculated on each
+     *  call, since Actions are mutable.
+     */
+    fun fingerprint(): Long {
+        return Fingerprint()
+            .add(id)
+            .add(title)
+            .add(subtitle)
+            .add(contentDescription)
+            .addHash(limitToSurfaces)
+            .add(skipPendingIntent)
+            .value
+    }
+
     override fun equals(other: Any?): Boolean {
         if(other !is SmartspaceAction) return false
         if(other.id != id) return false
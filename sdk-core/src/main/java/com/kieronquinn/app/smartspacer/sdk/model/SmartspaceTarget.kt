@@ -21,6 +21,7 @@ import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.HeadToHeadTempla
 import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.SubCardTemplateData
 import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.SubImageTemplateData
 import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.SubListTemplateData
+import com.kieronquinn.app.smartspacer.sdk.utils.Fingerprint
 import com.kieronquinn.app.smartspacer.sdk.utils.getEnumList
 import com.kieronquinn.app.smartspacer.sdk.utils.getParcelableArrayListCompat
 import com.kieronquinn.app.smartspacer.sdk.utils.getParcelableCompat
@@ -448,6 +449,39 @@ data class SmartspaceTarget(
         }
     }
 
+    /**
+     *  Returns a 64-bit fingerprint of the fields checked by [equals], including the fingerprints
+     *  of its Actions and [templateData]. This is recalculated on each call, since Targets are
+     *  mutable, so callers comparing the same Target repeatedly should keep the result.
+     */
+    fun fingerprint(): Long {
+        return Fingerprint()
+            .add(smartspaceTargetId)
+            .add(headerAction?.fingerprint() ?: 0L)
+            .add(baseAction?.fingerprint() ?: 0L)
+            .add(creationTimeMillis)
+            .add(expiryTimeMillis)
+            .add(score)
+            .addAll(actionChips) { add(it.fingerprint()) }
+            .addAll(iconGrid) { add(it.fingerprint()) }
+            .add(featureType)
+            .add(isSensitive)
+            .add(shouldShowExpanded)
+            .add(sourceNotificationKey)
+            .addHash(componentName)
+            .addHash(userHandle)
+            .add(associatedSmartspaceTargetId)
+            .addHash(sliceUri)
+            .addHash(widget)
+            .add(templateData?.fingerprint() ?: 0L)
+            .addHash(expandedState)
+            .add(canBeDismissed)
+            .add(canTakeTwoComplications)
+            .add(hideIfNoComplications)
+            .addHash(limitToSurfaces)
+            .value
+    }
+
     override fun equals(other: Any?): Boolean {
         if(other !is SmartspaceTarget) return false
         if(other.smartspaceTargetId != smartspaceTargetId) return false
@@ -0,0 +1,214 @@
+package com.kieronquinn.app.smartspacer.sdk.model
+
+import android.os.Bundle
+import androidx.annotation.RestrictTo
+import androidx.core.os.bundleOf
+import com.kieronquinn.app.smartspacer.sdk.utils.Fingerprint
+
+/**
+ *  A set of changes to a list of [SmartspaceTarget]s, keyed by
+ *  [SmartspaceTarget.smartspaceTargetId]. Only inserted and changed Targets are included, so
+ *  unchanged Targets are not sent again. Operations must be applied in order, see [applyTo].
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+data class SmartspaceTargetPatch(
+    val operations: List<Operation>
+) {
+
+    companion object {
+        private const val KEY_TYPE = "type"
+        private const val KEY_ID = "id"
+        private const val KEY_POSITION = "position"
+        private const val KEY_TARGET = "target"
+        private const val KEY_HASH = "hash"
+
+        private const val TYPE_INSERT = 0
+        private const val TYPE_UPDATE = 1
+        private const val TYPE_REMOVE = 2
+        private const val TYPE_MOVE = 3
+
+        /**
+         *  Creates a patch which turns a list previously sent as [previous] (pairs of Target ID
+         *  to [contentHash]) into [targets]. Returns `null` if either list
+         *  contains duplicate IDs, in which case the full list should be sent instead.
+         */
+        fun create(
+            previous: List<Pair<String, Long>>,
+            targets: List<SmartspaceTarget>
+        ): SmartspaceTargetPatch? {
+            val newIds = targets.mapTo(HashSet()) { it.smartspaceTargetId }
+            if(newIds.size != targets.size) return null
+            val previousHashes = previous.toMap()
+            if(previousHashes.size != previous.size) return null
+            val operations = ArrayList<Operation>()
+            val current = ArrayList<String>(previous.size)
+            previous.forEach { (id, _) ->
+                if(newIds.contains(id)) {
+                    current.add(id)
+                }else{
+                    operations.add(Operation.Remove(id))
+                }
+            }
+            targets.forEachIndexed { index, target ->
+                val id = target.smartspaceTargetId
+                val hash = contentHash(target)
+                val previousHash = previousHashes[id]
+                when {
+                    previousHash == null -> {
+                        operations.add(Operation.Insert(index, target, hash))
+                        current.add(index, id)
+                        return@forEachIndexed
+                    }
+                    current[index] != id -> {
+                        operations.add(Operation.Move(id, index))
+                        current.remove(id)
+                        current.add(index, id)
+                    }
+                }
+                if(previousHash != hash) {
+                    operations.add(Operation.Update(id, target, hash))
+                }
+            }
+            return SmartspaceTargetPatch(operations)
+        }
+
+        /**
+         *  Returns a hash of everything in [target] which is sent to the client, taken from the
+         *  content of its Bundle so copies of an unchanged Target (such as those made when pages
+         *  are merged) have the same hash. Icons, Intents and RemoteViews are hashed as described
+         *  in [Fingerprint.addContent].
+         */
+        fun contentHash(target: SmartspaceTarget): Long {
+            return Fingerprint().add(target.toBundle()).value
+        }
+
+        /**
+         *  Reads a patch from a list of operation Bundles, created by [toBundles]
+         */
+        fun fromBundles(bundles: List<Bundle>): SmartspaceTargetPatch {
+            return SmartspaceTargetPatch(bundles.map { it.toOperation() })
+        }
+
+        private fun Bundle.toOperation(): Operation {
+            return when(val type = getInt(KEY_TYPE)) {
+                TYPE_INSERT -> Operation.Insert(
+                    getInt(KEY_POSITION),
+                    SmartspaceTarget(getBundle(KEY_TARGET)!!),
+                    getLong(KEY_HASH)
+                )
+                TYPE_UPDATE -> Operation.Update(
+                    getString(KEY_ID)!!,
+                    SmartspaceTarget(getBundle(KEY_TARGET)!!),
+                    getLong(KEY_HASH)
+                )
+                TYPE_REMOVE -> Operation.Remove(getString(KEY_ID)!!)
+                TYPE_MOVE -> Operation.Move(getString(KEY_ID)!!, getInt(KEY_POSITION))
+                else -> throw IllegalArgumentException("Unknown patch operation $type")
+            }
+        }
+    }
+
+    /**
+     *  Returns the operations as Bundles, to be sent in a
+     *  [com.kieronquinn.app.smartspacer.sdk.utils.ParceledListSlice]
+     */
+    fun toBundles(): List<Bundle> {
+        return operations.map { it.toBundle() }
+    }
+
+    fun isEmpty() = operations.isEmpty()
+
+    /**
+     *  Applies this patch to a [targets] list, which must match the list the patch was created
+     *  from. Unchanged Targets keep their existing instances. Returns `false` if an operation
+     *  could not be applied, in which case the list is no longer valid.
+     */
+    fun applyTo(targets: MutableList<SmartspaceTarget>): Boolean {
+        operations.forEach { operation ->
+            when(operation) {
+                is Operation.Insert -> {
+                    if(operation.position > targets.size) return false
+                    targets.add(operation.position, operation.target)
+                }
+                is Operation.Update -> {
+                    val index = targets.indexOfId(operation.id)
+                    if(index < 0) return false
+                    targets[index] = operation.target
+                }
+                is Operation.Remove -> {
+                    val index = targets.indexOfId(operation.id)
+                    if(index < 0) return false
+                    targets.removeAt(index)
+                }
+                is Operation.Move -> {
+                    val index = targets.indexOfId(operation.id)
+                    if(index < 0 || operation.position >= targets.size) return false
+                    targets.add(operation.position, targets.removeAt(index))
+                }
+            }
+        }
+        return true
+    }
+
+    private fun List<SmartspaceTarget>.indexOfId(id: String): Int {
+        return indexOfFirst { it.smartspaceTargetId == id }
+    }
+
+    sealed class Operation {
+        /**
+         *  A new Target, inserted at [position]
+         */
+        data class Insert(
+            val position: Int,
+            val target: SmartspaceTarget,
+            val hash: Long
+        ): Operation()
+
+        /**
+         *  An existing Target whose content has changed, replaced in its current position
+         */
+        data class Update(
+            val id: String,
+            val target: SmartspaceTarget,
+            val hash: Long
+        ): Operation()
+
+        /**
+         *  A Target which is no longer present
+         */
+        data class Remove(val id: String): Operation()
+
+        /**
+         *  An existing Target which has moved to [position]
+         */
+        data class Move(val id: String, val position: Int): Operation()
+
+        fun toBundle(): Bundle {
+            return when(this) {
+                is Insert -> bundleOf(
+                    KEY_TYPE to TYPE_INSERT,
+                    KEY_POSITION to position,
+                    KEY_TARGET to target.toBundle(),
+                    KEY_HASH to hash
+                )
+                is Update -> bundleOf(
+                    KEY_TYPE to TYPE_UPDATE,
+                    KEY_ID to id,
+                    KEY_TARGET to target.toBundle(),
+                    KEY_HASH to hash
+                )
+                is Remove -> bundleOf(
+                    KEY_TYPE to TYPE_REMOVE,
+                    KEY_ID to id
+                )
+                is Move -> bundleOf(
+                    KEY_TYPE to TYPE_MOVE,
+                    KEY_ID to id,
+                    KEY_POSITION to position
+                )
+            }
+        }
+    }
+
+}
+
@@ -6,6 +6,7 @@ import androidx.annotation.RestrictTo
 import androidx.core.os.bundleOf
 import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceAction
 import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceTarget
+import com.kieronquinn.app.smartspacer.sdk.utils.Fingerprint
 import kotlinx.parcelize.Parcelize
 
 @Parcelize
@@ -186,6 +187,30 @@ open class BaseTemplateData constructor(
 
     }
 
+    /**
+     *  Returns a 64-bit fingerprint of the fields checked by [equals]. This is recalculated on each
+     *  call, since templates are mutable.
+     */
+    fun fingerprint(): Long {
+        return Fingerprint()
+            .add(templateType)
+            .add(layoutWeight)
+            .add(primaryItem)
+            .add(subtitleItem)
+            .add(subtitleSupplementalItem)
+            .add(supplementalAlarmItem)
+            .add(supplementalLineItem)
+            .also { addFingerprintFields(it) }
+            .value
+    }
+
+    /**
+     *  Adds the fields specific to a template type to its [fingerprint]
+     */
+    protected open fun addFingerprintFields(fingerprint: Fingerprint) {
+        //No additional fields
+    }
+
     override fun equals(other: Any?): Boolean {
         return when(templateType) {
             SmartspaceTarget.UI_TEMPLATE_DEFAULT -> {
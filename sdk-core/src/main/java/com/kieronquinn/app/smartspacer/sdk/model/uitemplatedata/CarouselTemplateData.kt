@@ -4,6 +4,7 @@ import android.os.Bundle
 import android.os.Parcelable
 import androidx.annotation.RestrictTo
 import androidx.core.os.bundleOf
+import com.kieronquinn.app.smartspacer.sdk.utils.Fingerprint
 import com.kieronquinn.app.smartspacer.sdk.utils.getParcelableArrayListCompat
 import kotlinx.parcelize.Parcelize
 
@@ -54,6 +55,16 @@ data class CarouselTemplateData(
         return bundle
     }
 
+    override fun addFingerprintFields(fingerprint: Fingerprint) {
+        fingerprint.addAll(carouselItems) {
+            add(it.upperText)
+            add(it.lowerText)
+            add(it.image)
+            add(it.tapAction)
+        }
+        fingerprint.add(carouselAction)
+    }
+
     @Parcelize
     data class CarouselItem(
         val upperText: Text?,
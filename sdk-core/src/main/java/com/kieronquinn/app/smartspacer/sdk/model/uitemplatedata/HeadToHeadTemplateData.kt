@@ -3,6 +3,7 @@ package com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata
 import android.os.Bundle
 import androidx.annotation.RestrictTo
 import androidx.core.os.bundleOf
+import com.kieronquinn.app.smartspacer.sdk.utils.Fingerprint
 import kotlinx.parcelize.Parcelize
 
 @Parcelize
@@ -67,4 +68,13 @@ data class HeadToHeadTemplateData(
         return bundle
     }
 
+    override fun addFingerprintFields(fingerprint: Fingerprint) {
+        fingerprint.add(headToHeadAction)
+            .add(headToHeadTitle)
+            .add(headToHeadFirstCompetitorIcon)
+            .add(headToHeadFirstCompetitorText)
+            .add(headToHeadSecondCompetitorIcon)
+            .add(headToHeadSecondCompetitorText)
+    }
+
 }
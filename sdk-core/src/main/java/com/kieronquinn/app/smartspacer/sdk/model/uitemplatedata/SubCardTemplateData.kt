@@ -3,6 +3,7 @@ package com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata
 import android.os.Bundle
 import androidx.annotation.RestrictTo
 import androidx.core.os.bundleOf
+import com.kieronquinn.app.smartspacer.sdk.utils.Fingerprint
 import kotlinx.parcelize.Parcelize
 
 @Parcelize
@@ -55,4 +56,10 @@ data class SubCardTemplateData(
         return bundle
     }
 
+    override fun addFingerprintFields(fingerprint: Fingerprint) {
+        fingerprint.add(subCardText)
+            .add(subCardIcon)
+            .add(subCardAction)
+    }
+
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata
 import android.os.Bundle
 import androidx.annotation.RestrictTo
 import androidx.core.os.bundleOf
+import com.kieronquinn.app.smartspacer.sdk.utils.Fingerprint
 import com.kieronquinn.app.smartspacer.sdk.utils.getParcelableArrayListCompat
 import kotlinx.parcelize.Parcelize
 
@@ -58,4 +59,10 @@ data class SubImageTemplateData(
         return bundle
     }
 
+    override fun addFingerprintFields(fingerprint: Fingerprint) {
+        fingerprint.addAll(subImages) { add(it) }
+            .addAll(subImageTexts) { add(it) }
+            .add(subImageAction)
+    }
+
 }
\ No newline at end of file
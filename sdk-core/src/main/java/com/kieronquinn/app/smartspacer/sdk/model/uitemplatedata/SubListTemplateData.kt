@@ -3,6 +3,7 @@ package com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata
 import android.os.Bundle
 import androidx.annotation.RestrictTo
 import androidx.core.os.bundleOf
+import com.kieronquinn.app.smartspacer.sdk.utils.Fingerprint
 import com.kieronquinn.app.smartspacer.sdk.utils.getParcelableArrayListCompat
 import kotlinx.parcelize.Parcelize
 
@@ -57,4 +58,10 @@ data class SubListTemplateData(
         return bundle
     }
 
+    override fun addFingerprintFields(fingerprint: Fingerprint) {
+        fingerprint.addAll(subListTexts) { add(it) }
+            .add(subListIcon)
+            .add(subListAction)
+    }
+
 }
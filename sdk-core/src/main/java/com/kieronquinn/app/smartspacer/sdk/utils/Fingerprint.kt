@@ -0,0 +1,214 @@
+package com.kieronquinn.app.smartspacer.sdk.utils
+
+import android.appwidget.AppWidgetProviderInfo
+import android.content.Intent
+import android.graphics.Bitmap
+import android.os.Bundle
+import android.widget.RemoteViews
+import androidx.annotation.RestrictTo
+import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.BaseTemplateData.SubItemInfo
+import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.Icon
+import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.TapAction
+import com.kieronquinn.app.smartspacer.sdk.model.uitemplatedata.Text
+import android.graphics.drawable.Icon as AndroidIcon
+
+/**
+ *  Builds a 64-bit content fingerprint (FNV-1a over 64-bit words) in a single pass. Fields added
+ *  should match those checked by the model's `equals`, so equal models have equal fingerprints.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+class Fingerprint {
+
+    companion object {
+        private const val OFFSET_BASIS = -0x340d631b7bdddcdbL //0xcbf29ce484222325
+        private const val PRIME = 0x100000001b3L
+        private const val NULL = 0x6e756c6cL
+
+        /**
+         *  [AndroidIcon.getBitmap] is hidden, so this may be `null` outside of Smartspacer
+         */
+        private val getBitmap by lazy {
+            try {
+                AndroidIcon::class.java.getMethod("getBitmap")
+            }catch (e: Exception) {
+                null
+            }
+        }
+    }
+
+    var value = OFFSET_BASIS
+        private set
+
+    fun add(value: Long) = apply {
+        this.value = (this.value xor value) * PRIME
+    }
+
+    fun add(value: Int) = add(value.toLong())
+
+    fun add(value: Boolean) = add(if(value) 1L else 0L)
+
+    fun add(value: Float) = add(value.toRawBits())
+
+    fun add(value: CharSequence?) = apply {
+        if(value == null) {
+            add(NULL)
+            return@apply
+        }
+        add(value.length)
+        for(i in value.indices) {
+            add(value[i].code)
+        }
+    }
+
+    fun add(text: Text?) = apply {
+        if(text == null) {
+            add(NULL)
+            return@apply
+        }
+        add(text.text)
+        add(text.truncateAtType.ordinal)
+        add(text.maxLines)
+    }
+
+    /**
+     *  Matches [TapAction.equals], which only checks the ID
+     */
+    fun add(tapAction: TapAction?) = apply {
+        add(tapAction?.id)
+    }
+
+    fun add(icon: Icon?) = apply {
+        if(icon == null) {
+            add(NULL)
+            return@apply
+        }
+        add(icon.icon)
+        add(icon.contentDescription)
+        add(icon.shouldTint)
+    }
+
+    /**
+     *  Android Icons do not implement equals, so are added by their source: the resource, URI, or
+     *  the generation of their bitmap, which changes whenever the bitmap is modified. Icons whose
+     *  source cannot be read are added by identity.
+     */
+    fun add(icon: AndroidIcon?) = apply {
+        if(icon == null) {
+            add(NULL)
+            return@apply
+        }
+        add(icon.type)
+        when(icon.type) {
+            AndroidIcon.TYPE_RESOURCE -> {
+                add(icon.resPackage)
+                add(icon.resId)
+            }
+            AndroidIcon.TYPE_URI, AndroidIcon.TYPE_URI_ADAPTIVE_BITMAP -> {
+                add(icon.uri.toString())
+            }
+            AndroidIcon.TYPE_BITMAP, AndroidIcon.TYPE_ADAPTIVE_BITMAP -> {
+                val bitmap = try {
+                    getBitmap?.invoke(icon) as? Bitmap
+                }catch (e: Exception) {
+                    null
+                }
+                if(bitmap != null) {
+                    add(bitmap.generationId)
+                    add(bitmap.width)
+                    add(bitmap.height)
+                }else{
+                    addIdentity(icon)
+                }
+            }
+            else -> addIdentity(icon)
+        }
+    }
+
+    /**
+     *  Adds an Intent by the fields checked by [Intent.filterEquals], plus the keys of its extras.
+     *  Extra values are not added, since they may be any type.
+     */
+    fun add(intent: Intent?) = apply {
+        if(intent == null) {
+            add(NULL)
+            return@apply
+        }
+        add(intent.filterHashCode())
+        val keys = intent.extras?.keySet()?.sorted() ?: emptyList()
+        addAll(keys) { add(it) }
+    }
+
+    /**
+     *  Adds the content of a Bundle, such as one created by a model's `toBundle`, so copies of a
+     *  model add the same value. Keys are added in sorted order, since Bundles are unordered.
+     */
+    fun add(bundle: Bundle?) = apply {
+        if(bundle == null) {
+            add(NULL)
+            return@apply
+        }
+        val keys = bundle.keySet().sorted()
+        addAll(keys) {
+            add(it)
+            @Suppress("DEPRECATION")
+            addContent(bundle.get(it))
+        }
+    }
+
+    /**
+     *  Adds a value from a Bundle by its content where possible. RemoteViews have no content to
+     *  compare, so are added by identity, as are other types which do not implement `equals`.
+     */
+    fun addContent(value: Any?): Fingerprint = apply {
+        when(value) {
+            null -> add(NULL)
+            is CharSequence -> add(value)
+            is Bundle -> add(value)
+            is AndroidIcon -> add(value)
+            is Intent -> add(value)
+            is Enum<*> -> add(value.name)
+            is AppWidgetProviderInfo -> {
+                addHash(value.provider)
+                add(value.initialLayout)
+            }
+            is RemoteViews -> addIdentity(value)
+            is Collection<*> -> addAll(value.toList()) { addContent(it) }
+            is Array<*> -> addAll(value.toList()) { addContent(it) }
+            is IntArray -> add(value.contentHashCode())
+            is LongArray -> add(value.contentHashCode())
+            is FloatArray -> add(value.contentHashCode())
+            is BooleanArray -> add(value.contentHashCode())
+            is ByteArray -> add(value.contentHashCode())
+            else -> addHash(value)
+        }
+    }
+
+    /**
+     *  Matches [SubItemInfo.equals], which does not check the icon
+     */
+    fun add(subItemInfo: SubItemInfo?) = apply {
+        if(subItemInfo == null) {
+            add(NULL)
+            return@apply
+        }
+        add(subItemInfo.text)
+        add(subItemInfo.tapAction)
+        addHash(subItemInfo.loggingInfo)
+    }
+
+    /**
+     *  Adds a value by its [hashCode], for types whose `hashCode` is consistent with `equals`
+     */
+    fun addHash(value: Any?) = add(value?.hashCode() ?: NULL.toInt())
+
+    /**
+     *  Adds a value by its identity, for types which do not implement `equals`
+     */
+    fun addIdentity(value: Any?) = add(value?.let { System.identityHashCode(it) } ?: NULL.toInt())
+
+    inline fun <T> addAll(values: List<T>, block: Fingerprint.(T) -> Unit) = apply {
+        add(values.size)
+        values.forEach { block(it) }
+    }
+
+}
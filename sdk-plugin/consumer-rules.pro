@@ -0,0 +1,2 @@
+# Sent between plugins and Smartspacer inside Bundles, which are unparcelled by class name
+-keep class com.kieronquinn.app.smartspacer.sdk.model.CompactSmartspaceTargets { *; }
@@ -2,18 +2,42 @@ package com.kieronquinn.app.smartspacer.sdk.provider
 
 import android.graphics.Bitmap
 import android.net.Uri
+import android.os.Build
 import android.os.ParcelFileDescriptor
-import java.io.ByteArrayInputStream
-import java.io.ByteArrayOutputStream
+import android.util.Log
+import java.io.BufferedOutputStream
+import java.io.File
+import java.io.FileOutputStream
 import java.io.IOException
+import java.io.OutputStream
+import java.security.MessageDigest
+import java.util.concurrent.Executors
 
 /**
  *  Helper class to implement a ContentProvider which can provide Smartspace Targets with image
  *  bitmaps from your app. Implementations of this class should be exported, since [openFile]
  *  verifies the call comes from Smartspacer.
+ *
+ *  Bitmaps are encoded on a background thread, streaming directly into the returned file, in the
+ *  format returned by [getEncoding]. If [getVersion] returns a version for a Uri, the encoded
+ *  bitmap is also cached on disk and served directly until the version changes.
  */
 abstract class SmartspacerBitmapProvider: BaseProvider() {
 
+    companion object {
+        private const val TAG = "BitmapProvider"
+        private const val CACHE_DIR = "smartspacer_bitmaps"
+        private const val DEFAULT_MAX_CACHE_SIZE = 10L * 1024 * 1024
+
+        /**
+         *  Encodes bitmaps while they are being read. Each write blocks until the reader has
+         *  consumed it, so writes cannot share a thread.
+         */
+        private val writer = Executors.newCachedThreadPool {
+            Thread(it, "SmartspacerBitmapWriter").apply { isDaemon = true }
+        }
+    }
+
     /**
      *  Create your [Bitmap] for a given [Uri]. You can pass parameters in the [Uri] as required,
      *  and return `null` if the Uri is somehow invalid.
@@ -22,42 +46,193 @@ abstract class SmartspacerBitmapProvider: BaseProvider() {
      */
     abstract fun getBitmap(uri: Uri): Bitmap?
 
+    /**
+     *  Returns the [Encoding] to send the bitmap for a given [uri] in. Defaults to lossless PNG,
+     *  [Encoding.WEBP_LOSSLESS] is usually smaller, and [Encoding.webpLossy] is much faster to
+     *  encode for large images such as album art or maps.
+     */
+    open fun getEncoding(uri: Uri): Encoding {
+        return Encoding.PNG
+    }
+
+    /**
+     *  Returns a version for the bitmap of a given [uri], which should change whenever the bitmap
+     *  would. If set, the encoded bitmap is cached on disk and [getBitmap] will not be called
+     *  again until the version changes. Returns `null` by default, which disables caching.
+     */
+    open fun getVersion(uri: Uri): String? {
+        return null
+    }
+
+    /**
+     *  The maximum size of the on-disk cache in bytes, least recently used bitmaps are removed
+     *  when it is exceeded.
+     */
+    open fun getMaxCacheSize(): Long {
+        return DEFAULT_MAX_CACHE_SIZE
+    }
+
     final override fun openFile(uri: Uri, mode: String): ParcelFileDescriptor? {
         verifySecurity()
-        val bitmap = getBitmap(uri)
-        val bytes = bitmap?.compress() ?: return null
-        val inputStream = ByteArrayInputStream(bytes)
-        val pipe = ParcelFileDescriptor.createPipe()
-        val outputStream = ParcelFileDescriptor.AutoCloseOutputStream(pipe[1])
-        inputStream.copyTo(outputStream)
+        val encoding = getEncoding(uri)
+        if(!encoding.isValid()) {
+            Log.e(TAG, "Invalid encoding quality ${encoding.quality} for $uri, must be 0 to 100")
+            return null
+        }
+        val cacheFile = getVersion(uri)?.let { getCacheFile(uri, it, encoding) }
+        if(cacheFile != null && cacheFile.exists()) {
+            cacheFile.setLastModified(System.currentTimeMillis())
+            return ParcelFileDescriptor.open(cacheFile, ParcelFileDescriptor.MODE_READ_ONLY)
+        }
+        val bitmap = getBitmap(uri) ?: return null
+        val pipe = ParcelFileDescriptor.createReliablePipe()
+        writer.execute {
+            writeBitmap(bitmap, encoding, pipe[1], cacheFile)
+        }
         return pipe[0]
     }
 
-    /**
-     * Compresses the bitmap to a byte array for serialization.
-     */
-    private fun Bitmap.compress(): ByteArray? {
-        val out = ByteArrayOutputStream(getExpectedBitmapSize())
-        return try {
-            compress(Bitmap.CompressFormat.PNG, 100, out)
-            out.flush()
-            out.close()
-            out.toByteArray()
-        } catch (e: IOException) {
+    private fun writeBitmap(
+        bitmap: Bitmap,
+        encoding: Encoding,
+        output: ParcelFileDescriptor,
+        cacheFile: File?
+    ) {
+        val tempFile = try {
+            cacheFile?.let { File.createTempFile(it.name, ".tmp", it.parentFile) }
+        }catch (e: Exception) {
+            //Cache is not available, still write to the pipe
             null
         }
+        try {
+            //The pipe is closed via its ParcelFileDescriptor, so the stream itself is not closed
+            val pipeStream = FileOutputStream(output.fileDescriptor)
+            val cacheStream = tempFile?.let { FileOutputStream(it) }
+            try {
+                val outputStream = BufferedOutputStream(
+                    cacheStream?.let { TeeOutputStream(pipeStream, it) } ?: pipeStream
+                )
+                if(!bitmap.compress(encoding.getCompressFormat(), encoding.quality, outputStream)) {
+                    throw IOException("Failed to compress bitmap")
+                }
+                outputStream.flush()
+            }finally {
+                cacheStream?.close()
+            }
+            output.close()
+            if(tempFile != null && cacheFile != null) {
+                if(tempFile.renameTo(cacheFile)) {
+                    trimCache(cacheFile.parentFile!!)
+                }else{
+                    tempFile.delete()
+                }
+            }
+        }catch (e: Exception) {
+            //Usually caused by the reader closing the file early, but the bitmap or encoding may
+            //also be invalid. Either way the reader must not be left waiting.
+            Log.w(TAG, "Failed to write bitmap", e)
+            tempFile?.delete()
+            try {
+                output.closeWithError(e.message ?: e.javaClass.simpleName)
+            }catch (e: IOException) {
+                //Already closed
+            }
+        }finally {
+            bitmap.recycle()
+        }
     }
 
-    /**
-     * Try go guesstimate how much space the icon will take when serialized to avoid unnecessary
-     * allocations/copies during the write (4 bytes per pixel).
-     */
-    private fun Bitmap.getExpectedBitmapSize(): Int {
-        return width * height * 4
+    private fun getCacheFile(uri: Uri, version: String, encoding: Encoding): File {
+        val dir = File(provideContext().cacheDir, CACHE_DIR).apply {
+            mkdirs()
+        }
+        val key = "$uri:$version:${encoding.format}:${encoding.quality}"
+        val digest = MessageDigest.getInstance("SHA-256").digest(key.toByteArray())
+        val name = digest.joinToString("") { "%02x".format(it) }
+        return File(dir, name)
+    }
+
+    private fun trimCache(dir: File) {
+        synchronized(this) {
+            val files = dir.listFiles { file -> !file.name.endsWith(".tmp") } ?: return
+            var size = files.sumOf { it.length() }
+            val maxSize = getMaxCacheSize()
+            if(size <= maxSize) return
+            files.sortedBy { it.lastModified() }.forEach {
+                if(size <= maxSize) return
+                size -= it.length()
+                it.delete()
+            }
+        }
     }
 
     final override fun getType(uri: Uri): String {
         return "application/octet-stream"
     }
 
-}
\ No newline at end of file
+    data class Encoding(
+        val format: Format,
+        /**
+         *  Quality hint, `0` to `100`. Ignored by lossless formats.
+         */
+        val quality: Int
+    ) {
+
+        companion object {
+            val PNG = Encoding(Format.PNG, 100)
+            val WEBP_LOSSLESS = Encoding(Format.WEBP_LOSSLESS, 100)
+
+            fun webpLossy(quality: Int = 90) = Encoding(Format.WEBP_LOSSY, quality)
+            fun jpeg(quality: Int = 90) = Encoding(Format.JPEG, quality)
+        }
+
+        internal fun isValid(): Boolean {
+            return quality in 0..100
+        }
+
+        @Suppress("DEPRECATION")
+        internal fun getCompressFormat(): Bitmap.CompressFormat {
+            return when(format) {
+                Format.PNG -> Bitmap.CompressFormat.PNG
+                Format.JPEG -> Bitmap.CompressFormat.JPEG
+                Format.WEBP_LOSSLESS -> if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                    Bitmap.CompressFormat.WEBP_LOSSLESS
+                }else Bitmap.CompressFormat.WEBP //Lossless at quality 100
+                Format.WEBP_LOSSY -> if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                    Bitmap.CompressFormat.WEBP_LOSSY
+                }else Bitmap.CompressFormat.WEBP
+            }
+        }
+
+        enum class Format {
+            PNG, JPEG, WEBP_LOSSLESS, WEBP_LOSSY
+        }
+
+    }
+
+    /**
+     *  Writes to both the pipe and the cache file, so encoding only happens once
+     */
+    private class TeeOutputStream(
+        private val first: OutputStream,
+        private val second: OutputStream
+    ): OutputStream() {
+
+        override fun write(b: Int) {
+            first.write(b)
+            second.write(b)
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            first.write(b, off, len)
+            second.write(b, off, len)
+        }
+
+        override fun flush() {
+            first.flush()
+            second.flush()
+        }
+
+    }
+
+}
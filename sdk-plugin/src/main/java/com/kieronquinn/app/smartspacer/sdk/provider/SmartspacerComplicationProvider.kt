@@ -33,6 +33,8 @@ abstract class SmartspacerComplicationProvider: BaseProvider() {
         @RestrictTo(RestrictTo.Scope.LIBRARY)
         const val METHOD_GET_CONFIG = "get_actions_config"
         @RestrictTo(RestrictTo.Scope.LIBRARY)
+        const val METHOD_GET_BATCH = "get_actions_batch"
+        @RestrictTo(RestrictTo.Scope.LIBRARY)
         const val METHOD_ON_REMOVED = "on_removed"
         @RestrictTo(RestrictTo.Scope.LIBRARY)
         const val METHOD_BACKUP = "backup"
@@ -45,6 +47,14 @@ abstract class SmartspacerComplicationProvider: BaseProvider() {
         @RestrictTo(RestrictTo.Scope.LIBRARY)
         const val EXTRA_SMARTSPACER_ID = "smartspacer_id"
         @RestrictTo(RestrictTo.Scope.LIBRARY)
+        const val EXTRA_SMARTSPACER_IDS = "smartspacer_ids"
+        @RestrictTo(RestrictTo.Scope.LIBRARY)
+        const val EXTRA_CONFIG_SMARTSPACER_IDS = "config_smartspacer_ids"
+        @RestrictTo(RestrictTo.Scope.LIBRARY)
+        const val RESULT_KEY_BATCH = "batch"
+        @RestrictTo(RestrictTo.Scope.LIBRARY)
+        const val RESULT_KEY_CONFIG = "config"
+        @RestrictTo(RestrictTo.Scope.LIBRARY)
         const val EXTRA_BACKUP = "backup"
         @RestrictTo(RestrictTo.Scope.LIBRARY)
         const val EXTRA_SUCCESS = "success"
@@ -166,6 +176,11 @@ abstract class SmartspacerComplicationProvider: BaseProvider() {
                 val smartspacerId = extras?.getString(EXTRA_SMARTSPACER_ID)
                 getConfig(smartspacerId).toBundle()
             }
+            METHOD_GET_BATCH -> {
+                val smartspacerIds = extras?.getStringArray(EXTRA_SMARTSPACER_IDS) ?: emptyArray()
+                val configIds = extras?.getStringArray(EXTRA_CONFIG_SMARTSPACER_IDS) ?: emptyArray()
+                createBatchBundle(smartspacerIds, configIds)
+            }
             METHOD_ON_REMOVED -> {
                 val smartspacerId = extras?.getString(EXTRA_SMARTSPACER_ID) ?: return null
                 onProviderRemoved(smartspacerId)
@@ -184,6 +199,28 @@ abstract class SmartspacerComplicationProvider: BaseProvider() {
         }
     }
 
+    /**
+     *  Creates a single response for multiple instances of this provider, so Smartspacer only needs
+     *  to make one call when many instances change at once. The result contains a Bundle for each
+     *  requested ID, with the actions for [smartspacerIds] and the config for [configIds].
+     */
+    private fun createBatchBundle(
+        smartspacerIds: Array<String>,
+        configIds: Array<String>
+    ): Bundle {
+        val batch = Bundle()
+        (smartspacerIds + configIds).distinct().forEach { smartspacerId ->
+            val item = if(smartspacerIds.contains(smartspacerId)) {
+                createSmartspaceActionsBundle(smartspacerId)
+            } else Bundle()
+            if(configIds.contains(smartspacerId)) {
+                item.putBundle(RESULT_KEY_CONFIG, getConfig(smartspacerId).toBundle())
+            }
+            batch.putBundle(smartspacerId, item)
+        }
+        return bundleOf(RESULT_KEY_BATCH to batch)
+    }
+
     private fun createSmartspaceActionsBundle(smartspacerId: String): Bundle {
         //For future-proofing, we convert actions to bundles so we're not bound to the current model
         val actions = ArrayList(getSmartspaceActions(smartspacerId).map { it.toBundle() })
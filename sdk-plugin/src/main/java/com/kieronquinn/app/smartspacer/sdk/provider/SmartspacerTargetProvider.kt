@@ -11,6 +11,7 @@ import android.os.Bundle
 import androidx.annotation.RestrictTo
 import androidx.core.os.bundleOf
 import com.kieronquinn.app.smartspacer.sdk.model.Backup
+import com.kieronquinn.app.smartspacer.sdk.model.CompactSmartspaceTargets
 import com.kieronquinn.app.smartspacer.sdk.model.CompatibilityState
 import com.kieronquinn.app.smartspacer.sdk.model.SmartspaceTarget
 import com.kieronquinn.app.smartspacer.sdk.provider.SmartspacerTargetProvider.Companion
@@ -35,6 +36,8 @@ abstract class SmartspacerTargetProvider: BaseProvider() {
         @RestrictTo(RestrictTo.Scope.LIBRARY)
         const val METHOD_GET_CONFIG = "get_targets_config"
         @RestrictTo(RestrictTo.Scope.LIBRARY)
+        const val METHOD_GET_BATCH = "get_targets_batch"
+        @RestrictTo(RestrictTo.Scope.LIBRARY)
         const val METHOD_DISMISS = "dismiss"
         @RestrictTo(RestrictTo.Scope.LIBRARY)
         const val METHOD_ON_REMOVED = "on_removed"
@@ -45,10 +48,22 @@ abstract class SmartspacerTargetProvider: BaseProvider() {
         @RestrictTo(RestrictTo.Scope.LIBRARY)
         const val RESULT_KEY_SMARTSPACE_TARGETS = "targets"
         @RestrictTo(RestrictTo.Scope.LIBRARY)
+        const val RESULT_KEY_SMARTSPACE_TARGETS_COMPACT = "targets_compact"
+        @RestrictTo(RestrictTo.Scope.LIBRARY)
         const val EXTRA_TARGET_ID = "target_id"
         @RestrictTo(RestrictTo.Scope.LIBRARY)
         const val EXTRA_SMARTSPACER_ID = "smartspacer_id"
         @RestrictTo(RestrictTo.Scope.LIBRARY)
+        const val EXTRA_SMARTSPACER_IDS = "smartspacer_ids"
+        @RestrictTo(RestrictTo.Scope.LIBRARY)
+        const val EXTRA_CONFIG_SMARTSPACER_IDS = "config_smartspacer_ids"
+        @RestrictTo(RestrictTo.Scope.LIBRARY)
+        const val EXTRA_COMPACT_VERSION = "compact_version"
+        @RestrictTo(RestrictTo.Scope.LIBRARY)
+        const val RESULT_KEY_BATCH = "batch"
+        @RestrictTo(RestrictTo.Scope.LIBRARY)
+        const val RESULT_KEY_CONFIG = "config"
+        @RestrictTo(RestrictTo.Scope.LIBRARY)
         const val EXTRA_DID_DISMISS = "did_dismiss"
         @RestrictTo(RestrictTo.Scope.LIBRARY)
         const val EXTRA_BACKUP = "backup"
@@ -179,12 +194,18 @@ abstract class SmartspacerTargetProvider: BaseProvider() {
         return when(method){
             METHOD_GET -> {
                 val smartspacerId = extras?.getString(EXTRA_SMARTSPACER_ID) ?: return null
-                createSmartspaceTargetsBundle(smartspacerId)
+                createSmartspaceTargetsBundle(smartspacerId, extras.getInt(EXTRA_COMPACT_VERSION))
             }
             METHOD_GET_CONFIG -> {
                 val smartspacerId = extras?.getString(EXTRA_SMARTSPACER_ID)
                 getConfig(smartspacerId).toBundle()
             }
+            METHOD_GET_BATCH -> {
+                val smartspacerIds = extras?.getStringArray(EXTRA_SMARTSPACER_IDS) ?: emptyArray()
+                val configIds = extras?.getStringArray(EXTRA_CONFIG_SMARTSPACER_IDS) ?: emptyArray()
+                val compactVersion = extras?.getInt(EXTRA_COMPACT_VERSION) ?: 0
+                createBatchBundle(smartspacerIds, configIds, compactVersion)
+            }
             METHOD_DISMISS -> {
                 val smartspacerId = extras?.getString(EXTRA_SMARTSPACER_ID) ?: return null
                 val targetId = extras.getString(EXTRA_TARGET_ID) ?: return null
@@ -209,11 +230,44 @@ abstract class SmartspacerTargetProvider: BaseProvider() {
         }
     }
 
-    private fun createSmartspaceTargetsBundle(smartspacerId: String): Bundle {
+    /**
+     *  Creates a single response for multiple instances of this provider, so Smartspacer only needs
+     *  to make one call when many instances change at once. The result contains a Bundle for each
+     *  requested ID, with the targets for [smartspacerIds] and the config for [configIds].
+     */
+    private fun createBatchBundle(
+        smartspacerIds: Array<String>,
+        configIds: Array<String>,
+        compactVersion: Int
+    ): Bundle {
+        val batch = Bundle()
+        (smartspacerIds + configIds).distinct().forEach { smartspacerId ->
+            val item = if(smartspacerIds.contains(smartspacerId)) {
+                createSmartspaceTargetsBundle(smartspacerId, compactVersion)
+            } else Bundle()
+            if(configIds.contains(smartspacerId)) {
+                item.putBundle(RESULT_KEY_CONFIG, getConfig(smartspacerId).toBundle())
+            }
+            batch.putBundle(smartspacerId, item)
+        }
+        return bundleOf(RESULT_KEY_BATCH to batch)
+    }
+
+    /**
+     *  Creates the result for [smartspacerId]'s targets. If Smartspacer has asked for the compact
+     *  format by setting [compactVersion], it's used at the lower of that and this SDK's version.
+     */
+    private fun createSmartspaceTargetsBundle(smartspacerId: String, compactVersion: Int): Bundle {
+        val targets = getSmartspaceTargets(smartspacerId)
+        if(compactVersion > 0) {
+            val version = minOf(compactVersion, CompactSmartspaceTargets.VERSION)
+            return bundleOf(
+                RESULT_KEY_SMARTSPACE_TARGETS_COMPACT to CompactSmartspaceTargets(targets, version)
+            )
+        }
         //For future-proofing, we convert targets to bundles so we're not bound to the current model
-        val targets = ArrayList(getSmartspaceTargets(smartspacerId).map { it.toBundle() })
         return bundleOf(
-            RESULT_KEY_SMARTSPACE_TARGETS to targets
+            RESULT_KEY_SMARTSPACE_TARGETS to ArrayList(targets.map { it.toBundle() })
         )
     }
 
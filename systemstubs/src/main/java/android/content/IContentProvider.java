@@ -3,6 +3,7 @@ package android.content;
 import android.net.Uri;
 import android.os.IBinder;
 import android.os.ICancellationSignal;
+import android.os.IInterface;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 
@@ -12,7 +13,7 @@ import androidx.annotation.RequiresApi;
 
 import java.io.FileNotFoundException;
 
-public interface IContentProvider {
+public interface IContentProvider extends IInterface {
 
     String getType(Uri url) throws RemoteException;
 